@@ -0,0 +1,116 @@
+/*
+ * A fingerprint that identifies a specific version of a local history archive file.
+ * It is used to determine if information cached in sidecar files next to the archive is still valid.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The fingerprint of an archive file consists of its path, size and modification time plus a hash of its contents.
+ * To avoid reading through archives that can be many gigabytes large, the hash is only calculated from
+ * the first and last 64 KB of the file (which includes the GZIP trailer with the CRC of the whole decompressed contents).
+ * @author kjetikl
+ */
+public class ArchiveFingerprint {
+
+    private static final int SAMPLE_SIZE=65536;
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final byte[] hash;
+
+    private ArchiveFingerprint(String path, long size, long lastModified, byte[] hash) {
+        this.path=path;
+        this.size=size;
+        this.lastModified=lastModified;
+        this.hash=hash;
+    }
+
+    /**
+     * Calculates the fingerprint for a local file
+     * @param file The archive file
+     * @return A fingerprint for the current version of the file
+     * @throws IOException if the file could not be read
+     */
+    public static ArchiveFingerprint of(File file) throws IOException {
+        try (RandomAccessFile raf=new RandomAccessFile(file, "r")) {
+            long size=raf.length();
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            byte[] sample=new byte[(int)Math.min(size, SAMPLE_SIZE)];
+            raf.readFully(sample);
+            digest.update(sample);
+            if (size>SAMPLE_SIZE) {
+                sample=new byte[(int)Math.min(size-SAMPLE_SIZE, SAMPLE_SIZE)];
+                raf.seek(size-sample.length);
+                raf.readFully(sample);
+                digest.update(sample);
+            }
+            return new ArchiveFingerprint(file.getCanonicalPath(), size, file.lastModified(), digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /** Returns the size of the archive file */
+    public long getSize() {
+        return size;
+    }
+
+    /** Returns a hexadecimal string that identifies this fingerprint and can be used as a file name (e.g. for the ExtractedArchiveCache) */
+    public String getKey() {
+        try {
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            digest.update(path.getBytes(StandardCharsets.UTF_8));
+            digest.update(ByteBuffer.allocate(16).putLong(size).putLong(lastModified).array());
+            digest.update(hash);
+            StringBuilder key=new StringBuilder();
+            for (byte value:Arrays.copyOf(digest.digest(), 16)) key.append(String.format("%02x", value));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e); // all Java platforms are required to support SHA-256
+        }
+    }
+
+    /** Writes the fingerprint to a data stream, e.g. in the header of a sidecar file */
+    public void write(DataOutput output) throws IOException {
+        output.writeUTF(path);
+        output.writeLong(size);
+        output.writeLong(lastModified);
+        output.writeShort(hash.length);
+        output.write(hash);
+    }
+
+    /** Reads a fingerprint that has previously been written to a data stream with the write() method */
+    public static ArchiveFingerprint read(DataInput input) throws IOException {
+        String path=input.readUTF();
+        long size=input.readLong();
+        long lastModified=input.readLong();
+        byte[] hash=new byte[input.readUnsignedShort()];
+        input.readFully(hash);
+        return new ArchiveFingerprint(path, size, lastModified, hash);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ArchiveFingerprint)) return false;
+        ArchiveFingerprint fingerprint=(ArchiveFingerprint)other;
+        return path.equals(fingerprint.path) && size==fingerprint.size && lastModified==fingerprint.lastModified && Arrays.equals(hash, fingerprint.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(hash);
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * An index of a history archive tarball that allows individual files inside the archive to be read
+ * without decompressing everything in front of them from the very beginning of the archive.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.compress.utils.BoundedInputStream;
+
+/**
+ * The index contains two tables:
+ * <ul>
+ * <li>The uncompressed offset and size of every entry (file) in the tarball</li>
+ * <li>A list of checkpoints, each of which pairs a compressed offset in the archive file with the corresponding uncompressed offset in the tarball</li>
+ * </ul>
+ * To read an entry, decompression starts from the closest checkpoint in front of the entry rather than from the beginning of the archive.
+ * Checkpoints are placed at the start of GZIP members (at least "spacing" bytes apart), since these are the positions
+ * where the java.util.zip.Inflater can resume decompression without needing the preceding data.
+ * (Resuming in the middle of a deflate stream requires information about the bit position of block boundaries that the Inflater does not expose.)
+ * Archives made up of many members, such as those produced by "bgzip" or the "-repack" option, will therefore have checkpoints all the way through,
+ * while a regular single-member archive only has a checkpoint at the beginning. Entries can still be located directly with the index in both cases,
+ * without having to parse all the tar headers in front of them.
+ * <br><br>
+ * The index is built while the archive is being scanned for metadata and is saved to a sidecar file next to the archive,
+ * so that other processes opening the same history can use it right away.
+ * Archives that have been repacked with the "-repack" option carry their own index inside the archive file (see writeEmbedded),
+ * so they do not have to be scanned at all.
+ * @author kjetikl
+ */
+public class ArchiveIndex {
+
+    public static final String SIDECAR_SUFFIX=".ghbindex";
+    public static final long DEFAULT_CHECKPOINT_SPACING=1024*1024; // place checkpoints at least 1 MB (uncompressed) apart
+
+    private static final int MAGIC=0x47484249; // "GHBI"
+    private static final int FORMAT_VERSION=1;
+    private static final int EMBEDDED_CHUNK_SIZE=65000;   // the maximum amount of index data stored in a single GZIP member
+    private static final int EMBEDDED_TRAILER_SIZE=48;    // the size of the trailer member that points to the embedded index
+
+    private final ArchiveFingerprint fingerprint;
+    private final long spacing;
+    private long[] compressedOffsets=new long[16];
+    private long[] uncompressedOffsets=new long[16];
+    private int checkpoints=0;
+    private final Map<String,long[]> entries=new LinkedHashMap<>(); // entry name => {uncompressed offset of data, size}
+    private boolean embedded=false;
+
+    /**
+     * Creates a new empty index that can be filled in while scanning through the archive
+     * @param fingerprint The fingerprint of the archive file that this index belongs to (can be NULL if the index will not be saved)
+     * @param spacing The minimum distance between two checkpoints (measured in uncompressed bytes)
+     */
+    public ArchiveIndex(ArchiveFingerprint fingerprint, long spacing) {
+        this.fingerprint=fingerprint;
+        this.spacing=spacing;
+    }
+
+    /**
+     * Registers the start of a new GZIP member as a checkpoint, unless it is too close to the previous checkpoint.
+     * This method can be used directly as a GzipMemberInputStream.MemberListener
+     * @param compressedOffset The offset of the member in the compressed archive file
+     * @param uncompressedOffset The corresponding offset in the uncompressed tarball
+     */
+    public void addCheckpoint(long compressedOffset, long uncompressedOffset) {
+        if (checkpoints>0 && uncompressedOffset-uncompressedOffsets[checkpoints-1]<spacing) return;
+        if (checkpoints==compressedOffsets.length) {
+            compressedOffsets=Arrays.copyOf(compressedOffsets, checkpoints*2);
+            uncompressedOffsets=Arrays.copyOf(uncompressedOffsets, checkpoints*2);
+        }
+        compressedOffsets[checkpoints]=compressedOffset;
+        uncompressedOffsets[checkpoints]=uncompressedOffset;
+        checkpoints++;
+    }
+
+    /**
+     * Registers an entry in the tarball
+     * @param name The path of the entry
+     * @param offset The offset of the entry's data (after the tar header) in the uncompressed tarball
+     * @param size The size of the entry
+     */
+    public void addEntry(String name, long offset, long size) {
+        entries.put(name, new long[]{offset,size});
+    }
+
+    /** Returns TRUE if the tarball contains an entry with the given path */
+    public boolean containsEntry(String name) {
+        return entries.containsKey(name);
+    }
+
+    /** Returns the size of the entry with the given path, or -1 if the tarball does not contain this entry */
+    public long getEntrySize(String name) {
+        long[] entry=entries.get(name);
+        return (entry!=null)?entry[1]:-1;
+    }
+
+    /** Returns the offset of the data for the entry with the given path in the uncompressed tarball, or -1 if the tarball does not contain this entry */
+    public long getEntryOffset(String name) {
+        long[] entry=entries.get(name);
+        return (entry!=null)?entry[0]:-1;
+    }
+
+    /** Returns the paths of all the entries in the tarball (in the order they appear) */
+    public Set<String> getEntryNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /** Returns the number of checkpoints in the index */
+    public int getCheckpointCount() {
+        return checkpoints;
+    }
+
+    /** Returns a rough estimate of the number of bytes of heap memory used by this index */
+    public long getEstimatedMemoryUsage() {
+        long size=128+16L*compressedOffsets.length;
+        for (String name:entries.keySet()) size+=48+40+40+2L*name.length(); // map node, long[] and the path
+        return size;
+    }
+
+    /** Returns the fingerprint of the archive file this index was created for */
+    public ArchiveFingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the index of the last checkpoint at or before the given uncompressed offset
+     */
+    private int findCheckpoint(long uncompressedOffset) {
+        int low=0, high=checkpoints-1, found=0;
+        while (low<=high) {
+            int middle=(low+high)>>>1;
+            if (uncompressedOffsets[middle]<=uncompressedOffset) {found=middle; low=middle+1;}
+            else high=middle-1;
+        }
+        return found;
+    }
+
+    /**
+     * Opens a stream that reads the uncompressed tarball starting at the given offset.
+     * Decompression starts from the closest checkpoint in front of the offset
+     * @param archive The archive file this index belongs to
+     * @param uncompressedOffset The position in the uncompressed tarball to start reading from
+     * @return A stream positioned at the given offset
+     * @throws IOException if the archive file could not be read
+     */
+    public InputStream openStreamAt(File archive, long uncompressedOffset) throws IOException {
+        int checkpoint=findCheckpoint(uncompressedOffset);
+        long compressedStart=(checkpoints>0)?compressedOffsets[checkpoint]:0;
+        long uncompressedStart=(checkpoints>0)?uncompressedOffsets[checkpoint]:0;
+        InputStream source=ArchiveSource.open(archive, compressedStart);
+        try {
+            InputStream stream=ParallelGzipInputStream.open(source, compressedStart, uncompressedStart, null);
+            long skip=uncompressedOffset-uncompressedStart;
+            while (skip>0) {
+                long skipped=stream.skip(skip);
+                if (skipped<=0) throw new IOException("Unexpected end of archive while seeking to offset "+uncompressedOffset);
+                skip-=skipped;
+            }
+            return stream;
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a stream that reads the contents of a single entry in the tarball
+     * @param archive The archive file this index belongs to
+     * @param name The path of the entry
+     * @return A stream that reads the entry's data and ends when the end of the entry is reached, or NULL if the tarball does not contain this entry
+     * @throws IOException if the archive file could not be read
+     */
+    public InputStream openEntry(File archive, String name) throws IOException {
+        return openEntry(archive, name, 0);
+    }
+
+    /**
+     * Opens a stream that reads the contents of a single entry in the tarball from the given position within the entry
+     * @param archive The archive file this index belongs to
+     * @param name The path of the entry
+     * @param offset The position within the entry to start reading from. If this is beyond the end of the entry, the stream will be empty
+     * @return A stream that reads the entry's data and ends when the end of the entry is reached, or NULL if the tarball does not contain this entry
+     * @throws IOException if the archive file could not be read
+     */
+    public InputStream openEntry(File archive, String name, long offset) throws IOException {
+        long[] entry=entries.get(name);
+        if (entry==null) return null;
+        long start=Math.min(Math.max(offset, 0), entry[1]);
+        final InputStream stream=openStreamAt(archive, entry[0]+start);
+        return new BoundedInputStream(stream, entry[1]-start) {
+            @Override
+            public void close() { // the regular BoundedInputStream does not close the underlying stream
+                try {stream.close();} catch (IOException e) {}
+            }
+        };
+    }
+
+    /**
+     * Returns the last checkpoint at or before the given uncompressed offset
+     * @param uncompressedOffset An offset in the uncompressed data
+     * @return An array containing the compressed and uncompressed offsets of the checkpoint, or {0,0} if the index has no checkpoints
+     */
+    public long[] getCheckpoint(long uncompressedOffset) {
+        if (checkpoints==0) return new long[]{0,0};
+        int checkpoint=findCheckpoint(uncompressedOffset);
+        return new long[]{compressedOffsets[checkpoint], uncompressedOffsets[checkpoint]};
+    }
+
+    // ----------------------------- Sidecar files -------------------------------------
+
+    /** Returns the sidecar file that the index for the given archive file should be stored in */
+    public static File getSidecarFile(File archive) {
+        return new File(archive.getPath()+SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Saves the index to a file. The index is first written to a temporary file which is then renamed,
+     * so other processes will never see a partially written index.
+     * @param file The file to save the index to
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        if (fingerprint==null) throw new IOException("Unable to save index without archive fingerprint");
+        File temp=File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream output=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                fingerprint.write(output);
+                writeTables(output);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete(); // this does nothing if the file has already been moved
+        }
+    }
+
+    /**
+     * Loads an index from a file, provided that it was created for the archive with the given fingerprint
+     * @param file The index file
+     * @param expected The fingerprint of the current archive file
+     * @return The index, or NULL if the file does not exist, could not be read or belongs to a different (version of the) archive
+     */
+    public static ArchiveIndex load(File file, ArchiveFingerprint expected) {
+        if (!file.isFile()) return null;
+        try (DataInputStream input=new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt()!=MAGIC || input.readInt()!=FORMAT_VERSION) return null;
+            ArchiveFingerprint fingerprint=ArchiveFingerprint.read(input);
+            if (!fingerprint.equals(expected)) return null;
+            return readTables(input, fingerprint);
+        } catch (IOException e) {
+            return null; // treat unreadable index files as missing. A new index will be created on the next scan
+        }
+    }
+
+    /** Writes the spacing, the checkpoints and the entries */
+    private void writeTables(DataOutputStream output) throws IOException {
+        output.writeLong(spacing);
+        output.writeInt(checkpoints);
+        for (int i=0;i<checkpoints;i++) {
+            output.writeLong(compressedOffsets[i]);
+            output.writeLong(uncompressedOffsets[i]);
+        }
+        output.writeInt(entries.size());
+        for (Map.Entry<String,long[]> entry:entries.entrySet()) {
+            output.writeUTF(entry.getKey());
+            output.writeLong(entry.getValue()[0]);
+            output.writeLong(entry.getValue()[1]);
+        }
+    }
+
+    /** Reads the tables written by writeTables into a new index */
+    private static ArchiveIndex readTables(DataInputStream input, ArchiveFingerprint fingerprint) throws IOException {
+        ArchiveIndex index=new ArchiveIndex(fingerprint, input.readLong());
+        int count=input.readInt();
+        for (int i=0;i<count;i++) index.addCheckpoint(input.readLong(), input.readLong());
+        count=input.readInt();
+        for (int i=0;i<count;i++) index.addEntry(input.readUTF(), input.readLong(), input.readLong());
+        return index;
+    }
+
+    // ----------------------------- Embedded indexes -------------------------------------
+
+    /**
+     * Writes the index into a block-compressed archive (see HistoryRepacker), after all the tarball data has been written.
+     * The index is stored in the FEXTRA fields of empty GZIP members ("GI" subfields) followed by a trailer member ("GT" subfield)
+     * that points back to the first of these members. The trailer is the last member before the end-of-file block,
+     * so the index can be found by reading a fixed number of bytes at the end of the file.
+     * Since the members are empty, the archive still decompresses to exactly the same tarball with any GZIP decompressor.
+     * @param output The archive to write the index to
+     * @throws IOException if the index could not be written
+     */
+    public void writeEmbedded(BlockGzipOutputStream output) throws IOException {
+        ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+        try (DataOutputStream data=new DataOutputStream(buffer)) {
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            writeTables(data);
+        }
+        byte[] bytes=buffer.toByteArray();
+        output.flushBlock();
+        long start=output.getCompressedPosition();
+        for (int offset=0;offset<bytes.length;offset+=EMBEDDED_CHUNK_SIZE) {
+            output.writeEmptyMember('G', 'I', Arrays.copyOfRange(bytes, offset, Math.min(offset+EMBEDDED_CHUNK_SIZE, bytes.length)));
+        }
+        ByteBuffer trailer=ByteBuffer.allocate(16);
+        trailer.putLong(start).putLong(bytes.length);
+        output.writeEmptyMember('G', 'T', trailer.array());
+    }
+
+    /**
+     * Loads an index that has been embedded in the archive file itself (see writeEmbedded)
+     * @param archive The archive file
+     * @param fingerprint The fingerprint of the archive file
+     * @return The index, or NULL if the archive does not contain a valid embedded index
+     */
+    public static ArchiveIndex loadEmbedded(File archive, ArchiveFingerprint fingerprint) {
+        try (FileChannel channel=FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            long trailerStart=channel.size()-BlockGzipOutputStream.EOF_BLOCK_SIZE-EMBEDDED_TRAILER_SIZE;
+            if (trailerStart<0) return null;
+            byte[] field=BlockGzipOutputStream.getExtraSubfield(read(channel, trailerStart, EMBEDDED_TRAILER_SIZE), 0, 'G', 'T');
+            if (field==null || field.length!=16) return null;
+            ByteBuffer trailer=ByteBuffer.wrap(field);
+            long start=trailer.getLong();
+            long length=trailer.getLong();
+            if (start<0 || start>trailerStart || trailerStart-start>Integer.MAX_VALUE || length>trailerStart-start) return null;
+            byte[] members=read(channel, start, (int)(trailerStart-start));
+            ByteArrayOutputStream data=new ByteArrayOutputStream((int)length);
+            for (int position=0;position<members.length;) {
+                byte[] blockSize=BlockGzipOutputStream.getExtraSubfield(members, position, 'B', 'C');
+                byte[] chunk=BlockGzipOutputStream.getExtraSubfield(members, position, 'G', 'I');
+                if (blockSize==null || blockSize.length!=2 || chunk==null) return null;
+                data.write(chunk);
+                position+=((blockSize[0] & 0xff) | ((blockSize[1] & 0xff)<<8))+1;
+            }
+            if (data.size()!=length) return null;
+            DataInputStream input=new DataInputStream(new ByteArrayInputStream(data.toByteArray()));
+            if (input.readInt()!=MAGIC || input.readInt()!=FORMAT_VERSION) return null;
+            ArchiveIndex index=readTables(input, fingerprint);
+            index.embedded=true;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            return null; // the archive does not have a usable embedded index
+        }
+    }
+
+    /** Returns TRUE if this index was embedded in the archive file itself rather than created by scanning the archive */
+    public boolean isEmbedded() {
+        return embedded;
+    }
+
+    /** Reads the given number of bytes from the given position in the file */
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer=ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position+buffer.position())<0) throw new EOFException("Unexpected end of file");
+        }
+        return buffer.array();
+    }
+
+}
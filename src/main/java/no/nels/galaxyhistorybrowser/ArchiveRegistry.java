@@ -0,0 +1,175 @@
+/*
+ * A bounded cache of opened GalaxyHistoryArchive objects, so that frequently used histories do not have to be parsed again for every request.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The registry keeps opened archives (with their metadata, indexes and processed history) in memory and evicts the least recently used archives
+ * when the estimated memory retained by all the archives together exceeds a given budget.
+ * The memory used by an archive is estimated with GalaxyHistoryArchive.getEstimatedMemoryUsage(). Since an archive loads its structures lazily
+ * while it is being used, the estimate for the most recently returned archive is updated the next time the registry is accessed
+ * (or when updateEstimate() is called). The archive that is returned by get() is never evicted by that call, even if it alone exceeds the budget.
+ * <br><br>
+ * Archives are keyed by the canonical path of the file. If the file has been modified since the archive was opened, the old archive is discarded and a new one is opened.
+ * The registry keeps counters for hits, misses and evictions that can be used to monitor how well the cache is working.
+ * @author kjetikl
+ */
+public class ArchiveRegistry {
+
+    public static final long DEFAULT_MAXIMUM_SIZE=512L*1024*1024; // 512 MB
+
+    private final long maximumSize;
+    private final LinkedHashMap<String,CachedArchive> archives=new LinkedHashMap<>(16, 0.75f, true); // in access order, so the first entry is the least recently used
+    private CachedArchive mostRecent=null; // the archive returned by the last call to get(). Its memory estimate may be out of date
+    private long totalSize=0;              // the sum of the (last known) estimates for all the cached archives
+    private long hits=0;
+    private long misses=0;
+    private long evictions=0;
+
+    private static class CachedArchive {
+        final String key;
+        final GalaxyHistoryArchive archive;
+        final long lastModified;
+        final long length;
+        long size=0;
+        boolean removed=false; // set to TRUE when the archive is removed from the cache
+
+        CachedArchive(String key, GalaxyHistoryArchive archive, long lastModified, long length) {
+            this.key=key;
+            this.archive=archive;
+            this.lastModified=lastModified;
+            this.length=length;
+        }
+    }
+
+    /** Creates a new registry with the default memory budget (see DEFAULT_MAXIMUM_SIZE) */
+    public ArchiveRegistry() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a new registry
+     * @param maximumSize The maximum estimated number of bytes retained by the cached archives
+     */
+    public ArchiveRegistry(long maximumSize) {
+        if (maximumSize<0) throw new IllegalArgumentException("The maximum size must be 0 or greater");
+        this.maximumSize=maximumSize;
+    }
+
+    /**
+     * Returns an archive for the given file, either from the cache or by opening it
+     * @param file A local history archive file
+     * @return The archive
+     * @throws IOException if the path of the file could not be resolved
+     */
+    public synchronized GalaxyHistoryArchive get(File file) throws IOException {
+        File canonical=file.getCanonicalFile();
+        String key=canonical.getPath();
+        long lastModified=canonical.lastModified();
+        long length=canonical.length();
+        updateEstimate(mostRecent);
+        CachedArchive cached=archives.get(key);
+        if (cached!=null && (cached.lastModified!=lastModified || cached.length!=length)) { // the file has been replaced since it was opened
+            remove(cached);
+            cached=null;
+        }
+        if (cached!=null) hits++;
+        else {
+            misses++;
+            cached=new CachedArchive(key, new GalaxyHistoryArchive(key), lastModified, length);
+            archives.put(key, cached);
+            updateEstimate(cached);
+        }
+        mostRecent=cached;
+        evict(cached);
+        return cached.archive;
+    }
+
+    /**
+     * Updates the memory estimate for the archive for the given file (if it is in the cache) and evicts other archives if the budget is exceeded.
+     * This can be called after an archive has been used to make the accounting more accurate.
+     */
+    public synchronized void updateEstimate(File file) throws IOException {
+        CachedArchive cached=archives.get(file.getCanonicalPath());
+        if (cached!=null) {
+            updateEstimate(cached);
+            evict(cached);
+        }
+    }
+
+    /** Removes all archives from the cache */
+    public synchronized void clear() {
+        for (CachedArchive cached:archives.values()) cached.removed=true;
+        archives.clear();
+        mostRecent=null;
+        totalSize=0;
+    }
+
+    /** Returns the number of archives in the cache */
+    public synchronized int size() {
+        return archives.size();
+    }
+
+    /** Returns the estimated number of bytes retained by all the archives in the cache */
+    public synchronized long getEstimatedSize() {
+        return totalSize;
+    }
+
+    /** Returns the maximum estimated number of bytes that the cached archives can retain */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /** Returns the number of times get() has returned an archive that was already in the cache */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /** Returns the number of times get() has had to open a new archive */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** Returns the number of archives that have been evicted from the cache to stay within the budget */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ArchiveRegistry[archives="+archives.size()+", size="+totalSize+"/"+maximumSize+", hits="+hits+", misses="+misses+", evictions="+evictions+"]";
+    }
+
+    private void updateEstimate(CachedArchive cached) {
+        if (cached==null || cached.removed) return;
+        long size=cached.archive.getEstimatedMemoryUsage();
+        totalSize+=size-cached.size;
+        cached.size=size;
+    }
+
+    /** Evicts the least recently used archives (except the one given) until the total size is within the budget */
+    private void evict(CachedArchive keep) {
+        Iterator<CachedArchive> iterator=archives.values().iterator();
+        while (totalSize>maximumSize && iterator.hasNext()) {
+            CachedArchive cached=iterator.next();
+            if (cached==keep) continue;
+            iterator.remove();
+            cached.removed=true;
+            totalSize-=cached.size;
+            if (cached==mostRecent) mostRecent=null;
+            evictions++;
+        }
+    }
+
+    private void remove(CachedArchive cached) {
+        archives.remove(cached.key);
+        cached.removed=true;
+        totalSize-=cached.size;
+        if (cached==mostRecent) mostRecent=null;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Opens the streams that the compressed archive data is read from.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * All the places that read compressed archive data get their input streams from this class,
+ * so the way the data is read can be selected in one place (see setMode).
+ * <ul>
+ * <li>DIRECT reads the file or URL directly in the thread that decompresses the data</li>
+ * <li>READ_AHEAD reads the data in a background thread into a ring of large buffers (see ReadAheadInputStream), so decompression does not have to wait for I/O.
+ *     This is the default, and it helps the most on network file systems and slow web servers</li>
+ * <li>MAPPED reads local files through memory-mapped windows (see MappedFileInputStream). URLs are read with READ_AHEAD in this mode</li>
+ * </ul>
+ * Streams that are read from start to end (e.g. when the whole archive is scanned) can in addition be pipelined (see pipeline),
+ * so that reading, decompressing and processing the data (parsing tar entries and JSON, or writing output) all happen in separate threads.
+ * @author kjetikl
+ */
+public class ArchiveSource {
+
+    public enum Mode {DIRECT, READ_AHEAD, MAPPED}
+
+    public static final int PIPELINE_BUFFER_SIZE=256*1024;
+    public static final int PIPELINE_BUFFER_COUNT=4;
+
+    private static volatile Mode mode=Mode.READ_AHEAD;
+    private static volatile boolean pipelined=true;
+
+    private ArchiveSource() {}
+
+    /** Selects how archive data should be read from now on. Streams that are already open are not affected */
+    public static void setMode(Mode newMode) {
+        mode=newMode;
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /** Selects whether sequential reads of whole archives should be pipelined (see pipeline) */
+    public static void setPipelined(boolean enabled) {
+        pipelined=enabled;
+    }
+
+    public static boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Runs a processing stage (e.g. decompression) in its own thread, which stays up to a few large buffers ahead of the thread reading the returned stream.
+     * Together with the READ_AHEAD mode, this gives a pipeline with separate threads for I/O, decompression and the processing of the decompressed data.
+     * The stage will be read to the end by the pipeline thread, so this should only be used for streams that are normally read to the end.
+     * If pipelining is disabled, the stage itself is returned
+     * @param stage The stream that should be read in a separate thread. This is closed when the returned stream is closed
+     * @return A stream that reads the same data
+     */
+    public static InputStream pipeline(InputStream stage) {
+        return (pipelined)?new ReadAheadInputStream(stage, PIPELINE_BUFFER_COUNT, PIPELINE_BUFFER_SIZE):stage;
+    }
+
+    /**
+     * Opens a stream that reads a local file from the given position
+     * @param file The file to read
+     * @param offset The position in the file to start reading from
+     * @return A stream positioned at the given offset
+     * @throws IOException if the file could not be opened
+     */
+    public static InputStream open(File file, long offset) throws IOException {
+        Mode current=mode;
+        if (current==Mode.MAPPED) return new MappedFileInputStream(file, offset);
+        FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return (current==Mode.READ_AHEAD)?new ReadAheadInputStream(channel):Channels.newInputStream(channel);
+    }
+
+    /**
+     * Wraps a stream from a different kind of source (e.g. a URL) according to the current mode
+     * @param stream The stream to read from. This is closed when the returned stream is closed
+     * @return A stream that reads the same data
+     */
+    public static InputStream wrap(InputStream stream) {
+        return (mode==Mode.DIRECT)?stream:new ReadAheadInputStream(Channels.newChannel(stream));
+    }
+}
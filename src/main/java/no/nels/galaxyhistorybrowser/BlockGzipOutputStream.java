@@ -0,0 +1,190 @@
+/*
+ * An OutputStream that compresses data in the block-compressed GZIP layout (BGZF) used by "bgzip".
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A BlockGzipOutputStream splits the data into blocks of at most BLOCK_DATA_SIZE bytes and compresses each block as a separate GZIP member.
+ * Every member has a "BC" subfield in its FEXTRA header with the size of the compressed member, as described in the SAM/BAM specification,
+ * so the output can be read by any GZIP decompressor, by "bgzip" and by the ParallelGzipInputStream.
+ * The stream ends with the standard empty BGZF end-of-file block.
+ * <br><br>
+ * Additional information can be stored in the archive as empty members with extra subfields (see writeEmptyMember).
+ * These members do not produce any decompressed data, so they are invisible to regular GZIP decompressors.
+ * @author kjetikl
+ */
+public class BlockGzipOutputStream extends OutputStream {
+
+    public static final int BLOCK_DATA_SIZE=65280; // the same block size as "bgzip" uses, which leaves room for incompressible data to expand within the 64 KB member limit
+    public static final int EOF_BLOCK_SIZE=28;     // the size of the empty end-of-file block
+
+    private static final int MAX_MEMBER_SIZE=65536;
+    private static final int HEADER_SIZE=18;  // the GZIP header including the "BC" subfield
+    private static final int TRAILER_SIZE=8;
+
+    private final OutputStream output;
+    private final GzipMemberInputStream.MemberListener listener;
+    private final Deflater deflater;
+    private final CRC32 crc=new CRC32();
+    private final byte[] block=new byte[BLOCK_DATA_SIZE];
+    private final byte[] compressed=new byte[MAX_MEMBER_SIZE];
+    private int length=0; // the number of bytes in the current block
+    private long compressedPosition=0;
+    private long uncompressedPosition=0;
+    private boolean finished=false;
+
+    /**
+     * Creates a stream that writes BGZF blocks compressed with the default compression level
+     * @param output The stream to write the compressed data to. This is closed when this stream is closed
+     */
+    public BlockGzipOutputStream(OutputStream output) {
+        this(output, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * Creates a stream that writes BGZF blocks
+     * @param output The stream to write the compressed data to. This is closed when this stream is closed
+     * @param level The compression level (see java.util.zip.Deflater)
+     * @param listener If provided (not null), this listener will be notified about the start of every member that contains data
+     */
+    public BlockGzipOutputStream(OutputStream output, int level, GzipMemberInputStream.MemberListener listener) {
+        this.output=output;
+        this.listener=listener;
+        this.deflater=new Deflater(level, true);
+    }
+
+    /** Returns the number of compressed bytes that have been written to the output so far (not counting data that is still in the current block) */
+    public long getCompressedPosition() {
+        return compressedPosition;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        if (finished) throw new IOException("Stream finished");
+        while (count>0) {
+            int n=Math.min(count, BLOCK_DATA_SIZE-length);
+            System.arraycopy(bytes, offset, block, length, n);
+            length+=n;
+            offset+=n;
+            count-=n;
+            if (length==BLOCK_DATA_SIZE) flushBlock();
+        }
+    }
+
+    /** Compresses and writes the current block (if it contains any data), so that the next byte written will start a new member */
+    public void flushBlock() throws IOException {
+        if (length==0) return;
+        if (listener!=null) listener.memberStarted(compressedPosition, uncompressedPosition);
+        writeMember(block, length, null);
+        uncompressedPosition+=length;
+        length=0;
+    }
+
+    /**
+     * Writes an empty member with an additional subfield in its FEXTRA header. The current block is written first
+     * @param id1 The first identifier byte of the subfield
+     * @param id2 The second identifier byte of the subfield
+     * @param data The contents of the subfield (at most 65000 bytes)
+     * @throws IOException if the member could not be written
+     */
+    public void writeEmptyMember(char id1, char id2, byte[] data) throws IOException {
+        if (finished) throw new IOException("Stream finished");
+        flushBlock();
+        byte[] subfield=new byte[4+data.length];
+        subfield[0]=(byte)id1;
+        subfield[1]=(byte)id2;
+        subfield[2]=(byte)data.length;
+        subfield[3]=(byte)(data.length>>8);
+        System.arraycopy(data, 0, subfield, 4, data.length);
+        writeMember(block, 0, subfield);
+    }
+
+    /** Writes a complete member with the given data and an optional extra subfield (after the "BC" subfield) */
+    private void writeMember(byte[] data, int count, byte[] subfield) throws IOException {
+        deflater.reset();
+        deflater.setInput(data, 0, count);
+        deflater.finish();
+        int size=0;
+        while (!deflater.finished()) {
+            if (size==compressed.length) throw new IOException("Block could not be compressed into a single BGZF member");
+            size+=deflater.deflate(compressed, size, compressed.length-size);
+        }
+        int extraLength=(subfield!=null)?subfield.length:0;
+        int memberSize=HEADER_SIZE+extraLength+size+TRAILER_SIZE;
+        if (memberSize>MAX_MEMBER_SIZE) throw new IOException("Block could not be compressed into a single BGZF member");
+        crc.reset();
+        crc.update(data, 0, count);
+        byte[] header={0x1f,(byte)0x8b,8,4, 0,0,0,0, 0,(byte)0xff, (byte)(6+extraLength),(byte)((6+extraLength)>>8), 'B','C',2,0, (byte)(memberSize-1),(byte)((memberSize-1)>>8)};
+        output.write(header);
+        if (subfield!=null) output.write(subfield);
+        output.write(compressed, 0, size);
+        writeInt(crc.getValue());
+        writeInt(count);
+        compressedPosition+=memberSize;
+    }
+
+    /** Writes a 4-byte little-endian integer */
+    private void writeInt(long value) throws IOException {
+        for (int i=0;i<4;i++) output.write((int)(value>>(8*i)) & 0xff);
+    }
+
+    /** Writes the remaining data and the end-of-file block without closing the output */
+    public void finish() throws IOException {
+        if (finished) return;
+        flushBlock();
+        writeMember(block, 0, null); // the end-of-file block is just an empty member
+        finished=true;
+        output.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        output.flush(); // flushing does not end the current block, since that would make the compression worse
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            deflater.end();
+            output.close();
+        }
+    }
+
+    /**
+     * Returns the contents of a subfield in the FEXTRA header of the GZIP member that starts at the given offset
+     * @param bytes An array containing the member
+     * @param offset The position of the member in the array
+     * @param id1 The first identifier byte of the subfield
+     * @param id2 The second identifier byte of the subfield
+     * @return The contents of the subfield, or NULL if the member does not have this subfield (or is not a valid member header)
+     */
+    public static byte[] getExtraSubfield(byte[] bytes, int offset, char id1, char id2) {
+        if (offset+12>bytes.length || (bytes[offset] & 0xff)!=0x1f || (bytes[offset+1] & 0xff)!=0x8b || (bytes[offset+3] & 0x04)==0) return null;
+        int end=offset+12+((bytes[offset+10] & 0xff) | ((bytes[offset+11] & 0xff)<<8));
+        if (end>bytes.length) return null;
+        int position=offset+12;
+        while (position+4<=end) {
+            int length=(bytes[position+2] & 0xff) | ((bytes[position+3] & 0xff)<<8);
+            if (position+4+length>end) return null;
+            if (bytes[position]==(byte)id1 && bytes[position+1]==(byte)id2) {
+                byte[] data=new byte[length];
+                System.arraycopy(bytes, position+4, data, 0, length);
+                return data;
+            }
+            position+=4+length;
+        }
+        return null;
+    }
+}
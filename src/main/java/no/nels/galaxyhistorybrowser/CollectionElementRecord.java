@@ -0,0 +1,39 @@
+/*
+ * A compact representation of an element in a collection from the "collections_attrs.txt" file in a history archive.
+ */
+package no.nels.galaxyhistorybrowser;
+
+/**
+ * A collection element record with the "element_index" field stored as a primitive number.
+ * The element refers either to a dataset (the "hda" field) or to a nested collection (the "child_collection" field)
+ * @author kjetikl
+ */
+public class CollectionElementRecord extends HistoryRecord {
+
+    private static final Schema SCHEMA=new Schema(new String[]{
+        "element_index","element_identifier","element_type","encoded_id","hda","child_collection","state"
+    }, "element_index");
+
+    private int elementIndex;
+
+    public CollectionElementRecord() {
+        super(SCHEMA);
+    }
+
+    @Override
+    protected Object getPrimitive(int field) {
+        return elementIndex;
+    }
+
+    @Override
+    protected boolean setPrimitive(int field, Object value) {
+        Integer number=asInteger(value);
+        if (number!=null) elementIndex=number;
+        return (number!=null);
+    }
+
+    /** Returns the "element_type" of this element. This is either "hda" (dataset) or "dataset_collection" (nested collection) */
+    public String getElementType() {
+        return (String)get("element_type");
+    }
+}
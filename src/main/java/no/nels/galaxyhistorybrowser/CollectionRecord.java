@@ -0,0 +1,54 @@
+/*
+ * A compact representation of a collection from the "collections_attrs.txt" file in a history archive.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.util.Map;
+
+/**
+ * A collection record with the "hid" field stored as a primitive number.
+ * The nested "collection" object is a regular Map, but the elements of the collection are CollectionElementRecords.
+ * @author kjetikl
+ */
+public class CollectionRecord extends HistoryRecord {
+
+    private static final Schema SCHEMA=new Schema(new String[]{
+        "encoded_id","hid","display_name","visible","deleted","collection","state","populated_state","implicit_output_name","create_time","update_time","tags"
+    }, "hid");
+    private static final int HID=SCHEMA.indexOf("hid");
+
+    private int hid;
+
+    public CollectionRecord() {
+        super(SCHEMA);
+    }
+
+    @Override
+    protected Object getPrimitive(int field) {
+        return hid;
+    }
+
+    @Override
+    protected boolean setPrimitive(int field, Object value) {
+        Integer number=asInteger(value);
+        if (number!=null) hid=number;
+        return (number!=null);
+    }
+
+    /** Returns the "encoded_id" of the collection */
+    public String getEncodedID() {
+        return (String)get("encoded_id");
+    }
+
+    /** Returns the "hid" number of the collection, or -1 if the collection has no HID */
+    public int getHid() {
+        Integer number=asInteger(get("hid"));
+        return (number!=null)?number:-1;
+    }
+
+    /** Returns the type of the collection, e.g. "list" or "list:paired" (or NULL if this is not known) */
+    public String getType() {
+        Object contents=get("collection");
+        return (contents instanceof Map)?(String)((Map)contents).get("type"):null;
+    }
+}
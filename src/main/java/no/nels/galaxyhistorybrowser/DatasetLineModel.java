@@ -0,0 +1,197 @@
+/*
+ * A list model that presents the lines of a dataset to a JList without loading the whole dataset into memory.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * The DatasetLineModel divides a dataset into windows of WINDOW_SIZE lines and only fetches the windows that the list asks for,
+ * i.e. the lines that are actually visible when the list has a fixed cell height. Lines that have not been fetched yet are shown as empty
+ * until their window has been loaded in the background, and the list is then notified that the lines have changed.
+ * Only the most recently used windows are kept (an LRU cache of at most "maximumWindows" windows), so the memory used by the viewer
+ * does not depend on the size of the dataset. Counting the lines requires reading through the whole dataset (this builds the line index, see LineIndex),
+ * so the first window is loaded at the same time as the line count, and the lines are shown right away even for very large datasets.
+ * Until the line count is known, the size of the list is based on the windows loaded so far, with one window of empty lines after the last full window
+ * so the list can be scrolled further (which then loads the next window). The list gets its exact size when the line count has been loaded.
+ * <br><br>
+ * Like other Swing models, this model should only be used from the event dispatch thread. The loading happens on the given executor,
+ * and the results are handed back to the event dispatch thread. Calling cancel() stops all the loads (interrupting the ones in progress)
+ * and discards their results, so a model can be abandoned right away when another dataset is selected.
+ * @author kjetikl
+ */
+public class DatasetLineModel extends AbstractListModel<String> {
+
+    public static final int WINDOW_SIZE=500;          // the number of lines fetched at a time
+    public static final int DEFAULT_MAXIMUM_WINDOWS=20; // keep at most 10000 lines in memory by default
+
+    /** Reads lines from a dataset. This is called on the executor threads, and getLines can be called while getLineCount is still running */
+    public interface LineSource {
+        public long getLineCount() throws IOException;
+        public List<String> getLines(long fromLine, int count) throws IOException;
+    }
+
+    /** Is notified (on the event dispatch thread) when the line count has been loaded or a load has failed */
+    public interface Listener {
+        public void lineCountLoaded(long lines);
+        public void loadFailed(Exception error);
+    }
+
+    private final LineSource source;
+    private final ExecutorService executor;
+    private final Listener listener;
+    private final int maximumWindows;
+    private final Map<Long,List<String>> windows; // window number => lines, in access order
+    private final Map<Long,Future<?>> pending=new HashMap<>(); // the windows that are being loaded (the key -1 is used for the line count)
+    private int size=0;
+    private boolean counted=false; // TRUE when the line count has been loaded. Until then, the size is just based on the windows loaded so far
+    private volatile boolean cancelled=false;
+
+    /**
+     * Creates a model for the lines of a dataset in a history archive (in "view mode", so compressed datasets are decompressed)
+     * @param archive The history archive
+     * @param datasetID The "encoded_id" of the dataset
+     * @param executor The executor to load the lines on. This should have at least two threads, so lines can be loaded while the lines are counted
+     * @param listener A listener that is notified when the line count has been loaded or loading fails (can be NULL)
+     */
+    public DatasetLineModel(GalaxyHistoryArchive archive, String datasetID, ExecutorService executor, Listener listener) {
+        this(new LineSource() {
+            @Override
+            public long getLineCount() throws IOException {
+                return archive.getLineCount(datasetID);
+            }
+            @Override
+            public List<String> getLines(long fromLine, int count) throws IOException {
+                return archive.getLines(datasetID, fromLine, count, false); // do not wait for the line index if it is still being built
+            }
+        }, executor, listener, DEFAULT_MAXIMUM_WINDOWS);
+    }
+
+    /**
+     * Creates a model that reads lines from the given source
+     * @param source The source of the lines
+     * @param executor The executor to load the lines on. This should have at least two threads, so lines can be loaded while the lines are counted
+     * @param listener A listener that is notified when the line count has been loaded or loading fails (can be NULL)
+     * @param maximumWindows The maximum number of windows to keep in memory
+     */
+    public DatasetLineModel(LineSource source, ExecutorService executor, Listener listener, int maximumWindows) {
+        this.source=source;
+        this.executor=executor;
+        this.listener=listener;
+        this.maximumWindows=Math.max(1, maximumWindows);
+        this.windows=new LinkedHashMap<Long,List<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long,List<String>> eldest) {
+                return size()>DatasetLineModel.this.maximumWindows;
+            }
+        };
+    }
+
+    /** Starts loading the line count and the first window of lines. The other lines are loaded when the list asks for them */
+    public void start() {
+        if (cancelled || pending.containsKey(-1L)) return;
+        pending.put(-1L, executor.submit(()->{
+            try {
+                long lines=source.getLineCount();
+                SwingUtilities.invokeLater(()->lineCountLoaded(lines));
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(()->loadFailed(-1L, e));
+            }
+        }));
+        load(0);
+    }
+
+    /** Stops all the loads and releases the loaded lines. The model will be empty afterwards */
+    public void cancel() {
+        cancelled=true;
+        for (Future<?> future:pending.values()) future.cancel(true);
+        pending.clear();
+        windows.clear();
+        int previous=size;
+        size=0;
+        if (previous>0) fireIntervalRemoved(this, 0, previous-1);
+    }
+
+    /** Returns TRUE if the model has been cancelled */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Returns the number of windows that are currently kept in memory */
+    public int getCachedWindowCount() {
+        return windows.size();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        long window=index/WINDOW_SIZE;
+        List<String> lines=windows.get(window);
+        if (lines==null) {
+            load(window);
+            return "";
+        }
+        int position=index-(int)(window*WINDOW_SIZE);
+        return (position<lines.size())?lines.get(position):"";
+    }
+
+    /** Starts loading a window of lines (unless it is already being loaded) */
+    private void load(long window) {
+        if (cancelled || pending.containsKey(window)) return;
+        pending.put(window, executor.submit(()->{
+            try {
+                List<String> lines=source.getLines(window*WINDOW_SIZE, WINDOW_SIZE);
+                SwingUtilities.invokeLater(()->windowLoaded(window, lines));
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(()->loadFailed(window, e));
+            }
+        }));
+    }
+
+    private void lineCountLoaded(long lines) {
+        if (cancelled) return;
+        pending.remove(-1L);
+        counted=true;
+        setSize(lines);
+        if (listener!=null) listener.lineCountLoaded(lines);
+    }
+
+    private void windowLoaded(long window, List<String> lines) {
+        if (cancelled) return;
+        pending.remove(window);
+        windows.put(window, lines);
+        long first=window*WINDOW_SIZE;
+        if (!counted) {
+            long end=first+lines.size();
+            if (lines.size()<WINDOW_SIZE) setSize(end); // the end of the dataset has been reached, so this is the exact size
+            else if (end+WINDOW_SIZE>size) setSize(end+WINDOW_SIZE); // let the list be scrolled into the next window, which will be loaded when it is shown
+        }
+        if (first<size) fireContentsChanged(this, (int)first, (int)Math.min(first+WINDOW_SIZE-1, size-1L));
+    }
+
+    /** Changes the size of the list and notifies the list about the lines that were added or removed */
+    private void setSize(long lines) {
+        int previous=size;
+        size=(int)Math.min(lines, Integer.MAX_VALUE); // a JList can not have more elements than this
+        if (size>previous) fireIntervalAdded(this, previous, size-1);
+        else if (size<previous) fireIntervalRemoved(this, size, previous-1);
+    }
+
+    private void loadFailed(long window, Exception error) {
+        if (cancelled) return; // errors caused by the cancellation itself are not reported
+        // the failed load is left in the pending table, so the window will not be requested again every time the list is repainted
+        if (listener!=null) listener.loadFailed(error);
+    }
+}
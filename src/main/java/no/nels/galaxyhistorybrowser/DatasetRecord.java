@@ -0,0 +1,80 @@
+/*
+ * A compact representation of a dataset from the "datasets_attrs.txt" file in a history archive.
+ */
+package no.nels.galaxyhistorybrowser;
+
+/**
+ * A dataset record with the "hid" and "file_size" fields stored as primitive numbers.
+ * The record can be used as a regular Map, but also provides typed getter methods for the most commonly used fields.
+ * @author kjetikl
+ */
+public class DatasetRecord extends HistoryRecord {
+
+    private static final Schema SCHEMA=new Schema(new String[]{
+        "encoded_id","hid","name","extension","file_name","extra_files_path","file_size","metadata","blurb","peek","info","visible","deleted","purged",
+        "designation","create_time","update_time","annotation","tags","uuid","state","job","exported","copied_from_history_dataset_association_id_chain"
+    }, "hid", "file_size");
+    private static final int HID=SCHEMA.indexOf("hid");
+    private static final int FILE_SIZE=SCHEMA.indexOf("file_size");
+
+    private int hid;
+    private long fileSize;
+
+    public DatasetRecord() {
+        super(SCHEMA);
+    }
+
+    @Override
+    protected Object getPrimitive(int field) {
+        return (field==HID)?(Object)hid:(Object)box(fileSize);
+    }
+
+    @Override
+    protected boolean setPrimitive(int field, Object value) {
+        if (field==HID) {
+            Integer number=asInteger(value);
+            if (number!=null) hid=number;
+            return (number!=null);
+        } else if (field==FILE_SIZE && (value instanceof Integer || value instanceof Long)) {
+            fileSize=((Number)value).longValue();
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the "encoded_id" of the dataset */
+    public String getEncodedID() {
+        return (String)get("encoded_id");
+    }
+
+    /** Returns the "hid" number of the dataset, or -1 if the dataset has no HID */
+    public int getHid() {
+        Integer number=asInteger(get("hid"));
+        return (number!=null)?number:-1;
+    }
+
+    /** Returns the name of the dataset */
+    public String getName() {
+        return (String)get("name");
+    }
+
+    /** Returns the file type of the dataset, e.g. "fastqsanger" or "bed" */
+    public String getExtension() {
+        return (String)get("extension");
+    }
+
+    /** Returns the path of the dataset file inside the archive */
+    public String getFileName() {
+        return (String)get("file_name");
+    }
+
+    /** Returns the state of the dataset (this is only set after the states have been resolved from the jobs) */
+    public String getState() {
+        return (String)get("state");
+    }
+
+    /** Returns TRUE if the dataset should be shown at the top level of the history */
+    public boolean isVisible() {
+        return Boolean.TRUE.equals(get("visible"));
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * A local cache of history archives that are read from URLs, so that each archive is only downloaded once.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The download cache keeps a local copy of each archive URL in a cache directory. The file for a URL is named after a hash of the URL,
+ * and a small properties file next to it records the ETag, Last-Modified date and length that the server reported for the download.
+ * <br><br>
+ * Every time a file is requested, the cache asks the server (with a HEAD request) if the archive has changed. If the ETag (or the Last-Modified date and length)
+ * is still the same, the local copy is used. If the server can not be reached, an existing local copy is used as it is.
+ * Servers that do not report an ETag or Last-Modified date can not be validated, so their archives are downloaded again each time.
+ * <br><br>
+ * Large files are downloaded with several parallel connections that each fetch a part of the file with an HTTP Range request,
+ * provided that the server accepts range requests. The progress of each part is recorded when a download fails,
+ * and the next attempt resumes the parts where they stopped, as long as the archive has not changed on the server in the meantime.
+ * Downloads are written to a partial file that is renamed to the final name when it is complete.
+ * <br><br>
+ * The total size of the cache directory is limited by a budget, which includes the partial downloads and the sidecar files created next to the downloaded archives
+ * (indexes, snapshots etc.). When the budget is exceeded, the least recently used archives are deleted (except the one that was just requested and those
+ * that are being downloaded by other threads). The modification time of the small properties file is updated each time an archive is used,
+ * so the order of use is remembered between runs. The archive file itself is not touched, since its modification time is part of its fingerprint.
+ * @author kjetikl
+ */
+public class DownloadCache {
+
+    public static final int DEFAULT_CONNECTIONS=4;
+    public static final long DEFAULT_PARALLEL_THRESHOLD=16L*1024*1024; // files smaller than this are downloaded with a single connection
+    public static final long DEFAULT_MAXIMUM_SIZE=10L*1024*1024*1024; // 10 GB
+
+    private static final int BUFFER_SIZE=65536;
+
+    private final File directory;
+    private final int connections;
+    private final long parallelThreshold;
+    private final long maximumSize;
+    private final HashMap<String,Object> locks=new HashMap<>(); // one lock for each URL, so that the same URL is not downloaded by several threads at once
+    private final HashMap<String,Integer> inUse=new HashMap<>(); // the number of threads that are fetching each URL right now (guarded by 'locks'). These are never evicted
+
+    /** Creates a cache in the given directory with the default number of parallel connections and the default maximum size */
+    public DownloadCache(File directory) {
+        this(directory, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a cache in the given directory with the default number of parallel connections
+     * @param directory The cache directory
+     * @param maximumSize The maximum total size (in bytes) of the files in the cache directory
+     */
+    public DownloadCache(File directory, long maximumSize) {
+        this(directory, DEFAULT_CONNECTIONS, DEFAULT_PARALLEL_THRESHOLD, maximumSize);
+    }
+
+    /**
+     * Creates a cache in the given directory with the default maximum size
+     * @param directory The cache directory
+     * @param connections The maximum number of parallel connections used to download a single file
+     * @param parallelThreshold The minimum size of files that should be downloaded with parallel connections
+     */
+    public DownloadCache(File directory, int connections, long parallelThreshold) {
+        this(directory, connections, parallelThreshold, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a cache in the given directory. The directory is created when the first file is downloaded
+     * @param directory The cache directory
+     * @param connections The maximum number of parallel connections used to download a single file
+     * @param parallelThreshold The minimum size of files that should be downloaded with parallel connections
+     * @param maximumSize The maximum total size (in bytes) of the files in the cache directory
+     */
+    public DownloadCache(File directory, int connections, long parallelThreshold, long maximumSize) {
+        this.directory=directory;
+        this.connections=Math.max(1, connections);
+        this.parallelThreshold=parallelThreshold;
+        this.maximumSize=maximumSize;
+    }
+
+    /** Returns the maximum total size of the files in the cache directory */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /** Returns the default cache directory, which is located in the system's temporary directory */
+    public static File getDefaultDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "galaxyhistorybrowser-downloads");
+    }
+
+    /**
+     * Returns a local copy of the file at the given URL, downloading it first if there is no up-to-date copy in the cache
+     * @param url The URL of the file
+     * @return The local copy
+     * @throws IOException if the file could not be downloaded
+     */
+    public File getFile(URL url) throws IOException {
+        String key=getKey(url);
+        Object lock;
+        synchronized (locks) {
+            lock=locks.computeIfAbsent(key, k->new Object());
+            inUse.merge(key, 1, Integer::sum);
+        }
+        try {
+            synchronized (lock) {
+                File file=fetch(url, key);
+                new File(directory, key+".properties").setLastModified(System.currentTimeMillis()); // remember when the archive was last used
+                evict(key);
+                return file;
+            }
+        } finally {
+            synchronized (locks) {
+                inUse.computeIfPresent(key, (k, count)->(count>1)?count-1:null);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used archives (except the given one and those that are being fetched) until the total size of the cache directory is within the budget.
+     * All the files in the directory that start with the key of an archive belong to that archive (the partial download, the properties file and the sidecar files)
+     */
+    private void evict(String keep) {
+        File[] infoFiles=directory.listFiles((dir, name)->name.endsWith(".properties"));
+        File[] files=directory.listFiles();
+        if (infoFiles==null || files==null) return;
+        Arrays.sort(infoFiles, Comparator.comparingLong(File::lastModified)); // least recently used first
+        long totalSize=0;
+        for (File file:files) totalSize+=ExtractedArchiveCache.getSize(file.toPath());
+        for (File infoFile:infoFiles) {
+            if (totalSize<=maximumSize) return;
+            String key=infoFile.getName().substring(0, infoFile.getName().length()-".properties".length());
+            if (key.equals(keep)) continue;
+            synchronized (locks) {
+                if (inUse.containsKey(key)) continue;
+                for (File file:files) {
+                    if (!file.getName().startsWith(key)) continue;
+                    totalSize-=ExtractedArchiveCache.getSize(file.toPath());
+                    ExtractedArchiveCache.deleteRecursively(file.toPath()); // streams that are still reading the archive will normally be able to finish (except on Windows)
+                }
+            }
+        }
+    }
+
+    private File fetch(URL url, String key) throws IOException {
+        File file=new File(directory, key+".tar.gz");
+        File partial=new File(directory, key+".part");
+        File infoFile=new File(directory, key+".properties");
+        Properties info=loadInfo(infoFile);
+        boolean complete="true".equals(info.getProperty("complete"));
+        RemoteFile remote;
+        try {
+            remote=RemoteFile.request(url);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            if (complete && file.isFile()) return file; // use the local copy if the server can not be reached
+            throw e;
+        }
+        if (complete && file.isFile() && remote.matches(info)) return file;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create download directory: "+directory);
+        List<Part> parts=null;
+        if (!complete && partial.isFile() && remote.acceptsRanges && remote.matches(info)) parts=Part.parse(info.getProperty("parts")); // resume the previous download
+        if (parts==null) {
+            Files.deleteIfExists(partial.toPath());
+            info=remote.toProperties();
+            parts=plan(remote);
+        }
+        try (FileChannel channel=FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            download(url, remote, channel, parts);
+        } finally {
+            info.setProperty("complete", "false");
+            info.setProperty("parts", Part.format(parts));
+            saveInfo(info, infoFile);
+        }
+        if (remote.length>=0 && partial.length()!=remote.length) throw new IOException("Downloaded file has the wrong size: "+partial.length()+" (expected "+remote.length+")");
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        info.setProperty("complete", "true");
+        info.remove("parts");
+        saveInfo(info, infoFile);
+        return file;
+    }
+
+    /** Splits the download into parts. Large files are split into one part per connection if the server accepts range requests */
+    private List<Part> plan(RemoteFile remote) {
+        List<Part> parts=new ArrayList<>();
+        if (remote.length>=parallelThreshold && remote.acceptsRanges && connections>1) {
+            long partSize=(remote.length+connections-1)/connections;
+            for (long start=0; start<remote.length; start+=partSize) parts.add(new Part(start, Math.min(start+partSize, remote.length), 0));
+        } else parts.add(new Part(0, remote.length, 0)); // the end is -1 if the length is unknown
+        return parts;
+    }
+
+    /** Downloads all the parts that are not finished yet, in parallel if there are several */
+    private void download(URL url, RemoteFile remote, FileChannel channel, List<Part> parts) throws IOException {
+        if (parts.size()==1) {
+            downloadPart(url, remote, channel, parts.get(0));
+            return;
+        }
+        ExecutorService executor=Executors.newFixedThreadPool(parts.size());
+        try {
+            List<Future<Void>> results=new ArrayList<>();
+            for (Part part:parts) results.add(executor.submit(()->{downloadPart(url, remote, channel, part); return null;}));
+            IOException failure=null;
+            for (Future<Void> result:results) { // wait for all the parts, so that the progress of each part is known when the download fails
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure==null) failure=(e.getCause() instanceof IOException)?(IOException)e.getCause():new IOException(e.getCause().getMessage(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    executor.shutdownNow();
+                    throw new java.io.InterruptedIOException("Interrupted while downloading "+url);
+                }
+            }
+            if (failure!=null) throw failure;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Downloads the rest of a single part and writes it to its position in the file */
+    private void downloadPart(URL url, RemoteFile remote, FileChannel channel, Part part) throws IOException {
+        long from=part.start+part.done;
+        if (part.end>=0 && from>=part.end) return; // already finished
+        HttpURLConnection connection=(HttpURLConnection)url.openConnection();
+        boolean wholeFile=(part.start==0 && (part.end<0 || part.end==remote.length));
+        if (from>0 || !wholeFile) {
+            connection.setRequestProperty("Range", "bytes="+from+"-"+((part.end>=0)?String.valueOf(part.end-1):""));
+            String validator=(remote.etag!=null)?remote.etag:remote.lastModified;
+            if (validator!=null) connection.setRequestProperty("If-Range", validator); // the server returns the whole file instead if it has changed
+        }
+        int status=connection.getResponseCode();
+        if (status==HttpURLConnection.HTTP_OK && from>0) {
+            if (!wholeFile) {
+                connection.disconnect();
+                throw new IOException("The server did not accept a range request for "+url+" (or the file has changed)");
+            }
+            part.done=0; // the server sent the whole file, so start over
+            from=0;
+        } else if (status!=HttpURLConnection.HTTP_OK && status!=HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Server returned HTTP response code: "+status+" for URL: "+url);
+        }
+        try (InputStream input=connection.getInputStream()) {
+            byte[] buffer=new byte[BUFFER_SIZE];
+            int length;
+            while ((length=input.read(buffer))>=0) {
+                if (part.end>=0) length=(int)Math.min(length, part.end-from);
+                ByteBuffer chunk=ByteBuffer.wrap(buffer, 0, length);
+                while (chunk.hasRemaining()) channel.write(chunk, from+chunk.position());
+                from+=length;
+                part.done+=length;
+                if (part.end>=0 && from>=part.end) break;
+            }
+        }
+        if (part.end>=0 && from<part.end) throw new IOException("Download of "+url+" ended prematurely");
+    }
+
+    /** Returns the name used for the local copy of the URL */
+    private static String getKey(URL url) {
+        try {
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            StringBuilder key=new StringBuilder();
+            for (byte value:digest.digest(url.toString().getBytes(StandardCharsets.UTF_8))) key.append(String.format("%02x", value));
+            return key.substring(0, 32);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private static Properties loadInfo(File file) {
+        Properties info=new Properties();
+        if (file.isFile()) {
+            try (InputStream input=new FileInputStream(file)) {
+                info.load(input);
+            } catch (IOException e) {
+                info.clear(); // an unreadable info file just means that the file must be downloaded again
+            }
+        }
+        return info;
+    }
+
+    private static void saveInfo(Properties info, File file) {
+        File temp=new File(file.getPath()+".tmp");
+        try {
+            try (OutputStream output=new FileOutputStream(temp)) {
+                info.store(output, "Galaxy History Browser download cache");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete(); // without the info file, the download will just be made again the next time
+        }
+    }
+
+    /** What the server reports about a file */
+    private static class RemoteFile {
+        String etag=null;
+        String lastModified=null;
+        long length=-1;
+        boolean acceptsRanges=false;
+
+        /** Asks the server about the file with a HEAD request */
+        static RemoteFile request(URL url) throws IOException {
+            RemoteFile remote=new RemoteFile();
+            URLConnection connection=url.openConnection();
+            if (!(connection instanceof HttpURLConnection)) return remote;
+            HttpURLConnection http=(HttpURLConnection)connection;
+            http.setRequestMethod("HEAD");
+            int status=http.getResponseCode();
+            if (status==HttpURLConnection.HTTP_NOT_FOUND || status==HttpURLConnection.HTTP_GONE) throw new FileNotFoundException(url.toString());
+            if (status==HttpURLConnection.HTTP_OK) { // other responses (e.g. if HEAD is not allowed) tell nothing about the file, so it will just be downloaded
+                remote.etag=http.getHeaderField("ETag");
+                remote.lastModified=http.getHeaderField("Last-Modified");
+                remote.length=http.getContentLengthLong();
+                remote.acceptsRanges="bytes".equalsIgnoreCase(http.getHeaderField("Accept-Ranges"));
+            }
+            http.disconnect();
+            return remote;
+        }
+
+        /** Returns TRUE if this is the same version of the file that was described by the info when it was downloaded */
+        boolean matches(Properties info) {
+            if (length!=parseLong(info.getProperty("length"))) return false;
+            if (etag!=null) return etag.equals(info.getProperty("etag"));
+            if (lastModified!=null) return lastModified.equals(info.getProperty("lastModified"));
+            return false; // the file can not be validated
+        }
+
+        Properties toProperties() {
+            Properties info=new Properties();
+            if (etag!=null) info.setProperty("etag", etag);
+            if (lastModified!=null) info.setProperty("lastModified", lastModified);
+            info.setProperty("length", String.valueOf(length));
+            return info;
+        }
+
+        private static long parseLong(String value) {
+            try {
+                return (value!=null)?Long.parseLong(value):-2;
+            } catch (NumberFormatException e) {
+                return -2;
+            }
+        }
+    }
+
+    /** A part of the file that is downloaded with a single connection. The end is exclusive (or -1 if the length of the file is unknown) */
+    private static class Part {
+        final long start;
+        final long end;
+        volatile long done; // the number of bytes that have been written from the start of the part
+
+        Part(long start, long end, long done) {
+            this.start=start;
+            this.end=end;
+            this.done=done;
+        }
+
+        static String format(List<Part> parts) {
+            StringBuilder builder=new StringBuilder();
+            for (Part part:parts) {
+                if (builder.length()>0) builder.append(',');
+                builder.append(part.start).append(':').append(part.end).append(':').append(part.done);
+            }
+            return builder.toString();
+        }
+
+        /** Parses parts that have been formatted with format(). Returns NULL if the value can not be parsed */
+        static List<Part> parse(String value) {
+            if (value==null) return null;
+            List<Part> parts=new ArrayList<>();
+            try {
+                for (String part:value.split(",")) {
+                    String[] fields=part.split(":");
+                    parts.add(new Part(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                }
+            } catch (RuntimeException e) {
+                return null;
+            }
+            return parts;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Coalesces concurrent reads of the same archive entry, so that the entry is only decompressed once no matter how many clients read it at the same time.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An EntrySpool is a single decompression of an archive entry that is shared by all the readers that ask for the same entry while it is in use.
+ * The first reader starts a producer thread that reads the entry from its source and appends the bytes to a temporary spool file.
+ * All readers (including readers that arrive while the entry is being decompressed) get their own InputStream with a separate position in the spool file,
+ * and readers that catch up with the producer wait for more data. Hence, the cost of decompressing the entry stays the same regardless of the number of readers.
+ * <br><br>
+ * The spool is discarded (and the spool file deleted) when the last reader closes its stream. If this happens before the whole entry has been decompressed,
+ * the producer is stopped. A later request for the same entry will start a new decompression.
+ * If the source fails, all current readers will receive the error after they have read the data that was produced before the failure,
+ * and the spool is removed right away so that new readers will try again.
+ * Streams returned by open() must always be closed.
+ * @author kjetikl
+ */
+public class EntrySpool {
+
+    private static final int CHUNK_SIZE=65536;
+    private static final HashMap<Object,EntrySpool> spools=new HashMap<>(); // spools that can currently be joined by new readers. Also guards the 'readers' counts
+    private static final ExecutorService producers=Executors.newCachedThreadPool(runnable->{
+        Thread thread=new Thread(runnable, "EntrySpool producer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Object key;
+    private final LazyValue.Loader<InputStream> source;
+    private int readers=0;             // the number of open streams for this spool (guarded by 'spools')
+    // The fields below are guarded by this object
+    private FileChannel channel=null;  // the spool file (created by the producer)
+    private long written=0;            // the number of bytes that have been written to the spool file
+    private boolean opened=false;      // set to TRUE when the source has been opened successfully
+    private boolean finished=false;    // set to TRUE when the whole entry has been written to the spool file
+    private IOException failure=null;  // set if the producer failed
+    private boolean producing=true;    // set to FALSE when the producer thread is done
+    private boolean cancelled=false;   // set to TRUE when all the readers have closed their streams
+
+    private EntrySpool(Object key, LazyValue.Loader<InputStream> source) {
+        this.key=key;
+        this.source=source;
+    }
+
+    /**
+     * Returns a stream that reads the entry identified by the key. If another thread is already reading the same entry, the new stream will share its spool.
+     * This method waits until the source has been opened, so errors that occur when opening the source (e.g. if the entry does not exist) are thrown from here
+     * @param key Identifies the entry. This should include everything that determines the contents of the stream (e.g. the archive version, the entry path and whether it is decompressed)
+     * @param source Opens the source stream for the entry. This will be called from a producer thread, and the stream will be closed when the producer is done with it
+     * @return A new stream for the entry, starting at the beginning of the entry
+     * @throws IOException if the source could not be opened
+     */
+    public static InputStream open(Object key, LazyValue.Loader<InputStream> source) throws IOException {
+        EntrySpool spool;
+        boolean created=false;
+        synchronized (spools) {
+            spool=spools.get(key);
+            if (spool==null) {
+                spool=new EntrySpool(key, source);
+                spools.put(key, spool);
+                created=true;
+            }
+            spool.readers++;
+        }
+        if (created) producers.execute(spool::produce);
+        try {
+            spool.awaitOpened();
+        } catch (IOException e) {
+            spool.detach();
+            throw e;
+        }
+        return spool.new SpoolInputStream();
+    }
+
+    /** Returns the number of spools that can currently be joined by new readers */
+    public static int getActiveSpoolCount() {
+        synchronized (spools) {
+            return spools.size();
+        }
+    }
+
+    private synchronized void awaitOpened() throws IOException {
+        while (!opened && failure==null) waitForProducer();
+        if (!opened) throw failure; // the same exception is thrown to all readers, so that e.g. a FileNotFoundException is still recognized as such
+    }
+
+    private void waitForProducer() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for archive entry");
+        }
+    }
+
+    /** Reads the entry from the source and writes it to the spool file. This runs in a producer thread */
+    private void produce() {
+        InputStream input=null;
+        try {
+            File file=File.createTempFile("ghb-spool", ".tmp");
+            FileChannel spoolChannel=FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            synchronized (this) {
+                channel=spoolChannel;
+                if (cancelled) return;
+            }
+            input=source.load();
+            synchronized (this) {
+                opened=true;
+                notifyAll();
+            }
+            byte[] buffer=new byte[CHUNK_SIZE];
+            long offset=0;
+            int length;
+            while ((length=input.read(buffer))>=0) {
+                ByteBuffer chunk=ByteBuffer.wrap(buffer, 0, length);
+                while (chunk.hasRemaining()) spoolChannel.write(chunk, offset+chunk.position());
+                offset+=length;
+                synchronized (this) {
+                    if (cancelled) return; // nobody is reading anymore
+                    written=offset;
+                    notifyAll();
+                }
+            }
+            synchronized (this) {
+                finished=true;
+                notifyAll();
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                failure=(e instanceof IOException)?(IOException)e:new IOException(e.getMessage(), e);
+                notifyAll();
+            }
+            synchronized (spools) {
+                if (spools.get(key)==this) spools.remove(key); // new readers should try again rather than receive the same error
+            }
+        } finally {
+            if (input!=null) try {input.close();} catch (IOException e) {}
+            synchronized (this) {
+                producing=false;
+                if (cancelled) release();
+            }
+        }
+    }
+
+    /** Called when a reader closes its stream. The spool is discarded when there are no more readers */
+    private void detach() {
+        boolean last;
+        synchronized (spools) {
+            last=(--readers==0);
+            if (last && spools.get(key)==this) spools.remove(key);
+        }
+        if (last) {
+            synchronized (this) {
+                cancelled=true;
+                if (!producing) release();
+            }
+        }
+    }
+
+    /** Closes (and thereby deletes) the spool file. This is called when there are no more readers and the producer is done */
+    private void release() {
+        if (channel!=null) {
+            try {channel.close();} catch (IOException e) {}
+            channel=null;
+        }
+    }
+
+    /** A stream that reads from the spool file with its own position */
+    private class SpoolInputStream extends InputStream {
+        private long position=0;
+        private boolean closed=false;
+
+        /** Waits until there is data beyond the current position and returns the number of bytes available, or -1 if the end of the entry has been reached */
+        private long awaitData() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            synchronized (EntrySpool.this) {
+                while (position>=written && !finished && failure==null) waitForProducer();
+                if (position<written) return written-position;
+                if (failure!=null) throw new IOException(failure.getMessage(), failure);
+                return -1;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single=new byte[1];
+            int length=read(single, 0, 1);
+            return (length<0)?-1:(single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length==0) return 0;
+            long available=awaitData();
+            if (available<0) return -1;
+            int count=(int)Math.min(length, available);
+            ByteBuffer target=ByteBuffer.wrap(bytes, offset, count);
+            FileChannel spoolChannel;
+            synchronized (EntrySpool.this) {
+                spoolChannel=channel; // the channel is not released while this stream is open
+            }
+            while (target.hasRemaining()) {
+                int read=spoolChannel.read(target, position+(target.position()-offset));
+                if (read<0) throw new EOFException("Unexpected end of spool file");
+            }
+            position+=count;
+            return count;
+        }
+
+        @Override
+        public long skip(long bytes) throws IOException {
+            if (bytes<=0) return 0;
+            long available=awaitData();
+            if (available<0) return 0;
+            long skipped=Math.min(bytes, available);
+            position+=skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed) return 0;
+            synchronized (EntrySpool.this) {
+                return (int)Math.min(Integer.MAX_VALUE, Math.max(0, written-position));
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed=true;
+            detach();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * A directory with extracted copies of history archives, so that files inside frequently used archives can be read as plain files.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * The cache extracts the complete contents of an archive into a subdirectory of the cache directory the first time a file in the archive is requested.
+ * Later requests for files in the same archive can then read the extracted files directly (with random access) instead of decompressing the archive.
+ * The subdirectories are named after the fingerprint of the archive (see ArchiveFingerprint.getKey), so a modified archive will be extracted again.
+ * <br><br>
+ * An archive is first extracted into a temporary directory which is then renamed to its final name, so a directory with the final name
+ * is always complete, even if the extraction was interrupted or another process uses the same cache directory.
+ * The total size of the extracted files is limited by a budget. When the budget is exceeded, the least recently used archives are deleted
+ * (except the one that was just requested). The modification time of each extracted directory is updated when it is used,
+ * so the order of use is remembered between runs.
+ * @author kjetikl
+ */
+public class ExtractedArchiveCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE=10L*1024*1024*1024; // 10 GB
+
+    private static final String TEMP_SUFFIX=".tmp";
+
+    private final File directory;
+    private final long maximumSize;
+    private final LinkedHashMap<String,Long> extracted=new LinkedHashMap<>(16, 0.75f, true); // key => size of extracted files, in access order (guarded by this)
+    private final HashMap<String,LazyValue<File>> extracting=new HashMap<>(); // archives that are currently being extracted (guarded by this)
+    private long totalSize=0;
+
+    /**
+     * Creates a new cache in the given directory. Archives that have been extracted to the directory before are reused,
+     * and leftovers from interrupted extractions are deleted
+     * @param directory The cache directory. This will be created if it does not exist
+     * @param maximumSize The maximum total size (in bytes) of the extracted files
+     * @throws IOException if the cache directory could not be created
+     */
+    public ExtractedArchiveCache(File directory, long maximumSize) throws IOException {
+        this.directory=directory;
+        this.maximumSize=maximumSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create cache directory: "+directory);
+        File[] existing=directory.listFiles(File::isDirectory);
+        if (existing==null) throw new IOException("Unable to read cache directory: "+directory);
+        Arrays.sort(existing, Comparator.comparingLong(File::lastModified)); // least recently used first
+        for (File subdirectory:existing) {
+            if (subdirectory.getName().endsWith(TEMP_SUFFIX)) deleteRecursively(subdirectory.toPath());
+            else {
+                long size=getSize(subdirectory.toPath());
+                extracted.put(subdirectory.getName(), size);
+                totalSize+=size;
+            }
+        }
+    }
+
+    /**
+     * Returns an extracted file from an archive, extracting the archive first if necessary.
+     * @param fingerprint The fingerprint of the archive
+     * @param archiveSource Opens the (compressed) archive. This is only used if the archive has not been extracted before
+     * @param filepath The path of the file inside the archive
+     * @return The extracted file, or NULL if the archive does not contain the file
+     * @throws IOException if the archive could not be extracted
+     */
+    public File getFile(ArchiveFingerprint fingerprint, LazyValue.Loader<InputStream> archiveSource, String filepath) throws IOException {
+        File root=getDirectory(fingerprint, archiveSource);
+        File file=new File(root, filepath);
+        if (!isInside(root.toPath(), file.toPath())) return null; // the path tries to escape from the directory (e.g. with "..")
+        return (file.isFile())?file:null;
+    }
+
+    /**
+     * Returns the directory containing the extracted files from an archive, extracting the archive first if necessary.
+     * If several threads request the same archive at the same time, the archive is only extracted once
+     * @param fingerprint The fingerprint of the archive
+     * @param archiveSource Opens the (compressed) archive. This is only used if the archive has not been extracted before
+     * @return The directory with the extracted files
+     * @throws IOException if the archive could not be extracted
+     */
+    public File getDirectory(ArchiveFingerprint fingerprint, LazyValue.Loader<InputStream> archiveSource) throws IOException {
+        String key=fingerprint.getKey();
+        File target=new File(directory, key);
+        LazyValue<File> extraction;
+        synchronized (this) {
+            if (extracted.get(key)!=null && target.isDirectory()) { // the get() also marks the archive as most recently used
+                target.setLastModified(System.currentTimeMillis());
+                return target;
+            }
+            extraction=extracting.computeIfAbsent(key, k->new LazyValue<>(()->extract(key, archiveSource)));
+        }
+        try {
+            return extraction.get();
+        } finally {
+            synchronized (this) {
+                extracting.remove(key, extraction);
+            }
+        }
+    }
+
+    /** Returns the total size of all the extracted files in the cache */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    /** Returns the maximum total size of the extracted files */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /** Returns the number of extracted archives in the cache */
+    public synchronized int size() {
+        return extracted.size();
+    }
+
+    /** Extracts the archive into a temporary directory and renames it to the final directory when it is complete */
+    private File extract(String key, LazyValue.Loader<InputStream> archiveSource) throws IOException {
+        File target=new File(directory, key);
+        Path temp=new File(directory, key+"-"+UUID.randomUUID()+TEMP_SUFFIX).toPath();
+        long size=0;
+        try (InputStream source=archiveSource.load(); InputStream decompressed=ArchiveSource.pipeline(ParallelGzipInputStream.open(source))) {
+            Files.createDirectories(temp);
+            TarArchiveInputStream tarInput=new TarArchiveInputStream(decompressed);
+            TarArchiveEntry entry=tarInput.getNextTarEntry();
+            while (entry!=null) {
+                Path path=temp.resolve(entry.getName()).normalize();
+                if (!isInside(temp, path)) throw new IOException("Archive entry is outside of the archive: "+entry.getName());
+                if (entry.isDirectory()) Files.createDirectories(path);
+                else if (entry.isFile()) {
+                    Files.createDirectories(path.getParent());
+                    size+=Files.copy(tarInput, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                entry=tarInput.getNextTarEntry();
+            }
+            try {
+                Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (!target.isDirectory()) throw e;
+                deleteRecursively(temp); // another process extracted the same archive first
+                size=getSize(target.toPath());
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteRecursively(temp);
+            throw e;
+        }
+        synchronized (this) {
+            Long previous=extracted.put(key, size);
+            if (previous!=null) totalSize-=previous;
+            totalSize+=size;
+            evict(key);
+        }
+        return target;
+    }
+
+    /** Deletes the least recently used archives (except the given one) until the total size is within the budget */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String,Long>> iterator=extracted.entrySet().iterator();
+        while (totalSize>maximumSize && iterator.hasNext()) {
+            Map.Entry<String,Long> entry=iterator.next();
+            if (entry.getKey().equals(keep)) continue;
+            iterator.remove();
+            totalSize-=entry.getValue();
+            deleteRecursively(new File(directory, entry.getKey()).toPath()); // streams that are still reading these files will normally be able to finish (except on Windows)
+        }
+    }
+
+    private static boolean isInside(Path root, Path path) {
+        return path.toAbsolutePath().normalize().startsWith(root.toAbsolutePath().normalize());
+    }
+
+    /** Returns the total size of the files in a directory (or the size of a single file). Errors are ignored */
+    static long getSize(Path directory) {
+        try (Stream<Path> files=Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(path->path.toFile().length()).sum();
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /** Deletes a directory and everything in it (or a single file). Errors are ignored */
+    static void deleteRecursively(Path path) {
+        try (Stream<Path> files=Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file->file.toFile().delete());
+        } catch (IOException | RuntimeException e) {
+            // this is only cleanup
+        }
+    }
+}
@@ -4,24 +4,32 @@ package no.nels.galaxyhistorybrowser;
 
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.FontMetrics;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.swing.DefaultListModel;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JTree;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.filechooser.FileFilter;
-import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
-import javax.swing.tree.DefaultTreeModel;
 
 /**
  * A graphical user interface that can open a Galaxy History Archive file (represented with a GalaxyHistoryArchive object) and display its metadata and contents.
@@ -30,6 +38,13 @@ import javax.swing.tree.DefaultTreeModel;
 public class GUI extends javax.swing.JFrame {
 
     private GalaxyHistoryArchive historyArchive=null;
+    private HistoryLoader historyLoader=null; // loads the history in the background (this is NULL when no history is being loaded)
+    private DatasetLineModel datasetLineModel=null; // the lines of the dataset shown in the viewer
+    private final ExecutorService viewExecutor=Executors.newFixedThreadPool(2, runnable->{ // loads the lines of the dataset shown in the viewer (one thread can load lines while the other one counts them)
+        Thread thread=new Thread(runnable, "Dataset viewer");
+        thread.setDaemon(true);
+        return thread;
+    });
     private Color COLOR_OK=new Color(175,241,175);
     private Color COLOR_ERROR=new Color(249,199,197);
     private Color COLOR_RUNNING=new Color(255,253,204);
@@ -44,6 +59,24 @@ public class GUI extends javax.swing.JFrame {
     public GUI() {
         initComponents();
         progressbar.setVisible(false);
+        FontMetrics metrics=viewList.getFontMetrics(viewList.getFont());
+        viewList.setFixedCellHeight(metrics.getHeight()); // with a fixed cell height the list only asks its model for the lines that are visible
+        viewList.setFixedCellWidth(metrics.charWidth('m')*80);
+        historyTree.setCellRenderer(new HistoryRenderer());
+        historyTree.setRootVisible(false);
+        historyTree.setShowsRootHandles(true);
+        historyTree.setModel(new HistoryTreeModel(Collections.<Map>emptyList()));
+        historyTree.setRowHeight(Math.max(historyTree.getFontMetrics(historyTree.getFont()).getHeight(), 16)+4); // with a fixed row height (and a "large model"), the tree only lays out the rows that are visible
+        historyTree.setLargeModel(true);
+        historyTree.addTreeSelectionListener(new TreeSelectionListener() {
+            @Override
+            public void valueChanged(TreeSelectionEvent e) {
+                HistoryTreeModel.Node node = (HistoryTreeModel.Node)historyTree.getLastSelectedPathComponent();
+                viewDatasetButton.setEnabled(node!=null && node.isDataset());
+                showMetadata((node!=null)?node.getEntry():null);
+                clearDataset();
+            }
+        });
         fileTextField.getDocument().addDocumentListener(new DocumentListener() {
                 @Override
                 public void insertUpdate(DocumentEvent e) {
@@ -102,11 +135,10 @@ public class GUI extends javax.swing.JFrame {
         viewTopPanel = new javax.swing.JPanel();
         viewControls = new javax.swing.JPanel();
         viewDatasetButton = new javax.swing.JButton();
-        jLabel3 = new javax.swing.JLabel();
-        viewSizeSelector = new javax.swing.JSpinner();
         jLabel4 = new javax.swing.JLabel();
+        viewStartSelector = new javax.swing.JSpinner();
         viewScrollPane = new javax.swing.JScrollPane();
-        viewTextArea = new javax.swing.JTextArea();
+        viewList = new javax.swing.JList<>();
         statusPanel = new javax.swing.JPanel();
         progressbar = new javax.swing.JProgressBar();
         statusMessage = new javax.swing.JLabel();
@@ -239,21 +271,21 @@ public class GUI extends javax.swing.JFrame {
         });
         viewControls.add(viewDatasetButton);
 
-        jLabel3.setText("       Load first");
-        viewControls.add(jLabel3);
-
-        viewSizeSelector.setModel(new javax.swing.SpinnerNumberModel(2000, 10, 100000, 1));
-        viewControls.add(viewSizeSelector);
-
-        jLabel4.setText("bytes");
+        jLabel4.setText("       Go to line");
         viewControls.add(jLabel4);
 
+        viewStartSelector.setModel(new javax.swing.SpinnerNumberModel(Long.valueOf(1L), Long.valueOf(1L), null, Long.valueOf(1L)));
+        viewStartSelector.addChangeListener(new javax.swing.event.ChangeListener() {
+            public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                viewStartSelectorStateChanged(evt);
+            }
+        });
+        viewControls.add(viewStartSelector);
+
         viewTopPanel.add(viewControls, java.awt.BorderLayout.PAGE_START);
 
-        viewTextArea.setEditable(false);
-        viewTextArea.setColumns(20);
-        viewTextArea.setRows(5);
-        viewScrollPane.setViewportView(viewTextArea);
+        viewList.setFont(new java.awt.Font("Monospaced", 0, 12)); // NOI18N
+        viewScrollPane.setViewportView(viewList);
 
         viewTopPanel.add(viewScrollPane, java.awt.BorderLayout.CENTER);
 
@@ -306,54 +338,59 @@ public class GUI extends javax.swing.JFrame {
     }//GEN-LAST:event_browseButtonActionPerformed
 
     private void openHistoryButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_openHistoryButtonActionPerformed
-        // open history file, read it and initialize the components (tree and metadata) 
-        SwingWorker worker = new SwingWorker<Boolean, Object>() {
-            Exception error=null;
-            @Override
-            public Boolean doInBackground() {
-                try {
-                    String pathname=fileTextField.getText();
-                    if (pathname==null || pathname.trim().isEmpty()) throw new Exception("Missing file or URL");
-                    historyArchive=new GalaxyHistoryArchive(pathname);
-                } catch (Exception e) {
-                    error=e;
-                    return false;
-                }
-                return true;
-            }
-
-            @Override
-            protected void done() {
-                progressbar.setIndeterminate(false);
-                progressbar.setVisible(false);
-                if (error!=null) showErrorMessage(error.getMessage());
-                else {
-                    showStatusMessage("OK");
-                    showHistory(historyArchive);
-                }
-            }
-        };
+        // open history file and read it in the background. The tree is filled in while the history is being processed
+        if (historyLoader!=null) { // a history is already being loaded. The button cancels the loading, but opening a file from the text field replaces it
+            cancelHistoryLoader();
+            if (evt!=null && evt.getSource()==openHistoryButton) return;
+        }
+        String pathname=fileTextField.getText();
+        if (pathname==null || pathname.trim().isEmpty()) {
+            showErrorMessage("Missing file or URL");
+            return;
+        }
+        clearDataset();
+        showMetadata(null);
+        historyNameLabel.setText(" ");
+        historyAttributesLabel.setText(" ");
+        historyArchive=new GalaxyHistoryArchive(pathname);
+        HistoryTreeModel model=new HistoryTreeModel();
+        historyTree.setModel(model);
+        historyLoader=new HistoryLoader(historyArchive, model);
         showStatusMessage("Opening Galaxy History...");
         progressbar.setIndeterminate(true);
         progressbar.setVisible(true);
+        openHistoryButton.setText("Cancel");
         viewDatasetButton.setEnabled(false);
-        worker.execute();      
+        historyLoader.execute();      
     }//GEN-LAST:event_openHistoryButtonActionPerformed
 
+    /** Stops loading the current history. The loader is interrupted, and the scan of the archive is stopped by the progress listener */
+    private void cancelHistoryLoader() {
+        historyLoader.cancel(true);
+        historyLoader=null;
+        progressbar.setIndeterminate(false);
+        progressbar.setVisible(false);
+        openHistoryButton.setText("Open");
+        showStatusMessage("Cancelled");
+    }
+
     private void viewDatasetButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_viewDatasetButtonActionPerformed
-        DefaultMutableTreeNode node = (DefaultMutableTreeNode)historyTree.getLastSelectedPathComponent();
-        if (node!=null && node.isLeaf()){
-            Map dataset=(Map)node.getUserObject();
-            String filename=(String)dataset.get("file_name");
-            if (filename==null) {
-                showErrorMessage("Missing filepath for dataset");
+        HistoryTreeModel.Node node = (HistoryTreeModel.Node)historyTree.getLastSelectedPathComponent();
+        if (node!=null && node.isDataset()){
+            Map dataset=node.getEntry();
+            String datasetID=(String)dataset.get("encoded_id");
+            if (datasetID==null) {
+                showErrorMessage("Missing ID for dataset");
             } else {
-                int bytes=(int)viewSizeSelector.getValue();
-                displayDataset(filename,bytes);
+                displayDataset(datasetID);
             }
         }
     }//GEN-LAST:event_viewDatasetButtonActionPerformed
 
+    private void viewStartSelectorStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_viewStartSelectorStateChanged
+        scrollToLine((long)viewStartSelector.getValue());
+    }//GEN-LAST:event_viewStartSelectorStateChanged
+
     private void showErrorMessage(String message) {
         statusMessage.setForeground(Color.red);        
         statusMessage.setText("ERROR: "+message);
@@ -364,47 +401,111 @@ public class GUI extends javax.swing.JFrame {
         statusMessage.setText(message);
     }    
     
-    /** Displays the contents of the history archive in the GUI. The historyArchive should already have been processed and validated */
-    private void showHistory(GalaxyHistoryArchive historyArchive) {
-        try {
-            historyNameLabel.setText((String)historyArchive.getHistoryAttribute("name"));
-            String attributes="";            
-            String annotation=(String)historyArchive.getHistoryAttribute("annotation");
-            String created=(String)historyArchive.getHistoryAttribute("create_time");
-            String updated=(String)historyArchive.getHistoryAttribute("update_time");
-            if (created!=null && !created.isEmpty()) attributes+="  Created="+created.substring(0,16);
-            if (updated!=null && !updated.isEmpty()) attributes+=",  Updated="+updated.substring(0,16);
-            Object tagsObject=(Object)historyArchive.getHistoryAttribute("tags");
-            if (tagsObject instanceof String) {
-                if (!((String)tagsObject).isEmpty()) attributes+=",  Tags=["+tagsObject.toString()+"]";
-            } else if (tagsObject instanceof List) {
-                attributes+=",  Tags=[";
-                for (Object tag:(List)tagsObject) {
-                    attributes+=""+tag+","; // this will also add a trailing comma, but I don't really care!
-                }
-                attributes+="]";
-            }        
-            if (annotation!=null && !annotation.isEmpty()) attributes+=",  Annotation="+annotation;
-            historyAttributesLabel.setText(attributes);
-            // 
-            Map<String,Object> history=historyArchive.getHistory();
-            List<Map> contents=(List<Map>)history.get("contents");
-            DefaultMutableTreeNode root=getTreeRepresentation(contents);
-            historyTree.setCellRenderer(new HistoryRenderer());
-            historyTree.setRootVisible(false);
-            historyTree.setModel(new DefaultTreeModel(root));    
-            historyTree.addTreeSelectionListener(new TreeSelectionListener() {
-                @Override
-                public void valueChanged(TreeSelectionEvent e) {
-                    DefaultMutableTreeNode node = (DefaultMutableTreeNode)historyTree.getLastSelectedPathComponent();
-                    viewDatasetButton.setEnabled(node!=null && node.isLeaf());
-                    showMetadata((node!=null)?(Map)node.getUserObject():null);
-                    viewTextArea.setText("");
-                }
-            });
-        } catch (Exception e) {
-            showErrorMessage(e.getMessage());
-            e.printStackTrace();
+    /** Returns the text describing the history attributes (creation and update time, tags and annotation) */
+    private static String getHistoryAttributesText(GalaxyHistoryArchive historyArchive) throws IOException {
+        String attributes="";            
+        String annotation=(String)historyArchive.getHistoryAttribute("annotation");
+        String created=(String)historyArchive.getHistoryAttribute("create_time");
+        String updated=(String)historyArchive.getHistoryAttribute("update_time");
+        if (created!=null && !created.isEmpty()) attributes+="  Created="+created.substring(0,16);
+        if (updated!=null && !updated.isEmpty()) attributes+=",  Updated="+updated.substring(0,16);
+        Object tagsObject=(Object)historyArchive.getHistoryAttribute("tags");
+        if (tagsObject instanceof String) {
+            if (!((String)tagsObject).isEmpty()) attributes+=",  Tags=["+tagsObject.toString()+"]";
+        } else if (tagsObject instanceof List) {
+            attributes+=",  Tags=[";
+            for (Object tag:(List)tagsObject) {
+                attributes+=""+tag+","; // this will also add a trailing comma, but I don't really care!
+            }
+            attributes+="]";
+        }        
+        if (annotation!=null && !annotation.isEmpty()) attributes+=",  Annotation="+annotation;
+        return attributes;
+    }
+    
+    /**
+     * Loads a history in the background, so the GUI stays responsive while large archives are scanned.
+     * While the archive is scanned, the progress is shown in bytes of the archive file together with an estimate of the remaining time (see ProgressInputStream).
+     * The top-level entries are then added to the tree as they are processed, newest first (see GalaxyHistoryArchive.visitHistoryContents),
+     * so the newest entries can be browsed before the rest of the history is ready. 
+     * Cancelling the loader interrupts it and makes the progress listener stop the scan
+     */
+    private class HistoryLoader extends SwingWorker<Void, Map> {
+        private final GalaxyHistoryArchive archive;
+        private final HistoryTreeModel model;
+        private final long started=System.currentTimeMillis();
+        private int entries=0; // the number of top-level entries added to the tree so far
+        private Exception error=null;
+        
+        public HistoryLoader(GalaxyHistoryArchive archive, HistoryTreeModel model) {
+            this.archive=archive;
+            this.model=model;
+        }
+        
+        @Override
+        public Void doInBackground() {
+            try {
+                archive.setProgressListener((bytesRead, totalBytes)->{ // this is called on the thread that reads the archive
+                    if (isCancelled()) throw new InterruptedIOException("Loading was cancelled");
+                    SwingUtilities.invokeLater(()->showProgress(bytesRead, totalBytes));
+                });
+                String name=(String)archive.getHistoryAttribute("name");
+                String attributes=getHistoryAttributesText(archive);
+                SwingUtilities.invokeLater(()->{
+                    if (historyLoader!=this) return;
+                    historyNameLabel.setText(name);
+                    historyAttributesLabel.setText(attributes);
+                    showStatusMessage("Processing history...");
+                    progressbar.setIndeterminate(true);
+                });
+                archive.visitHistoryContents(entry->{
+                    if (isCancelled()) throw new InterruptedIOException("Loading was cancelled");
+                    publish(entry);
+                });
+            } catch (Exception e) {
+                error=e;
+            } finally {
+                archive.setProgressListener(null);
+            }
+            return null;
+        }
+        
+        @Override
+        protected void process(List<Map> added) {
+            if (historyLoader!=this) return;
+            model.add(added);
+            entries+=added.size();
+        }
+
+        @Override
+        protected void done() {
+            if (historyLoader!=this) return; // the loader has been cancelled (or replaced by a new one)
+            historyLoader=null;
+            progressbar.setIndeterminate(false);
+            progressbar.setVisible(false);
+            openHistoryButton.setText("Open");
+            if (error!=null) showErrorMessage(error.getMessage());
+            else showStatusMessage("OK ("+entries+" entries)");
+        }
+        
+        /** Shows how much of the archive has been read, and estimates the remaining time from the average speed so far */
+        private void showProgress(long bytesRead, long totalBytes) {
+            if (historyLoader!=this) return;
+            if (totalBytes<=0) {
+                showStatusMessage("Reading history: "+archive.humanReadableSize(bytesRead));
+                return;
+            }
+            int permille=(int)Math.min(1000, bytesRead*1000/totalBytes);
+            progressbar.setIndeterminate(false);
+            progressbar.setMaximum(1000);
+            progressbar.setValue(permille);
+            String message="Reading history: "+archive.humanReadableSize(bytesRead)+" of "+archive.humanReadableSize(totalBytes)+" ("+(permille/10)+"%)";
+            long elapsed=System.currentTimeMillis()-started;
+            if (elapsed>=1000 && bytesRead>0 && bytesRead<totalBytes) {
+                long remaining=(long)((totalBytes-bytesRead)*((double)elapsed/bytesRead)/1000); // seconds
+                message+=",  about "+((remaining>=60)?(remaining/60+" min "+remaining%60+" s"):(remaining+" s"))+" remaining";
+            }
+            showStatusMessage(message);
         }
     }
     
@@ -433,116 +534,110 @@ public class GUI extends javax.swing.JFrame {
         }
     }
     
-    private void displayDataset(final String filename, final int bytes) {
-        SwingWorker worker = new SwingWorker<Boolean, Object>() {
-            Exception error=null;
-            String contents=null;
+    /**
+     * Displays a dataset in the viewer. The lines are fetched in windows as the user scrolls through the list (see DatasetLineModel),
+     * so only the visible part of the dataset (plus a few recently viewed windows) is kept in memory, regardless of the size of the dataset
+     */
+    private void displayDataset(final String datasetID) {
+        clearDataset();
+        final DatasetLineModel model=new DatasetLineModel(historyArchive, datasetID, viewExecutor, new DatasetLineModel.Listener() {
             @Override
-            public Boolean doInBackground() {
-                try {
-                    InputStream stream=historyArchive.getInputStreamForFile(filename, true);
-                    byte[] buffer=new byte[bytes];
-                    int length=stream.read(buffer);
-                    contents=new String(buffer);
-                } catch (Exception e) {
-                    error=e;
-                    return false;
-                }
-                return true;
+            public void lineCountLoaded(long lines) {
+                progressbar.setIndeterminate(false);
+                progressbar.setVisible(false);
+                showStatusMessage("OK ("+lines+" lines)");
+                scrollToLine((long)viewStartSelector.getValue());
             }
-
             @Override
-            protected void done() {
+            public void loadFailed(Exception error) {
                 progressbar.setIndeterminate(false);
                 progressbar.setVisible(false);
-                if (error!=null) showErrorMessage(error.getMessage());
-                else {
-                    showStatusMessage("OK");
-                    viewTextArea.setText(contents);
-                    viewTextArea.setCaretPosition(0);
-                }
+                showErrorMessage(error.getMessage());
+            }
+        });
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {}
+            @Override
+            public void intervalRemoved(ListDataEvent e) {}
+            @Override
+            public void contentsChanged(ListDataEvent e) { // widen the list to fit the longest line that has been loaded so far, so it can be scrolled horizontally
+                int longest=0;
+                for (int i=e.getIndex0();i<=e.getIndex1();i++) longest=Math.max(longest, model.getElementAt(i).length());
+                int width=viewList.getFontMetrics(viewList.getFont()).charWidth('m')*longest+10;
+                if (width>viewList.getFixedCellWidth()) viewList.setFixedCellWidth(width);
             }
-        };
-        showStatusMessage("Loading dataset ("+bytes+" bytes)");
+        });
+        datasetLineModel=model;
+        viewList.setModel(model);
+        showStatusMessage("Indexing dataset lines...");
         progressbar.setIndeterminate(true);
         progressbar.setVisible(true);
-        worker.execute();         
+        model.start();
     }
     
-    private DefaultMutableTreeNode getTreeRepresentation(List<Map> history) {
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode("root");
-        for (Map entry:history) {
-            if (entry.get("class").equals("dataset")) {
-                DefaultMutableTreeNode node = new DefaultMutableTreeNode(entry);
-                root.add(node);
-            } else { // history entry is a collection
-                DefaultMutableTreeNode node = processCollection(entry);
-                root.add(node);                
+    /** Removes the dataset shown in the viewer (if any) and cancels the loading of its lines */
+    private void clearDataset() {
+        if (datasetLineModel!=null) {
+            if (!datasetLineModel.isCancelled() && progressbar.isVisible()) {
+                progressbar.setIndeterminate(false);
+                progressbar.setVisible(false);
+                showStatusMessage("OK");
             }
-        }     
-        return root;
+            datasetLineModel.cancel();
+            datasetLineModel=null;
+        }
+        viewList.setModel(new DefaultListModel<>());
+        viewList.setFixedCellWidth(viewScrollPane.getViewport().getWidth());
     }
     
-    private DefaultMutableTreeNode processCollection(Map collection) {
-        DefaultMutableTreeNode collectionNode=new DefaultMutableTreeNode(collection);
-        List<Map> elements=(List<Map>)((Map)collection.get("collection")).get("elements");
-        if (elements==null) {collectionNode.add(new DefaultMutableTreeNode(""+collection.toString()));return collectionNode;}
-        if (collection.get("class").equals("list") || collection.get("class").equals("paired")) {           
-            for (Map element:elements) {
-                String nameInCollection=(String)element.get("name"); // the dataset can have been renamed in the list (different "display name")
-                Map dataset=(Map)element.get("dataset");
-                String originalName=(String)dataset.get("name");
-                dataset.put("displayLabel", nameInCollection); // 
-                dataset.put("datasetName", originalName); //   
-                collectionNode.add(new DefaultMutableTreeNode(dataset));
-            }
-        } else if (collection.get("class").equals("list:paired")) {
-            for (Map element:elements) {
-                collectionNode.add(processCollection(element));
-            }           
-        }
-        return collectionNode; // Default behaviour. This should not really happen
+    /** Scrolls the dataset viewer so that the given line (starting at 1) is at the top */
+    private void scrollToLine(long line) {
+        int index=(int)Math.min(line-1, viewList.getModel().getSize()-1L);
+        if (index<0) return;
+        Rectangle bounds=viewList.getCellBounds(index, index);
+        if (bounds==null) return;
+        bounds.height=viewScrollPane.getViewport().getHeight(); // make the whole viewport fit below the top of the line
+        viewList.scrollRectToVisible(bounds);
     }
     
+    /** Colors the history entries by their state. The colors and labels are shared, so painting the tree does not allocate anything */
     private class HistoryRenderer extends DefaultTreeCellRenderer {
+        private final Color[] colors=new Color[]{COLOR_OK, COLOR_ERROR, COLOR_WAITING, COLOR_RUNNING, COLOR_PAUSED, COLOR_DELETED, COLOR_OTHER};
+        private final Color[] selectedColors=new Color[colors.length];
+        private final Color ELEMENT_COLOR=new Color(0,0,160); // datasets in collections are shown with their name in the collection
+        
         public HistoryRenderer() {
           super();
+          for (int i=0;i<colors.length;i++) selectedColors[i]=colors[i].darker();
         }
+        
         @Override
         public Component getTreeCellRendererComponent(JTree tree, Object value, boolean isSelected,boolean expanded,boolean leaf, int row,boolean hasFocus) {
             JLabel comp=(JLabel)super.getTreeCellRendererComponent(tree, value, isSelected, expanded, leaf, row, hasFocus);
             comp.setOpaque(true); 
-            DefaultMutableTreeNode node=(DefaultMutableTreeNode)value;
-            Object userobject=node.getUserObject();
-            if (userobject instanceof Map) {
-                Map historyEntry=(Map)userobject;
-                Object hid=historyEntry.get("hid");
-                String name=(String)historyEntry.get("name");
-                String state=(String)historyEntry.get("state");
-                if (state==null) state="other";
-                switch(state) {
-                    case "ok": comp.setBackground(COLOR_OK);break;
-                    case "error": comp.setBackground(COLOR_ERROR);break;
-                    case "waiting": comp.setBackground(COLOR_WAITING);break;
-                    case "running": comp.setBackground(COLOR_RUNNING);break;
-                    case "paused": comp.setBackground(COLOR_PAUSED);break;
-                    case "deleted": comp.setBackground(COLOR_DELETED);break;                   
-                    default: comp.setBackground(COLOR_OTHER);break;
-                }
-                comp.setForeground(Color.BLACK);
-                if (isSelected) comp.setBackground(comp.getBackground().darker());
-                if (historyEntry.containsKey("displayLabel")) {
-                    name="<b><font color='blue'>"+historyEntry.get("displayLabel")+"</font></b> &rArr; "+historyEntry.get("datasetName");
-                } else {
-                    
-                }
-                String label=(hid!=null)?("[ "+hid+" ]:  "+name):name;
-                comp.setText("<html>"+label+"</html>");
-            } else {
-                comp.setText("STRING: "+userobject);   
+            if (value instanceof HistoryTreeModel.Node) {
+                HistoryTreeModel.Node node=(HistoryTreeModel.Node)value;
+                int color=getColorIndex(node.getState());
+                comp.setBackground((isSelected)?selectedColors[color]:colors[color]);
+                comp.setForeground((node.isCollectionElement())?ELEMENT_COLOR:Color.BLACK);
+                comp.setText(node.getLabel());
             }           
             return comp;
-        }        
+        }
+        
+        private int getColorIndex(String state) {
+            if (state==null) return colors.length-1;
+            switch(state) {
+                case "ok": return 0;
+                case "error": return 1;
+                case "waiting": return 2;
+                case "running": return 3;
+                case "paused": return 4;
+                case "deleted": return 5;
+                default: return colors.length-1;
+            }
+        }
     }
     
     
@@ -596,7 +691,6 @@ public class GUI extends javax.swing.JFrame {
     private javax.swing.JPanel innerPanel;
     private javax.swing.JPanel innerTop;
     private javax.swing.JLabel jLabel1;
-    private javax.swing.JLabel jLabel3;
     private javax.swing.JLabel jLabel4;
     private javax.swing.JPanel mainPanel;
     private javax.swing.JPanel mainTop;
@@ -616,8 +710,8 @@ public class GUI extends javax.swing.JFrame {
     private javax.swing.JPanel viewControls;
     private javax.swing.JButton viewDatasetButton;
     private javax.swing.JScrollPane viewScrollPane;
-    private javax.swing.JSpinner viewSizeSelector;
-    private javax.swing.JTextArea viewTextArea;
+    private javax.swing.JSpinner viewStartSelector;
+    private javax.swing.JList<String> viewList;
     private javax.swing.JPanel viewTopPanel;
     // End of variables declaration//GEN-END:variables
 }
@@ -13,6 +13,9 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.BeanProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -20,21 +23,33 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.compress.archivers.tar.*;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.CloseShieldFilterInputStream;
 
 /**
  *
@@ -43,15 +58,28 @@ import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 public class GalaxyHistoryArchive {
     
     private static final HashMap<String,String> MIMETYPES=new HashMap<>(); // a map to convert file suffixes to corresponding MIME types. This is set in static block at the end of this class.
+    public static final long DEFAULT_SHARED_READ_THRESHOLD=1024*1024;
+    private static volatile long sharedReadThreshold=DEFAULT_SHARED_READ_THRESHOLD; // entries of at least this size are read through an EntrySpool when several threads read them at the same time (see setSharedReadThreshold)
+    private static volatile DownloadCache downloadCache=new DownloadCache(DownloadCache.getDefaultDirectory()); // keeps local copies of archives that are read from URLs (see setDownloadCache)
+    private static volatile ExtractedArchiveCache extractedArchiveCache=null; // if this is set, files are output from extracted copies of the archives (see setExtractedArchiveCache)
+    private static final String[] INDEXED_DATASET_ATTRIBUTES=new String[]{"encoded_id","hid","file_name"}; // datasets can be looked up directly by these attributes without searching through the list
     
     private String archivepath=null; // the local file path or URL of the archive tarball file
-    private String version=null;     // the format version of the history archive file. Either 2 (newest format), 1 (older unsupported format) or 0 (not a Galaxy History file) 
 
-    private Map<String,Object> history_metadata=null; // (taken directly from the "history_attrs.txt" JSON file inside the archive)  
-    private List<Map> datasets=null;    // raw datasets (taken directly from the "datasets_attrs.txt" JSON file inside the archive)
-    private List<Map> collections=null; // raw collections (taken directly from the "collections_attrs.txt" JSON file inside the archive)
-    private List<Map> jobs=null;        // raw jobs (taken directly from the "jobs_attrs.txt" JSON file inside the archvie)  
-    private Map<String,Object> history=null; // full processed history. This structure includes information from all the four object above.
+    // The structures below are loaded the first time they are needed. Each of them is loaded only once, even if the archive is used by several threads at the same time,
+    // and the loaded structures are not modified afterwards, so they can be read by any number of threads without locking (see LazyValue)
+    private final LazyValue<String> lazyVersion=new LazyValue<>(this::getExportVersionFromArchive); // the format version of the history archive file (if it is needed before the metadata has been read)
+    private final LazyValue<Metadata> lazyMetadata=new LazyValue<>(this::loadMetadata);              // all the metadata read from the archive (see the Metadata class)
+    private final LazyValue<Map<String,Object>> lazyHistory=new LazyValue<>(()->initialize(null));   // full processed history. This structure includes information from all the metadata files
+    private final LazyValue<File> lazyLocalFile=new LazyValue<>(this::getLocalCopy);                  // the archive file itself, or a downloaded copy if the archive is read from a URL (see getLocalFile)
+    private final LazyValue<ArchiveFingerprint> lazyFingerprint=new LazyValue<>(()->ArchiveFingerprint.of(getLocalFile())); // identifies the version of the local archive file that the sidecar files (index and snapshot) belong to
+    private final LazyValue<ArchiveIndex> lazySavedIndex=new LazyValue<>(this::loadArchiveIndex);    // an index loaded from a sidecar file created by an earlier scan (or NULL if there is none)
+    private volatile ArchiveIndex archiveIndex=null; // an index built by scanning the archive. This is used instead of the saved index when available
+    private final Map<String,ArchiveIndex> entryCheckpoints=new ConcurrentHashMap<>(); // decompression checkpoints within compressed files in the archive (see openDecompressedAt). Each index is guarded by itself
+    private final Map<String,LazyValue<LineIndex>> lineIndexes=new ConcurrentHashMap<>(); // line indexes for (decompressed) files in the archive (see getLines)
+    private volatile ProgressInputStream.ProgressListener progressListener=null; // if this is set, it is notified about the progress when the archive is scanned for metadata
+    private long estimatedMemoryUsage=-1;            // cached result of getEstimatedMemoryUsage()
+    private Object[] estimatedMemoryState=null;      // the structures that were loaded when the memory usage was estimated
     
     
     // ----------------------------------------------------------------------------------------------------
@@ -65,40 +93,69 @@ public class GalaxyHistoryArchive {
     }
     
     /**
-     * This method will parse all the relevant JSON metadata files inside the history archive file
-     * and cache the information in both separate data structures and a full "history" object that 
-     * combines information from all the others into a single structure.
+     * This method will parse all the relevant JSON metadata files inside the history archive file (if this has not been done already)
+     * and create a "history" object that combines information from all the metadata into a single structure.
      * Note that it is not required to call this method if only a subset of the information about the history is needed.
      * It will then be quicker to just use other accessor methods directly, such as "getHistoryAttribute".
      * 
-     * @param attributes If provided, this can limit the metadata attributes that are read from the history archive
-     *                   Each key should refer to a metadata set (either "history", "datasets", "collections" or "jobs") and the value should be a String[]
+     * @param attributes If provided, this can limit the dataset and collection attributes that are included in the processed history
+     *                   Each key should refer to a metadata set ("datasets" or "collections") and the value should be a String[]
      *                   listing the attributes to retrieve for that metadata set  
      *                   You should not use this parameter unless you known what your are doing.
+     * @return The processed history
      */
-    private void initialize(Map<String,String[]> attributes) throws IOException {
+    private Map<String,Object> initialize(Map<String,String[]> attributes) throws IOException {
         String[] datasetAttributes=(attributes!=null)?attributes.get("datasets"):null;
         String[] collectionAttributes=(attributes!=null)?attributes.get("collections"):null;           
         // // if some attribute filters are missing, use sensible defaults instead to limit the amount of information  
         // if (datasetAttributes==null) datasetAttributes=new String[]{"hid","name","extension","file_name","extra_files_path","metadata","dbkey","encoded_id","peek","blurb","visible","create_time","state","job","info"}; 
         // if (collectionAttributes==null) collectionAttributes=new String[]{"hid","encoded_id","element_identifier","element_index","display_name","type","collection","child_collection","elements","hda","state","job","info"};                
         
-        if (version==null) version=getExportVersionFromArchive(); // 
+        return processHistory(getPreparedMetadata(), datasetAttributes, collectionAttributes); // Create a new easy-to-use structure to represent the entire history    
+    }
+    
+    /**
+     * Reads the metadata from the archive (or restores it from a snapshot) and builds the lookup tables.
+     * If the archive is a supported history with all the metadata files present, the states of the datasets and collections are also set
+     * and a snapshot of the metadata is saved. Finally, all the maps and lists are made unmodifiable, so that the metadata can be shared by many threads.
+     * This is the loader for the 'lazyMetadata' field and should not be called directly.
+     * @return The metadata
+     * @throws IOException if the history archive file could not be read or the metadata files inside the archive could not be processed correctly
+     */
+    private Metadata loadMetadata() throws IOException {
+        Metadata metadata=loadSnapshot();
+        if (metadata==null) metadata=readIndexedMetadata();
+        if (metadata==null) metadata=scanArchive(null);
+        if (metadata.isComplete() && !metadata.restored) { // metadata restored from a snapshot already includes the history size and the states
+            metadata.history_metadata.put("history_size",humanReadableSize(metadata.history_size));                
+            try { 
+                setStatesForDatasets(metadata); // update datasets and collections with their 'state' attributes (and 'job'), which can be found from the jobs
+            } 
+            catch (IOException ioe) {throw ioe;}    
+            catch (Exception ex) {throw new IOException(ex.getMessage(),ex);}   
+        }
+        freeze(metadata);
+        if (metadata.isComplete() && !metadata.restored) saveSnapshot(metadata);
+        return metadata;
+    }
+    
+    /**
+     * Returns the metadata (reading it from the archive if this has not been done already) 
+     * after checking that the archive is a supported Galaxy history and that all the necessary metadata is present.
+     * @return The metadata
+     * @throws IOException if the history archive file could not be read or it is not a supported Galaxy history
+     */
+    private Metadata getPreparedMetadata() throws IOException {
+        Metadata metadata=lazyMetadata.get();
+        String version=metadata.version;
         if (version.equals("0")) throw new IOException("This file is probably not a Galaxy history");
         if (version.equals("1")) throw new IOException("This Galaxy history was created with an older version of Galaxy that does not support collections properly");
         if (!version.equals("2")) throw new IOException("Unrecognized history export version: "+version);
-        if (history_metadata==null) history_metadata=getHistoryAttributesFromArchive((attributes!=null)?attributes.get("history"):null);
-        long size=getHistorySize(); 
-        history_metadata.put("history_size",humanReadableSize(size));                
-        if (datasets==null) datasets=getDatasetsFromArchive(datasetAttributes);
-        if (collections==null) collections=getCollectionsFromArchive(collectionAttributes);
-        if (jobs==null) jobs=getJobsFromArchive((attributes!=null)?attributes.get("jobs"):null);
-        try { 
-            setStatesForDatasets(); // update datasets and collections with their 'state' attributes (and 'job'), which can be found from the jobs
-        } 
-        catch (IOException ioe) {throw ioe;}    
-        catch (Exception ex) {throw new IOException(ex.getMessage(),ex);}   
-        history=processHistory(datasetAttributes,collectionAttributes); // Create a new easy-to-use structure to represent the entire history    
+        if (metadata.history_metadata==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'history_attrs.txt'");
+        if (metadata.datasets==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'datasets_attrs.txt'");
+        if (metadata.collections==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'collections_attrs.txt'");
+        if (metadata.jobs==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'jobs_attrs.txt'");
+        return metadata;
     }
     
     /** 
@@ -110,8 +167,9 @@ public class GalaxyHistoryArchive {
      *  @throws IOException if the history archive file or URL could not be accessed
      */    
     public String getExportVersion() throws IOException {
-        if (version==null) version=getExportVersionFromArchive(); // 
-        return version;
+        Metadata metadata=lazyMetadata.peek();
+        if (metadata!=null) return metadata.version; // the version is already known if the archive has been scanned
+        return lazyVersion.get();
     }
     
     /** Returns a specific metadata attribute for the history 
@@ -120,47 +178,54 @@ public class GalaxyHistoryArchive {
      *  @throws IOException if the history archive file could not be read or the history metadata file inside the archive could not be processed correctly
      */
     public Object getHistoryAttribute(String attribute) throws IOException {
-        if (history_metadata==null) history_metadata=getHistoryAttributesFromArchive(null);
-        return history_metadata.get(attribute);
+        Metadata metadata=lazyMetadata.get();
+        if (metadata.history_metadata==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'history_attrs.txt'");
+        return metadata.history_metadata.get(attribute);
     }
     
     /** Returns all the regular datasets in the history (excluding collections) as a list of Maps
-     *  @return A list of dataset objects (represented with Maps)
+     *  @return An unmodifiable list of dataset objects (represented with unmodifiable Maps)
      *  @throws IOException if the history archive file could not be read or the file inside the archive that contains information about all the datasets could not be processed correctly
      */
     public List<Map> getDatasets() throws IOException {    
-        if (datasets==null) datasets=getDatasetsFromArchive(null);
-        return datasets;
+        Metadata metadata=lazyMetadata.get();
+        if (metadata.datasets==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'datasets_attrs.txt'");
+        return metadata.datasets;
     }    
     
     /** Returns the dataset that has the given value for the attribute
+     *  Lookups based on the attributes "encoded_id", "hid" and "file_name" are performed with an index, while other attributes require a search through all the datasets
      *  @param attribute The name of a dataset attribute, e.g. "encoded_id" or "extension"
      *  @param value The value that the dataset should have for the attribute
-     *  @return A map representing a dataset that has the given value for the specified attribute. If more than one dataset has this value, the "first one encountered" will be returned
+     *  @return A map representing a dataset that has the given value for the specified attribute. If more than one dataset has this value, the last one in the list will be returned
      *  @throws IOException if the history archive file could not be read or the file inside the archive that contains information about all the datasets could not be processed correctly     
      */
     public Map getDataset(String attribute, Object value) throws IOException {    
-        if (datasets==null) datasets=getDatasetsFromArchive(null);
-        return getDataset(datasets, attribute, value);
+        List<Map> list=getDatasets();
+        Map<Object,Map> index=lazyMetadata.get().datasetIndexes.get(attribute);
+        if (index!=null) return index.get(value);
+        return getDataset(list, attribute, value);
     }        
     
     /** Returns all the collections in the history as a list of Maps
-     *  @return A list of collection objects (represented with Maps)
+     *  @return An unmodifiable list of collection objects (represented with unmodifiable Maps)
      *  @throws IOException if the history archive file could not be read or the file inside the archive that contains information about all the collections could not be processed correctly     
      */    
     public List<Map> getCollections() throws IOException {    
-        if (collections==null) collections=getCollectionsFromArchive(null);
-        return collections;
+        Metadata metadata=lazyMetadata.get();
+        if (metadata.collections==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'collections_attrs.txt'");
+        return metadata.collections;
     } 
     
     /**
      * Returns a list of all the jobs associated with the history
-     * @return A list of job objects (represented with Maps)
+     * @return An unmodifiable list of job objects (represented with unmodifiable Maps)
      * @throws IOException if the history archive file could not be read or the file inside the archive that contains information about all the jobs could not be processed correctly  
      */
     public List<Map> getJobs() throws IOException {    
-        if (jobs==null) jobs=getJobsFromArchive(null);
-        return jobs;
+        Metadata metadata=lazyMetadata.get();
+        if (metadata.jobs==null) throw new ArchiveFileNotFoundException("Unable to locate archive file 'jobs_attrs.txt'");
+        return metadata.jobs;
     }     
     
     /**
@@ -170,22 +235,29 @@ public class GalaxyHistoryArchive {
      * @throws IOException if the history archive file could not be read or the file inside the archive that contains information about all the jobs could not be processed correctly  
      */
     public Map<String,Object> getJob(String jobID) throws IOException {    
-        if (jobs==null) jobs=getJobsFromArchive(null);
-        for (Map job:jobs) {
-            String encoded_id=(String)job.get("encoded_id");
-            if (jobID.equals(encoded_id)) return job;
-        }
-        return null;
+        getJobs();
+        return lazyMetadata.get().jobsByID.get(jobID);
+    }      
+    
+    /**
+     * Returns the collection object for the given collection ID or NULL if no collection with that ID was found
+     * @param collectionID the "encoded_id" attribute of the collection (not the ID of the nested "collection" object)
+     * @return A map object representing the collection
+     * @throws IOException if the history archive file could not be read or the file inside the archive that contains information about all the collections could not be processed correctly  
+     */
+    public Map<String,Object> getCollection(String collectionID) throws IOException {    
+        getCollections();
+        return lazyMetadata.get().collectionsByID.get(collectionID);
     }      
     
     /** Returns an easy-to-use representation of the history that includes both regular datasets and collections in anti-chronological order
      *  Note that the datasets do not contain a full set of metadata, but only some preselected attributes
+     *  The history is only created once and the same (unmodifiable) object is returned to all callers.
      *  @return A map object representing all the necessary information about the history. It has two keys that references other objects: "metadata" (Map) and "contents" (List of all datasets/collections)
      *  @throws IOException if the history archive file itself could not be read or any of the metadata files inside the archive could not be processed correctly 
      */
     public Map<String,Object> getHistory() throws IOException {    
-        if (history==null) initialize(null); // note. Since the initialize() method has been made public. There are now no methods that call it with any other argument than 'null'
-        return history;
+        return lazyHistory.get();
     }   
     
     
@@ -196,7 +268,7 @@ public class GalaxyHistoryArchive {
      *  @throws IOException if the history archive file itself could not be read or any of the metadata files inside the archive could not be processed correctly 
      */
     public String getHistoryAsJSON(boolean pretty) throws IOException {    
-        if (history==null) initialize(null);
+        Map<String,Object> history=getHistory();
         try {
             JsonFactory factory=new JsonFactory();
             ObjectMapper mapper = new ObjectMapper(factory);
@@ -208,13 +280,19 @@ public class GalaxyHistoryArchive {
     }     
     
     /** Outputs an easy-to-use JSON representation of the history that includes both regular datasets and collections in anti-chronological order
-     *  Note that the datasets do not contain a full set of metadata, but only some preselected attributes
+     *  Note that the datasets do not contain a full set of metadata, but only some preselected attributes.
+     *  If the full history has not been created already (e.g. by a call to getHistory()), it will not be created by this method either.
+     *  Instead, the history elements will be processed and written to the stream one at a time (see streamHistoryAsJSON)
      *  @param outstream The stream that the history should be written to
-     *  @param pretty If TRUE, the JSON string will include indentations and newlines that make it more readable for humans
+     *  @param pretty If TRUE, the JSON string will include indentations and newlines that make it more readable for humans. If FALSE, the JSON will be output in compact form
      *  @throws IOException if the history archive file itself could not be read or any of the metadata files inside the archive could not be processed correctly 
      */
     public void outputHistoryAsJSON(OutputStream outstream, boolean pretty) throws IOException {
-        if (history==null) initialize(null);    
+        Map<String,Object> history=lazyHistory.peek();
+        if (history==null) {
+            streamHistoryAsJSON(outstream, pretty);
+            return;
+        }
         try {
             JsonFactory factory=new JsonFactory();
             factory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false); // prevents the mapper from closing the stream after writing first value
@@ -226,6 +304,96 @@ public class GalaxyHistoryArchive {
         }        
     }    
     
+    /** 
+     *  Outputs the same JSON representation of the history as outputHistoryAsJSON, but without creating the full processed history first.
+     *  The anti-chronological order of the history elements is determined from a compact array of sort keys (HID + element position),
+     *  and each element is then processed and written directly to the stream before moving on to the next one.
+     *  This means that output can start as soon as the metadata has been read, and that memory usage does not grow with the size of the processed history.
+     *  @param outstream The stream that the history should be written to
+     *  @param pretty If TRUE, the JSON string will include indentations and newlines that make it more readable for humans. If FALSE, the JSON will be output in compact form
+     *  @throws IOException if the history archive file itself could not be read or any of the metadata files inside the archive could not be processed correctly 
+     */
+    public void streamHistoryAsJSON(OutputStream outstream, boolean pretty) throws IOException {
+        Metadata metadata=getPreparedMetadata();
+        try {
+            JsonFactory factory=new JsonFactory();
+            factory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false); // prevents the generator from closing the stream
+            ObjectMapper mapper=new ObjectMapper(factory);
+            JsonGenerator generator=factory.createGenerator(outstream);
+            generator.setCodec(mapper);
+            if (pretty) generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            generator.writeFieldName("metadata");
+            generator.writeObject(metadata.history_metadata);
+            generator.writeFieldName("contents");
+            generator.writeStartArray();
+            visitHistoryContents(metadata, generator::writeObject);
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.flush();
+        } catch (IOException iox) {
+            throw iox;
+        } catch (Exception ex) {
+            throw new IOException(ex.getMessage(),ex);
+        }
+    }
+    
+    /** Receives the top-level entries of the processed history one at a time (see visitHistoryContents) */
+    public interface ContentsVisitor {
+        public void visit(Map<String,Object> entry) throws IOException;
+    }
+    
+    /**
+     * Processes the top-level entries of the history (datasets and collections) one at a time, newest first, and passes them to a visitor.
+     * The entries are the same as in the "contents" list of the processed history (see getHistory), but the full history is not created,
+     * so a viewer can start showing the newest entries before the rest have been processed.
+     * The visitor can stop the processing by throwing an IOException
+     * @param visitor The visitor that receives the entries
+     * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed (or the visitor failed)
+     */
+    public void visitHistoryContents(ContentsVisitor visitor) throws IOException {
+        try {
+            visitHistoryContents(getPreparedMetadata(), visitor);
+        } catch (IOException iox) {
+            throw iox;
+        } catch (Exception ex) {
+            throw new IOException(ex.getMessage(),ex);
+        }
+    }
+    
+    /** Processes the top-level entries in the same order as the processed history and passes them to the visitor. This is used by streamHistoryAsJSON and visitHistoryContents */
+    private void visitHistoryContents(Metadata metadata, ContentsVisitor visitor) throws IOException {
+        List<Map> datasets=metadata.datasets;
+        List<Map> collections=metadata.collections;
+        // The sort key for each element in the history has the negated HID in the upper 32 bits and the position in the list of top-level elements in the lower bits.
+        // Collections are placed before datasets in this list, so sorting the keys gives the same order as sorting the processed history with the ChronologicalOrderComparator.
+        int collectionCount=collections.size();
+        long[] keys=new long[collectionCount+datasets.size()];
+        int count=0;
+        for (int i=0;i<collectionCount;i++) keys[count++]=getSortKey(collections.get(i), i);
+        for (int i=0;i<datasets.size();i++) {
+            Map dataset=datasets.get(i);
+            if ((boolean)dataset.get("visible")) keys[count++]=getSortKey(dataset, collectionCount+i);
+        }
+        Arrays.sort(keys, 0, count);
+        Map<Object,Map> datasetsByID=metadata.datasetIndexes.get("encoded_id");
+        Function<Object,Map> datasetResolver=(datasetID)->{ // processes datasets in collections when they are needed
+            Map dataset=datasetsByID.get(datasetID);
+            return (dataset!=null)?processDataset(dataset, null):null;
+        };
+        for (int i=0;i<count;i++) {
+            int position=(int)keys[i]; // the lower 32 bits
+            if (position<collectionCount) visitor.visit(processCollectionElement(collections.get(position), null, datasetResolver));
+            else visitor.visit(processDataset(datasets.get(position-collectionCount), null));
+        }
+    }
+    
+    /** Returns the sort key used by streamHistoryAsJSON for a history element */
+    private long getSortKey(Map element, int position) {
+        int hid=(int)element.get("hid");
+        return (((long)-hid)<<32) | position;
+    }
+    
     /**
      * Given a filename extension, this method returns the corresponding MIME type, e.g. "fastq" will return "text/plain" and "pdf" will return "application/pdf" 
      * For compressed datafiles with a double file suffix, such as "fastqsanger.gz" or "fasta.bz2",
@@ -318,22 +486,72 @@ public class GalaxyHistoryArchive {
     /**
      * Returns an estimated size of the history by summing up the sizes of all the files within the history archive file's 'datasets' subdirectory.
      * The size is returned as a long number, but you can use the humanReadableSize method to convert it into a more convenient representation.
+     * The size is determined while scanning the archive for metadata, so no additional pass through the archive is needed if the history has already been loaded.
      * @return The size of the history, or -1 if something went wrong
      */
     public long getHistorySize() {
-        long size=-1;
         try {
-            InputStream source=(archivepath.startsWith("http:") || archivepath.startsWith("https:"))?((new URL(archivepath)).openStream()):new FileInputStream(archivepath);
-            TarArchiveInputStream tarInput = new TarArchiveInputStream(new GzipCompressorInputStream(source));
-            TarArchiveEntry currentEntry = tarInput.getNextTarEntry();
-            while (currentEntry != null) {
-                if (currentEntry.getName().startsWith("datasets/")) size+=currentEntry.getSize();
-                currentEntry = tarInput.getNextTarEntry(); 
-            }
-        } catch (Exception e) {} // unable to estimate history size. 
-        return size;         
+            return lazyMetadata.get().history_size;
+        } catch (Exception e) {
+            return -1; // unable to estimate history size.
+        }
     } 
     
+    /**
+     * Returns a rough estimate of the number of bytes of heap memory retained by this object, based on the metadata, indexes and processed history that have been loaded so far.
+     * The estimate is made by walking through the loaded structures (counting shared objects only once) and is only repeated when more structures have been loaded,
+     * so it is cheap to call this method often. The estimate is intended for cache management (see ArchiveRegistry) and does not need to be exact.
+     * @return The estimated number of bytes
+     */
+    public synchronized long getEstimatedMemoryUsage() {
+        Metadata metadata=lazyMetadata.peek();
+        Map<String,Object> history=lazyHistory.peek();
+        ArchiveIndex index=getLoadedArchiveIndex();
+        Object[] state=new Object[]{metadata,history,index};
+        if (estimatedMemoryState==null || metadata!=estimatedMemoryState[0] || history!=estimatedMemoryState[1] || index!=estimatedMemoryState[2]) {
+            IdentityHashMap<Object,Object> visited=new IdentityHashMap<>();
+            long size=256+((archivepath!=null)?estimateSize(archivepath, visited):0); // the object itself and its simple fields
+            if (metadata!=null) {
+                size+=estimateSize(metadata.history_metadata, visited)+estimateSize(metadata.datasets, visited)+estimateSize(metadata.collections, visited)+estimateSize(metadata.jobs, visited);
+                if (metadata.datasetIndexes!=null) for (Map<Object,Map> table:metadata.datasetIndexes.values()) size+=64+table.size()*48L; // the keys and values are already counted
+                if (metadata.collectionsByID!=null) size+=64+metadata.collectionsByID.size()*48L;
+                if (metadata.jobsByID!=null) size+=64+metadata.jobsByID.size()*48L;
+                if (metadata.jobsByOutput!=null) size+=64+metadata.jobsByOutput.size()*48L;
+            }
+            size+=estimateSize(history, visited); // only the parts that are not shared with the metadata above will be counted
+            if (index!=null) size+=index.getEstimatedMemoryUsage();
+            estimatedMemoryUsage=size;
+            estimatedMemoryState=state;
+        }
+        return estimatedMemoryUsage;
+    }
+
+    /**
+     * Estimates the heap memory used by a value in the metadata (typically a Map, List, String or boxed primitive) including the values it contains.
+     * Maps and Lists that have already been visited are not counted again
+     */
+    private static long estimateSize(Object value, IdentityHashMap<Object,Object> visited) {
+        if (value==null) return 0;
+        if (value instanceof String) return 40+2L*((String)value).length(); // interned and shared strings will be counted more than once, but that is OK for an estimate
+        if (value instanceof Number || value instanceof Boolean) return 16;
+        if (visited.put(value, value)!=null) return 0; // already counted
+        long size=0;
+        if (value instanceof OverlayMap) { // only the local modifications belong to the overlay, the rest is shared with the base map
+            Map<String,Object> base=((OverlayMap)value).getBase();
+            size+=64+estimateSize(base, visited);
+            for (Map.Entry<String,Object> entry:((OverlayMap)value).entrySet()) {
+                if (entry.getValue()!=base.get(entry.getKey())) size+=48+estimateSize(entry.getValue(), visited);
+            }
+        } else if (value instanceof Map) {
+            size+=64;
+            for (Map.Entry<?,?> entry:((Map<?,?>)value).entrySet()) size+=32+estimateSize(entry.getKey(), visited)+estimateSize(entry.getValue(), visited);
+        } else if (value instanceof List) {
+            size+=40;
+            for (Object item:(List<?>)value) size+=8+estimateSize(item, visited);
+        } else size+=32;
+        return size;
+    }
+
     /** Converts a file size measured in bytes into a string more readable by humans.
      *  The conversion assumes that each unit prefix is 1024 times greater than the previous (rather than 1000). This is the same in Galaxy itself.
      *  @param bytes The size of a file in bytes 
@@ -365,41 +583,86 @@ public class GalaxyHistoryArchive {
      *  @throws IOException if the history archive file is not readable or the specified file is not found inside the archive
      */
     public InputStreamReader getInputStreamReaderForFile(String filepath) throws IOException {
-        InputStream source=(archivepath.startsWith("http:") || archivepath.startsWith("https:"))?((new URL(archivepath)).openStream()):new FileInputStream(archivepath);
-        TarArchiveInputStream tarInput = new TarArchiveInputStream(new GzipCompressorInputStream(source));
-        TarArchiveEntry currentEntry = tarInput.getNextTarEntry();
-        while (currentEntry != null && !currentEntry.getName().equals(filepath)) {
-            currentEntry = tarInput.getNextTarEntry(); 
-        }
-        if (currentEntry!=null && currentEntry.getName().equals(filepath)) {
-            if (filepath.endsWith(".gz")) return new InputStreamReader(new GzipCompressorInputStream(tarInput));
-            else if (filepath.endsWith(".bz2")) return new InputStreamReader(new BZip2CompressorInputStream(tarInput));
-            else return new InputStreamReader(tarInput);             
-        } else throw new ArchiveFileNotFoundException("Unable to locate archive file '"+filepath+"'");
+        return new InputStreamReader(getInputStreamForFile(filepath, true));
     }      
     
     /** 
      *  Returns an InputStream that streams from a specific file within the archive.
      *  This file could be a text file or a binary file. This is the standard 
+     *  If an index for the archive is available (see ArchiveIndex), the file will be located directly with the index
+     *  instead of reading through all the files in front of it in the archive.
+     *  Large files in indexed archives are read through an EntrySpool, so if several threads (or GalaxyHistoryArchive objects for the same file) 
+     *  read the same file at the same time, the file is only decompressed once and the readers share the result.
+     *  Without an index, requests for different files in the same archive share passes through the archive (see SharedScan).
+     *  The returned stream should always be closed.
      *  @param filepath The path to a file inside the archive tarball. 
      *  @param decompress If the decompress parameter is TRUE, compressed files inside the archive (with either '.gz' or '.bz2' file suffix) will be decompressed automatically
      *  @return An InputStream that allows direct read access to the file     
      *  @throws IOException if the history archive file is not readable or the specified file is not found inside the archive
      */
     public InputStream getInputStreamForFile(String filepath, boolean decompress) throws IOException {
-        InputStream source=(archivepath.startsWith("http:") || archivepath.startsWith("https:"))?((new URL(archivepath)).openStream()):new FileInputStream(archivepath);
-        TarArchiveInputStream tarInput = new TarArchiveInputStream(new GzipCompressorInputStream(source));
-        TarArchiveEntry currentEntry = tarInput.getNextTarEntry();
-        while (currentEntry != null && !currentEntry.getName().equals(filepath)) {
-            currentEntry = tarInput.getNextTarEntry();
+        ArchiveIndex index=getArchiveIndex();
+        long threshold=sharedReadThreshold;
+        if (index!=null && threshold>=0 && index.getEntrySize(filepath)>=threshold) { 
+            // the key includes the fingerprint, so that different versions of the same archive file will never share a spool
+            return EntrySpool.open(Arrays.asList(index.getFingerprint(), filepath, decompress), ()->openFile(index, filepath, decompress));
+        }
+        if (index==null && threshold>=0) {
+            // Without an index, the file can only be found by reading through the archive from the start. 
+            // Requests for files in the same archive are therefore combined into shared passes through the archive (see SharedScan),
+            // and the file is copied to an EntrySpool so that the pass can continue without waiting for the reader
+            Object archiveKey=(getLocalFile()==null)?archivepath:getArchiveFingerprint();
+            return EntrySpool.open(Arrays.asList(archiveKey, filepath, decompress), ()->{
+                InputStream entryStream=SharedScan.openEntry(archiveKey, this::openArchiveSource, filepath);
+                if (entryStream==null) throw new ArchiveFileNotFoundException("Unable to locate archive file '"+filepath+"'");
+                return decompress(entryStream, filepath, decompress);
+            });
+        }
+        return openFile(index, filepath, decompress);
+    }
+    
+    /**
+     * Sets the minimum size of files inside archives that should be read through a shared EntrySpool (see getInputStreamForFile).
+     * Smaller files are cheap enough to decompress that sharing them is not worth the overhead of the spool file
+     * Files in archives without an index are always read through a SharedScan and an EntrySpool, unless sharing has been disabled.
+     * @param bytes The minimum size in bytes, or -1 to never share reads
+     */
+    public static void setSharedReadThreshold(long bytes) {
+        sharedReadThreshold=bytes;
+    }
+    
+    /** Opens a stream for a file in the archive directly (without sharing it with other readers). The index can be NULL */
+    private InputStream openFile(ArchiveIndex index, String filepath, boolean decompress) throws IOException {
+        InputStream entryStream=null;
+        try {
+            if (index!=null) {
+                entryStream=index.openEntry(getLocalFile(), filepath);
+                if (entryStream==null) throw new ArchiveFileNotFoundException("Unable to locate archive file '"+filepath+"'");
+            } else {
+                InputStream source=openArchiveSource();
+                entryStream=source;
+                TarArchiveInputStream tarInput = new TarArchiveInputStream(ParallelGzipInputStream.open(source));
+                entryStream=tarInput; // closing the tar stream also closes the source
+                TarArchiveEntry currentEntry = tarInput.getNextTarEntry();
+                while (currentEntry != null && !currentEntry.getName().equals(filepath)) {
+                    currentEntry = tarInput.getNextTarEntry();
+                }
+                if (currentEntry==null) throw new ArchiveFileNotFoundException("Unable to locate archive file '"+filepath+"'"); // ***
+            }
+            return decompress(entryStream, filepath, decompress);
+        } catch (IOException | RuntimeException e) {
+            if (entryStream!=null) entryStream.close(); // otherwise a read-ahead thread could be left waiting forever, holding on to its buffers and the archive file
+            throw e;
         }
-        if (currentEntry!=null && currentEntry.getName().equals(filepath)) {
-            if (filepath.endsWith(".gz") && decompress) return new GzipCompressorInputStream(tarInput);
-            else if (filepath.endsWith(".bz2") && decompress) return new BZip2CompressorInputStream(tarInput);
-            return tarInput;             
-        } else throw new ArchiveFileNotFoundException("Unable to locate archive file '"+filepath+"'"); // ***
     }      
     
+    /** Wraps the stream for a file in the archive in a decompressing stream if the file is compressed (and decompress is TRUE) */
+    private static InputStream decompress(InputStream entryStream, String filepath, boolean decompress) throws IOException {
+        if (filepath.endsWith(".gz") && decompress) return ParallelGzipInputStream.open(entryStream); // this decompresses all the members of multi-member files, the same way "gzip -d" does
+        else if (filepath.endsWith(".bz2") && decompress) return new BZip2CompressorInputStream(entryStream);
+        return entryStream;             
+    }
+    
     /**
      * This is a convenience method that will in turn call any of the other outputDatasetXXX methods depending on the given parameters 
      * @param outstream The stream to output the dataset to
@@ -437,31 +700,31 @@ public class GalaxyHistoryArchive {
      * Outputs a selected section of a dataset file to an output stream
      * @param outstream The stream to output the dataset to
      * @param datasetID The "encoded_id" of the dataset to output
-     * @param start If start greater than 0 and end is greater than start, then this specifies the start of the section of the file to output
-     * @param end If start greater than 0 and end is greater than start, then this specifies the end of the section of the file to output
+     * @param start If start is 0 or greater and end is not smaller than start, then this specifies the start of the section of the file to output
+     * @param end If start is 0 or greater and end is not smaller than start, then this specifies the end of the section of the file to output (inclusive)
      * @param decompress If the decompress parameter is TRUE, compressed files inside the archive (with either '.gz' or '.bz2' file suffix) will be decompressed 
      * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed or the dataset with the given ID could not be accessed     * 
      */
     public void outputDataset(OutputStream outstream, String datasetID, int start, int end, boolean decompress) throws IOException {
+        outputDataset(outstream, datasetID, (long)start, (long)end, decompress);
+    }
+    
+    /**
+     * Outputs a selected section of a dataset file to an output stream.
+     * The section is located directly (see getInputStreamForFile with an offset) and copied in small chunks, so sections of any size can be output from files of any size
+     * @param outstream The stream to output the dataset to
+     * @param datasetID The "encoded_id" of the dataset to output
+     * @param start If start is 0 or greater and end is not smaller than start, then this specifies the position of the first byte of the section of the file to output
+     * @param end If start is 0 or greater and end is not smaller than start, then this specifies the position of the last byte of the section of the file to output (inclusive). If end is equal to start, a single byte is output
+     * @param decompress If the decompress parameter is TRUE, compressed files inside the archive (with either '.gz' or '.bz2' file suffix) will be decompressed and the positions refer to the decompressed file
+     * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed or the dataset with the given ID could not be accessed
+     */
+    public void outputDataset(OutputStream outstream, String datasetID, long start, long end, boolean decompress) throws IOException {
         Map<String,Object> dataset=getDataset("encoded_id", datasetID);
         if (dataset==null) throw new IOException("Dataset with ID ["+datasetID+"] not found");
         String filename=(String)dataset.get("file_name");
         if (filename==null) throw new IOException("Missing filepath for dataset");
-        InputStream stream=getInputStreamForFile(filename, decompress);
-        if (start>=0 && end>start) { // output just a selected section
-            int bytes=end-start+1;
-            byte[] buffer=new byte[bytes];
-            stream.skip(start); // skip the first 'start' bytes from the buffer
-            int length=stream.read(buffer, 0, buffer.length);
-            if (length>0) outstream.write(buffer,0,length);
-        } else { // output the whole file
-            int length=0;
-            byte[] buffer=new byte[100000]; // read ~100kb at a time
-            while(length>=0) {
-                length=stream.read(buffer);
-                if (length>0) outstream.write(buffer,0,length);
-            }
-        }
+        outputFile(outstream, filename, start, end, decompress);
     }
     
     /**
@@ -481,34 +744,294 @@ public class GalaxyHistoryArchive {
      * @param outstream The stream to output the dataset to    
      * @param datasetID The "encoded_id" of the parent dataset
      * @param filename The name of the extra file (could be a path that includes subdirectory prefix)  
-     * @param start If start greater than 0 and end is greater than start, then this specifies the start of the section of the file to output
-     * @param end If start greater than 0 and end is greater than start, then this specifies the end of the section of the file to output
+     * @param start If start is 0 or greater and end is not smaller than start, then this specifies the start of the section of the file to output
+     * @param end If start is 0 or greater and end is not smaller than start, then this specifies the end of the section of the file to output (inclusive)
      * @param decompress If the decompress parameter is TRUE, compressed files inside the archive (with either '.gz' or '.bz2' file suffix) will be decompressed 
      * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed or an extra file with the given path is not associated with a dataset with the given ID
      */
     public void outputDatasetExtraFile(OutputStream outstream, String datasetID,  String filename, int start, int end, boolean decompress) throws IOException {
+        outputDatasetExtraFile(outstream, datasetID, filename, (long)start, (long)end, decompress);
+    }
+    
+    /**
+     * Outputs a selected section of an extra file associated with a dataset to an output stream (see outputDataset with long offsets)
+     * @param outstream The stream to output the dataset to    
+     * @param datasetID The "encoded_id" of the parent dataset
+     * @param filename The name of the extra file (could be a path that includes subdirectory prefix)  
+     * @param start If start is 0 or greater and end is not smaller than start, then this specifies the position of the first byte of the section of the file to output
+     * @param end If start is 0 or greater and end is not smaller than start, then this specifies the position of the last byte of the section of the file to output (inclusive). If end is equal to start, a single byte is output
+     * @param decompress If the decompress parameter is TRUE, compressed files inside the archive (with either '.gz' or '.bz2' file suffix) will be decompressed and the positions refer to the decompressed file
+     * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed or an extra file with the given path is not associated with a dataset with the given ID
+     */
+    public void outputDatasetExtraFile(OutputStream outstream, String datasetID,  String filename, long start, long end, boolean decompress) throws IOException {
         Map<String,Object> dataset=getDataset("encoded_id", datasetID);
         if (dataset==null) throw new IOException("Dataset with ID ["+datasetID+"] not found");
         if (filename==null) throw new IOException("Missing filename (path) for dataset");
         String directory=(String)dataset.get("extra_files_path");
         if (directory==null) throw new IOException("Dataset does not include extra files");
         filename=directory+"/"+filename;
-        InputStream stream=getInputStreamForFile(filename, decompress);
-        if (start>=0 && end>start) { // output just a selected section
-            int bytes=end-start+1;
-            byte[] buffer=new byte[bytes];
-            stream.skip(start); // skip the first 'start' bytes from the buffer
-            int length=stream.read(buffer, 0, buffer.length);
-            if (length>0) outstream.write(buffer,0,length);
-        } else { // output the whole file
-            int length=0;
+        outputFile(outstream, filename, start, end, decompress);
+    }    
+    
+    /** Outputs a file in the archive (or a selected section of it) to an output stream. This is used by outputDataset and outputDatasetExtraFile */
+    private void outputFile(OutputStream outstream, String filename, long start, long end, boolean decompress) throws IOException {
+        boolean section=(start>=0 && end>=start); // the end is inclusive, so a section can be a single byte (e.g. the HTTP range "bytes=5-5")
+        File extracted=getExtractedFile(filename);
+        if (extracted!=null && !(decompress && isCompressedFile(filename))) { // the file can be copied directly from the extracted archive
+            try (FileChannel channel=FileChannel.open(extracted.toPath(), StandardOpenOption.READ)) {
+                long position=0;
+                long count=channel.size();
+                if (section) { // output just a selected section
+                    position=Math.min(start, count);
+                    count=Math.min(end-start+1, count-position);
+                }
+                WritableByteChannel target=Channels.newChannel(outstream);
+                while (count>0) { // transferTo() may transfer fewer bytes than requested
+                    long transferred=channel.transferTo(position, count, target);
+                    if (transferred<=0) break;
+                    position+=transferred;
+                    count-=transferred;
+                }
+            }
+            return;
+        }
+        try (InputStream stream=openFileAt(filename, decompress, (section)?start:0, extracted)) { // the stream must be closed so that archive files are not left open (e.g. in server mode)
+            long remaining=(section)?end-start+1:Long.MAX_VALUE;
             byte[] buffer=new byte[100000]; // read ~100kb at a time
-            while(length>=0) {
-                length=stream.read(buffer);
-                if (length>0) outstream.write(buffer,0,length);
+            while (remaining>0) {
+                int length=stream.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (length<0) break;
+                outstream.write(buffer,0,length);
+                remaining-=length;
             }
         }
-    }    
+    }
+    
+    /**
+     * Returns an InputStream for a file in the archive, positioned at the given offset within the file.
+     * If the archive has an index, the stream starts decompressing the archive from the closest checkpoint in front of the position,
+     * so positions far into large files can be reached without decompressing everything in front of them.
+     * When compressed files are decompressed (decompress=TRUE), offsets refer to the decompressed file.
+     * For ".gz" files, the start of every GZIP member inside the file is remembered as a checkpoint while the file is being read,
+     * so later reads from the same file can start at the closest member (this helps most for files compressed with "bgzip").
+     * Other compressed files are decompressed from their start and the data in front of the position is skipped.
+     * The returned stream should always be closed.
+     * @param filepath The path to a file inside the archive tarball
+     * @param decompress If the decompress parameter is TRUE, compressed files inside the archive (with either '.gz' or '.bz2' file suffix) will be decompressed automatically
+     * @param offset The position within the (possibly decompressed) file to start reading from
+     * @return An InputStream that reads the file from the given position. The stream is empty if the position is beyond the end of the file
+     * @throws IOException if the history archive file is not readable or the specified file is not found inside the archive
+     */
+    public InputStream getInputStreamForFile(String filepath, boolean decompress, long offset) throws IOException {
+        return openFileAt(filepath, decompress, offset, getExtractedFile(filepath));
+    }
+    
+    /**
+     * Returns a range of lines from a dataset (in "view mode", so compressed datasets are decompressed).
+     * The first time lines are requested from a dataset, a line index with the position of every 1000th line is built by reading through the file once (see LineIndex).
+     * The index is kept for later requests and saved to a sidecar directory next to the archive, so later requests (also from other processes)
+     * can go directly to the closest indexed line in front of the first requested line instead of reading the file from the start.
+     * @param datasetID The "encoded_id" of the dataset
+     * @param fromLine The number of the first line to return (starting at 0)
+     * @param count The maximum number of lines to return
+     * @return The lines without line breaks. The list is shorter than requested (or empty) if the dataset does not contain that many lines
+     * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed or the dataset with the given ID could not be accessed
+     */
+    public List<String> getLines(String datasetID, long fromLine, int count) throws IOException {
+        return getLines(datasetID, fromLine, count, true);
+    }
+    
+    /**
+     * Returns a range of lines from a dataset (see getLines above), optionally without waiting for the line index.
+     * Building the index requires reading through the whole dataset, so the first lines of a large dataset can be returned much sooner
+     * by reading them from the start of the file while the index is being built by another thread (e.g. by getLineCount)
+     * @param datasetID The "encoded_id" of the dataset
+     * @param fromLine The number of the first line to return (starting at 0)
+     * @param count The maximum number of lines to return
+     * @param waitForIndex If TRUE, the line index is loaded (or built) first if necessary. If FALSE and the index is not available yet, the lines are read from the start of the file
+     * @return The lines without line breaks. The list is shorter than requested (or empty) if the dataset does not contain that many lines
+     * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed or the dataset with the given ID could not be accessed
+     */
+    public List<String> getLines(String datasetID, long fromLine, int count, boolean waitForIndex) throws IOException {
+        Map<String,Object> dataset=getDataset("encoded_id", datasetID);
+        if (dataset==null) throw new IOException("Dataset with ID ["+datasetID+"] not found");
+        String filename=(String)dataset.get("file_name");
+        if (filename==null) throw new IOException("Missing filepath for dataset");
+        List<String> lines=new ArrayList<>();
+        if (fromLine<0 || count<=0) return lines;
+        LineIndex index=(waitForIndex)?getLineIndex(filename):getLineIndexIfLoaded(filename);
+        if (index!=null && fromLine>=index.getLineCount()) return lines;
+        long line=(index!=null)?index.getIndexedLine(fromLine):0;
+        try (InputStream stream=new BufferedInputStream(getInputStreamForFile(filename, true, (index!=null)?index.getOffset(fromLine):0), 65536)) {
+            int value;
+            while (line<fromLine && (value=stream.read())>=0) { // skip the lines between the indexed line and the first requested line
+                if (value=='\n') line++;
+            }
+            ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+            while (lines.size()<count) {
+                value=stream.read();
+                if (value>=0 && value!='\n') {buffer.write(value); continue;}
+                if (value<0 && buffer.size()==0) break; // the file ended with a line break
+                byte[] bytes=buffer.toByteArray();
+                int length=(bytes.length>0 && bytes[bytes.length-1]=='\r')?bytes.length-1:bytes.length; // remove the carriage return of Windows line breaks
+                lines.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                buffer.reset();
+                if (value<0) break;
+            }
+        }
+        return lines;
+    }
+    
+    /**
+     * Returns the number of lines in a dataset (in "view mode", so compressed datasets are decompressed).
+     * This builds the line index for the dataset if it does not exist already (see getLines)
+     * @param datasetID The "encoded_id" of the dataset
+     * @return The number of lines in the dataset. A final line without a line break is also counted
+     * @throws IOException if the history archive file itself could not be read or the contents of the archive file could not be properly processed or the dataset with the given ID could not be accessed
+     */
+    public long getLineCount(String datasetID) throws IOException {
+        Map<String,Object> dataset=getDataset("encoded_id", datasetID);
+        if (dataset==null) throw new IOException("Dataset with ID ["+datasetID+"] not found");
+        String filename=(String)dataset.get("file_name");
+        if (filename==null) throw new IOException("Missing filepath for dataset");
+        return getLineIndex(filename).getLineCount();
+    }
+    
+    /** Returns the line index for a file in the archive, loading it from the sidecar directory or building it the first time it is needed */
+    private LineIndex getLineIndex(String filepath) throws IOException {
+        return lineIndexes.computeIfAbsent(filepath, path->new LazyValue<>(()->loadLineIndex(path))).get();
+    }
+    
+    /** Returns the line index for a file in the archive if it has already been loaded, or NULL if it has not been loaded yet (or is being loaded right now) */
+    private LineIndex getLineIndexIfLoaded(String filepath) {
+        LazyValue<LineIndex> index=lineIndexes.get(filepath);
+        return (index!=null)?index.peek():null;
+    }
+    
+    /** Loads a saved line index for a decompressed file in the archive, or builds a new one by reading through the file and saves it for later */
+    private LineIndex loadLineIndex(String filepath) throws IOException {
+        File localFile=getLocalFile();
+        File sidecar=(localFile!=null)?LineIndex.getSidecarFile(localFile, filepath):null;
+        if (sidecar!=null) {
+            LineIndex saved=LineIndex.load(sidecar, getArchiveFingerprint(), filepath);
+            if (saved!=null) return saved;
+        }
+        LineIndex index;
+        try (InputStream stream=getInputStreamForFile(filepath, true)) {
+            index=LineIndex.build(stream, LineIndex.DEFAULT_SPACING);
+        }
+        try {
+            if (sidecar!=null) index.save(sidecar, getArchiveFingerprint(), filepath);
+        } catch (IOException e) {} // the saved index is just an optimization, so it does not matter if it can not be saved (e.g. if the directory is read-only)
+        return index;
+    }
+    
+    /** Opens a file at the given position (see getInputStreamForFile). The file is read from the extracted copy if this is not NULL */
+    private InputStream openFileAt(String filepath, boolean decompress, long offset, File extracted) throws IOException {
+        boolean decompressing=(decompress && isCompressedFile(filepath));
+        if (extracted!=null) {
+            if (decompressing && filepath.endsWith(".gz")) return openDecompressedAt(filepath, position->openFileChannelStream(extracted, position), offset);
+            InputStream stream=decompress(openFileChannelStream(extracted, (decompressing)?0:offset), filepath, decompress);
+            return (decompressing)?skipFully(stream, offset):stream;
+        }
+        ArchiveIndex index=(offset>0)?getArchiveIndex():null; // reading from the start is handled by getInputStreamForFile, which can share the file with other readers
+        if (index!=null) {
+            if (!index.containsEntry(filepath)) throw new ArchiveFileNotFoundException("Unable to locate archive file '"+filepath+"'");
+            if (!decompressing) return index.openEntry(getLocalFile(), filepath, offset);
+            if (filepath.endsWith(".gz")) return openDecompressedAt(filepath, position->index.openEntry(getLocalFile(), filepath, position), offset);
+        }
+        return skipFully(getInputStreamForFile(filepath, decompress), offset);
+    }
+    
+    /** Opens a stream that reads a compressed file (inside the archive or extracted from it) starting at the given position in the compressed file */
+    private interface CompressedFileOpener {
+        public InputStream open(long position) throws IOException;
+    }
+    
+    /**
+     * Opens a stream that reads a decompressed ".gz" file from the given position.
+     * Decompression starts at the closest GZIP member in front of the position that has been seen by earlier reads from the same file,
+     * and the members passed by this stream are added as new checkpoints for later reads
+     */
+    private InputStream openDecompressedAt(String filepath, CompressedFileOpener opener, long offset) throws IOException {
+        ArchiveIndex checkpoints=entryCheckpoints.computeIfAbsent(filepath, path->new ArchiveIndex(null, ArchiveIndex.DEFAULT_CHECKPOINT_SPACING));
+        long[] checkpoint;
+        synchronized (checkpoints) {
+            checkpoint=checkpoints.getCheckpoint(offset);
+        }
+        InputStream compressed=opener.open(checkpoint[0]);
+        try {
+            InputStream stream=ParallelGzipInputStream.open(compressed, checkpoint[0], checkpoint[1], (compressedOffset, uncompressedOffset)->{
+                synchronized (checkpoints) {
+                    checkpoints.addCheckpoint(compressedOffset, uncompressedOffset); // members that are already known (or too close to a known checkpoint) are ignored
+                }
+            });
+            return skipFully(stream, offset-checkpoint[1]);
+        } catch (IOException e) {
+            compressed.close();
+            throw e;
+        }
+    }
+    
+    /** Opens a stream that reads a local file from the given position */
+    private static InputStream openFileChannelStream(File file, long position) throws IOException {
+        FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        channel.position(position);
+        return Channels.newInputStream(channel);
+    }
+    
+    /** Skips the given number of bytes in the stream (or to the end of the stream if it is shorter), and then returns the stream. The stream is closed if this fails */
+    private static InputStream skipFully(InputStream stream, long bytes) throws IOException {
+        try {
+            byte[] buffer=null;
+            while (bytes>0) {
+                long skipped=stream.skip(bytes);
+                if (skipped<=0) { // some streams do not skip at all, so read instead to find out if the end of the stream has been reached
+                    if (buffer==null) buffer=new byte[8192];
+                    skipped=stream.read(buffer, 0, (int)Math.min(buffer.length, bytes));
+                    if (skipped<0) break;
+                }
+                bytes-=skipped;
+            }
+            return stream;
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Sets a listener that is notified about the progress while the archive is scanned for metadata (see ProgressInputStream).
+     * The progress is reported in bytes of the archive file itself. The listener can cancel the scan by throwing an IOException.
+     * No progress is reported if the metadata is restored from a snapshot or read through an embedded index, since that does not require a scan
+     * @param listener The listener, or NULL to stop reporting progress
+     */
+    public void setProgressListener(ProgressInputStream.ProgressListener listener) {
+        progressListener=listener;
+    }
+    
+    /**
+     * Sets a cache directory where local archives will be extracted the first time a dataset or extra file is output from them.
+     * Later requests for datasets and extra files in the same archive are then copied directly from the extracted files.
+     * This is most useful for archives that are used repeatedly, e.g. in server mode.
+     * @param cache The cache to use for all archives, or NULL to read all files from the archives themselves (which is the default)
+     */
+    public static void setExtractedArchiveCache(ExtractedArchiveCache cache) {
+        extractedArchiveCache=cache;
+    }
+    
+    /** Returns the extracted copy of a file in the archive if an ExtractedArchiveCache is used, or NULL if the file should be read from the archive itself */
+    private File getExtractedFile(String filepath) throws IOException {
+        ExtractedArchiveCache cache=extractedArchiveCache;
+        if (cache==null || getLocalFile()==null) return null;
+        File file=cache.getFile(getArchiveFingerprint(), this::openArchiveSource, filepath);
+        if (file==null) throw new ArchiveFileNotFoundException("Unable to locate archive file '"+filepath+"'");
+        return file;
+    }
+    
+    private static boolean isCompressedFile(String filepath) {
+        return filepath.endsWith(".gz") || filepath.endsWith(".bz2");
+    }
     
     /**
      * Creates a ZIP archive containing a dataset and its associated files and outputs it to an output stream
@@ -528,8 +1051,27 @@ public class GalaxyHistoryArchive {
         //if (directory==null) throw new IOException("Dataset does not include extra files");
         directory+="/";
         ZipOutputStream zipArchiveOutputStream = new ZipOutputStream(outstream);
-        InputStream source=(archivepath.startsWith("http:") || archivepath.startsWith("https:"))?((new URL(archivepath)).openStream()):new FileInputStream(archivepath);
-        TarArchiveInputStream tarInput = new TarArchiveInputStream(new GzipCompressorInputStream(source));
+        ArchiveIndex index=getArchiveIndex();
+        if (index!=null && index.isEmbedded()) { // a repacked archive. Read the files directly from their positions instead of going through the whole archive
+            for (String currentEntryName:index.getEntryNames()) {
+                if (currentEntryName.equals(filename)) copyIndexedEntryToZIP(index, currentEntryName, newDatasetFileName, zipArchiveOutputStream);
+                if (currentEntryName.startsWith(directory) && !currentEntryName.endsWith("/")) copyIndexedEntryToZIP(index, currentEntryName, currentEntryName.substring(directory.length()), zipArchiveOutputStream);
+            }
+            zipArchiveOutputStream.finish();
+            zipArchiveOutputStream.flush();
+            return;
+        }
+        InputStream source=openArchiveSource();
+        try {
+            source=ArchiveSource.pipeline(ParallelGzipInputStream.open(source)); // the archive is decompressed in a separate thread while this thread writes the ZIP archive. Closing the pipeline also closes the source
+            copyDatasetWithExtraFilesToZIP(new TarArchiveInputStream(source), filename, newDatasetFileName, directory, zipArchiveOutputStream);
+        } finally {
+            source.close(); // this must also be done if the copying fails (e.g. if the client disconnects), or the pipeline thread would wait forever for the data to be read
+        }
+    }
+    
+    /** Copies the main dataset file and the extra files from the tarball to the ZIP archive, and finishes the ZIP archive */
+    private void copyDatasetWithExtraFilesToZIP(TarArchiveInputStream tarInput, String filename, String newDatasetFileName, String directory, ZipOutputStream zipArchiveOutputStream) throws IOException {
         TarArchiveEntry currentEntry = tarInput.getNextTarEntry();
         while (currentEntry != null) {
             String currentEntryName=currentEntry.getName();
@@ -552,6 +1094,97 @@ public class GalaxyHistoryArchive {
         zipArchiveOutputStream.flush(); //  This is also needed in order to output the rest of the archive without closing the stream (and thus also closing the underlying output stream)
     }
     
+    /** Copies a file in the archive to a new entry in the ZIP archive, using the index to locate the file */
+    private void copyIndexedEntryToZIP(ArchiveIndex index, String entryName, String zipEntryName, ZipOutputStream output) throws IOException {
+        output.putNextEntry(new ZipEntry(zipEntryName));
+        try (InputStream input=index.openEntry(getLocalFile(), entryName)) {
+            byte[] data=new byte[65536];
+            int count;
+            while ((count=input.read(data)) != -1) output.write(data, 0, count);
+        }
+    }
+    
+    /**
+     * Rewrites the archive into a block-compressed tarball with an embedded index (see HistoryRepacker).
+     * The repacked archive contains exactly the same tarball, but files within it can be read directly without scanning the archive
+     * @param target The file to write the repacked archive to
+     * @throws IOException if the archive could not be read or the repacked archive could not be written
+     */
+    public void repack(File target) throws IOException {
+        File localFile=getLocalFile();
+        if (localFile!=null && localFile.getCanonicalFile().equals(target.getCanonicalFile())) throw new IOException("The repacked archive must be written to a different file");
+        HistoryRepacker.repack(openArchiveSource(), target);
+    }
+    
+    /** Opens a new InputStream that reads the raw (compressed) archive tarball from its source, which could be either a local file or a URL */
+    private InputStream openArchiveSource() throws IOException {
+        File localFile=getLocalFile();
+        return (localFile==null)?ArchiveSource.wrap((new URL(archivepath)).openStream()):ArchiveSource.open(localFile, 0);
+    }
+    
+    /** Returns TRUE if the archive is read from a URL rather than a local file */
+    private boolean isRemoteArchive() {
+        return archivepath.startsWith("http:") || archivepath.startsWith("https:");
+    }
+    
+    /** 
+     * Returns the local archive file. If the archive is read from a URL, this is a copy in the download cache, which is downloaded the first time this method is called.
+     * Everything else (indexes, snapshots, extracted files etc.) then works the same way as for local archives.
+     * @return The local file, or NULL if the archive is read from a URL and no download cache is used
+     */
+    private File getLocalFile() throws IOException {
+        return lazyLocalFile.get();
+    }
+    
+    /** Finds (or downloads) the local archive file. This is the loader for the 'lazyLocalFile' field */
+    private File getLocalCopy() throws IOException {
+        if (!isRemoteArchive()) return new File(archivepath);
+        DownloadCache cache=downloadCache;
+        return (cache!=null)?cache.getFile(new URL(archivepath)):null;
+    }
+    
+    /**
+     * Sets the cache that is used to keep local copies of archives that are read from URLs, so that each archive only has to be downloaded once.
+     * By default, the downloads are kept in a directory below the system's temporary directory (see DownloadCache.getDefaultDirectory),
+     * and the least recently used downloads are deleted when the directory grows beyond DownloadCache.DEFAULT_MAXIMUM_SIZE
+     * @param cache The cache to use for new GalaxyHistoryArchive objects, or NULL to read archives directly from their URLs every time
+     */
+    public static void setDownloadCache(DownloadCache cache) {
+        downloadCache=cache;
+    }
+    
+    /**
+     * Returns an index that can be used to locate files directly within the archive, or NULL if no index is available.
+     * Indexes are only used for local archive files. They are built by scanArchive(), but if the archive has not been scanned yet
+     * this method will try to load an index from a sidecar file created by an earlier scan (possibly by a different process).
+     */
+    private ArchiveIndex getArchiveIndex() {
+        ArchiveIndex index=archiveIndex;
+        if (index!=null) return index;
+        try {
+            if (getLocalFile()==null) return null;
+            return lazySavedIndex.get();
+        } catch (IOException e) {
+            return null; // no index available
+        }
+    }
+    
+    /** Returns the index that is currently loaded (if any) without trying to load one */
+    private ArchiveIndex getLoadedArchiveIndex() {
+        ArchiveIndex index=archiveIndex;
+        return (index!=null)?index:lazySavedIndex.peek();
+    }
+    
+    /** Loads the index embedded in a repacked archive, or else from its sidecar file. This is the loader for the 'lazySavedIndex' field */
+    private ArchiveIndex loadArchiveIndex() {
+        try {
+            ArchiveIndex index=ArchiveIndex.loadEmbedded(getLocalFile(), getArchiveFingerprint());
+            return (index!=null)?index:ArchiveIndex.load(ArchiveIndex.getSidecarFile(getLocalFile()), getArchiveFingerprint());
+        } catch (IOException e) {
+            return null; // no index available
+        }
+    }
+    
     /** Reads a file from an input stream of a TAR.GZ archvie and outputs it to the output stream of the ZIP archive */
     private void copyFromTarGZtoZIP(TarArchiveInputStream input, ZipOutputStream output) throws IOException {
         int BUFFER=10000; // 
@@ -609,6 +1242,278 @@ public class GalaxyHistoryArchive {
             }  
             if (reader!=null) return "1"; // the older export format does not have an "export_attrs.txt" file that specifies the version
         }
+        return parseExportVersion(reader);
+    }
+    
+    /**
+     * Reads through the whole history archive file in a single pass and parses each of the JSON metadata files
+     * ("export_attrs.txt", "history_attrs.txt", "datasets_attrs.txt", "collections_attrs.txt" and "jobs_attrs.txt") as their entries go by.
+     * The sizes of all the files in the 'datasets' subdirectory are also summed up along the way to estimate the size of the history.
+     * Hence, the archive only has to be decompressed once to obtain all the information needed to process the history.
+     * For local archive files, the scan will also build an ArchiveIndex that is saved to a sidecar file next to the archive.
+     * The fields for metadata files that are not found in the archive will be left as NULL.
+     * @param attributes If provided, this can limit the metadata attributes that are read from the history archive
+     *                   Each key should refer to a metadata set (either "history", "datasets", "collections" or "jobs") and the value should be a String[]
+     *                   listing the attributes to retrieve for that metadata set  
+     * @return The metadata read from the archive (with lookup tables)
+     * @throws IOException if the history archive file itself could not be read or any of the metadata files inside the archive could not be processed correctly 
+     */
+    private Metadata scanArchive(Map<String,String[]> attributes) throws IOException {
+        Metadata metadata=new Metadata();
+        InputStream source=openArchiveSource();
+        ProgressInputStream.ProgressListener listener=progressListener;
+        if (listener!=null) source=new ProgressInputStream(source, (getLocalFile()!=null)?getLocalFile().length():-1, listener); // the progress is measured in compressed bytes, since the total is known in advance
+        try {
+            ArchiveIndex index=(getLocalFile()==null)?null:new ArchiveIndex(getArchiveFingerprint(), ArchiveIndex.DEFAULT_CHECKPOINT_SPACING);
+            InputStream decompressed;
+            try { // the archive is decompressed in a separate thread while this thread parses the tar entries and the metadata files (see ArchiveSource.pipeline)
+                decompressed=ArchiveSource.pipeline(ParallelGzipInputStream.open(source, 0, 0, (index!=null)?index::addCheckpoint:null));
+                source=decompressed; // closing the pipeline also closes the source
+            } catch (IOException iox) {
+                if (!"Input is not in the .gz format".equals(iox.getMessage())) throw iox;
+                metadata.version="0"; // not a Galaxy history file
+                return metadata;
+            }
+            TarArchiveInputStream tarInput=new TarArchiveInputStream(decompressed);
+            HistoryRecordReader recordReader=new HistoryRecordReader(); // strings that are repeated in many records will be shared by all records in this archive
+            String exportVersion=null;
+            boolean history_file_found=false;
+            long size=0;
+            TarArchiveEntry currentEntry = tarInput.getNextTarEntry();
+            while (currentEntry != null) {
+                String name=currentEntry.getName();
+                if (index!=null) index.addEntry(name, tarInput.getBytesRead(), currentEntry.getSize());
+                if (name.startsWith("datasets/")) size+=currentEntry.getSize();
+                else if (name.equals("export_attrs.txt")) exportVersion=parseExportVersion(getEntryReader(tarInput));
+                else if (name.equals("history_attrs.txt")) {
+                    metadata.history_metadata=parseHistoryAttributes(getEntryReader(tarInput), (attributes!=null)?attributes.get("history"):null);
+                    history_file_found=true;
+                }
+                else if (name.equals("datasets_attrs.txt")) metadata.datasets=parseDatasets(getEntryReader(tarInput), recordReader, (attributes!=null)?attributes.get("datasets"):null);
+                else if (name.equals("collections_attrs.txt")) metadata.collections=parseCollections(getEntryReader(tarInput), recordReader, (attributes!=null)?attributes.get("collections"):null);
+                else if (name.equals("jobs_attrs.txt")) metadata.jobs=parseJobs(getEntryReader(tarInput), recordReader, (attributes!=null)?attributes.get("jobs"):null);
+                currentEntry = tarInput.getNextTarEntry(); 
+            }
+            if (exportVersion!=null) metadata.version=exportVersion;
+            else metadata.version=(history_file_found)?"1":"0"; // the older export format does not have an "export_attrs.txt" file that specifies the version
+            metadata.history_size=size;
+            buildIndexes(metadata);
+            if (index!=null) {
+                while (decompressed.skip(Long.MAX_VALUE)>0) {} // the checkpoints are added while decompressing, so the decompression must be finished (including the tar padding) before the index can be used
+                boolean saved=(getArchiveIndex()!=null); // a valid index from an earlier scan already exists
+                archiveIndex=index;
+                if (!saved) {
+                    try {
+                        index.save(ArchiveIndex.getSidecarFile(getLocalFile()));
+                    } catch (IOException e) {} // the index is just an optimization, so it does not matter if it can not be saved (e.g. if the directory is read-only)
+                }
+            }
+            return metadata;
+        } finally {
+            source.close();
+        }
+    }
+    
+    /**
+     * Reads the metadata files directly from their positions in a repacked archive (see HistoryRepacker), using the index embedded in the archive.
+     * This gives the same result as scanArchive, but only the metadata files themselves have to be decompressed.
+     * The size of the history is summed up from the sizes of the entries in the index.
+     * @return The metadata read from the archive (with lookup tables), or NULL if the archive does not have an embedded index
+     * @throws IOException if the metadata files inside the archive could not be read or processed correctly
+     */
+    private Metadata readIndexedMetadata() throws IOException {
+        ArchiveIndex index=getArchiveIndex();
+        if (index==null || !index.isEmbedded()) return null;
+        Metadata metadata=new Metadata();
+        HistoryRecordReader recordReader=new HistoryRecordReader();
+        long size=0;
+        for (String name:index.getEntryNames()) {
+            if (name.startsWith("datasets/")) size+=index.getEntrySize(name);
+        }
+        String exportVersion=null;
+        if (index.containsEntry("export_attrs.txt")) {
+            try (InputStreamReader reader=getIndexedEntryReader(index, "export_attrs.txt")) {exportVersion=parseExportVersion(reader);}
+        }
+        if (index.containsEntry("history_attrs.txt")) {
+            try (InputStreamReader reader=getIndexedEntryReader(index, "history_attrs.txt")) {metadata.history_metadata=parseHistoryAttributes(reader, null);}
+        }
+        if (index.containsEntry("datasets_attrs.txt")) {
+            try (InputStreamReader reader=getIndexedEntryReader(index, "datasets_attrs.txt")) {metadata.datasets=parseDatasets(reader, recordReader, null);}
+        }
+        if (index.containsEntry("collections_attrs.txt")) {
+            try (InputStreamReader reader=getIndexedEntryReader(index, "collections_attrs.txt")) {metadata.collections=parseCollections(reader, recordReader, null);}
+        }
+        if (index.containsEntry("jobs_attrs.txt")) {
+            try (InputStreamReader reader=getIndexedEntryReader(index, "jobs_attrs.txt")) {metadata.jobs=parseJobs(reader, recordReader, null);}
+        }
+        if (exportVersion!=null) metadata.version=exportVersion;
+        else metadata.version=(metadata.history_metadata!=null)?"1":"0"; // the older export format does not have an "export_attrs.txt" file that specifies the version
+        metadata.history_size=size;
+        buildIndexes(metadata);
+        return metadata;
+    }
+    
+    private InputStreamReader getIndexedEntryReader(ArchiveIndex index, String name) throws IOException {
+        return new InputStreamReader(index.openEntry(getLocalFile(), name));
+    }
+    
+    /**
+     * Tries to restore all the metadata from a snapshot sidecar file 
+     * that was saved when the metadata was loaded earlier (possibly by a different process).
+     * The datasets and collections in the snapshot already have their states set, so only the final processing of the history remains to be done.
+     * @return The restored metadata (with lookup tables), or NULL if no valid snapshot exists for the current archive file
+     */
+    private Metadata loadSnapshot() {
+        try {
+            File localFile=getLocalFile();
+            if (localFile==null) return null;
+            Map<String,Object> snapshot=HistorySnapshot.load(HistorySnapshot.getSidecarFile(localFile), getArchiveFingerprint(), new HistoryRecordReader());
+            if (snapshot==null) return null;
+            Metadata metadata=new Metadata();
+            metadata.version=(String)snapshot.get("version");
+            metadata.history_size=((Number)snapshot.get("history_size")).longValue();
+            metadata.history_metadata=(Map<String,Object>)snapshot.get("history_metadata");
+            metadata.datasets=(List<Map>)snapshot.get("datasets");
+            metadata.collections=(List<Map>)snapshot.get("collections");
+            metadata.jobs=(List<Map>)snapshot.get("jobs");
+            buildIndexes(metadata);
+            metadata.restored=true;
+            return metadata;
+        } catch (IOException | ClassCastException | NullPointerException e) {
+            return null; // the snapshot could not be used. Just read the archive instead
+        }
+    }
+    
+    /** 
+     * Saves all the metadata to a snapshot sidecar file next to the archive, so that the history can be reopened more quickly later.
+     * The processed history itself is not saved, since it can quickly be recreated from the metadata (and it would duplicate datasets that are referenced from many places)
+     */
+    private void saveSnapshot(Metadata metadata) {
+        Map<String,Object> snapshot=new HashMap<>();
+        snapshot.put("version", metadata.version);
+        snapshot.put("history_size", metadata.history_size);
+        snapshot.put("history_metadata", metadata.history_metadata);
+        snapshot.put("datasets", metadata.datasets);
+        snapshot.put("collections", metadata.collections);
+        snapshot.put("jobs", metadata.jobs);
+        try {
+            File localFile=getLocalFile();
+            if (localFile!=null) HistorySnapshot.save(HistorySnapshot.getSidecarFile(localFile), getArchiveFingerprint(), snapshot);
+        } catch (IOException e) {} // the snapshot is just an optimization, so it does not matter if it can not be saved (e.g. if the directory is read-only)
+    }
+    
+    /** 
+     * Builds lookup tables for datasets, collections and jobs so that these can be found without searching through the lists. 
+     * This is called once after the metadata has been read from the archive (or restored from a snapshot)
+     * @throws IOException if the jobs have an unexpected format
+     */
+    private void buildIndexes(Metadata metadata) throws IOException {
+        if (metadata.datasets!=null) {
+            metadata.datasetIndexes=new HashMap<>();
+            for (String attribute:INDEXED_DATASET_ATTRIBUTES) metadata.datasetIndexes.put(attribute, buildIndex(metadata.datasets, attribute));
+        }
+        if (metadata.collections!=null) metadata.collectionsByID=buildIndex(metadata.collections, "encoded_id");
+        if (metadata.jobs!=null) {
+            metadata.jobsByID=buildIndex(metadata.jobs, "encoded_id");
+            metadata.jobsByOutput=buildOutputIndex(metadata.jobs);
+        }
+    }
+    
+    /** 
+     * Makes all the maps and lists in the metadata (and the lookup tables) unmodifiable, so that the metadata can be shared safely by many threads.
+     * This is called once after the metadata has been read and the states have been set
+     */
+    private void freeze(Metadata metadata) {
+        metadata.history_metadata=(Map<String,Object>)freeze(metadata.history_metadata);
+        metadata.datasets=(List<Map>)freeze(metadata.datasets);
+        metadata.collections=(List<Map>)freeze(metadata.collections);
+        metadata.jobs=(List<Map>)freeze(metadata.jobs);
+        if (metadata.datasetIndexes!=null) {
+            for (Map.Entry<String,Map<Object,Map>> entry:metadata.datasetIndexes.entrySet()) entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+            metadata.datasetIndexes=Collections.unmodifiableMap(metadata.datasetIndexes);
+        }
+        if (metadata.collectionsByID!=null) metadata.collectionsByID=Collections.unmodifiableMap(metadata.collectionsByID);
+        if (metadata.jobsByID!=null) metadata.jobsByID=Collections.unmodifiableMap(metadata.jobsByID);
+        if (metadata.jobsByOutput!=null) metadata.jobsByOutput=Collections.unmodifiableMap(metadata.jobsByOutput);
+    }
+    
+    /**
+     * Returns an unmodifiable version of a value from the metadata. Maps and Lists are frozen recursively.
+     * The nested values are replaced in place before the Maps and Lists are wrapped, so nothing is copied. HistoryRecords are frozen rather than wrapped
+     */
+    private static Object freeze(Object value) {
+        if (value instanceof Map) {
+            for (Map.Entry<?,Object> entry:((Map<?,Object>)value).entrySet()) {
+                Object nested=entry.getValue();
+                if (nested instanceof Map || nested instanceof List) entry.setValue(freeze(nested));
+            }
+            if (value instanceof HistoryRecord) return ((HistoryRecord)value).freeze();
+            return Collections.unmodifiableMap((Map<?,?>)value);
+        } else if (value instanceof List) {
+            ListIterator<Object> iterator=((List<Object>)value).listIterator();
+            while (iterator.hasNext()) {
+                Object nested=iterator.next();
+                if (nested instanceof Map || nested instanceof List) iterator.set(freeze(nested));
+            }
+            return Collections.unmodifiableList((List<?>)value);
+        }
+        return value;
+    }
+    
+    /** 
+     * Creates a lookup table that returns the job that produced a dataset, based on the "output_dataset_mapping" attribute of the jobs.
+     * If a dataset is (for some reason) listed as an output of several jobs, the first of these jobs will be used
+     * @throws IOException if the "output_dataset_mapping" of a job has an unexpected format
+     */
+    private Map<Object,Map> buildOutputIndex(List<Map> jobs) throws IOException {
+        HashMap<Object,Map> index=new HashMap<>(jobs.size()*2);
+        for (Map<String,Object> job:jobs) {
+            Object output_dataset_mapping=job.get("output_dataset_mapping");
+            if (output_dataset_mapping==null) continue;
+            if (output_dataset_mapping instanceof Map) {
+                for (Object value:((Map)output_dataset_mapping).values()) {
+                    if (value instanceof List) {
+                        for (Object x:((List)value)) {
+                            if (x!=null) index.putIfAbsent(x, job);
+                        }
+                    } else throw new IOException("Archive Format Error: Unexpected value for 'output_dataset_mapping' field. Expected a list but got: "+((value!=null)?value.getClass():"null"));
+                }
+            } else throw new IOException("Archive Format Error: Unexpected value for 'output_dataset_mapping'. Expected a map but got: "+output_dataset_mapping.getClass());            
+        } 
+        return index;
+    }
+    
+    /** 
+     * Creates a lookup table for objects in the list based on the value of the given attribute.
+     * If several objects have the same value, the last one in the list will be used (which is consistent with getDataset(list,attribute,value)).
+     * Objects that lack the attribute are not included in the table
+     */
+    private Map<Object,Map> buildIndex(List<Map> list, String attribute) {
+        HashMap<Object,Map> index=new HashMap<>(list.size()*2);
+        for (Map map:list) {
+            Object value=map.get(attribute);
+            if (value!=null) index.put(value, map);
+        }
+        return index;
+    }
+    
+    /** Returns the fingerprint of the local archive file, which is used to validate the sidecar files */
+    private ArchiveFingerprint getArchiveFingerprint() throws IOException {
+        return lazyFingerprint.get();
+    }
+    
+    /** Returns a reader for the current entry in the tar stream. Closing this reader will not close the tar stream itself, so the scan can continue with the next entry */
+    private InputStreamReader getEntryReader(TarArchiveInputStream tarInput) {
+        return new InputStreamReader(new CloseShieldFilterInputStream(tarInput));
+    }
+    
+    /** 
+     * Parses the contents of the "export_attrs.txt" file and returns the format version number the archive was exported in
+     * @param reader A reader for the "export_attrs.txt" file
+     * @return The version number (as a String) or "0" if the version could not be determined
+     * @throws IOException If something went wrong while reading the file
+     */
+    private String parseExportVersion(InputStreamReader reader) throws IOException {
         SimpleJSONparser parser=new SimpleJSONparser();
         try {
             Object result=parser.parseJSON(reader, new String[]{"galaxy_export_version"});            
@@ -622,15 +1527,15 @@ public class GalaxyHistoryArchive {
     
 
     /**
-     * Returns the history's metadata attributes as a Map, 
+     * Parses the history's metadata attributes from the "history_attrs.txt" file and returns them as a Map, 
      * including the name, annotation, tags (as comma-separated list), creation_time and update_time
+     * @param reader A reader for the "history_attrs.txt" file
      * @param attributes if a list of attributes is provided, only values for these will be returned. If null, then all will be returned
      * @return 
      * @throws IOException if the history archive file itself could not be read or the 'history_attrs.txt' file inside the archive could not be parsed correctly     * 
      */
-    private Map<String,Object> getHistoryAttributesFromArchive(String[] attributes) throws IOException  {
+    private Map<String,Object> parseHistoryAttributes(InputStreamReader reader, String[] attributes) throws IOException  {
         try {
-            InputStreamReader reader=getInputStreamReaderForFile("history_attrs.txt");
             SimpleJSONparser parser=new SimpleJSONparser();            
             Object result=parser.parseJSON(reader,attributes); //          
             if (result instanceof Map) {
@@ -649,17 +1554,20 @@ public class GalaxyHistoryArchive {
     }    
     
     /**
-     * Returns information about the regular datasets in the history. 
+     * Parses and returns information about the regular datasets in the history. 
      * Datasets within collections are included, but not the collections themselves.
      * The dataset is uniquely identified by its "encoded_id" attribute.
      * The "hid" attribute of a dataset is its chronological number in the history.
-     * @param attributes If this list is provided (not null), attribute fields that are not included here will be skipped (note that this also applies to nested attributes)
+     * @param reader A reader for the "datasets_attrs.txt" file
+     * @param recordReader The reader used to create compact records from the file (unless a list of attributes is provided)
+     * @param attributes If this list is provided (not null), attribute fields that are not included here will be skipped (note that this also applies to nested attributes).
+     *                   The objects will then be regular HashMaps rather than DatasetRecords
      * @return A List of Maps where each map represents a dataset
      * @throws IOException if the history archive file itself could not be read or the 'datasets_attrs.txt' file inside the archive could not be parsed correctly
      */
-    private List<Map> getDatasetsFromArchive(String[] attributes) throws IOException {    
+    private List<Map> parseDatasets(InputStreamReader reader, HistoryRecordReader recordReader, String[] attributes) throws IOException {    
         try {       
-            InputStreamReader reader=getInputStreamReaderForFile("datasets_attrs.txt");
+            if (attributes==null) return recordReader.readDatasets(HistoryRecordReader.createParser(reader)); // read directly from the JSON tokens into compact records
             SimpleJSONparser parser=new SimpleJSONparser();
             Object result=parser.parseJSON(reader,attributes);   
             if (result instanceof List) return (List<Map>)result;
@@ -670,14 +1578,17 @@ public class GalaxyHistoryArchive {
     }  
     
     /**
-     * Returns information about the collections in the history. 
-     * @param attributes If this list is provided (not null), attribute fields that are not included here will be skipped (note that this also applies to nested attributes)
+     * Parses and returns information about the collections in the history. 
+     * @param reader A reader for the "collections_attrs.txt" file
+     * @param recordReader The reader used to create compact records from the file (unless a list of attributes is provided)
+     * @param attributes If this list is provided (not null), attribute fields that are not included here will be skipped (note that this also applies to nested attributes).
+     *                   The objects will then be regular HashMaps rather than CollectionRecords
      * @return A List of Maps where each map represents a dataset
      * @throws IOException if the history archive file itself could not be read or the 'collections_attrs.txt' file inside the archive could not be parsed correctly 
      */
-    private List<Map> getCollectionsFromArchive(String[] attributes) throws IOException {  
+    private List<Map> parseCollections(InputStreamReader reader, HistoryRecordReader recordReader, String[] attributes) throws IOException {  
         try {             
-            InputStreamReader reader=getInputStreamReaderForFile("collections_attrs.txt");
+            if (attributes==null) return recordReader.readCollections(HistoryRecordReader.createParser(reader)); // read directly from the JSON tokens into compact records
             SimpleJSONparser parser=new SimpleJSONparser();
             Object result=parser.parseJSON(reader,attributes);                     
             if (result instanceof List) return (List<Map>)result;
@@ -688,14 +1599,17 @@ public class GalaxyHistoryArchive {
     }  
     
     /**
-     * Returns information about the jobs in the history. 
-     * @param attributes If this list is provided (not null), attribute fields that are not included here will be skipped (note that this also applies to nested attributes)
+     * Parses and returns information about the jobs in the history. 
+     * @param reader A reader for the "jobs_attrs.txt" file
+     * @param recordReader The reader used to create compact records from the file (unless a list of attributes is provided)
+     * @param attributes If this list is provided (not null), attribute fields that are not included here will be skipped (note that this also applies to nested attributes).
+     *                   The objects will then be regular HashMaps rather than JobRecords
      * @return A List of Maps where each map represents a jobs
      * @throws IOException if the history archive file itself could not be read or the 'jobs_attrs.txt' file inside the archive could not be parsed correctly 
      */
-    private List<Map> getJobsFromArchive(String[] attributes) throws IOException {    
+    private List<Map> parseJobs(InputStreamReader reader, HistoryRecordReader recordReader, String[] attributes) throws IOException {    
         try {        
-            InputStreamReader reader=getInputStreamReaderForFile("jobs_attrs.txt");
+            if (attributes==null) return recordReader.readJobs(HistoryRecordReader.createParser(reader)); // read directly from the JSON tokens into compact records
             SimpleJSONparser parser=new SimpleJSONparser();
             Object result=parser.parseJSON(reader,attributes);                     
             if (result instanceof List) return (List<Map>)result;
@@ -708,18 +1622,18 @@ public class GalaxyHistoryArchive {
     /**
      * Sets a 'state' attribute for each dataset and collection (for convenience) based on the state of the associated job.
      * It also adds a 'job' attribute to each dataset (but not collections) pointing back to the job. (Collections can contains datasets created by different jobs)
-     * @param datasets
-     * @param collections
-     * @param jobs
+     * @param metadata The metadata with the datasets, collections and jobs (including lookup tables)
      * @throws Exception 
      */
-    private void setStatesForDatasets() throws Exception { // 
-        for (Map<String,Object> dataset:datasets) {
+    private void setStatesForDatasets(Metadata metadata) throws Exception { // 
+        Map<Object,Map> jobsByOutput=metadata.jobsByOutput;
+        Map<Object,Map> datasetsByID=metadata.datasetIndexes.get("encoded_id");
+        for (Map<String,Object> dataset:metadata.datasets) {
             String encoded_id=(String)dataset.get("encoded_id");
             String original_id=encoded_id;
             List chain=(List)dataset.get("copied_from_history_dataset_association_id_chain"); // if the dataset is a copy of another, it will not have its own job. Check the job of the original dataset instead
             if (chain!=null && !chain.isEmpty()) original_id=(String)chain.get(chain.size()-1); // last ID in chain refers to the original dataset
-            Map<String,Object> job=findJob(jobs,original_id);
+            Map<String,Object> job=jobsByOutput.get(original_id);
             if (job!=null) { // some datasets may not have jobs
                 dataset.put("job", job.get("encoded_id")); // add a reference to the job in the dataset
                 String state=(String)job.get("state");
@@ -731,44 +1645,25 @@ public class GalaxyHistoryArchive {
             } else dataset.put("state","ok"); // assume default state is OK if no job exists
         }
         // now do collections...
-         for (Map<String,Object> collection:collections) {
+        HashMap<Object,int[]> counted=new HashMap<>(); // state counts for collections that have already been processed (including nested collections)
+        for (Map<String,Object> collection:metadata.collections) {
             Map<String,Object> contents=(Map<String,Object>)collection.get("collection");
-            int[] states=countStatesInCollection(contents); // sideeffect: this will also update state in child collections
+            int[] states=countStatesInCollection(contents, counted, datasetsByID); // sideeffect: this will also update state in child collections
             collection.put("state", getStateFromCounts(states));
         }       
     }
     
-    /** finds the job associated with the dataset from a list of jobs */
-    private Map<String,Object> findJob(List<Map> jobs, String dataset_id) throws IOException {
-        for (Map<String,Object> job:jobs) {
-            //String jobstate=(String)job.get("state");
-            Object output_dataset_mapping=job.get("output_dataset_mapping");
-            if (output_dataset_mapping==null) continue;
-            if (output_dataset_mapping instanceof Map) {
-                for (Object key:((Map)output_dataset_mapping).keySet()) {
-                    Object value=((Map)output_dataset_mapping).get(key);
-                    if (value instanceof List) {
-                        for (Object x:((List)value)) {
-                            if (dataset_id.equals(x)) return job; // we found it!!
-                        }
-                    } else throw new IOException("Archive Format Error: Unexpected value for 'output_dataset_mapping' field. Expected a list but got: "+((value!=null)?value.getClass():"null"));
-                }
-            } else throw new IOException("Archive Format Error: Unexpected value for 'output_dataset_mapping'. Expected a map but got: "+output_dataset_mapping.getClass());            
-        } 
-        return null;
-    } 
-    
     /** Retrieves the (cached) state of the dataset with the given ID. 
      *  Note that information about the state is not included for the datasets by default, but only for their associated jobs.
      *  The method setStatesForDatasets() will go through each dataset and create a new state attribute by examining their job,
      *  so this method has to be run first (or else all calls to this method will simply return null).
      *  
-     *  @param the unique ID of the dataset ("encoded_id" attribute)
+     *  @param id the unique ID of the dataset ("encoded_id" attribute)
+     *  @param datasetsByID lookup table for the datasets based on their "encoded_id"
      *  @return A string representing the state of the dataset, e.g. "ok" or "error". Returns null if the dataset with that ID was not found or it had no state set.
-     *  @throws IOException if the history archive file could not be read or the file inside the archive that contains information about all the datasets could not be processed correctly  
      */
-    private String getStateForDataset(String id) throws IOException {       
-        Map<String,Object> dataset=getDataset("encoded_id", id);
+    private String getStateForDataset(String id, Map<Object,Map> datasetsByID) {       
+        Map<String,Object> dataset=datasetsByID.get(id);
         if (dataset!=null) return (String)dataset.get("state"); 
         else return null;
     }
@@ -793,39 +1688,68 @@ public class GalaxyHistoryArchive {
     
     /**
      * Counts the number of times each state is encountered among datasets in the collection.
-     * For nested collections, the count is performed recursively. It assumes that datasets have already been assigned "state" attributes, for instance with setStatesForDatasets()
+     * Nested collections are counted first and their totals are then added to the parent collection (bottom-up).
+     * This is done with an explicit stack rather than recursion, so collections can be nested arbitrarily deep.
+     * The counts for each collection are cached based on the collection's "encoded_id", so collections that are referenced from several places will only be counted once.
+     * It assumes that datasets have already been assigned "state" attributes, for instance with setStatesForDatasets()
      * @param collection A collection from the original list of 
+     * @param counted A cache with the counts for collections that have already been processed (collection ID => counts). New results will be added to this cache.
+     *                The arrays in the cache must not be modified.
+     * @param datasetsByID lookup table for the datasets based on their "encoded_id"
      * @return an array with 7 count values for the different states [OK,error,waiting,running,deleted,paused,other]. Waiting includes 'new' and 'queued'. Running includes 'upload'
      */
-    private int[] countStatesInCollection(Map<String,Object> collection) throws Exception {
-        int[] states=new int[7]; // 
-        // Map<String,Object> contents=(Map<String,Object>)collection.get("collection");
-        List<Map> elements=(List<Map>)collection.get("elements");
-        if (elements==null) throw new Exception("No 'elements' entry in expected collection object ["+collection.get("encoded_id")+"]");
-        for (Map<String,Object> element:elements) { // process all the elements in the collection
-            String type=(String)element.get("element_type");
-            if (type.equals("hda")) {
-                Map<String,Object> hda=(Map<String,Object>)element.get("hda");
-                String dataset_id=(String)hda.get("encoded_id");
-                String state=getStateForDataset(dataset_id);
-                if (state!=null) {
-                         if (state.equalsIgnoreCase("ok")) states[0]++;
-                    else if (state.equalsIgnoreCase("error")) states[1]++;
-                    else if (state.equalsIgnoreCase("waiting") || state.equalsIgnoreCase("new") || state.equalsIgnoreCase("queued")) states[2]++;
-                    else if (state.equalsIgnoreCase("running") || state.equalsIgnoreCase("upload")) states[3]++;
-                    else if (state.equalsIgnoreCase("deleted") || state.equalsIgnoreCase("deleted_new")) states[4]++;
-                    else if (state.equalsIgnoreCase("paused")) states[5]++;
-                    else states[6]++;
-                } else states[6]++; // no state is counted as "other"
-            } else if (type.equals("dataset_collection")) { // this would be a nested collection
-                Map<String,Object> childcollection=(Map<String,Object>)element.get("child_collection");
-                int[] childstates=countStatesInCollection(childcollection);
-                // set state on this child collection before propagating to the parent
-                element.put("state", getStateFromCounts(childstates));
-                for (int i=0;i<childstates.length;i++) states[i]+=childstates[i];
-            } else throw new Exception("Encountered unexpected element type while processing collection states: "+type);
+    private int[] countStatesInCollection(Map<String,Object> collection, Map<Object,int[]> counted, Map<Object,Map> datasetsByID) throws Exception {
+        int[] cached=counted.get(collection.get("encoded_id"));
+        if (cached!=null) return cached;
+        ArrayDeque<CollectionCount> stack=new ArrayDeque<>();
+        stack.push(new CollectionCount(collection, null));
+        int[] result=null;
+        while (!stack.isEmpty()) {
+            CollectionCount current=stack.peek();
+            if (current.next<current.elements.size()) { // process the next element in the collection
+                Map<String,Object> element=current.elements.get(current.next++);
+                String type=(String)element.get("element_type");
+                if (type.equals("hda")) {
+                    Map<String,Object> hda=(Map<String,Object>)element.get("hda");
+                    String dataset_id=(String)hda.get("encoded_id");
+                    current.states[getStateIndex(getStateForDataset(dataset_id, datasetsByID))]++;
+                } else if (type.equals("dataset_collection")) { // this would be a nested collection
+                    Map<String,Object> childcollection=(Map<String,Object>)element.get("child_collection");
+                    int[] childstates=counted.get(childcollection.get("encoded_id"));
+                    if (childstates!=null) { // this child collection has already been counted
+                        element.put("state", getStateFromCounts(childstates));
+                        for (int i=0;i<childstates.length;i++) current.states[i]+=childstates[i];
+                    } else stack.push(new CollectionCount(childcollection, element)); // count the child collection first
+                } else throw new Exception("Encountered unexpected element type while processing collection states: "+type);
+            } else { // all elements have been counted
+                stack.pop();
+                Object collectionID=current.collection.get("encoded_id");
+                if (collectionID!=null) counted.put(collectionID, current.states);
+                if (current.parentElement!=null) {
+                    // set state on this child collection before propagating to the parent
+                    current.parentElement.put("state", getStateFromCounts(current.states));
+                    int[] parentstates=stack.peek().states;
+                    for (int i=0;i<current.states.length;i++) parentstates[i]+=current.states[i];
+                } else result=current.states;
+            }
         }
-        return states;
+        return result;
+    }
+    
+    /**
+     * Returns the position in the count array used by countStatesInCollection() for the given dataset state
+     * @param state A dataset state (can be NULL)
+     * @return A number between 0 and 6 [OK,error,waiting,running,deleted,paused,other]
+     */
+    private int getStateIndex(String state) {
+        if (state==null) return 6; // no state is counted as "other"
+             if (state.equalsIgnoreCase("ok")) return 0;
+        else if (state.equalsIgnoreCase("error")) return 1;
+        else if (state.equalsIgnoreCase("waiting") || state.equalsIgnoreCase("new") || state.equalsIgnoreCase("queued")) return 2;
+        else if (state.equalsIgnoreCase("running") || state.equalsIgnoreCase("upload")) return 3;
+        else if (state.equalsIgnoreCase("deleted") || state.equalsIgnoreCase("deleted_new")) return 4;
+        else if (state.equalsIgnoreCase("paused")) return 5;
+        else return 6;
     }
     
     /**
@@ -834,33 +1758,29 @@ public class GalaxyHistoryArchive {
      * and the contents points to a list containing all the datasets/collections in anti-chronological order (i.e. newest history element is first in list).
      * Each element has a "class" attribute, which can be either "dataset" or a collection type ("list", "paired" or "list:paired").
      * Collections have an attribute called "elements" (List) containing either datasets or other (nested) collections.
+     * The datasets and collections in the processed history are OverlayMap views of the original objects (rather than copies), 
+     * so the original datasets and collections are left unchanged and are not duplicated in memory.
+     * The same dataset can be referenced from many collection elements, and each of these references will only store its own "element_encoded_id" attribute
+     * All the maps and lists in the processed history are unmodifiable, since the history is shared by everyone who uses the archive.
+     * @param metadata The metadata to create the history from
      * @param datasetAttributes a list of dataset attributes to keep. If provided (not null), those attributes that are not included in the list will be ignored
      * @param collectionAttributes a list of collection attributes to keep. If provided (not null), those attributes that are not included in the list will be ignored
      * @return a Map object representing the history and all its contents
      * @throws IOException if the history archive file itself could not be read or any of the metadata files inside the archive could not be processed correctly
      */
-    private Map<String,Object> processHistory(String[] datasetAttributes, String[] collectionAttributes) throws IOException {
+    private Map<String,Object> processHistory(Metadata metadata, String[] datasetAttributes, String[] collectionAttributes) throws IOException {
         ArrayList<Map> historylist=new ArrayList<>(); 
-        getDatasets();  // force import of datasets if they have not already been read     
-        getCollections(); // force import of collections if they have not already been read 
-        // I want to make slight modifications to the structures so I make copies of the current datasets/collections
-        ArrayList<Map> history_datasets=(ArrayList<Map>)deepCopy(datasets, datasetAttributes); 
-        ArrayList<Map> history_collections=(ArrayList<Map>)deepCopy(collections, collectionAttributes); 
-        
-        // Perform simple pre-processing of datasets to clean them up a bit.
-        for (Map<String,Object> dataset:history_datasets) {
-            dataset.put("class","dataset");
-            dataset.put("size",dataset.get("blurb")); dataset.remove("blurb"); // rename "blurb" to "size" (even though "size" is not really consistent)           
-            dataset.put("dbkey", ((Map)dataset.get("metadata")).get("dbkey")); // lift "dbkey" up to top-level instead of having it below "metadata"
-            dataset.remove("metadata"); // this map should now be empty so we can remove it (since 'dbkey' is the only metadata attribute included in the list above)      
+        List<Map> datasets=metadata.datasets;
+        List<Map> collections=metadata.collections;
+        // Perform simple pre-processing of datasets to clean them up a bit. The modifications are made to views of the datasets, so the original datasets are not changed
+        ArrayList<Map> history_datasets=new ArrayList<>(datasets.size());
+        for (Map<String,Object> original:datasets) {
+            history_datasets.add(processDataset(original, datasetAttributes));
         }
-        // Process collections first. Datasets within the collection are moved out of the datasets list and inserted directly as children of the collections
-        for (Map<String,Object> collection:history_collections) {          
-            collection.put("name",collection.get("display_name")); collection.remove("display_name"); // rename "display_name" to "name" to make it consistent with regular datasets          
-            Map<String,Object> contents=(Map<String,Object>)collection.get("collection");
-            collection.put("class",contents.get("type")); // The "type" attribute is lifted one level up and called "class" in the parent
-            processCollection(contents, history_datasets); // goes through the collection, processing each element and adds datasets directly to the leaf nodes
-            historylist.add(collection);
+        Map<Object,Map> history_datasetsByID=buildIndex(history_datasets, "encoded_id");
+        // Process collections first. Datasets within the collection are referenced directly as children of the collections
+        for (Map<String,Object> original:collections) {          
+            historylist.add(processCollectionElement(original, collectionAttributes, history_datasetsByID::get));
         }
         // Now add the remaining datasets that were not part of collections. The datasets that should be visible at the top level in the history have the attribute "visible:true"
         for (Map<String,Object> dataset:history_datasets) {
@@ -870,45 +1790,85 @@ public class GalaxyHistoryArchive {
         }
         Collections.sort(historylist, new ChronologicalOrderComparator(false)); // sort in anti-chronological order (by HID)
         HashMap<String,Object> fullhistory=new HashMap<>();
-        fullhistory.put("metadata", deepCopy(history_metadata, null));
-        fullhistory.put("contents",historylist);
-        return fullhistory;
+        fullhistory.put("metadata", freeze(deepCopy(metadata.history_metadata, null)));
+        fullhistory.put("contents",Collections.unmodifiableList(historylist));
+        return Collections.unmodifiableMap(fullhistory);
+    }
+    
+    /**
+     * Performs simple pre-processing of a dataset to clean it up a bit. The modifications are made to a view of the dataset, so the original dataset is not changed
+     * @param original A dataset from the list of datasets
+     * @param attributes a list of dataset attributes to keep. If provided (not null), those attributes that are not included in the list will be ignored
+     * @return The processed dataset
+     */
+    private Map<String,Object> processDataset(Map<String,Object> original, String[] attributes) {
+        OverlayMap dataset=new OverlayMap((attributes!=null)?(Map<String,Object>)deepCopy(original, attributes):original);
+        dataset.put("class","dataset");
+        dataset.put("size",dataset.get("blurb")); dataset.remove("blurb"); // rename "blurb" to "size" (even though "size" is not really consistent)           
+        dataset.put("dbkey", ((Map)dataset.get("metadata")).get("dbkey")); // lift "dbkey" up to top-level instead of having it below "metadata"
+        dataset.remove("metadata"); // this map should now be empty so we can remove it (since 'dbkey' is the only metadata attribute included in the list above)      
+        return dataset.freeze();
     }
     
     /**
-     * This method is used to perform additional processing / restructuring of a collection element after it has been created from the "collections_attrs.txt" metadata file.
-     * It will add all the datasets that are part of this collection itself 
+     * Processes a top-level collection from the list of collections (as a view, so the original collection is not changed)
+     * @param original A collection from the list of collections
+     * @param attributes a list of collection attributes to keep. If provided (not null), those attributes that are not included in the list will be ignored
+     * @param datasets A function that returns the processed dataset with a given "encoded_id" (or NULL if the dataset does not exist)
+     * @return The processed collection
+     * @throws IOException if the collection could not be processed correctly
+     */
+    private Map<String,Object> processCollectionElement(Map<String,Object> original, String[] attributes, Function<Object,Map> datasets) throws IOException {
+        OverlayMap collection=new OverlayMap((attributes!=null)?(Map<String,Object>)deepCopy(original, attributes):original);
+        collection.put("name",collection.get("display_name")); collection.remove("display_name"); // rename "display_name" to "name" to make it consistent with regular datasets          
+        Map<String,Object> contents=(Map<String,Object>)collection.get("collection");
+        collection.put("class",contents.get("type")); // The "type" attribute is lifted one level up and called "class" in the parent
+        collection.put("collection",processCollection(contents, datasets)); // goes through the collection, processing each element and adds datasets directly to the leaf nodes
+        return collection.freeze();
+    }
+    
+    /**
+     * This method is used to perform additional processing / restructuring of a collection after it has been created from the "collections_attrs.txt" metadata file.
+     * It will add all the datasets that are part of this collection to the collection itself 
      * (In the original metadata files the "leaf node" datasets are kept completely separate from the collections themselves and they are only referenced by the collection)
-     * Subcollections will be processed recursively by this same method
+     * Subcollections will be processed recursively by this same method.
+     * The original collection is not modified. Instead, the method returns a view of the collection (and views of its elements) with the necessary changes.
      * @param collection A collection object
-     * @param datasets A list containing all the datasets in the history. The ones that are relevant will be used.
+     * @param datasets A function that returns the processed dataset with a given "encoded_id". The ones that are relevant will be used.
+     * @return A processed view of the collection
      * @throws IOException if the history archive file itself could not be read or any of the metadata files inside the archive could not be processed correctly
      */
-    private void processCollection(Map collection, List<Map> datasets) throws IOException {
+    private Map<String,Object> processCollection(Map<String,Object> collection, Function<Object,Map> datasets) throws IOException {
         List<Map> elements=(List<Map>)collection.get("elements"); // these are the entries in the collection
-        collection.put("collection_size",elements.size()); // add the size as attribute of the collection to ease processing by browser
         String type=(String)collection.get("type");        
+        ArrayList<Map> processedElements=new ArrayList<>(elements.size());
         int index=0;
-        for (Map element:elements) {
-            if (((int)element.get("element_index"))!=index) throw new IOException("Archive Format Error: List element out of order");
+        for (Map<String,Object> original:elements) {
+            if (((int)original.get("element_index"))!=index) throw new IOException("Archive Format Error: List element out of order");
+            OverlayMap element=new OverlayMap(original);
             element.put("name", element.get("element_identifier")); element.remove("element_identifier"); // rename "element_identifier" to "name" for simplicity
             if (type.equals("list") || type.equals("paired")) { // these list types are not nested and can be processed in the same way;
                 String elementID=(String)element.get("encoded_id");
                 String datasetID=(String)((Map)element.get("hda")).get("encoded_id");                
-                Map dataset=getDataset(datasets, "encoded_id", datasetID);
+                Map dataset=datasets.apply(datasetID);
                 if (dataset==null) throw new IOException("Archive Format Error: Dataset ["+datasetID+"] not found in datasets list");
-                dataset=(Map)deepCopy(dataset, null); // the same dataset can be referenced in many places, but we make individual copies 
-                dataset.put("element_encoded_id",elementID); // this should be unique 
-                element.put("dataset", dataset); // add the dataset directly as an attribute of this element in the collection    
+                OverlayMap reference=new OverlayMap(dataset); // the same dataset can be referenced in many places, but each reference has its own element ID
+                reference.put("element_encoded_id",elementID); // this should be unique 
+                element.put("dataset", reference.freeze()); // add the dataset directly as an attribute of this element in the collection    
             } else if (type.equals("list:paired")) {
                  Map contents=(Map)element.get("child_collection");
                  if (contents==null) throw new IOException("Archive Format Error: Child collection not found");
                  element.put("class",contents.get("type")); // The "type" attribute is lifted one level up and called "class" in the parent
-                 processCollection(contents, datasets); // process nested collection recursively
-                 element.put("collection",contents); element.remove("child_collection"); // rename "child_collection" attribute to "collection" for simplicity
+                 element.put("collection",processCollection(contents, datasets)); // process nested collection recursively
+                 element.remove("child_collection"); // the "child_collection" attribute is renamed to "collection" for simplicity
             } else throw new IOException("Archive Format Error: Unrecognized collection type: "+type); 
+            processedElements.add(element.freeze());
             index++;
         }                                    
+        OverlayMap processed=new OverlayMap(collection);
+        processed.put("collection_size",elements.size()); // add the size as attribute of the collection to ease processing by browser
+        processed.put("elements",Collections.unmodifiableList(processedElements));
+        return processed.freeze();
     }
     
     
@@ -962,7 +1922,7 @@ public class GalaxyHistoryArchive {
             }
         } else if (object instanceof Map) {
             copy=new HashMap();     
-            Set<String> keys=((Map)object).keySet();
+            Set<String> keys=new HashSet<>(((Map)object).keySet()); // a copy, so that the original map is not changed below
             if (attributes!=null) keys.retainAll(Arrays.asList(attributes)); // intersection of keys and specified attributes
             for (String key:keys) {
                 Object value=((Map)object).get(key);
@@ -990,6 +1950,49 @@ public class GalaxyHistoryArchive {
         }       
     }    
 
+    /**
+     * Keeps track of the progress while counting the states of the datasets in a (possibly nested) collection.
+     * These objects are placed on the stack used by countStatesInCollection()
+     */
+    private static class CollectionCount {
+        final Map<String,Object> collection;
+        final List<Map> elements;
+        final Map<String,Object> parentElement; // the element in the parent collection that refers to this collection (or NULL for top-level collections)
+        final int[] states=new int[7];
+        int next=0; // the index of the next element to process
+        
+        CollectionCount(Map<String,Object> collection, Map<String,Object> parentElement) throws Exception {
+            this.collection=collection;
+            this.parentElement=parentElement;
+            this.elements=(List<Map>)collection.get("elements");
+            if (elements==null) throw new Exception("No 'elements' entry in expected collection object ["+collection.get("encoded_id")+"]");
+        }
+    }
+
+    /**
+     * All the metadata read from the archive (or restored from a snapshot) together with the lookup tables built from it.
+     * A Metadata object is only filled in by the thread that loads it (see loadMetadata), and after it has been published through the 'lazyMetadata' field,
+     * neither the object itself nor any of the maps and lists it references will be modified. The fields for metadata files that were not found in the archive are NULL.
+     */
+    private static class Metadata {
+        String version;                      // the format version of the history archive file. Either 2 (newest format), 1 (older unsupported format) or 0 (not a Galaxy History file) 
+        long history_size=-1;                // the summed size of all the files in the 'datasets' subdirectory of the archive (or -1 if this is not known)
+        Map<String,Object> history_metadata; // (taken directly from the "history_attrs.txt" JSON file inside the archive)  
+        List<Map> datasets;                  // raw datasets (taken directly from the "datasets_attrs.txt" JSON file inside the archive)
+        List<Map> collections;               // raw collections (taken directly from the "collections_attrs.txt" JSON file inside the archive)
+        List<Map> jobs;                      // raw jobs (taken directly from the "jobs_attrs.txt" JSON file inside the archive)
+        boolean restored=false;              // TRUE if the metadata was restored from a snapshot rather than read from the archive
+        Map<String,Map<Object,Map>> datasetIndexes; // attribute name => (attribute value => dataset). See INDEXED_DATASET_ATTRIBUTES
+        Map<Object,Map> collectionsByID;     // lookup table for collections based on their "encoded_id"
+        Map<Object,Map> jobsByID;            // lookup table for jobs based on their "encoded_id"
+        Map<Object,Map> jobsByOutput;        // lookup table for jobs based on the "encoded_id" of their output datasets
+
+        /** Returns TRUE if this is a supported history (version 2) and all the metadata files were found */
+        boolean isComplete() {
+            return "2".equals(version) && history_metadata!=null && datasets!=null && collections!=null && jobs!=null;
+        }
+    }
+    
     /**
      * A new exception used to signal that the requested file was not found within the archive tarball
      */
@@ -6,6 +6,7 @@ package no.nels.galaxyhistorybrowser;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * 
@@ -17,11 +18,21 @@ public class GalaxyHistoryBrowser {
     static String archiveFile=null; // the (optional) name or URL of the history archive file provided on the command line)
     static String datasetID=null;   // the (optional) identifier for a dataset in the history, provided on the command line
     static String extraFile=null;   // the (optional) path for an "extra file" for a dataset in the history, provided on the command line
-    static int start=-1;            // the (optional) start position inside a file when only a subset of the file should be returned
-    static int end=-1;              // the (optional) end position inside a file when only a subset of the file should be returned
+    static long start=-1;           // the (optional) start position inside a file when only a subset of the file should be returned
+    static long end=-1;             // the (optional) end position (inclusive) inside a file when only a subset of the file should be returned
     static boolean returnVersionOnly=false; // set to TRUE if only the archive format version of the history file should be returned
     static boolean returnMIMEtype=false;    // set to TRUE if only the MIME type of a dataset or file should be returned rather than the full file itself
     static boolean download=false;          // set to TRUE if datasets should be returned in "download mode" rather than "view mode" (this overrides "decompressed")    
+    static boolean compact=false;           // set to TRUE if the history JSON should be output in compact form (without indentation and newlines)
+    static int serverPort=-1;               // if this is set (0 or higher), a web server will be started on this port instead of processing a single history
+    static String serverRoot=null;          // the directory containing the history archive files to be served by the web server
+    static long serverCacheSize=ArchiveRegistry.DEFAULT_MAXIMUM_SIZE; // the (estimated) amount of memory the web server can use to keep opened histories in memory
+    static String extractDirectory=null;    // if this is set, history archives are extracted to this directory and datasets are output from the extracted files
+    static long extractSize=ExtractedArchiveCache.DEFAULT_MAXIMUM_SIZE; // the maximum total size of the extracted files
+    static long downloadSize=DownloadCache.DEFAULT_MAXIMUM_SIZE; // the maximum total size of the local copies of history files that are read from URLs
+    static String repackFile=null;          // if this is set, the history archive is repacked into this file (see HistoryRepacker)
+    static long firstLine=-1;               // the (optional) first line of a dataset to output (starting at 1) when only some lines of the dataset should be returned
+    static int lineCount=100;               // the number of lines to output when the 'lines' option is used
     
     /**
      * Reads a Galaxy History Archive file and outputs the requested content to STDOUT.
@@ -34,9 +45,23 @@ public class GalaxyHistoryBrowser {
         else {
             try {
                 processArguments(args); // process arguments and set the static fields in this class
+                if (extractDirectory!=null) GalaxyHistoryArchive.setExtractedArchiveCache(new ExtractedArchiveCache(new java.io.File(extractDirectory), extractSize));
+                GalaxyHistoryArchive.setDownloadCache((downloadSize>0)?new DownloadCache(DownloadCache.getDefaultDirectory(), downloadSize):null);
+                if (serverPort>=0) { // start a web server that will keep running until the process is stopped
+                    if (serverRoot==null && archiveFile!=null) serverRoot=new java.io.File(archiveFile).getAbsoluteFile().getParent(); // serve the directory containing the history
+                    if (serverRoot==null) throw new IllegalArgumentException("The 'serve' option requires a 'root' directory (or a history file)");
+                    HistoryServer server=new HistoryServer(new java.io.File(serverRoot), serverPort, new ArchiveRegistry(serverCacheSize));
+                    server.start();
+                    System.err.println("Serving histories from '"+serverRoot+"' on port "+server.getPort());
+                    return;
+                }
                 if (archiveFile==null) throw new IllegalArgumentException("Missing history file");
                 GalaxyHistoryArchive history=new GalaxyHistoryArchive(archiveFile);
                 
+                if (repackFile!=null) {
+                    history.repack(new java.io.File(repackFile));
+                    return;
+                }
                 if (returnVersionOnly) {
                     try {
                         String format=history.getExportVersion();
@@ -51,10 +76,21 @@ public class GalaxyHistoryBrowser {
                     System.out.println(history.getMIMEtype(datasetID, extraFile, download));
                     return;
                 }    
-                if (datasetID!=null) { // return a dataset file inside the archive rather than the history itself
+                if (datasetID!=null && firstLine>0) { // return only some lines of a dataset (decompressed), located with a line index
+                    if (extraFile!=null || start>=0) throw new IllegalArgumentException("The 'lines' option can not be combined with the 'extra', 'start' or 'end' options");
+                    for (String line:history.getLines(datasetID, firstLine-1, lineCount)) {
+                        System.out.write(line.getBytes(StandardCharsets.UTF_8));
+                        System.out.write('\n');
+                    }
+                    System.out.flush();
+                } else if (datasetID!=null && start>=0) { // return only a section of a dataset file or extra file (decompressed in 'view mode')
+                    if (extraFile==null) history.outputDataset(System.out, datasetID, start, end, !download);
+                    else history.outputDatasetExtraFile(System.out, datasetID, extraFile, start, end, !download);
+                    System.out.flush();
+                } else if (datasetID!=null) { // return a dataset file inside the archive rather than the history itself
                     history.outputDataset(System.out, datasetID, extraFile, download);
                 } else { // output the whole history as JSON 
-                    history.outputHistoryAsJSON(System.out, true);
+                    history.outputHistoryAsJSON(System.out, !compact);
                 }
             } catch (IllegalArgumentException argEx) {
                 System.err.println("Argument error: "+argEx.getMessage());
@@ -70,20 +106,42 @@ public class GalaxyHistoryBrowser {
    
     
     private static void showUsage() {
-        System.err.println("Usage: java -jar GalaxyHistoryBrowser.jar -history <tarball> [-format] [-dataset <id> [-extra <filepath>] [-download] [-mime]] \n");   
+        System.err.println("Usage: java -jar GalaxyHistoryBrowser.jar -history <tarball> [-format] [-compact] [-dataset <id> [-extra <filepath>] [-start <byte>] [-end <byte>] [-lines <line> [-count <n>]] [-download] [-mime]] \n");   
         System.err.println("       If only the history option is provided, a JSON representation of the history will be output to STDOUT.");
+        System.err.println("       If the 'compact' option is selected, the JSON representation will be output without indentation and newlines.");
         System.err.println("       If 'format' option is selected (along with history option), the version format number of the history file will be returned.");
         System.err.println("          2=latest format, 1=older unsupported format, 0=not a Galaxy history file, -1=unable to process file (this is followed by an error message in parentheses).");
         System.err.println("       If the 'dataset' option is provided (along with history), the raw dataset file will be output to STDOUT. The value should be the 'encoded_id' of a dataset.");
         System.err.println("       If the 'extra' option is provided (along with history and dataset), the raw extra file associated with the dataset will be output to STDOUT.");
         System.err.println("       The value of the extra option should be the filepath of the extra file, relative to the location of the main dataset file.");
-        // System.err.println("       If the 'start' and/or 'end' options are provided, only a portion of the file (dataset or extra file) will be output.");             
+        System.err.println("       If the 'start' and/or 'end' options are provided, only a portion of the file (dataset or extra file) will be output.");
+        System.err.println("          The positions are byte offsets (the 'end' byte is included) in the file, or in the decompressed file for compressed datasets in 'view mode'.");
+        System.err.println("       If the 'lines' option is provided, only the given number of lines ('count', default 100) starting at this line (the first line is 1) will be output from the dataset.");
+        System.err.println("          Compressed datasets are decompressed. The lines are located with a line index that is built the first time and saved next to the history file.");
         System.err.println("       If the 'mime' option is selected (along with a dataset or extra file), the MIME type of the dataset (or extra file) is returned.");   
         System.err.println("       If the 'download' option is selected, datasets will be output in 'download' mode rather than 'view' mode.");
         System.err.println("          Datasets are normally downloaded 'as is', in the format they have in the history. The exception is datasets with extra files,");       
         System.err.println("          which are downloaded as ZIP archives containing the dataset itself plus all the extra files.");
         System.err.println("          However, in 'view mode' (default) datasets that are compressed in the history will be output as uncompressed.");         
         System.err.println("          If this option is used together with the 'mime' option, the MIME type of the 'downloaded' dataset is returned.");          
+        System.err.println("\n       java -jar GalaxyHistoryBrowser.jar -history <tarball> -repack <file>\n");
+        System.err.println("       Rewrites the history into a block-compressed tarball with an embedded index. The new file is still a regular .tar.gz file containing exactly the same tarball,");
+        System.err.println("       but datasets and metadata files can be read directly from it without going through the whole archive first.");
+        System.err.println("\n       java -jar GalaxyHistoryBrowser.jar -serve <port> -root <directory> [-cache <megabytes>]\n");
+        System.err.println("       Starts a web server that serves all the history files in the root directory. For a history file named 'history.tar.gz', the URLs are:");
+        System.err.println("          /history.tar.gz/                    : a web page that displays the history");
+        System.err.println("          /history.tar.gz/history.json        : the JSON representation of the history");
+        System.err.println("          /history.tar.gz/format              : the version format number of the history file");
+        System.err.println("          /history.tar.gz/<id>/               : a dataset (add '?download=true' for 'download' mode or '?mime=true' for the MIME type)");
+        System.err.println("          /history.tar.gz/<id>/<filepath>     : an extra file associated with a dataset");
+        System.err.println("       The 'cache' option limits the (estimated) memory used to keep opened histories in memory. The default is "+(ArchiveRegistry.DEFAULT_MAXIMUM_SIZE/(1024*1024))+" MB.");
+        System.err.println("\n       The 'extract <directory>' option can be added in both modes to extract history files into a cache directory the first time a dataset is requested,");
+        System.err.println("       so that later requests for datasets in the same history can be copied directly from the extracted files.");
+        System.err.println("       The 'extractsize <megabytes>' option limits the total size of the cache directory. The default is "+(ExtractedArchiveCache.DEFAULT_MAXIMUM_SIZE/(1024*1024))+" MB.");
+        System.err.println("       History files given as URLs are downloaded to a cache below the system's temporary directory, so they only have to be downloaded once.");
+        System.err.println("       The 'downloadsize <megabytes>' option limits the total size of this cache (0 turns it off). The default is "+(DownloadCache.DEFAULT_MAXIMUM_SIZE/(1024*1024))+" MB.");
+        System.err.println("       The 'io <mode>' option selects how history files are read: 'readahead' (default) reads ahead in a background thread,");
+        System.err.println("       'mapped' reads local files through memory mapping and 'direct' reads the files without any read-ahead.");
         
     }
       
@@ -110,7 +168,7 @@ public class GalaxyHistoryBrowser {
            } else if (args[current].equals("-start")) {
                if (current+1==args.length) throw new IllegalArgumentException("Missing value for 'start' option");
                else try {
-                   start=Integer.parseInt(args[current+1]);
+                   start=Long.parseLong(args[current+1]);
                    if (start<0) throw new NumberFormatException();
                } catch (NumberFormatException e) {
                    throw new IllegalArgumentException("Value for 'start' option must be a positive integer");
@@ -119,12 +177,30 @@ public class GalaxyHistoryBrowser {
            } else if (args[current].equals("-end")) {
                if (current+1==args.length) throw new IllegalArgumentException("Missing value for 'end' option");
                else try {
-                   end=Integer.parseInt(args[current+1]);
-                   if (end<0 || end<=start) throw new NumberFormatException();
+                   end=Long.parseLong(args[current+1]);
+                   if (end<0 || end<start) throw new NumberFormatException();
                } catch (NumberFormatException e) {
-                   throw new IllegalArgumentException("Value for 'end' option must be a positive integer greater than start");
+                   throw new IllegalArgumentException("Value for 'end' option must be a positive integer not smaller than start");
                }
                current+=2;               
+           } else if (args[current].equals("-lines")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing value for 'lines' option");
+               else try {
+                   firstLine=Long.parseLong(args[current+1]);
+                   if (firstLine<1) throw new NumberFormatException();
+               } catch (NumberFormatException e) {
+                   throw new IllegalArgumentException("Value for 'lines' option must be a positive integer (the first line is 1)");
+               }
+               current+=2;
+           } else if (args[current].equals("-count")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing value for 'count' option");
+               else try {
+                   lineCount=Integer.parseInt(args[current+1]);
+                   if (lineCount<1) throw new NumberFormatException();
+               } catch (NumberFormatException e) {
+                   throw new IllegalArgumentException("Value for 'count' option must be a positive integer");
+               }
+               current+=2;
            } else if (args[current].equals("-format") || args[current].equals("-version")) {
                returnVersionOnly=true;
                current+=1;
@@ -134,11 +210,71 @@ public class GalaxyHistoryBrowser {
            } else if (args[current].equals("-download")) {
                download=true;
                current+=1;
+           } else if (args[current].equals("-serve")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing port for 'serve' option");
+               else try {
+                   serverPort=Integer.parseInt(args[current+1]);
+                   if (serverPort<0 || serverPort>65535) throw new NumberFormatException();
+               } catch (NumberFormatException e) {
+                   throw new IllegalArgumentException("Value for 'serve' option must be a valid port number");
+               }
+               current+=2;
+           } else if (args[current].equals("-root")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing directory for 'root' option");
+               else serverRoot=stripQuotes(args[current+1]);
+               current+=2;
+           } else if (args[current].equals("-cache")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing size for 'cache' option");
+               else try {
+                   serverCacheSize=Long.parseLong(args[current+1])*1024*1024;
+                   if (serverCacheSize<0) throw new NumberFormatException();
+               } catch (NumberFormatException e) {
+                   throw new IllegalArgumentException("Value for 'cache' option must be a positive number of megabytes");
+               }
+               current+=2;
+           } else if (args[current].equals("-extract")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing directory for 'extract' option");
+               else extractDirectory=stripQuotes(args[current+1]);
+               current+=2;
+           } else if (args[current].equals("-extractsize")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing size for 'extractsize' option");
+               else try {
+                   extractSize=Long.parseLong(args[current+1])*1024*1024;
+                   if (extractSize<0) throw new NumberFormatException();
+               } catch (NumberFormatException e) {
+                   throw new IllegalArgumentException("Value for 'extractsize' option must be a positive number of megabytes");
+               }
+               current+=2;
+           } else if (args[current].equals("-downloadsize")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing size for 'downloadsize' option");
+               else try {
+                   downloadSize=Long.parseLong(args[current+1])*1024*1024;
+                   if (downloadSize<0) throw new NumberFormatException();
+               } catch (NumberFormatException e) {
+                   throw new IllegalArgumentException("Value for 'downloadsize' option must be a positive number of megabytes");
+               }
+               current+=2;
+           } else if (args[current].equals("-io")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing mode for 'io' option");
+               String mode=args[current+1].toLowerCase();
+               if (mode.equals("direct")) ArchiveSource.setMode(ArchiveSource.Mode.DIRECT);
+               else if (mode.equals("readahead")) ArchiveSource.setMode(ArchiveSource.Mode.READ_AHEAD);
+               else if (mode.equals("mapped")) ArchiveSource.setMode(ArchiveSource.Mode.MAPPED);
+               else throw new IllegalArgumentException("Value for 'io' option must be 'direct', 'readahead' or 'mapped'");
+               current+=2;
+           } else if (args[current].equals("-repack")) {
+               if (current+1==args.length) throw new IllegalArgumentException("Missing file for 'repack' option");
+               else repackFile=stripQuotes(args[current+1]);
+               current+=2;
+           } else if (args[current].equals("-compact")) {
+               compact=true;
+               current+=1;
            } else throw new IllegalArgumentException("Unrecognized option: "+args[current]);
 
         }
-        if (end>0 && start<0) start=0; // if only 'end' is specified then start is assumed to be 0
-        if (start>=0 && end<=start) throw new IllegalArgumentException("The 'end' must be greater than 'start'");     
+        if (end>=0 && start<0) start=0; // if only 'end' is specified then start is assumed to be 0
+        if (start>=0 && end<0) end=Long.MAX_VALUE-1; // only 'start' is specified, so the rest of the file is output
+        if (start>=0 && end<start) throw new IllegalArgumentException("The 'end' must not be smaller than 'start'");     
     }
  
     /**
@@ -0,0 +1,218 @@
+/*
+ * An InputStream that decompresses GZIP data made up of one or more concatenated members
+ * while keeping track of the exact compressed and uncompressed positions in the stream.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class decompresses GZIP streams that can consist of several concatenated members (as produced by e.g. "bgzip", "pigz --independent" or simply "cat a.gz b.gz").
+ * Unlike the GzipCompressorInputStream, it keeps track of how many compressed bytes have been consumed,
+ * so that the compressed and uncompressed offsets of the start of each member can be reported to a MemberListener.
+ * Since every member is an independent deflate stream, decompression can be resumed from the start of any member
+ * without knowing anything about the preceding data. These positions can thus be used as seek points into the stream (see ArchiveIndex).
+ * @author kjetikl
+ */
+public class GzipMemberInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE=65536;
+
+    private final InputStream input;
+    private final MemberListener listener;
+    private final Inflater inflater=new Inflater(true); // raw deflate. The GZIP headers and trailers are handled by this class
+    private final CRC32 crc=new CRC32();
+    private final byte[] buffer=new byte[BUFFER_SIZE];
+    private int position=0; // the next unprocessed byte in the buffer
+    private int limit=0;    // the number of valid bytes in the buffer
+    private long filled;    // the total number of compressed bytes read into the buffer (including the initial offset)
+    private long uncompressedPosition;
+    private long memberStart; // the uncompressed position where the current member started
+    private byte[] memberExtra=null; // the FEXTRA field of the current member (or NULL if the member does not have one)
+    private boolean inMember=false;
+    private boolean endOfStream=false;
+
+    /**
+     * Reports the positions where new GZIP members start in the stream
+     */
+    public interface MemberListener {
+        /**
+         * Called every time a new member is encountered in the stream
+         * @param compressedOffset The position of the first byte of the member's GZIP header in the compressed stream
+         * @param uncompressedOffset The position in the decompressed stream of the first byte produced by the member
+         */
+        public void memberStarted(long compressedOffset, long uncompressedOffset);
+    }
+
+    /**
+     * Creates a new stream that decompresses GZIP data from the start of the given input stream
+     * @param input The compressed input. This must be positioned at the start of a GZIP member
+     * @throws IOException if the stream could not be read or it does not start with a valid GZIP header
+     */
+    public GzipMemberInputStream(InputStream input) throws IOException {
+        this(input, 0, 0, null);
+    }
+
+    /**
+     * Creates a new stream that decompresses GZIP data from the input stream and reports the start of each new member to the listener
+     * @param input The compressed input. This must be positioned at the start of a GZIP member
+     * @param compressedOffset The position of the input stream relative to the start of the full compressed stream
+     * @param uncompressedOffset The position in the full decompressed stream corresponding to the start of the input stream
+     * @param listener If provided (not null), this listener will be notified about every new member, including the first one
+     * @throws IOException if the stream could not be read or it does not start with a valid GZIP header
+     */
+    public GzipMemberInputStream(InputStream input, long compressedOffset, long uncompressedOffset, MemberListener listener) throws IOException {
+        this.input=input;
+        this.listener=listener;
+        this.filled=compressedOffset;
+        this.uncompressedPosition=uncompressedOffset;
+        if (!startMember(true)) throw new IOException("Input is not in the .gz format");
+    }
+
+    /** Returns the number of compressed bytes that have been consumed so far (including the initial offset) */
+    public long getCompressedPosition() {
+        return filled-(limit-position);
+    }
+
+    /** Returns the number of bytes that have been decompressed so far (including the initial offset) */
+    public long getUncompressedPosition() {
+        return uncompressedPosition;
+    }
+
+    /** Returns the contents of the FEXTRA field in the header of the current member, or NULL if the member does not have this field */
+    public byte[] getMemberExtraField() {
+        return memberExtra;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single=new byte[1];
+        int n=read(single,0,1);
+        return (n<=0)?-1:(single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len==0) return 0;
+        while (!endOfStream) {
+            if (!inMember) {
+                if (!startMember(false)) {endOfStream=true; break;}
+            }
+            int n;
+            try {
+                n=inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt GZIP data: "+e.getMessage(), e);
+            }
+            position=limit-inflater.getRemaining();
+            if (n>0) {
+                crc.update(b, off, n);
+                uncompressedPosition+=n;
+                return n;
+            }
+            if (inflater.finished()) finishMember();
+            else if (inflater.needsDictionary()) throw new IOException("Corrupt GZIP data: deflate stream requires a preset dictionary");
+            else if (inflater.needsInput()) {
+                if (!fill()) throw new EOFException("Unexpected end of GZIP stream");
+                inflater.setInput(buffer, position, limit-position);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] scratch=new byte[(int)Math.min(n, BUFFER_SIZE)];
+        long skipped=0;
+        while (skipped<n) {
+            int read=read(scratch, 0, (int)Math.min(n-skipped, scratch.length));
+            if (read<0) break;
+            skipped+=read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        input.close();
+    }
+
+    /**
+     * Reads the header of a new member. The method returns FALSE if the end of the stream has been reached instead.
+     * Trailing data after the last member that does not look like a GZIP header is ignored (the same way the "gzip" tool does it).
+     */
+    private boolean startMember(boolean first) throws IOException {
+        long compressedStart=getCompressedPosition();
+        int magic1=readByte();
+        if (magic1<0) return false;
+        int magic2=readByte();
+        if (magic1!=0x1f || magic2!=0x8b) {
+            if (first) throw new IOException("Input is not in the .gz format");
+            else return false;
+        }
+        if (readByte()!=8) throw new IOException("Unsupported compression method in GZIP header");
+        int flags=readByte();
+        for (int i=0;i<6;i++) readByteOrFail(); // MTIME, XFL and OS fields
+        memberExtra=null;
+        if ((flags & 0x04)!=0) { // FEXTRA
+            int length=readByteOrFail() | (readByteOrFail()<<8);
+            memberExtra=new byte[length];
+            for (int i=0;i<length;i++) memberExtra[i]=(byte)readByteOrFail();
+        }
+        if ((flags & 0x08)!=0) while (readByteOrFail()!=0) {} // FNAME (zero-terminated)
+        if ((flags & 0x10)!=0) while (readByteOrFail()!=0) {} // FCOMMENT (zero-terminated)
+        if ((flags & 0x02)!=0) {readByteOrFail();readByteOrFail();} // FHCRC
+        inflater.reset();
+        if (position<limit) inflater.setInput(buffer, position, limit-position); // the inflater should always hold all the unprocessed bytes in the buffer
+        crc.reset();
+        memberStart=uncompressedPosition;
+        inMember=true;
+        if (listener!=null) listener.memberStarted(compressedStart, uncompressedPosition);
+        return true;
+    }
+
+    /** Reads and verifies the trailer of the current member after the deflate stream has finished */
+    private void finishMember() throws IOException {
+        long expectedCRC=readInt();
+        long expectedSize=readInt();
+        if (expectedCRC!=crc.getValue()) throw new IOException("Corrupt GZIP trailer: CRC mismatch");
+        if (expectedSize!=((uncompressedPosition-memberStart) & 0xffffffffL)) throw new IOException("Corrupt GZIP trailer: size mismatch");
+        inMember=false;
+    }
+
+    /** Reads a 4-byte little-endian unsigned integer */
+    private long readInt() throws IOException {
+        long value=0;
+        for (int i=0;i<4;i++) value|=((long)readByteOrFail())<<(8*i);
+        return value;
+    }
+
+    private int readByteOrFail() throws IOException {
+        int value=readByte();
+        if (value<0) throw new EOFException("Unexpected end of GZIP stream");
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        if (position>=limit && !fill()) return -1;
+        return buffer[position++] & 0xff;
+    }
+
+    /** Reads more compressed data into the buffer. This should only be called when all the bytes in the buffer have been processed */
+    private boolean fill() throws IOException {
+        int n=input.read(buffer, 0, buffer.length);
+        while (n==0) n=input.read(buffer, 0, buffer.length);
+        if (n<0) return false;
+        position=0;
+        limit=n;
+        filled+=n;
+        return true;
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * A compact Map representation of a metadata object (dataset, collection or job) read from a history archive.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A HistoryRecord stores the values of a fixed set of known fields (described by a Schema) in an array rather than in a HashMap,
+ * and numeric fields such as "hid" can be stored in primitive fields in the subclasses.
+ * Fields that are not part of the schema are kept in a separate catch-all map, so no information is lost.
+ * The record still implements the full Map interface, so it can be used everywhere the plain HashMaps created by the SimpleJSONparser can be used
+ * (including serialization with Jackson). Missing fields and fields that have been explicitly set to NULL are distinguished in the same way as in a regular map.
+ * @author kjetikl
+ */
+public abstract class HistoryRecord extends AbstractMap<String,Object> {
+
+    private static final Object ABSENT=new Object();    // marks known fields that are not present in the record
+    private static final Object PRIMITIVE=new Object(); // marks known fields whose value is stored in a primitive field in the subclass
+
+    private final Schema schema;
+    private final Object[] values;
+    private HashMap<String,Object> unknown=null; // catch-all for fields that are not part of the schema. Created when needed
+    private volatile boolean frozen=false;        // set to TRUE when the record can no longer be modified (see freeze())
+
+    /**
+     * Describes the known fields of a record type. Each field is identified by its position in the schema
+     */
+    protected static final class Schema {
+        private final String[] fields;
+        private final HashMap<String,Integer> positions;
+        private final boolean[] primitive;
+
+        /**
+         * @param fields The names of all the known fields
+         * @param primitiveFields The names of the fields that can be stored in primitive fields by the subclass. These must also be included in the first list
+         */
+        public Schema(String[] fields, String... primitiveFields) {
+            this.fields=fields;
+            this.positions=new HashMap<>(fields.length*2);
+            for (int i=0;i<fields.length;i++) positions.put(fields[i], i);
+            this.primitive=new boolean[fields.length];
+            for (String field:primitiveFields) primitive[indexOf(field)]=true;
+        }
+
+        /** Returns the position of the field in the schema, or -1 if the field is not part of the schema */
+        public int indexOf(Object field) {
+            Integer position=positions.get(field);
+            return (position!=null)?position:-1;
+        }
+    }
+
+    protected HistoryRecord(Schema schema) {
+        this.schema=schema;
+        this.values=new Object[schema.fields.length];
+        Arrays.fill(values, ABSENT);
+    }
+
+    /**
+     * Returns the value of a field that is stored in a primitive field (boxed).
+     * This will only be called for fields that have previously been accepted by setPrimitive()
+     * @param field The position of the field in the schema
+     */
+    protected Object getPrimitive(int field) {
+        throw new IllegalStateException("No primitive value for field: "+schema.fields[field]);
+    }
+
+    /**
+     * Tries to store the value of a field in a primitive field.
+     * @param field The position of the field in the schema
+     * @param value The new value
+     * @return TRUE if the value was stored in a primitive field, or FALSE if it should be stored as a regular object (e.g. because it is NULL or of an unexpected type)
+     */
+    protected boolean setPrimitive(int field, Object value) {
+        return false;
+    }
+
+    /**
+     * Makes this record unmodifiable. Any attempt to put or remove fields afterwards will throw an UnsupportedOperationException.
+     * This is used when the record is shared between threads (nested Maps and Lists are not affected and must be made unmodifiable separately)
+     * @return This record
+     */
+    public HistoryRecord freeze() {
+        frozen=true;
+        return this;
+    }
+
+    /** Returns TRUE if this record has been made unmodifiable with freeze() */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /** Returns the fields that are not part of the schema for this record type */
+    public Map<String,Object> getUnknownFields() {
+        return (unknown!=null)?Collections.unmodifiableMap(unknown):Collections.<String,Object>emptyMap();
+    }
+
+    @Override
+    public Object get(Object key) {
+        int field=schema.indexOf(key);
+        if (field<0) return (unknown!=null)?unknown.get(key):null;
+        return getValue(field);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int field=schema.indexOf(key);
+        if (field<0) return (unknown!=null && unknown.containsKey(key));
+        return values[field]!=ABSENT;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (frozen) throw new UnsupportedOperationException("The record can not be modified");
+        int field=schema.indexOf(key);
+        if (field<0) {
+            if (unknown==null) unknown=new HashMap<>(4);
+            return unknown.put(key, value);
+        }
+        Object old=getValue(field);
+        values[field]=(schema.primitive[field] && setPrimitive(field, value))?PRIMITIVE:value;
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (frozen) throw new UnsupportedOperationException("The record can not be modified");
+        int field=schema.indexOf(key);
+        if (field<0) return (unknown!=null)?unknown.remove(key):null;
+        Object old=getValue(field);
+        values[field]=ABSENT;
+        return old;
+    }
+
+    @Override
+    public int size() {
+        int size=(unknown!=null)?unknown.size():0;
+        for (Object value:values) if (value!=ABSENT) size++;
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String,Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String,Object>>() {
+            @Override
+            public Iterator<Map.Entry<String,Object>> iterator() {
+                return new RecordIterator();
+            }
+            @Override
+            public int size() {
+                return HistoryRecord.this.size();
+            }
+        };
+    }
+
+    private Object getValue(int field) {
+        Object value=values[field];
+        if (value==ABSENT) return null;
+        if (value==PRIMITIVE) return getPrimitive(field);
+        return value;
+    }
+
+    /** Iterates over the known fields that are present (in schema order) followed by the unknown fields */
+    private class RecordIterator implements Iterator<Map.Entry<String,Object>> {
+        private int next=0; // the position of the next known field to consider
+        private final Iterator<Map.Entry<String,Object>> unknownIterator=(unknown!=null)?unknown.entrySet().iterator():null;
+
+        @Override
+        public boolean hasNext() {
+            while (next<values.length && values[next]==ABSENT) next++;
+            return next<values.length || (unknownIterator!=null && unknownIterator.hasNext());
+        }
+
+        @Override
+        public Map.Entry<String,Object> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            if (next<values.length) {
+                final String key=schema.fields[next++];
+                return new AbstractMap.SimpleEntry<String,Object>(key, get(key)) {
+                    @Override
+                    public Object setValue(Object value) {
+                        put(key, value);
+                        return super.setValue(value);
+                    }
+                };
+            }
+            return unknownIterator.next();
+        }
+    }
+
+    /** Returns the value as an Integer if it is a number within the range of an int, or NULL otherwise */
+    protected static Integer asInteger(Object value) {
+        if (value instanceof Integer) return (Integer)value;
+        if ((value instanceof Long || value instanceof Short) && ((Number)value).longValue()==((Number)value).intValue()) return ((Number)value).intValue();
+        return null;
+    }
+
+    /** Returns a long number as an Integer if it is within the range of an int, or as a Long otherwise. This is consistent with how numbers are parsed from JSON */
+    protected static Number box(long value) {
+        return (value==(int)value)?(Number)Integer.valueOf((int)value):(Number)Long.valueOf(value);
+    }
+}
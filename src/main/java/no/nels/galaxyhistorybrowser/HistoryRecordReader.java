@@ -0,0 +1,181 @@
+/*
+ * Reads datasets, collections and jobs directly from a JSON token stream into compact HistoryRecord objects.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This reader builds the same structures as the SimpleJSONparser (Maps, Lists, Strings, Integers, Doubles and Booleans),
+ * except that datasets, collections, collection elements and jobs are represented by compact HistoryRecord objects instead of HashMaps.
+ * The reader can be used with any Jackson JsonParser, so it can read both the JSON metadata files in the archive and binary (Smile) snapshots.
+ * <br><br>
+ * String values of fields that usually only have a few distinct values (such as "extension", "state" and "dbkey") are deduplicated through a dictionary
+ * belonging to the reader, so that all records read by the same reader share the same String objects for these values.
+ * (Field names do not need this, since Jackson already canonicalizes those.)
+ * Integer numbers are returned as Integers if they fit within an int and as Longs otherwise.
+ * @author kjetikl
+ */
+public class HistoryRecordReader {
+
+    /** Fields whose values are expected to repeat many times in a history */
+    private static final Set<String> LOW_CARDINALITY_FIELDS=new HashSet<>(Arrays.asList(
+        "extension","state","dbkey","designation","info","blurb","element_type","type","populated_state","tool_id","tool_version",
+        "model_class","history_content_type","genome_build","data_lines"
+    ));
+
+    /** The kind of object that is expected at a given position in the metadata */
+    private enum Kind {GENERIC, DATASET, COLLECTION, COLLECTION_CONTENTS, COLLECTION_ELEMENT, JOB}
+
+    private final HashMap<String,String> dictionary=new HashMap<>();
+
+    /** Creates a JSON parser for a metadata file in the archive (using the same settings as the SimpleJSONparser) */
+    public static JsonParser createParser(Reader reader) throws IOException {
+        JsonFactory factory = new JsonFactory();
+        factory.enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES); // allow JSON strings to be enclosed with single quotes in addition to double quotes. Not JSON standard.
+        return factory.createParser(reader);
+    }
+
+    /**
+     * Reads a list of datasets (the contents of the "datasets_attrs.txt" file)
+     * @param parser A parser positioned before (or at) the start of the list
+     * @return A list of DatasetRecords
+     * @throws IOException if the data could not be read or does not contain a list
+     */
+    public List<Map> readDatasets(JsonParser parser) throws IOException {
+        return readList(parser, Kind.DATASET, "datasets");
+    }
+
+    /**
+     * Reads a list of collections (the contents of the "collections_attrs.txt" file).
+     * @param parser A parser positioned before (or at) the start of the list
+     * @return A list of CollectionRecords. The elements within the collections are CollectionElementRecords
+     * @throws IOException if the data could not be read or does not contain a list
+     */
+    public List<Map> readCollections(JsonParser parser) throws IOException {
+        return readList(parser, Kind.COLLECTION, "collections");
+    }
+
+    /**
+     * Reads a list of jobs (the contents of the "jobs_attrs.txt" file)
+     * @param parser A parser positioned before (or at) the start of the list
+     * @return A list of JobRecords
+     * @throws IOException if the data could not be read or does not contain a list
+     */
+    public List<Map> readJobs(JsonParser parser) throws IOException {
+        return readList(parser, Kind.JOB, "jobs");
+    }
+
+    /**
+     * Reads a JSON object where the values for the keys "datasets", "collections" and "jobs" are read as lists of records
+     * while all other values are read as regular Maps, Lists and basic types. This is the structure used by the HistorySnapshot
+     * @param parser A parser positioned before (or at) the start of the object
+     * @return A map with the contents of the object
+     * @throws IOException if the data could not be read or does not contain an object
+     */
+    public Map<String,Object> readMetadata(JsonParser parser) throws IOException {
+        JsonToken token=(parser.currentToken()!=null)?parser.currentToken():parser.nextToken();
+        if (token!=JsonToken.START_OBJECT) throw new IOException("Unable to parse history metadata. Expected an object but got: "+token);
+        Map<String,Object> map=new HashMap<>();
+        while ((token=parser.nextToken())==JsonToken.FIELD_NAME) {
+            String field=parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("datasets") && parser.currentToken()==JsonToken.START_ARRAY) map.put(field, readDatasets(parser));
+            else if (field.equals("collections") && parser.currentToken()==JsonToken.START_ARRAY) map.put(field, readCollections(parser));
+            else if (field.equals("jobs") && parser.currentToken()==JsonToken.START_ARRAY) map.put(field, readJobs(parser));
+            else map.put(field, readValue(parser, Kind.GENERIC, field));
+        }
+        if (token!=JsonToken.END_OBJECT) throw new JsonParseException(parser, "Unexpected end of map");
+        return map;
+    }
+
+    /** Returns the number of distinct strings in the dictionary */
+    public int getDictionarySize() {
+        return dictionary.size();
+    }
+
+    /** Returns a shared instance of the given string from the dictionary */
+    private String intern(String string) {
+        String existing=dictionary.putIfAbsent(string, string);
+        return (existing!=null)?existing:string;
+    }
+
+    private List<Map> readList(JsonParser parser, Kind kind, String description) throws IOException {
+        JsonToken token=(parser.currentToken()!=null)?parser.currentToken():parser.nextToken();
+        if (token!=JsonToken.START_ARRAY) throw new IOException("Unable to parse history "+description+". Expected a list but got: "+token);
+        List list=readArray(parser, kind);
+        for (Object item:list) {
+            if (!(item instanceof Map)) throw new IOException("Unable to parse history "+description+". Expected a list of objects but found: "+item);
+        }
+        return (List<Map>)list;
+    }
+
+    /** Reads the value at the current token of the parser */
+    private Object readValue(JsonParser parser, Kind kind, String field) throws IOException {
+        JsonToken token=parser.currentToken();
+        if (token==null) throw new JsonParseException(parser, "Unexpected end of input");
+        switch (token) {
+            case START_OBJECT: return readObject(parser, kind);
+            case START_ARRAY: return readArray(parser, kind);
+            case VALUE_STRING: return (field!=null && LOW_CARDINALITY_FIELDS.contains(field))?intern(parser.getText()):parser.getText();
+            case VALUE_NUMBER_INT: return (parser.getNumberType()==JsonParser.NumberType.INT)?(Object)parser.getIntValue():(Object)parser.getLongValue();
+            case VALUE_NUMBER_FLOAT: return parser.getDoubleValue();
+            case VALUE_TRUE: return Boolean.TRUE;
+            case VALUE_FALSE: return Boolean.FALSE;
+            case VALUE_NULL: return null;
+            default: throw new JsonParseException(parser, "Unexpected JSON token: "+token);
+        }
+    }
+
+    /** Reads a JSON object. The parser should be positioned at the START_OBJECT token */
+    private Map<String,Object> readObject(JsonParser parser, Kind kind) throws IOException {
+        Map<String,Object> map;
+        switch (kind) {
+            case DATASET: map=new DatasetRecord(); break;
+            case COLLECTION: map=new CollectionRecord(); break;
+            case COLLECTION_ELEMENT: map=new CollectionElementRecord(); break;
+            case JOB: map=new JobRecord(); break;
+            default: map=new HashMap<>();
+        }
+        JsonToken token;
+        while ((token=parser.nextToken())==JsonToken.FIELD_NAME) {
+            String field=parser.getCurrentName();
+            parser.nextToken();
+            map.put(field, readValue(parser, getChildKind(kind, field), field));
+        }
+        if (token!=JsonToken.END_OBJECT) throw new JsonParseException(parser, "Unexpected end of map");
+        return map;
+    }
+
+    /** Reads a JSON array. The parser should be positioned at the START_ARRAY token. Objects in the array will be read as the given kind */
+    private List<Object> readArray(JsonParser parser, Kind kind) throws IOException {
+        List<Object> list=new ArrayList<>();
+        JsonToken token;
+        while ((token=parser.nextToken())!=JsonToken.END_ARRAY) {
+            if (token==null) throw new JsonParseException(parser, "Unexpected end of list");
+            list.add(readValue(parser, kind, null));
+        }
+        return list;
+    }
+
+    /** Determines what kind of object the value of a field is expected to be (based on the kind of the parent object) */
+    private Kind getChildKind(Kind parent, String field) {
+        if (parent==Kind.COLLECTION && field.equals("collection")) return Kind.COLLECTION_CONTENTS;
+        if (parent==Kind.COLLECTION_CONTENTS && field.equals("elements")) return Kind.COLLECTION_ELEMENT;
+        if (parent==Kind.COLLECTION_ELEMENT && field.equals("child_collection")) return Kind.COLLECTION_CONTENTS;
+        return Kind.GENERIC;
+    }
+
+}
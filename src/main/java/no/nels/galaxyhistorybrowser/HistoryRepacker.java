@@ -0,0 +1,102 @@
+/*
+ * Rewrites a history archive into a block-compressed tarball that carries its own index.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * The HistoryRepacker converts a regular ".tar.gz" history archive into a layout that allows random access:
+ * the uncompressed tarball is copied unchanged (byte for byte) into BGZF blocks (see BlockGzipOutputStream),
+ * and an ArchiveIndex with the position of every entry and a checkpoint at the start of the blocks is embedded at the end of the file.
+ * <br><br>
+ * The repacked file is still a valid ".tar.gz" file that decompresses to exactly the same tarball as the original archive,
+ * so it can be used (or re-exported) as a standard history archive. GalaxyHistoryArchive recognizes the embedded index
+ * and reads the metadata files and datasets directly from their positions in the file, without scanning through the archive first.
+ * @author kjetikl
+ */
+public class HistoryRepacker {
+
+    public static final long CHECKPOINT_SPACING=256*1024; // a checkpoint every few blocks, so that no entry requires more than this much data to be decompressed in front of it
+
+    private HistoryRepacker() {}
+
+    /**
+     * Repacks a history archive. The new archive is written to a temporary file which is then renamed,
+     * so the target file will never be left in a partially written state
+     * @param archive A stream that reads the compressed archive from the beginning. This is closed when the method returns
+     * @param target The file to write the repacked archive to. This must not be the same file as the original archive
+     * @return The index that was embedded in the repacked archive
+     * @throws IOException if the archive could not be read or the repacked archive could not be written
+     */
+    public static ArchiveIndex repack(InputStream archive, File target) throws IOException {
+        File temp=File.createTempFile(target.getName(), ".tmp", target.getAbsoluteFile().getParentFile());
+        try {
+            ArchiveIndex index=new ArchiveIndex(null, CHECKPOINT_SPACING);
+            try (InputStream decompressed=ArchiveSource.pipeline(ParallelGzipInputStream.open(archive));
+                 BlockGzipOutputStream output=new BlockGzipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1024*1024), Deflater.DEFAULT_COMPRESSION, index::addCheckpoint)) {
+                InputStream copying=new CopyingInputStream(decompressed, output);
+                TarArchiveInputStream tarInput=new TarArchiveInputStream(copying);
+                for (TarArchiveEntry entry=tarInput.getNextTarEntry(); entry!=null; entry=tarInput.getNextTarEntry()) {
+                    index.addEntry(entry.getName(), tarInput.getBytesRead(), entry.getSize());
+                }
+                byte[] buffer=new byte[65536];
+                while (copying.read(buffer)>=0) {} // copy the end-of-archive records and any padding after them, so the tarball is preserved exactly
+                index.writeEmbedded(output);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return index;
+        } finally {
+            temp.delete(); // this does nothing if the file has already been moved
+            archive.close();
+        }
+    }
+
+    /** An InputStream that writes everything that is read from it (including skipped data) to an OutputStream */
+    private static class CopyingInputStream extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        private CopyingInputStream(InputStream input, OutputStream copy) {
+            super(input);
+            this.copy=copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value=super.read();
+            if (value>=0) copy.write(value);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count=super.read(bytes, offset, length);
+            if (count>0) copy.write(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long bytes) throws IOException {
+            byte[] buffer=new byte[(int)Math.min(bytes, 65536)];
+            int count=read(buffer, 0, buffer.length);
+            return Math.max(count, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * A small built-in web server that serves Galaxy History Archive files from a directory,
+ * so that histories can be browsed with the "galaxy_history.html" web page without starting a new process for every request.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The server maps the operations of the command-line interface onto URLs. For a history archive file named "history.tar.gz" in the root directory:
+ * <ul>
+ * <li><code>/history.tar.gz/</code> returns the "galaxy_history.html" page that displays the history</li>
+ * <li><code>/history.tar.gz/history.json</code> returns the JSON representation of the history (add "?pretty=true" for indented output)</li>
+ * <li><code>/history.tar.gz/format</code> returns the archive format version (same as the "-format" option)</li>
+ * <li><code>/history.tar.gz/&lt;encoded_id&gt;/</code> returns a dataset in "view mode" (add "?download=true" for "download mode")</li>
+ * <li><code>/history.tar.gz/&lt;encoded_id&gt;/&lt;filepath&gt;</code> returns an extra file for a dataset (same as the "-extra" option)</li>
+ * </ul>
+ * Adding "?mime=true" to a dataset or extra file URL returns the MIME type rather than the file itself (same as the "-mime" option).
+ * Opened archives are cached in memory by an ArchiveRegistry, so the metadata of frequently used histories only has to be read once.
+ * @author kjetikl
+ */
+public class HistoryServer {
+
+    private static final String HTML_PAGE="galaxy_history.html";
+
+    private final File root;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ArchiveRegistry archives; // archives that have been opened
+
+    /**
+     * Creates a new server that serves history archives from the given directory. The server must be started with start()
+     * @param root The directory containing the history archive files. Only files in this directory can be accessed
+     * @param port The port to listen on. If this is 0, a free port will be chosen automatically (see getPort())
+     * @throws IOException if the server could not be created (e.g. if the port is already in use)
+     */
+    public HistoryServer(File root, int port) throws IOException {
+        this(root, port, new ArchiveRegistry());
+    }
+
+    /**
+     * Creates a new server that serves history archives from the given directory. The server must be started with start()
+     * @param root The directory containing the history archive files. Only files in this directory can be accessed
+     * @param port The port to listen on. If this is 0, a free port will be chosen automatically (see getPort())
+     * @param archives The registry used to cache opened archives
+     * @throws IOException if the server could not be created (e.g. if the port is already in use)
+     */
+    public HistoryServer(File root, int port, ArchiveRegistry archives) throws IOException {
+        this.archives=archives;
+        if (!root.isDirectory()) throw new FileNotFoundException("Not a directory: "+root);
+        this.root=root.getCanonicalFile();
+        this.server=HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/", this::handle);
+        this.executor=Executors.newFixedThreadPool(Math.max(4, 2*Runtime.getRuntime().availableProcessors())); // archives can be used by several requests at the same time
+        this.server.setExecutor(executor);
+    }
+
+    /** Starts the server in a background thread */
+    public void start() {
+        server.start();
+    }
+
+    /** Stops the server */
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /** Returns the registry that caches the opened archives (which can be used to monitor the cache) */
+    public ArchiveRegistry getArchiveRegistry() {
+        return archives;
+    }
+
+    /** Returns the port the server is listening on */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            String path=exchange.getRequestURI().getRawPath();
+            Map<String,String> parameters=parseQuery(exchange.getRequestURI().getRawQuery());
+            String[] parts=path.substring(1).split("/", -1); // keep trailing empty strings so that trailing slashes can be detected
+            String archiveName=decodePathSegment(parts[0]);
+            if (archiveName.isEmpty()) {sendError(exchange, 404, "No history archive specified"); return;}
+            GalaxyHistoryArchive archive=getArchive(archiveName);
+            if (archive==null) {sendError(exchange, 404, "History not found: "+archiveName); return;}
+            if (parts.length==1) { // the relative links in the HTML page require a trailing slash
+                exchange.getResponseHeaders().set("Location", path+"/");
+                sendError(exchange, 301, "Moved permanently");
+            } else if (parts.length==2 && parts[1].isEmpty()) {
+                try (InputStream page=HistoryServer.class.getResourceAsStream(HTML_PAGE); OutputStream output=startResponse(exchange, "text/html")) {
+                    if (page==null) throw new FileNotFoundException("Missing resource: "+HTML_PAGE);
+                    copy(page, output);
+                }
+            } else if (parts.length==2 && parts[1].equals("history.json")) {
+                try (OutputStream output=startResponse(exchange, "application/json")) {
+                    archive.outputHistoryAsJSON(output, "true".equals(parameters.get("pretty")));
+                }
+            } else if (parts.length==2 && parts[1].equals("format")) {
+                String format=archive.getExportVersion();
+                try (OutputStream output=startResponse(exchange, "text/plain")) {
+                    output.write(format.getBytes(StandardCharsets.UTF_8));
+                }
+            } else { // dataset or extra file
+                String datasetID=decodePathSegment(parts[1]);
+                String extraFile=null;
+                if (parts.length>2) {
+                    StringBuilder builder=new StringBuilder();
+                    for (int i=2;i<parts.length;i++) {
+                        String part=decodePathSegment(parts[i]);
+                        if (part.equals("..") || part.equals(".")) {sendError(exchange, 403, "Illegal path"); return;}
+                        if (builder.length()>0) builder.append("/");
+                        builder.append(part);
+                    }
+                    if (builder.length()>0) extraFile=builder.toString();
+                }
+                if (archive.getDataset("encoded_id", datasetID)==null) {sendError(exchange, 404, "Dataset not found: "+datasetID); return;}
+                boolean download="true".equals(parameters.get("download"));
+                String mimetype=archive.getMIMEtype(datasetID, extraFile, download);
+                if ("true".equals(parameters.get("mime"))) {
+                    try (OutputStream output=startResponse(exchange, "text/plain")) {
+                        output.write(mimetype.getBytes(StandardCharsets.UTF_8));
+                    }
+                } else {
+                    try (OutputStream output=startResponse(exchange, mimetype)) {
+                        archive.outputDataset(output, datasetID, extraFile, download);
+                    }
+                }
+            }
+            if (exchange.getResponseCode()<0) exchange.sendResponseHeaders(200, -1); // the response was successful but empty
+            archives.updateEstimate(new File(root, archiveName)); // the archive may have loaded more metadata while handling the request
+        } catch (FileNotFoundException e) {
+            sendErrorIfPossible(exchange, 404, e.getMessage());
+        } catch (Exception e) {
+            sendErrorIfPossible(exchange, 500, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns the opened archive with the given file name in the root directory (opening it if necessary)
+     * @return The archive, or NULL if the name does not refer to a file in the root directory
+     */
+    private GalaxyHistoryArchive getArchive(String name) throws IOException {
+        if (name.contains("/") || name.contains(File.separator) || name.equals("..") || name.equals(".")) return null;
+        File file=new File(root, name).getCanonicalFile();
+        if (!file.isFile() || !root.equals(file.getParentFile())) return null; // do not allow access to files outside the root directory
+        return archives.get(file);
+    }
+
+    /**
+     * Returns a stream for the body of a successful response. The response headers will not be sent until something is written to the stream
+     * (or it is flushed), so errors that occur before any output has been produced can still be reported with a proper status code
+     */
+    private OutputStream startResponse(final HttpExchange exchange, String contentType) {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        return new OutputStream() {
+            private OutputStream body=null;
+            private OutputStream getBody() throws IOException {
+                if (body==null) {
+                    exchange.sendResponseHeaders(200, 0); // length 0 means that chunked encoding will be used
+                    body=exchange.getResponseBody();
+                }
+                return body;
+            }
+            @Override
+            public void write(int b) throws IOException {
+                getBody().write(b);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len>0) getBody().write(b, off, len);
+            }
+            @Override
+            public void flush() throws IOException {
+                getBody().flush();
+            }
+            @Override
+            public void close() throws IOException {
+                if (body!=null) body.close(); // if nothing has been written, the headers are sent by handle() after a successful request
+            }
+        };
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body=(message!=null)?message.getBytes(StandardCharsets.UTF_8):new byte[0];
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, (body.length>0)?body.length:-1);
+        if (body.length>0) try (OutputStream output=exchange.getResponseBody()) {output.write(body);}
+    }
+
+    /** Sends an error response, unless the response headers have already been sent (in which case the response is just cut short) */
+    private void sendErrorIfPossible(HttpExchange exchange, int status, String message) {
+        if (exchange.getResponseCode()>=0) return; // the headers have already been sent
+        try {
+            sendError(exchange, status, message);
+        } catch (IOException e) {} // the client has probably disconnected
+    }
+
+    private Map<String,String> parseQuery(String query) {
+        Map<String,String> parameters=new HashMap<>();
+        if (query==null) return parameters;
+        for (String pair:query.split("&")) {
+            int pos=pair.indexOf('=');
+            if (pos<0) parameters.put(decode(pair), "");
+            else parameters.put(decode(pair.substring(0,pos)), decode(pair.substring(pos+1)));
+        }
+        return parameters;
+    }
+
+    /**
+     * Decodes the percent-escapes in a raw segment of the request path.
+     * Unlike query strings, paths do not use '+' for spaces, so URLDecoder can not be used here (it would break names like "a+b.tar.gz")
+     */
+    private String decodePathSegment(String segment) throws URISyntaxException {
+        return new URI("/"+segment).getPath().substring(1); // the leading slash stops a colon in the segment from being parsed as a scheme
+    }
+
+    /** Decodes a name or value in the query string, where '+' stands for a space */
+    private String decode(String string) {
+        try {
+            return URLDecoder.decode(string, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            return string; // this should not happen, since UTF-8 is always supported
+        }
+    }
+
+    private void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer=new byte[65536];
+        int length;
+        while ((length=input.read(buffer))>=0) output.write(buffer, 0, length);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * A compact binary snapshot of the metadata read from a history archive (the export version, history size, history attributes, datasets, collections and jobs).
+ * The processed history is not stored, but rebuilt from this metadata when the snapshot is loaded.
+ * The snapshot is stored in a sidecar file next to the archive, so that the history can be reopened without decompressing the archive and parsing the JSON metadata files again.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * The snapshot file starts with a small header containing the fingerprint of the archive it was created from,
+ * followed by the metadata encoded in the binary Smile format (a binary equivalent of JSON supported by Jackson).
+ * Snapshots are read with a memory-mapped buffer and are only used if the fingerprint matches the current archive file.
+ * The datasets, collections and jobs in the snapshot are read back directly into compact records by a HistoryRecordReader.
+ * @author kjetikl
+ */
+public class HistorySnapshot {
+
+    public static final String SIDECAR_SUFFIX=".ghbsnapshot";
+
+    private static final int MAGIC=0x47484253; // "GHBS"
+    private static final int FORMAT_VERSION=2;
+
+    /** Returns the sidecar file that the snapshot for the given archive file should be stored in */
+    public static File getSidecarFile(File archive) {
+        return new File(archive.getPath()+SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Saves a snapshot to a file. The snapshot is first written to a temporary file which is then renamed,
+     * so other processes will never see a partially written snapshot.
+     * @param file The file to save the snapshot to
+     * @param fingerprint The fingerprint of the archive file the metadata was read from
+     * @param contents A map containing all the metadata that should be saved. The values should be Maps, Lists and basic types only.
+     *                 The "datasets", "collections" and "jobs" entries (if present) should be lists of objects
+     * @throws IOException if the snapshot could not be written
+     */
+    public static void save(File file, ArchiveFingerprint fingerprint, Map<String,Object> contents) throws IOException {
+        File temp=File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream output=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                fingerprint.write(output);
+                ObjectMapper mapper=new ObjectMapper(new SmileFactory());
+                mapper.writeValue((OutputStream)output, contents);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete(); // this does nothing if the file has already been moved
+        }
+    }
+
+    /**
+     * Loads a snapshot from a file, provided that it was created for the archive with the given fingerprint
+     * @param file The snapshot file
+     * @param expected The fingerprint of the current archive file
+     * @param reader The reader used to read the metadata. The "datasets", "collections" and "jobs" entries will be read as lists of records
+     * @return A map with the metadata that was saved, or NULL if the file does not exist, could not be read or belongs to a different (version of the) archive
+     */
+    public static Map<String,Object> load(File file, ArchiveFingerprint expected, HistoryRecordReader reader) {
+        if (!file.isFile()) return null;
+        try (FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream input=new DataInputStream(new ByteBufferBackedInputStream(buffer));
+            if (input.readInt()!=MAGIC || input.readInt()!=FORMAT_VERSION) return null;
+            if (!ArchiveFingerprint.read(input).equals(expected)) return null;
+            try (JsonParser parser=new SmileFactory().createParser(new ByteBufferBackedInputStream(buffer))) { // the buffer is now positioned after the header
+                return reader.readMetadata(parser);
+            }
+        } catch (IOException e) {
+            return null; // treat unreadable snapshots as missing. A new snapshot will be created the next time the history is processed
+        }
+    }
+
+}
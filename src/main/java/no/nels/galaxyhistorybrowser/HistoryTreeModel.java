@@ -0,0 +1,186 @@
+/*
+ * A tree model that presents the contents of a processed history (datasets and collections) to a JTree.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * The HistoryTreeModel reads the tree structure directly from the "contents" list of the processed history (see GalaxyHistoryArchive.getHistory).
+ * The top-level entries are the children of the root, and the elements of each collection are the children of the collection.
+ * Nothing is copied: each node just refers to the (shared, unmodifiable) map of its dataset or collection.
+ * Nodes are created lazily the first time the tree asks for them, i.e. when their parent is expanded, so a collection with 100k elements
+ * costs nothing until it is opened, and even then only a small node object is created for each element that the tree actually visits.
+ * The label shown for a node is also computed the first time it is needed and then kept, so the tree can be repainted without creating new strings.
+ * <br><br>
+ * Top-level entries can be added to the end of the tree while the history is being loaded (see add), so the newest entries can be shown
+ * before the rest of the history has been processed. Apart from that, the history is never modified. Like other Swing models, this model should only be used from the event dispatch thread.
+ * @author kjetikl
+ */
+public class HistoryTreeModel implements TreeModel {
+
+    private final Node root;
+    private final List<Map> entries=new ArrayList<>(); // the top-level entries (the children of the root)
+    private final EventListenerList listeners=new EventListenerList();
+
+    /** Creates an empty model. The top-level entries can then be added with the add method */
+    public HistoryTreeModel() {
+        this.root=new Node(null, 0, null, null, entries);
+    }
+
+    /**
+     * Creates a model for the contents of a history
+     * @param contents The "contents" list of the processed history
+     */
+    public HistoryTreeModel(List<Map> contents) {
+        this();
+        entries.addAll(contents);
+    }
+
+    /**
+     * Adds top-level entries to the end of the tree and notifies the listeners (i.e. the JTree)
+     * @param added The entries to add, in the same order as in the "contents" list of the processed history
+     */
+    public void add(List<? extends Map> added) {
+        if (added.isEmpty()) return;
+        int[] indices=new int[added.size()];
+        for (int i=0;i<indices.length;i++) indices[i]=entries.size()+i;
+        entries.addAll(added);
+        TreeModelEvent event=new TreeModelEvent(this, new Object[]{root}, indices, null); // the nodes themselves are not created until the tree asks for them
+        for (TreeModelListener listener:listeners.getListeners(TreeModelListener.class)) listener.treeNodesInserted(event);
+    }
+
+    /** A node in the tree. Nodes use identity equality, so the JTree never has to compare (or hash) the history maps themselves */
+    public static final class Node {
+        private final Node parent;
+        private final int index;                 // the position of this node among the children of its parent
+        private final Map<String,Object> entry;  // the dataset or collection represented by this node (NULL for the root)
+        private final Map<String,Object> element; // the collection element that refers to the dataset (NULL if the node is not a dataset in a collection)
+        private final List<Map> children;        // the top-level entries or collection elements below this node (NULL for datasets)
+        private Node[] childNodes=null;           // the child nodes that have been created so far
+        private String label=null;
+
+        private Node(Node parent, int index, Map<String,Object> entry, Map<String,Object> element, List<Map> children) {
+            this.parent=parent;
+            this.index=index;
+            this.entry=entry;
+            this.element=element;
+            this.children=children;
+        }
+
+        /** Returns the dataset or collection represented by this node (this is NULL for the root) */
+        public Map<String,Object> getEntry() {
+            return entry;
+        }
+
+        /** Returns TRUE if this node is a dataset (either at the top level or in a collection) */
+        public boolean isDataset() {
+            return children==null;
+        }
+
+        /** Returns TRUE if this node is a dataset that is an element of a collection */
+        public boolean isCollectionElement() {
+            return element!=null;
+        }
+
+        /** Returns the state of the dataset or collection, or NULL if it does not have a state */
+        public String getState() {
+            Object state=(entry!=null)?entry.get("state"):null;
+            return (state instanceof String)?(String)state:null;
+        }
+
+        /** Returns the text to show for this node: the HID (if any) and the name. Datasets in collections are shown with their name in the collection followed by their own name */
+        public String getLabel() {
+            if (label==null) {
+                if (entry==null) label="";
+                else {
+                    Object hid=entry.get("hid");
+                    String name=(element!=null)?(element.get("name")+" \u21d2 "+entry.get("name")):String.valueOf(entry.get("name"));
+                    label=(hid!=null)?("[ "+hid+" ]:  "+name):name;
+                }
+            }
+            return label;
+        }
+
+        /** Returns the child node at the given position, creating it the first time it is asked for */
+        private Node getChild(int position) {
+            if (childNodes==null || childNodes.length<children.size()) childNodes=(childNodes==null)?new Node[children.size()]:Arrays.copyOf(childNodes, children.size()); // the root can get more children while the history is loaded
+            Node child=childNodes[position];
+            if (child==null) {
+                Map<String,Object> value=(Map<String,Object>)children.get(position);
+                if (value.get("dataset") instanceof Map) child=new Node(this, position, (Map<String,Object>)value.get("dataset"), value, null); // an element of a "list" or "paired" collection
+                else child=new Node(this, position, value, null, (isCollection(value))?getElements(value):null); // a top-level entry or a nested collection
+                childNodes[position]=child;
+            }
+            return child;
+        }
+
+        @Override
+        public String toString() {
+            return getLabel();
+        }
+    }
+
+    /** Returns TRUE if the history entry (or collection element) is a collection rather than a dataset */
+    private static boolean isCollection(Map<String,Object> value) {
+        return !"dataset".equals(value.get("class")) && value.get("collection") instanceof Map;
+    }
+
+    /** Returns the elements of a collection (or an empty list if the collection does not have any) */
+    private static List<Map> getElements(Map<String,Object> collection) {
+        Object elements=((Map)collection.get("collection")).get("elements");
+        return (elements instanceof List)?(List<Map>)elements:Collections.<Map>emptyList();
+    }
+
+    @Override
+    public Object getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        return ((Node)parent).getChild(index);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        List<Map> children=((Node)parent).children;
+        return (children!=null)?children.size():0;
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return ((Node)node).isDataset();
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (!(parent instanceof Node) || !(child instanceof Node)) return -1;
+        Node node=(Node)child;
+        return (node.parent==parent)?node.index:-1;
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // the history can not be edited
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener listener) {
+        listeners.add(TreeModelListener.class, listener);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener listener) {
+        listeners.remove(TreeModelListener.class, listener);
+    }
+}
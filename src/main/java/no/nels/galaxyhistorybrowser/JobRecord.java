@@ -0,0 +1,49 @@
+/*
+ * A compact representation of a job from the "jobs_attrs.txt" file in a history archive.
+ */
+package no.nels.galaxyhistorybrowser;
+
+/**
+ * A job record with the "exit_code" field stored as a primitive number.
+ * @author kjetikl
+ */
+public class JobRecord extends HistoryRecord {
+
+    private static final Schema SCHEMA=new Schema(new String[]{
+        "encoded_id","state","tool_id","tool_version","exit_code","create_time","update_time","command_line","stdout","stderr","info","traceback",
+        "params","parameters","input_dataset_mapping","output_dataset_mapping","input_dataset_collection_mapping","output_dataset_collection_mapping"
+    }, "exit_code");
+
+    private int exitCode;
+
+    public JobRecord() {
+        super(SCHEMA);
+    }
+
+    @Override
+    protected Object getPrimitive(int field) {
+        return exitCode;
+    }
+
+    @Override
+    protected boolean setPrimitive(int field, Object value) {
+        Integer number=asInteger(value);
+        if (number!=null) exitCode=number;
+        return (number!=null);
+    }
+
+    /** Returns the "encoded_id" of the job */
+    public String getEncodedID() {
+        return (String)get("encoded_id");
+    }
+
+    /** Returns the state of the job, e.g. "ok" or "error" */
+    public String getState() {
+        return (String)get("state");
+    }
+
+    /** Returns the ID of the tool that was run by this job */
+    public String getToolID() {
+        return (String)get("tool_id");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * A value that is loaded on first use and then shared by all threads.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A LazyValue memoizes the result of a loader that may throw an IOException.
+ * The first thread that calls get() runs the loader, while other threads calling get() at the same time wait for that result instead of loading the value again.
+ * Once the value has been loaded, get() just returns it without any locking.
+ * If the loader fails, all the threads that were waiting for it receive the same exception, but the failure is not remembered,
+ * so the next call to get() will try to load the value again (e.g. after a temporary network problem).
+ * The loaded value is published safely to other threads, but the value itself should not be modified after it has been returned by the loader.
+ * @author kjetikl
+ * @param <T> The type of the value
+ */
+public class LazyValue<T> {
+
+    /** Loads the value */
+    public interface Loader<T> {
+        public T load() throws IOException;
+    }
+
+    private final Loader<T> loader;
+    private final AtomicReference<CompletableFuture<T>> future=new AtomicReference<>(); // NULL until a thread starts loading the value
+    private volatile Thread loadingThread=null; // the thread that is currently running the loader (used to detect recursive calls)
+
+    public LazyValue(Loader<T> loader) {
+        this.loader=loader;
+    }
+
+    /**
+     * Returns the value, loading it first if necessary
+     * @return The value returned by the loader (which could be NULL)
+     * @throws IOException if the loader failed (or the thread was interrupted while waiting for another thread to load the value)
+     */
+    public T get() throws IOException {
+        while (true) {
+            CompletableFuture<T> current=future.get();
+            if (current==null) {
+                CompletableFuture<T> created=new CompletableFuture<>();
+                if (!future.compareAndSet(null, created)) continue; // another thread started loading the value first
+                return load(created);
+            }
+            if (current.isDone() && !current.isCompletedExceptionally()) return current.getNow(null); // the common case
+            if (loadingThread==Thread.currentThread()) throw new IllegalStateException("Recursive call to LazyValue.get() from its own loader");
+            try {
+                return current.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for value to be loaded");
+            } catch (ExecutionException e) {
+                Throwable cause=e.getCause();
+                if (cause instanceof IOException) throw (IOException)cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                if (cause instanceof Error) throw (Error)cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /** Returns the value if it has already been loaded, or NULL if it has not been loaded yet (or is being loaded right now). This method never blocks */
+    public T peek() {
+        CompletableFuture<T> current=future.get();
+        return (current!=null && current.isDone() && !current.isCompletedExceptionally())?current.getNow(null):null;
+    }
+
+    /** Returns TRUE if the value has been loaded successfully */
+    public boolean isLoaded() {
+        CompletableFuture<T> current=future.get();
+        return current!=null && current.isDone() && !current.isCompletedExceptionally();
+    }
+
+    private T load(CompletableFuture<T> created) throws IOException {
+        loadingThread=Thread.currentThread();
+        try {
+            T value=loader.load();
+            created.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            future.compareAndSet(created, null); // allow later calls to try again
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingThread=null;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * A sparse index of the line positions in a text file, so that lines far into large datasets can be read
+ * without reading (and counting) all the lines in front of them.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The index records the position of every K-th line in a file (K is the "spacing"), together with the total number of lines and bytes.
+ * Positions are byte offsets in the (decompressed) file, so a line is found by looking up the closest indexed line in front of it,
+ * opening the file at that offset (see GalaxyHistoryArchive.getInputStreamForFile) and skipping at most K-1 lines.
+ * Lines are separated by '\n'. A final line without a line break is also counted.
+ * <br><br>
+ * Line indexes are built in a single streaming pass over the file and saved to sidecar files in a directory next to the archive
+ * (one file per indexed file), so that other processes opening the same history can use them right away.
+ * @author kjetikl
+ */
+public class LineIndex {
+
+    public static final String SIDECAR_SUFFIX=".ghblines";
+    public static final int DEFAULT_SPACING=1000; // index every 1000th line
+
+    private static final int MAGIC=0x47484C49; // "GHLI"
+    private static final int FORMAT_VERSION=1;
+
+    private final int spacing;
+    private long[] offsets=new long[16]; // offsets[i] is the position of the first byte of line i*spacing
+    private int count=0;
+    private long lines=0;
+    private long size=0;
+
+    private LineIndex(int spacing) {
+        this.spacing=spacing;
+    }
+
+    /**
+     * Builds a line index by reading through a file. The stream is read to the end but not closed
+     * @param stream A stream that reads the (decompressed) file from the beginning
+     * @param spacing The number of lines between each indexed line
+     * @return The line index
+     * @throws IOException if the stream could not be read
+     */
+    public static LineIndex build(InputStream stream, int spacing) throws IOException {
+        if (spacing<1) throw new IllegalArgumentException("Line index spacing must be at least 1");
+        LineIndex index=new LineIndex(spacing);
+        index.add(0);
+        byte[] buffer=new byte[65536];
+        long position=0;
+        long breaks=0;   // the number of line breaks seen so far
+        int last='\n';   // the last byte in the file
+        int length;
+        while ((length=stream.read(buffer))>=0) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Line indexing was interrupted"); // indexing large files takes a while, so let the caller give up (e.g. in the GUI)
+            for (int i=0;i<length;i++) {
+                if (buffer[i]!='\n') continue;
+                breaks++;
+                if (breaks%spacing==0) index.add(position+i+1); // the position of the line that starts after this line break
+            }
+            if (length>0) last=buffer[length-1];
+            position+=length;
+        }
+        index.size=position;
+        index.lines=(last=='\n')?breaks:breaks+1; // count the final line even if it does not end with a line break
+        if (index.count>1 && index.offsets[index.count-1]>=position) index.count--; // a file ending with a line break does not have a line starting after it
+        return index;
+    }
+
+    private void add(long offset) {
+        if (count==offsets.length) offsets=Arrays.copyOf(offsets, count*2);
+        offsets[count++]=offset;
+    }
+
+    /** Returns the number of lines in the file */
+    public long getLineCount() {
+        return lines;
+    }
+
+    /** Returns the number of bytes in the file */
+    public long getSize() {
+        return size;
+    }
+
+    /** Returns the number of lines between each indexed line */
+    public int getSpacing() {
+        return spacing;
+    }
+
+    /**
+     * Returns the closest indexed line at or in front of the given line
+     * @param line A line number (starting at 0)
+     * @return The number of the indexed line
+     */
+    public long getIndexedLine(long line) {
+        return Math.min(Math.max(line, 0)/spacing, count-1)*(long)spacing;
+    }
+
+    /**
+     * Returns the position of the closest indexed line at or in front of the given line (see getIndexedLine)
+     * @param line A line number (starting at 0)
+     * @return The byte offset of the indexed line in the file
+     */
+    public long getOffset(long line) {
+        return offsets[(int)Math.min(Math.max(line, 0)/spacing, count-1)];
+    }
+
+    // ----------------------------- Sidecar files -------------------------------------
+
+    /** Returns the sidecar directory that line indexes for files in the given archive file should be stored in */
+    public static File getSidecarDirectory(File archive) {
+        return new File(archive.getPath()+SIDECAR_SUFFIX);
+    }
+
+    /** Returns the sidecar file that the line index for a file inside the given archive should be stored in */
+    public static File getSidecarFile(File archive, String filepath) {
+        try {
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            StringBuilder key=new StringBuilder();
+            for (byte value:Arrays.copyOf(digest.digest(filepath.getBytes(StandardCharsets.UTF_8)), 16)) key.append(String.format("%02x", value));
+            return new File(getSidecarDirectory(archive), key.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e); // all Java platforms are required to support SHA-256
+        }
+    }
+
+    /**
+     * Saves the index to a file. The index is first written to a temporary file which is then renamed,
+     * so other processes will never see a partially written index. The parent directory is created if necessary.
+     * @param file The file to save the index to
+     * @param fingerprint The fingerprint of the archive file containing the indexed file
+     * @param filepath The path of the indexed file inside the archive
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file, ArchiveFingerprint fingerprint, String filepath) throws IOException {
+        File directory=file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create directory: "+directory);
+        File temp=File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (DataOutputStream output=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                fingerprint.write(output);
+                output.writeUTF(filepath);
+                output.writeInt(spacing);
+                output.writeLong(lines);
+                output.writeLong(size);
+                output.writeInt(count);
+                for (int i=0;i<count;i++) output.writeLong(offsets[i]);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete(); // this does nothing if the file has already been moved
+        }
+    }
+
+    /**
+     * Loads a line index from a file, provided that it was created for the same file in the archive with the given fingerprint
+     * @param file The index file
+     * @param expected The fingerprint of the current archive file
+     * @param filepath The path of the indexed file inside the archive
+     * @return The index, or NULL if the file does not exist, could not be read or belongs to a different file or (version of the) archive
+     */
+    public static LineIndex load(File file, ArchiveFingerprint expected, String filepath) {
+        if (!file.isFile()) return null;
+        try (DataInputStream input=new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt()!=MAGIC || input.readInt()!=FORMAT_VERSION) return null;
+            if (!ArchiveFingerprint.read(input).equals(expected) || !input.readUTF().equals(filepath)) return null;
+            LineIndex index=new LineIndex(input.readInt());
+            index.lines=input.readLong();
+            index.size=input.readLong();
+            int count=input.readInt();
+            if (index.spacing<1 || count<1) return null;
+            for (int i=0;i<count;i++) index.add(input.readLong());
+            return index;
+        } catch (IOException e) {
+            return null; // treat unreadable index files as missing. The index will just be built again
+        }
+    }
+}
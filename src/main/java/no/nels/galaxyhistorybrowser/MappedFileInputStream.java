@@ -0,0 +1,97 @@
+/*
+ * An InputStream that reads a local file through memory-mapped windows.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A MappedFileInputStream maps a window of the file into memory at a time and moves the window forward as the stream is read.
+ * Reading a mapped file avoids copying the data through an intermediate buffer, and the operating system reads ahead in the file on its own.
+ * Skipping forward within the file is nearly free, since it just moves the position (and possibly the window).
+ * @author kjetikl
+ */
+public class MappedFileInputStream extends InputStream {
+
+    public static final long DEFAULT_WINDOW_SIZE=64L*1024*1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private MappedByteBuffer window=null;
+    private long windowStart=0;
+    private long position;
+
+    /**
+     * Opens a stream that reads the file from the given position
+     * @param file The file to read
+     * @param offset The position in the file to start reading from
+     * @throws IOException if the file could not be opened
+     */
+    public MappedFileInputStream(File file, long offset) throws IOException {
+        this(file, offset, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedFileInputStream(File file, long offset, long windowSize) throws IOException {
+        this.channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size=channel.size();
+        this.windowSize=windowSize;
+        this.position=Math.min(offset, size);
+    }
+
+    /** Returns the window containing the current position, mapping a new window if necessary, or NULL at the end of the file */
+    private MappedByteBuffer window() throws IOException {
+        if (!channel.isOpen()) throw new IOException("Stream closed");
+        if (position>=size) return null;
+        if (window==null || position<windowStart || position>=windowStart+window.capacity()) {
+            windowStart=position;
+            window=channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size-windowStart));
+        }
+        ((Buffer)window).position((int)(position-windowStart));
+        return window;
+    }
+
+    @Override
+    public int read() throws IOException {
+        MappedByteBuffer buffer=window();
+        if (buffer==null) return -1;
+        position++;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length==0) return 0;
+        MappedByteBuffer buffer=window();
+        if (buffer==null) return -1;
+        int count=Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        position+=count;
+        return count;
+    }
+
+    @Override
+    public long skip(long bytes) throws IOException {
+        if (bytes<=0) return 0;
+        long skipped=Math.min(bytes, size-position);
+        position+=skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int)Math.min(Integer.MAX_VALUE, size-position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window=null; // the mapping itself is released when the buffer is garbage collected
+        channel.close();
+    }
+}
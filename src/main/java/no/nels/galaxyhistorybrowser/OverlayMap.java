@@ -0,0 +1,148 @@
+/*
+ * A copy-on-write view of another Map, which allows a shared object to be modified locally without copying it.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An OverlayMap presents the contents of a base map combined with a (usually small) set of local modifications.
+ * Values that are put into the OverlayMap are stored in a separate overlay and will hide the corresponding values in the base map,
+ * and keys that are removed from the OverlayMap will be hidden rather than removed from the base map. The base map itself is never modified.
+ * This allows the same dataset object to be referenced from many places in the processed history (e.g. as elements of several collections),
+ * with each reference only storing the few attributes that are specific to that reference.
+ * Note that changes made to the base map will be visible through the OverlayMap, unless the same keys have been overridden or hidden.
+ * Also note that nested values (Maps and Lists) are shared with the base map and are not protected by the overlay.
+ * @author kjetikl
+ */
+public class OverlayMap extends AbstractMap<String,Object> {
+
+    private final Map<String,Object> base;
+    private HashMap<String,Object> overlay=null; // created when needed. Keys in the overlay are never hidden
+    private HashSet<String> hidden=null;         // keys in the base map that have been removed from this view. Created when needed
+    private volatile boolean frozen=false;       // set to TRUE when the view can no longer be modified (see freeze())
+
+    /**
+     * Creates a new view of the given map with no local modifications
+     * @param base The map that provides the default contents for this view
+     */
+    public OverlayMap(Map<String,Object> base) {
+        this.base=base;
+    }
+
+    /** Returns the map that this view is based on */
+    public Map<String,Object> getBase() {
+        return base;
+    }
+
+    /**
+     * Makes this view unmodifiable. Any attempt to put or remove keys afterwards will throw an UnsupportedOperationException.
+     * Note that this does not prevent changes to the base map from being visible through the view
+     * @return This view
+     */
+    public OverlayMap freeze() {
+        frozen=true;
+        return this;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (overlay!=null && overlay.containsKey(key)) return overlay.get(key);
+        if (hidden!=null && hidden.contains(key)) return null;
+        return base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (overlay!=null && overlay.containsKey(key)) return true;
+        if (hidden!=null && hidden.contains(key)) return false;
+        return base.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (frozen) throw new UnsupportedOperationException("The view can not be modified");
+        Object old=get(key);
+        if (overlay==null) overlay=new HashMap<>(4);
+        overlay.put(key, value);
+        if (hidden!=null) hidden.remove(key);
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (frozen) throw new UnsupportedOperationException("The view can not be modified");
+        Object old=get(key);
+        if (overlay!=null) overlay.remove(key);
+        if (base.containsKey(key)) {
+            if (hidden==null) hidden=new HashSet<>(4);
+            hidden.add((String)key);
+        }
+        return old;
+    }
+
+    @Override
+    public int size() {
+        int size=base.size();
+        if (hidden!=null) for (String key:hidden) if (base.containsKey(key)) size--;
+        if (overlay!=null) for (String key:overlay.keySet()) if (!base.containsKey(key)) size++;
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String,Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String,Object>>() {
+            @Override
+            public Iterator<Map.Entry<String,Object>> iterator() {
+                return new OverlayIterator();
+            }
+            @Override
+            public int size() {
+                return OverlayMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the entries in the overlay first and then over the entries in the base map that have not been overridden or hidden.
+     * Entries from the base map are returned as immutable entries, so the base map can not be modified through the iterator.
+     */
+    private class OverlayIterator implements Iterator<Map.Entry<String,Object>> {
+        private final Iterator<Map.Entry<String,Object>> overlayIterator=(overlay!=null)?overlay.entrySet().iterator():null;
+        private final Iterator<Map.Entry<String,Object>> baseIterator=base.entrySet().iterator();
+        private Map.Entry<String,Object> nextEntry=null;
+
+        @Override
+        public boolean hasNext() {
+            if (nextEntry!=null) return true;
+            if (overlayIterator!=null && overlayIterator.hasNext()) {
+                nextEntry=(frozen)?new AbstractMap.SimpleImmutableEntry<>(overlayIterator.next()):overlayIterator.next();
+                return true;
+            }
+            while (baseIterator.hasNext()) {
+                Map.Entry<String,Object> entry=baseIterator.next();
+                String key=entry.getKey();
+                if ((overlay!=null && overlay.containsKey(key)) || (hidden!=null && hidden.contains(key))) continue;
+                nextEntry=new AbstractMap.SimpleImmutableEntry<>(entry);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Map.Entry<String,Object> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Map.Entry<String,Object> entry=nextEntry;
+            nextEntry=null;
+            return entry;
+        }
+    }
+
+}
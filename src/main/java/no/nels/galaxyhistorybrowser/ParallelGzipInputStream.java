@@ -0,0 +1,294 @@
+/*
+ * An InputStream that decompresses block-compressed GZIP data (BGZF) with several threads in parallel.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Archives compressed with "bgzip" (or other tools that write the BGZF layout) consist of many small GZIP members,
+ * each of which has a "BC" subfield in its FEXTRA header that gives the compressed size of the member.
+ * This makes it possible to split the compressed stream into members without decompressing it,
+ * so this class reads the members in the calling thread and inflates them as separate tasks on the common fork-join pool.
+ * The decompressed members are returned in their original order, and every member is verified against the CRC and size in its trailer,
+ * so the result is exactly the same as decompressing the stream serially with a GzipMemberInputStream.
+ * <br><br>
+ * If a member without a block size is encountered (which is the case for all members in a regular ".tar.gz" file),
+ * the rest of the stream is decompressed serially by a GzipMemberInputStream, including any errors it may report.
+ * As with the GzipMemberInputStream, the start of every member can be reported to a MemberListener, so the members can be used as seek points (see ArchiveIndex).
+ * @author kjetikl
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    public static final int MAX_BLOCK_SIZE=65536; // the compressed and uncompressed size of BGZF blocks are both limited to 64 KB
+
+    private static final int HEADER_SIZE=10; // the fixed part of the GZIP header
+    private static final int FEXTRA=0x04;
+    private static volatile boolean enabled=true;
+
+    private final InputStream input;
+    private final GzipMemberInputStream.MemberListener listener;
+    private final int maxQueued;
+    private final ArrayDeque<ForkJoinTask<byte[]>> queue=new ArrayDeque<>(); // members that are being inflated, in stream order
+    private long compressedPosition;   // the position in the compressed stream of the next member to be read from the input
+    private long uncompressedPosition; // the position in the decompressed stream where the next member to be read from the input starts
+    private byte[] current=null; // the decompressed member that is currently being read
+    private int currentPosition=0;
+    private byte[] tailPrefix=null; // bytes that have been read from the input but must be decompressed serially
+    private InputStream tail=null;  // the serial decompression of the rest of the stream
+    private boolean inputDone=false;
+    private boolean closed=false;
+
+    /** Selects whether BGZF archives should be decompressed in parallel. If disabled, open() always returns a GzipMemberInputStream */
+    public static void setEnabled(boolean parallel) {
+        enabled=parallel;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns a stream that decompresses GZIP data from the input stream. The data is decompressed in parallel if it is in the BGZF layout,
+     * or serially by a GzipMemberInputStream otherwise
+     * @param input The compressed input. This must be positioned at the start of a GZIP member
+     * @param compressedOffset The position of the input stream relative to the start of the full compressed stream
+     * @param uncompressedOffset The position in the full decompressed stream corresponding to the start of the input stream
+     * @param listener If provided (not null), this listener will be notified about every new member, including the first one
+     * @return A stream that reads the decompressed data
+     * @throws IOException if the stream could not be read or it does not start with a valid GZIP header
+     */
+    public static InputStream open(InputStream input, long compressedOffset, long uncompressedOffset, GzipMemberInputStream.MemberListener listener) throws IOException {
+        if (!enabled) return new GzipMemberInputStream(input, compressedOffset, uncompressedOffset, listener);
+        ParallelGzipInputStream stream=new ParallelGzipInputStream(input, compressedOffset, uncompressedOffset, listener);
+        stream.fill();
+        if (stream.queue.isEmpty()) return stream.openTail(); // the first member is not a BGZF block
+        return stream;
+    }
+
+    /** Returns a stream that decompresses GZIP data from the start of the input stream (see open) */
+    public static InputStream open(InputStream input) throws IOException {
+        return open(input, 0, 0, null);
+    }
+
+    private ParallelGzipInputStream(InputStream input, long compressedOffset, long uncompressedOffset, GzipMemberInputStream.MemberListener listener) {
+        this.input=input;
+        this.listener=listener;
+        this.compressedPosition=compressedOffset;
+        this.uncompressedPosition=uncompressedOffset;
+        this.maxQueued=Math.max(4, ForkJoinPool.getCommonPoolParallelism()*4);
+    }
+
+    /** Reads members from the input and starts inflating them until enough members are queued or a member that is not a BGZF block is found */
+    private void fill() throws IOException {
+        while (!inputDone && queue.size()<maxQueued) {
+            byte[] block=readBlock();
+            if (block==null) {inputDone=true; break;}
+            int length=block.length;
+            final long expectedSize=readInt(block, length-4);
+            final long expectedCRC=readInt(block, length-8);
+            if (expectedSize>MAX_BLOCK_SIZE) {tailPrefix=block; inputDone=true; break;} // not a valid BGZF block. Let the serial decompression handle it
+            if (listener!=null) listener.memberStarted(compressedPosition, uncompressedPosition);
+            final int dataStart=HEADER_SIZE+2+(readShort(block, HEADER_SIZE));
+            queue.add(ForkJoinPool.commonPool().submit(()->inflate(block, dataStart, length-8-dataStart, (int)expectedSize, expectedCRC)));
+            compressedPosition+=length;
+            uncompressedPosition+=expectedSize;
+        }
+    }
+
+    /**
+     * Reads the next member from the input if it is a BGZF block.
+     * If the next member is not a BGZF block, the bytes that have been read are saved in tailPrefix and NULL is returned.
+     * NULL is also returned at the end of the stream
+     */
+    private byte[] readBlock() throws IOException {
+        byte[] header=new byte[HEADER_SIZE+2];
+        int read=readFully(header, 0, header.length);
+        if (read==0) return null;
+        boolean bgzf=(read==header.length && (header[0] & 0xff)==0x1f && (header[1] & 0xff)==0x8b && header[2]==8 && (header[3] & 0xff)==FEXTRA);
+        if (!bgzf) {tailPrefix=Arrays.copyOf(header, read); return null;}
+        int extraLength=readShort(header, HEADER_SIZE);
+        byte[] extra=new byte[extraLength];
+        read=readFully(extra, 0, extraLength);
+        int blockSize=(read==extraLength)?findBlockSize(extra):-1;
+        if (blockSize<header.length+extraLength+8) {
+            tailPrefix=concat(header, header.length, extra, read);
+            return null;
+        }
+        byte[] block=Arrays.copyOf(concat(header, header.length, extra, extraLength), blockSize);
+        read=readFully(block, header.length+extraLength, blockSize-header.length-extraLength);
+        if (read<blockSize-header.length-extraLength) {
+            tailPrefix=Arrays.copyOf(block, header.length+extraLength+read); // a truncated block. The serial decompression will report the error
+            return null;
+        }
+        return block;
+    }
+
+    /** Returns the total size of the member given by the "BC" subfield in the FEXTRA field, or -1 if the field does not have this subfield */
+    private static int findBlockSize(byte[] extra) {
+        int position=0;
+        while (position+4<=extra.length) {
+            int length=readShort(extra, position+2);
+            if (extra[position]=='B' && extra[position+1]=='C' && length==2 && position+6<=extra.length) return readShort(extra, position+4)+1;
+            position+=4+length;
+        }
+        return -1;
+    }
+
+    /** Inflates a single member and verifies it against its trailer. This runs on the fork-join pool */
+    private static byte[] inflate(byte[] block, int offset, int length, int expectedSize, long expectedCRC) throws IOException {
+        byte[] output=new byte[expectedSize];
+        Inflater inflater=new Inflater(true);
+        try {
+            inflater.setInput(block, offset, length);
+            int size=0;
+            while (!inflater.finished()) {
+                int n=(size<expectedSize)?inflater.inflate(output, size, expectedSize-size):inflater.inflate(new byte[1]);
+                if (n>0 && size==expectedSize) throw new IOException("Corrupt GZIP trailer: size mismatch");
+                size+=n;
+                if (n==0 && !inflater.finished()) {
+                    if (inflater.needsDictionary()) throw new IOException("Corrupt GZIP data: deflate stream requires a preset dictionary");
+                    if (inflater.needsInput()) throw new EOFException("Unexpected end of GZIP stream");
+                }
+            }
+            if (size!=expectedSize || inflater.getRemaining()>0) throw new IOException("Corrupt GZIP trailer: size mismatch");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt GZIP data: "+e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc=new CRC32();
+        crc.update(output, 0, output.length);
+        if (crc.getValue()!=expectedCRC) throw new IOException("Corrupt GZIP trailer: CRC mismatch");
+        return output;
+    }
+
+    /** Returns the serial decompression of the rest of the stream, starting with the bytes that have already been read from the input */
+    private InputStream openTail() throws IOException {
+        InputStream remaining=(tailPrefix==null || tailPrefix.length==0)?input:new SequenceInputStream(new ByteArrayInputStream(tailPrefix), input);
+        tailPrefix=null;
+        return new GzipMemberInputStream(remaining, compressedPosition, uncompressedPosition, listener);
+    }
+
+    /** Makes sure the current member has unread data. Returns FALSE if the end of the BGZF members has been reached */
+    private boolean advance() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (current==null || currentPosition>=current.length) {
+            if (queue.isEmpty()) fill();
+            if (queue.isEmpty()) return false;
+            try {
+                current=queue.poll().get();
+                currentPosition=0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for decompression");
+            } catch (ExecutionException e) {
+                Throwable cause=e.getCause();
+                while (cause instanceof RuntimeException && cause.getCause()!=null) cause=cause.getCause(); // the fork-join pool wraps checked exceptions
+                if (cause instanceof IOException) throw (IOException)cause;
+                throw new IOException(cause.getMessage(), cause);
+            }
+            fill(); // keep the pool busy while this member is being read
+        }
+        return true;
+    }
+
+    /** Returns the stream that should be read after the BGZF members, or NULL if there is nothing more to read */
+    private InputStream tail() throws IOException {
+        if (tail==null && tailPrefix!=null) {
+            if (tailPrefix.length<2 || (tailPrefix[0] & 0xff)!=0x1f || (tailPrefix[1] & 0xff)!=0x8b) tailPrefix=null; // trailing data after the last member is ignored
+            else tail=openTail();
+        }
+        return tail;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single=new byte[1];
+        int n=read(single,0,1);
+        return (n<=0)?-1:(single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len==0) return 0;
+        if (!advance()) {
+            InputStream rest=tail();
+            return (rest!=null)?rest.read(b, off, len):-1;
+        }
+        int n=Math.min(len, current.length-currentPosition);
+        System.arraycopy(current, currentPosition, b, off, n);
+        currentPosition+=n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n<=0) return 0;
+        if (!advance()) {
+            InputStream rest=tail();
+            return (rest!=null)?rest.skip(n):0;
+        }
+        int skipped=(int)Math.min(n, current.length-currentPosition);
+        currentPosition+=skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (current!=null)?current.length-currentPosition:0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed=true;
+        for (ForkJoinTask<byte[]> task:queue) task.cancel(false);
+        queue.clear();
+        current=null;
+        if (tail!=null) tail.close();
+        else input.close();
+    }
+
+    /** Reads up to 'length' bytes, stopping only at the end of the input. Returns the number of bytes read */
+    private int readFully(byte[] bytes, int offset, int length) throws IOException {
+        int total=0;
+        while (total<length) {
+            int n=input.read(bytes, offset+total, length-total);
+            if (n<0) break;
+            total+=n;
+        }
+        return total;
+    }
+
+    private static byte[] concat(byte[] first, int firstLength, byte[] second, int secondLength) {
+        byte[] result=Arrays.copyOf(first, firstLength+secondLength);
+        System.arraycopy(second, 0, result, firstLength, secondLength);
+        return result;
+    }
+
+    /** Reads a 2-byte little-endian unsigned integer */
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset+1] & 0xff)<<8);
+    }
+
+    /** Reads a 4-byte little-endian unsigned integer */
+    private static long readInt(byte[] bytes, int offset) {
+        long value=0;
+        for (int i=0;i<4;i++) value|=((long)(bytes[offset+i] & 0xff))<<(8*i);
+        return value;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * An InputStream that counts the bytes read through it and reports the progress to a listener.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A ProgressInputStream is placed over the compressed archive while it is being scanned, so the progress of the scan
+ * can be reported in actual bytes of the archive file (which, unlike the decompressed size, is known in advance).
+ * The listener is called every REPORT_INTERVAL bytes and once more when the end of the stream is reached.
+ * The listener can stop the reading by throwing an IOException (e.g. an InterruptedIOException when the user cancels the scan),
+ * which is then passed on to the reader of the stream.
+ * @author kjetikl
+ */
+public class ProgressInputStream extends FilterInputStream {
+
+    public static final long REPORT_INTERVAL=1024*1024; // report the progress for every megabyte
+
+    /** Is notified about the number of bytes that have been read so far. This is called on the thread that reads the stream */
+    public interface ProgressListener {
+        public void progress(long bytesRead, long totalBytes) throws IOException;
+    }
+
+    private final long total;
+    private final ProgressListener listener;
+    private long count=0;
+    private long reported=0;
+    private boolean finished=false;
+
+    /**
+     * Creates a stream that reports how much of the underlying stream has been read
+     * @param input The stream to count
+     * @param total The total number of bytes that will be read from the stream, or -1 if this is not known
+     * @param listener The listener to report the progress to
+     */
+    public ProgressInputStream(InputStream input, long total, ProgressListener listener) {
+        super(input);
+        this.total=total;
+        this.listener=listener;
+    }
+
+    /** Returns the number of bytes that have been read (or skipped) so far */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value=super.read();
+        count((value>=0)?1:-1);
+        return value;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int read=super.read(bytes, offset, length);
+        count(read);
+        return read;
+    }
+
+    @Override
+    public long skip(long bytes) throws IOException {
+        long skipped=super.skip(bytes);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false; // resetting would make the count wrong
+    }
+
+    /** Adds the bytes to the count and reports the progress if enough bytes have been read since the last report. A negative number means that the end of the stream was reached */
+    private void count(long bytes) throws IOException {
+        if (bytes<0) {
+            if (finished) return;
+            finished=true;
+        } else {
+            count+=bytes;
+            if (count-reported<REPORT_INTERVAL) return;
+        }
+        reported=count;
+        listener.progress(count, total);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * An InputStream that reads ahead from its source in a background thread, so that the consumer never has to wait for slow I/O as long as the source keeps up on average.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A ReadAheadInputStream has a producer thread that reads from the source channel into a ring of large direct buffers,
+ * while the consumer reads from the buffers that have already been filled. The producer stays at most one ring ahead of the consumer.
+ * If the source fails, the consumer receives the error after it has read all the data that was read before the failure.
+ * <br><br>
+ * The buffers are taken from a shared pool and returned to it when both the consumer has closed the stream and the producer has stopped,
+ * so opening many short-lived streams does not allocate new direct memory each time. Closing the stream also closes the source.
+ * <br><br>
+ * The source can also be another InputStream (e.g. a decompressing stream), in which case the buffers are regular arrays.
+ * This can be used to run the stages of a processing pipeline in separate threads (see ArchiveSource.pipeline).
+ * @author kjetikl
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE=256*1024;
+    public static final int DEFAULT_BUFFER_COUNT=4;
+
+    private static final int MAX_POOLED_BUFFERS=64;
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool=new ConcurrentLinkedQueue<>(); // unused buffers of the default size
+    private static final ExecutorService producers=Executors.newCachedThreadPool(runnable->{
+        Thread thread=new Thread(runnable, "ReadAhead producer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ReadableByteChannel source; // the source is either a channel or a stream
+    private final InputStream sourceStream;
+    private final ByteBuffer[] ring;
+    // The fields below are guarded by this object. A buffer is owned by the producer until it has been counted in 'filled', and then by the consumer until it has been emptied
+    private int readIndex=0;          // the buffer the consumer reads from
+    private int writeIndex=0;         // the buffer the producer fills next
+    private int filled=0;             // the number of buffers that are ready for the consumer
+    private boolean endOfStream=false;
+    private IOException failure=null;
+    private boolean producing=true;
+    private boolean closed=false;
+
+    /** Creates a stream that reads ahead from the channel with the default number and size of buffers */
+    public ReadAheadInputStream(ReadableByteChannel source) {
+        this(source, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a stream that reads ahead from the channel
+     * @param source The channel to read from. This will be closed when the stream is closed
+     * @param bufferCount The number of buffers in the ring
+     * @param bufferSize The size of each buffer
+     */
+    public ReadAheadInputStream(ReadableByteChannel source, int bufferCount, int bufferSize) {
+        this.source=source;
+        this.sourceStream=null;
+        this.ring=new ByteBuffer[Math.max(2, bufferCount)];
+        for (int i=0; i<ring.length; i++) ring[i]=allocate(bufferSize);
+        producers.execute(this::produce);
+    }
+
+    /**
+     * Creates a stream that reads ahead from another stream
+     * @param source The stream to read from. This will be closed when the stream is closed
+     * @param bufferCount The number of buffers in the ring
+     * @param bufferSize The size of each buffer
+     */
+    public ReadAheadInputStream(InputStream source, int bufferCount, int bufferSize) {
+        this.source=null;
+        this.sourceStream=source;
+        this.ring=new ByteBuffer[Math.max(2, bufferCount)];
+        for (int i=0; i<ring.length; i++) ring[i]=ByteBuffer.allocate(bufferSize);
+        producers.execute(this::produce);
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer=(size==DEFAULT_BUFFER_SIZE)?pool.poll():null;
+        return (buffer!=null)?buffer:ByteBuffer.allocateDirect(size);
+    }
+
+    /** Fills the buffers in the ring from the source. This runs in a producer thread */
+    private void produce() {
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                synchronized (this) {
+                    while (filled==ring.length && !closed) wait();
+                    if (closed) return;
+                    buffer=ring[writeIndex];
+                }
+                ((Buffer)buffer).clear();
+                int read=0;
+                while (buffer.hasRemaining() && (read=readSource(buffer))>=0) {}
+                ((Buffer)buffer).flip();
+                synchronized (this) {
+                    if (buffer.hasRemaining()) {
+                        writeIndex=(writeIndex+1)%ring.length;
+                        filled++;
+                    }
+                    if (read<0) endOfStream=true;
+                    notifyAll();
+                    if (endOfStream) return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                if (!closed) failure=(e instanceof IOException)?(IOException)e:new IOException(e.getMessage(), e); // errors caused by closing the stream are not interesting
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                failure=new InterruptedIOException("Read-ahead was interrupted");
+                notifyAll();
+            }
+        } finally {
+            closeSource();
+            synchronized (this) {
+                producing=false;
+                if (closed) release();
+            }
+        }
+    }
+
+    private int readSource(ByteBuffer buffer) throws IOException {
+        if (source!=null) return source.read(buffer);
+        int read=sourceStream.read(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+        if (read>0) ((Buffer)buffer).position(buffer.position()+read);
+        return read;
+    }
+
+    private void closeSource() {
+        try {
+            if (source!=null) source.close();
+            else sourceStream.close();
+        } catch (IOException e) {}
+    }
+
+    /** Returns the buffer the consumer should read from next, waiting for the producer if necessary, or NULL at the end of the stream */
+    private ByteBuffer current() throws IOException {
+        synchronized (this) {
+            if (closed) throw new IOException("Stream closed");
+            try {
+                while (filled==0 && !endOfStream && failure==null) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            if (filled>0) return ring[readIndex];
+            if (failure!=null) throw new IOException(failure.getMessage(), failure);
+            return null;
+        }
+    }
+
+    /** Hands an emptied buffer back to the producer */
+    private void consumed(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) return;
+        synchronized (this) {
+            readIndex=(readIndex+1)%ring.length;
+            filled--;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer buffer=current();
+        if (buffer==null) return -1;
+        int value=buffer.get() & 0xFF;
+        consumed(buffer);
+        return value;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length==0) return 0;
+        ByteBuffer buffer=current();
+        if (buffer==null) return -1;
+        int count=Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        consumed(buffer);
+        return count;
+    }
+
+    @Override
+    public long skip(long bytes) throws IOException {
+        if (bytes<=0) return 0;
+        ByteBuffer buffer=current();
+        if (buffer==null) return 0;
+        int count=(int)Math.min(bytes, buffer.remaining());
+        ((Buffer)buffer).position(buffer.position()+count);
+        consumed(buffer);
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        if (closed || filled==0) return 0;
+        return ring[readIndex].remaining();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed=true;
+            notifyAll();
+            if (!producing) {
+                release();
+                return;
+            }
+        }
+        if (source!=null) closeSource(); // this also stops a producer that is blocked in a read (a stream is closed by the producer itself, since streams are not safe to close from another thread)
+    }
+
+    /** Returns the buffers to the pool. This is called when the consumer has closed the stream and the producer has stopped */
+    private void release() {
+        for (ByteBuffer buffer:ring) {
+            if (buffer.isDirect() && buffer.capacity()==DEFAULT_BUFFER_SIZE && pool.size()<MAX_POOLED_BUFFERS) pool.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Combines requests for different files in the same archive into shared passes through the archive.
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * Without an index, the only way to find a file in a TAR.GZ archive is to decompress the archive from the start until the file is reached.
+ * A SharedScan lets many requests for files in the same archive share such a pass instead of each making their own.
+ * <br><br>
+ * When the first request for an archive arrives, a scanner thread waits for a short batching window (BATCH_WINDOW_MILLIS) to collect more requests
+ * and then reads through the archive once. Whenever the pass reaches a file that has been requested, the contents of the file are handed over
+ * to the waiting request (see openEntry), and the pass continues with the next file when the request has closed the stream.
+ * Requests that arrive while a pass is in progress join it (like an elevator picking up passengers on the way), as long as their file has not been passed yet.
+ * Requests for files that were passed before the request arrived are served by a new pass that starts right after the current one.
+ * A request for a file that is not in the archive is answered at the end of the first full pass.
+ * <br><br>
+ * Since the pass waits while a request reads its file, the requests should consume the files quickly, e.g. by copying them to an EntrySpool.
+ * @author kjetikl
+ */
+public class SharedScan {
+
+    public static final long BATCH_WINDOW_MILLIS=20;
+
+    private static final HashMap<Object,SharedScan> scans=new HashMap<>(); // the scanners that are currently active, one for each archive
+    private static final ExecutorService scanners=Executors.newCachedThreadPool(runnable->{
+        Thread thread=new Thread(runnable, "SharedScan");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static long passes=0; // the total number of passes made through archives (guarded by 'scans')
+
+    private final Object archiveKey;
+    private final LazyValue.Loader<InputStream> archiveSource;
+    private final Map<String,List<Request>> pending=new HashMap<>(); // requests that have not been answered yet (guarded by this)
+    private boolean running=false; // TRUE while the scanner thread is active (guarded by this)
+
+    private SharedScan(Object archiveKey, LazyValue.Loader<InputStream> archiveSource) {
+        this.archiveKey=archiveKey;
+        this.archiveSource=archiveSource;
+    }
+
+    /**
+     * Waits until a shared pass through the archive reaches the given file and returns a stream with the contents of the file (as stored in the archive).
+     * The pass through the archive will not continue until the returned stream has been closed, so the stream must always be closed as soon as possible.
+     * @param archiveKey Identifies the archive. Requests with the same key share passes
+     * @param archiveSource Opens the (compressed) archive. This is only used if a new pass has to be started
+     * @param filepath The path of a file in the archive
+     * @return A stream with the contents of the file, or NULL if the archive does not contain the file
+     * @throws IOException if the archive could not be read
+     */
+    public static InputStream openEntry(Object archiveKey, LazyValue.Loader<InputStream> archiveSource, String filepath) throws IOException {
+        Request request=new Request(filepath);
+        SharedScan scan;
+        boolean start=false;
+        synchronized (scans) {
+            scan=scans.get(archiveKey);
+            if (scan==null) {
+                scan=new SharedScan(archiveKey, archiveSource);
+                scans.put(archiveKey, scan);
+            }
+            synchronized (scan) {
+                scan.pending.computeIfAbsent(filepath, path->new ArrayList<>()).add(request);
+                if (!scan.running) scan.running=start=true;
+            }
+        }
+        if (start) scanners.execute(scan::run);
+        return request.await();
+    }
+
+    /** Returns the total number of passes that have been made through archives so far (across all archives) */
+    public static long getPassCount() {
+        synchronized (scans) {
+            return passes;
+        }
+    }
+
+    /** Returns TRUE if there is a scanner thread for the given archive, i.e. if new requests for the archive would join its current passes */
+    public static boolean isScanning(Object archiveKey) {
+        synchronized (scans) {
+            return scans.containsKey(archiveKey);
+        }
+    }
+
+    /** The main loop of the scanner thread. Makes passes through the archive until there are no more pending requests */
+    private void run() {
+        try {
+            Thread.sleep(BATCH_WINDOW_MILLIS); // wait a little for more requests to arrive before starting
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (true) {
+            synchronized (scans) {
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        running=false;
+                        scans.remove(archiveKey);
+                        return;
+                    }
+                }
+                passes++;
+            }
+            scanOnce();
+        }
+    }
+
+    /** Makes a single pass through the archive and answers all the requests for files that are reached */
+    private void scanOnce() {
+        HashSet<String> passed=new HashSet<>(); // all the files that have been passed in this pass
+        try (InputStream source=archiveSource.load(); InputStream decompressed=ArchiveSource.pipeline(ParallelGzipInputStream.open(source))) {
+            TarArchiveInputStream tarInput=new TarArchiveInputStream(decompressed);
+            TarArchiveEntry entry=tarInput.getNextTarEntry();
+            while (entry!=null) {
+                String name=entry.getName();
+                passed.add(name);
+                Request request=takeRequest(name);
+                while (request!=null && !request.deliver(tarInput)) request=takeRequest(name); // the request may have been abandoned
+                if (request!=null) request.awaitRelease();
+                entry=tarInput.getNextTarEntry();
+            }
+            synchronized (this) { // requests for files that were not found in a full pass through the archive can be answered now
+                pending.entrySet().removeIf(requests->{
+                    if (passed.contains(requests.getKey())) return false; // the request arrived after the file had been passed. Try again in the next pass
+                    for (Request request:requests.getValue()) request.deliver(null);
+                    return true;
+                });
+            }
+        } catch (IOException | RuntimeException e) {
+            IOException failure=(e instanceof IOException)?(IOException)e:new IOException(e.getMessage(), e);
+            synchronized (this) { // the requests would most likely fail again, so they are all answered with the error
+                for (List<Request> requests:pending.values()) {
+                    for (Request request:requests) request.fail(failure);
+                }
+                pending.clear();
+            }
+        }
+    }
+
+    /** Removes and returns the first pending request for the given file, or returns NULL if there are none */
+    private synchronized Request takeRequest(String filepath) {
+        List<Request> requests=pending.get(filepath);
+        if (requests==null) return null;
+        Request request=requests.remove(0);
+        if (requests.isEmpty()) pending.remove(filepath);
+        return request; // any other requests for the same file will be handled in the next pass, since the file can only be read once in each pass
+    }
+
+    /** A request for a single file. The scanner thread and the requesting thread communicate through this object */
+    private static class Request {
+        private final String filepath;
+        private boolean answered=false;
+        private InputStream stream=null;
+        private IOException failure=null;
+        private boolean released=false;  // set when the requesting thread is done with the stream
+        private boolean abandoned=false; // set if the requesting thread stopped waiting
+
+        Request(String filepath) {
+            this.filepath=filepath;
+        }
+
+        /**
+         * Answers the request with the current entry of the tar stream (or NULL if the file was not found)
+         * @return FALSE if the request has been abandoned and the entry was not handed over
+         */
+        synchronized boolean deliver(TarArchiveInputStream tarInput) {
+            if (abandoned) return false;
+            answered=true;
+            if (tarInput!=null) stream=new EntryInputStream(tarInput, this);
+            else released=true; // there is nothing to release
+            notifyAll();
+            return true;
+        }
+
+        synchronized void fail(IOException e) {
+            answered=true;
+            released=true;
+            failure=e;
+            notifyAll();
+        }
+
+        synchronized InputStream await() throws IOException {
+            try {
+                while (!answered) wait();
+            } catch (InterruptedException e) {
+                abandoned=true;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for file in archive: "+filepath);
+            }
+            if (failure!=null) throw failure;
+            return stream;
+        }
+
+        synchronized void release() {
+            released=true;
+            notifyAll();
+        }
+
+        synchronized void awaitRelease() {
+            boolean interrupted=false;
+            while (!released) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted=true; // the pass can not continue before the request is done with the tar stream
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Reads the current entry of the tar stream. Closing the stream lets the pass continue (without closing the tar stream itself) */
+    private static class EntryInputStream extends FilterInputStream {
+        private final Request request;
+        private boolean closed=false;
+
+        EntryInputStream(InputStream tarInput, Request request) {
+            super(tarInput);
+            this.request=request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            return super.read(bytes, offset, length);
+        }
+
+        @Override
+        public long skip(long bytes) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            return super.skip(bytes);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed=true;
+            request.release();
+        }
+    }
+}
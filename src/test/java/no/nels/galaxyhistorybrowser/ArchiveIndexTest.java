@@ -0,0 +1,95 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class ArchiveIndexTest {
+    
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    
+    public ArchiveIndexTest() {
+    }
+    
+    /** Scans through the archive file and builds an index the same way GalaxyHistoryArchive does it */
+    private ArchiveIndex buildIndex(File archive, long spacing) throws IOException {
+        ArchiveIndex index = new ArchiveIndex(ArchiveFingerprint.of(archive), spacing);
+        try (TarArchiveInputStream tarInput = new TarArchiveInputStream(new GzipMemberInputStream(new FileInputStream(archive), 0, 0, index::addCheckpoint))) {
+            TarArchiveEntry entry = tarInput.getNextTarEntry();
+            while (entry != null) {
+                index.addEntry(entry.getName(), tarInput.getBytesRead(), entry.getSize());
+                entry = tarInput.getNextTarEntry();
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Test of GzipMemberInputStream.
+     * Tests that archives made up of multiple GZIP members are decompressed in full and that each member start is reported
+     */
+    @Test
+    public void testGzipMemberInputStream_multipleMembers() throws Exception {
+        System.out.println("GzipMemberInputStream: test that all members of a multi-member GZIP file are decompressed");
+        File archive = HistoryArchiveFixture.writeMultiMember(tempFolder.newFile("history.tar.gz"), 1000);
+        byte[] expected = HistoryArchiveFixture.tarball();
+        final int[] members = new int[1];
+        byte[] result = HistoryArchiveFixture.readAll(new GzipMemberInputStream(new FileInputStream(archive), 0, 0, (compressed, uncompressed) -> {
+            assertEquals("Member does not start at expected uncompressed offset", members[0]*1000L, uncompressed);
+            members[0]++;
+        }));
+        assertArrayEquals(expected, result);
+        assertEquals((expected.length+999)/1000, members[0]);
+    }
+    
+    /**
+     * Test of openEntry method, of class ArchiveIndex.
+     * Tests that every entry can be read directly using the checkpoints in the index
+     */
+    @Test
+    public void testOpenEntry() throws Exception {
+        System.out.println("openEntry: test that entries can be read from the closest checkpoint");
+        File archive = HistoryArchiveFixture.writeMultiMember(tempFolder.newFile("history.tar.gz"), 1024);
+        ArchiveIndex index = buildIndex(archive, 2048);
+        assertTrue("Expected more than one checkpoint", index.getCheckpointCount() > 1);
+        for (Map.Entry<String,byte[]> entry : HistoryArchiveFixture.entries().entrySet()) {
+            assertTrue(index.containsEntry(entry.getKey()));
+            assertEquals(entry.getValue().length, index.getEntrySize(entry.getKey()));
+            assertArrayEquals("Wrong contents for entry "+entry.getKey(), entry.getValue(), HistoryArchiveFixture.readAll(index.openEntry(archive, entry.getKey())));
+        }
+        assertNull(index.openEntry(archive, "datasets/missing.dat"));
+    }
+    
+    /**
+     * Test of save and load methods, of class ArchiveIndex.
+     * Tests that a saved index can be loaded again, but only for the same version of the archive
+     */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        System.out.println("save/load: test that indexes are only loaded for the archive they were created for");
+        File archive = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        File sidecar = ArchiveIndex.getSidecarFile(archive);
+        buildIndex(archive, ArchiveIndex.DEFAULT_CHECKPOINT_SPACING).save(sidecar);
+        ArchiveIndex loaded = ArchiveIndex.load(sidecar, ArchiveFingerprint.of(archive));
+        assertNotNull("Index could not be loaded", loaded);
+        assertEquals(HistoryArchiveFixture.entries().keySet(), loaded.getEntryNames());
+        assertArrayEquals(HistoryArchiveFixture.entries().get("jobs_attrs.txt"), HistoryArchiveFixture.readAll(loaded.openEntry(archive, "jobs_attrs.txt")));
+        HistoryArchiveFixture.writeMultiMember(archive, 512); // replace the archive with a different file
+        assertNull("Index for a different archive was loaded", ArchiveIndex.load(sidecar, ArchiveFingerprint.of(archive)));
+    }
+    
+}
@@ -0,0 +1,93 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class ArchiveRegistryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public ArchiveRegistryTest() {
+    }
+
+    /** Makes the archive load its metadata */
+    private static void load(GalaxyHistoryArchive archive) throws Exception {
+        archive.outputHistoryAsJSON(new ByteArrayOutputStream(), false);
+    }
+
+    /**
+     * Test of get method, of class ArchiveRegistry.
+     * Tests that opened archives are reused and that the counters and size estimates are updated
+     */
+    @Test
+    public void testGet() throws Exception {
+        System.out.println("ArchiveRegistry: test that opened archives are reused");
+        File file = HistoryArchiveFixture.write(tempFolder.newFile("a.tar.gz"));
+        ArchiveRegistry registry = new ArchiveRegistry();
+        GalaxyHistoryArchive archive = registry.get(file);
+        long unloaded = archive.getEstimatedMemoryUsage();
+        load(archive);
+        long loaded = archive.getEstimatedMemoryUsage();
+        assertTrue("Loading the metadata should increase the estimate", loaded > unloaded);
+        assertSame(archive, registry.get(new File(tempFolder.getRoot(), "./a.tar.gz")));
+        assertEquals(1, registry.getHitCount());
+        assertEquals(1, registry.getMissCount());
+        assertEquals(0, registry.getEvictionCount());
+        assertEquals(1, registry.size());
+        assertEquals(loaded, registry.getEstimatedSize());
+        // a replaced file should be opened again
+        HistoryArchiveFixture.writeMultiMember(file, 100);
+        GalaxyHistoryArchive replaced = registry.get(file);
+        assertNotSame(archive, replaced);
+        assertEquals(2, registry.getMissCount());
+        assertEquals(1, registry.size());
+        assertEquals(unloaded, registry.getEstimatedSize(), unloaded / 2);
+    }
+
+    /**
+     * Test of eviction in class ArchiveRegistry.
+     * Tests that the least recently used archives are evicted when the estimated size exceeds the budget
+     */
+    @Test
+    public void testEviction() throws Exception {
+        System.out.println("ArchiveRegistry: test that the least recently used archives are evicted when the budget is exceeded");
+        File a = HistoryArchiveFixture.write(tempFolder.newFile("a.tar.gz"));
+        File b = HistoryArchiveFixture.write(tempFolder.newFile("b.tar.gz"));
+        File c = HistoryArchiveFixture.write(tempFolder.newFile("c.tar.gz"));
+        GalaxyHistoryArchive probe = new GalaxyHistoryArchive(a.getPath());
+        load(probe);
+        long size = probe.getEstimatedMemoryUsage();
+        ArchiveRegistry registry = new ArchiveRegistry(size * 5 / 2); // room for two loaded archives, but not three
+        GalaxyHistoryArchive archiveA = registry.get(a);
+        load(archiveA);
+        load(registry.get(b));
+        assertSame(archiveA, registry.get(a)); // A is now more recently used than B
+        load(registry.get(c));
+        registry.updateEstimate(c);
+        assertEquals(1, registry.getEvictionCount());
+        assertEquals(2, registry.size());
+        assertTrue(registry.getEstimatedSize() <= registry.getMaximumSize());
+        assertSame(archiveA, registry.get(a));
+        long misses = registry.getMissCount();
+        registry.get(b); // B was evicted and must be opened again
+        assertEquals(misses + 1, registry.getMissCount());
+        // an archive that is larger than the whole budget is still returned, but it replaces everything else
+        ArchiveRegistry tiny = new ArchiveRegistry(0);
+        GalaxyHistoryArchive first = tiny.get(a);
+        assertNotNull(tiny.get(b));
+        assertEquals(1, tiny.size());
+        assertNotSame(first, tiny.get(a));
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class ArchiveSourceTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public ArchiveSourceTest() {
+    }
+
+    private File randomFile(int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        File file = tempFolder.newFile();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    /**
+     * Test of open method, of class ArchiveSource.
+     * Tests that all the modes return the same data from a given offset
+     */
+    @Test
+    public void testOpen() throws Exception {
+        System.out.println("ArchiveSource: test that all modes read the same data");
+        File file = randomFile(1500000);
+        byte[] expected = Files.readAllBytes(file.toPath());
+        ArchiveSource.Mode previous = ArchiveSource.getMode();
+        try {
+            for (ArchiveSource.Mode mode : ArchiveSource.Mode.values()) {
+                ArchiveSource.setMode(mode);
+                assertArrayEquals(mode.toString(), expected, HistoryArchiveFixture.readAll(ArchiveSource.open(file, 0)));
+                assertArrayEquals(mode.toString(), Arrays.copyOfRange(expected, 1000001, expected.length), HistoryArchiveFixture.readAll(ArchiveSource.open(file, 1000001)));
+                try (InputStream stream = ArchiveSource.open(file, 10)) {
+                    assertEquals(mode.toString(), expected[10] & 0xFF, stream.read());
+                    long skipped = 0;
+                    while (skipped < 600000) skipped += stream.skip(600000 - skipped);
+                    assertEquals(mode.toString(), expected[600011] & 0xFF, stream.read());
+                }
+            }
+        } finally {
+            ArchiveSource.setMode(previous);
+        }
+    }
+
+    /**
+     * Test of class MappedFileInputStream with a window that is smaller than the file
+     */
+    @Test
+    public void testMappedWindows() throws Exception {
+        System.out.println("MappedFileInputStream: test that reads spanning several windows return the right data");
+        File file = randomFile(100000);
+        byte[] expected = Files.readAllBytes(file.toPath());
+        assertArrayEquals(expected, HistoryArchiveFixture.readAll(new MappedFileInputStream(file, 0, 4096)));
+        assertArrayEquals(Arrays.copyOfRange(expected, 5000, expected.length), HistoryArchiveFixture.readAll(new MappedFileInputStream(file, 5000, 999)));
+    }
+
+    /**
+     * Test of class ReadAheadInputStream.
+     * Tests that errors from the source are passed on after the data that was read before them, and that closing the stream closes the source
+     */
+    @Test
+    public void testReadAheadErrors() throws Exception {
+        System.out.println("ReadAheadInputStream: test that errors are passed on and that the source is closed");
+        byte[] data = new byte[3000];
+        new Random(3).nextBytes(data);
+        InputStream failing = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] bytes, int offset, int length) {
+                if (pos >= 2000) throw new IllegalStateException("Source failed");
+                return super.read(bytes, offset, Math.min(length, 2000 - pos));
+            }
+        };
+        ReadAheadInputStream stream = new ReadAheadInputStream(Channels.newChannel(failing), 3, 500);
+        byte[] received = new byte[2000];
+        int total = 0;
+        try {
+            int length;
+            while ((length = stream.read(received, total, received.length - total)) > 0) total += length;
+            stream.read();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Source failed", e.getMessage());
+        }
+        assertEquals(2000, total);
+        assertArrayEquals(Arrays.copyOf(data, 2000), received);
+        final boolean[] closed = {false};
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        ReadAheadInputStream abandoned = new ReadAheadInputStream(Channels.newChannel(endless), 2, 1000);
+        assertEquals(1, abandoned.read());
+        abandoned.close();
+        for (int i = 0; i < 100 && !closed[0]; i++) Thread.sleep(20);
+        assertTrue("The source should be closed when the stream is closed", closed[0]);
+    }
+
+    /**
+     * Test of GalaxyHistoryArchive with the different source modes
+     */
+    @Test
+    public void testArchiveModes() throws Exception {
+        System.out.println("ArchiveSource: test that histories and datasets are read the same way in all modes");
+        File file = HistoryArchiveFixture.writeMultiMember(tempFolder.newFile("history.tar.gz"), 100);
+        ArchiveSource.Mode previous = ArchiveSource.getMode();
+        String expected = null;
+        try {
+            for (ArchiveSource.Mode mode : ArchiveSource.Mode.values()) {
+                ArchiveSource.setMode(mode);
+                GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                instance.outputHistoryAsJSON(output, false);
+                if (expected == null) expected = output.toString("UTF-8");
+                else assertEquals(mode.toString(), expected, output.toString("UTF-8"));
+                output.reset();
+                instance.outputDataset(output, "d5", null, false); // read through the index
+                assertEquals(mode.toString(), HistoryArchiveFixture.DATASET_5, output.toString("UTF-8"));
+            }
+        } finally {
+            ArchiveSource.setMode(previous);
+        }
+    }
+
+    /**
+     * Test of pipeline method, of class ArchiveSource.
+     * Tests that full scans and extra-file output give the same results with and without pipelining
+     */
+    @Test
+    public void testPipeline() throws Exception {
+        System.out.println("ArchiveSource: test that pipelined and unpipelined reads give the same results");
+        File file = HistoryArchiveFixture.writeMultiMember(tempFolder.newFile("history.tar.gz"), 100);
+        byte[] data = new byte[700000];
+        new Random(5).nextBytes(data);
+        assertArrayEquals(data, HistoryArchiveFixture.readAll(ArchiveSource.pipeline(new ByteArrayInputStream(data))));
+        boolean previous = ArchiveSource.isPipelined();
+        String[] expected = null;
+        try {
+            for (boolean pipelined : new boolean[]{false, true}) {
+                ArchiveSource.setPipelined(pipelined);
+                new File(file.getPath() + ArchiveIndex.SIDECAR_SUFFIX).delete();
+                new File(file.getPath() + HistorySnapshot.SIDECAR_SUFFIX).delete();
+                GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+                ByteArrayOutputStream json = new ByteArrayOutputStream();
+                instance.outputHistoryAsJSON(json, false);
+                ByteArrayOutputStream dataset = new ByteArrayOutputStream();
+                instance.outputDataset(dataset, "d5", null, false); // read through the index that was built by the scan
+                ByteArrayOutputStream zip = new ByteArrayOutputStream();
+                instance.outputDatasetWithExtraFiles(zip, "d3");
+                String[] results = {json.toString("UTF-8"), dataset.toString("UTF-8"), Integer.toString(zip.size())};
+                if (expected == null) expected = results;
+                else assertArrayEquals(expected, results);
+            }
+            assertEquals(HistoryArchiveFixture.DATASET_5, expected[1]);
+        } finally {
+            ArchiveSource.setPipelined(previous);
+        }
+    }
+
+    /** Returns the number of read-ahead threads that are waiting for their buffers to be read */
+    private static int countWaitingProducers() {
+        int count = 0;
+        for (Map.Entry<Thread,StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+            if (thread.getKey().getState() != Thread.State.WAITING) continue;
+            for (StackTraceElement element : thread.getValue()) {
+                if (element.getClassName().equals(ReadAheadInputStream.class.getName()) && element.getMethodName().equals("produce")) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Tests that the read-ahead and pipeline threads are stopped when reading a file from the archive fails,
+     * either because the archive is corrupt or because the data could not be written to the output (e.g. when an HTTP client disconnects)
+     */
+    @Test
+    public void testPipelineClosedOnError() throws Exception {
+        System.out.println("ArchiveSource: test that the read-ahead threads are stopped when reading fails");
+        byte[] large = new byte[3000000]; // much more than the read-ahead buffers can hold, even when compressed
+        new Random(11).nextBytes(large);
+        Map<String,byte[]> entries = HistoryArchiveFixture.entries();
+        entries.put("datasets/dataset_9.dat", large);
+        File file = tempFolder.newFile("history.tar.gz");
+        Files.write(file.toPath(), HistoryArchiveFixture.gzip(HistoryArchiveFixture.tarball(entries)));
+        byte[] tarball = HistoryArchiveFixture.tarball(entries);
+        Arrays.fill(tarball, 512 * 2 + 124, 512 * 2 + 136, (byte)'x'); // corrupt the size field in the header of the second entry
+        File corrupt = tempFolder.newFile("corrupt.tar.gz");
+        Files.write(corrupt.toPath(), HistoryArchiveFixture.gzip(tarball));
+        int before = countWaitingProducers();
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+        instance.getHistory();
+        try {
+            instance.outputDatasetWithExtraFiles(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Client disconnected");
+                }
+            }, "d3");
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Client disconnected", e.getMessage());
+        }
+        GalaxyHistoryArchive.setSharedReadThreshold(-1); // read the file directly from the unindexed archive
+        try {
+            new GalaxyHistoryArchive(corrupt.getAbsolutePath()).getInputStreamForFile("datasets/dataset_5.dat", false);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // the header could not be parsed
+        } finally {
+            GalaxyHistoryArchive.setSharedReadThreshold(GalaxyHistoryArchive.DEFAULT_SHARED_READ_THRESHOLD);
+        }
+        for (int i = 0; i < 100 && countWaitingProducers() > before; i++) Thread.sleep(20);
+        assertEquals("No read-ahead threads should be left waiting", before, countWaitingProducers());
+    }
+
+}
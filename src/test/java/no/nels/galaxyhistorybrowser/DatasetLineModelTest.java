@@ -0,0 +1,219 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.SwingUtilities;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class DatasetLineModelTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2); // lines are loaded while the lines are counted
+
+    public DatasetLineModelTest() {
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /** Runs the task on the event dispatch thread and returns the result */
+    private static <T> T onEDT(Callable<T> task) throws Exception {
+        AtomicReference<T> result = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                result.set(task.call());
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        if (error.get() != null) throw error.get();
+        return result.get();
+    }
+
+    /** Asks the model for a line until it has been loaded */
+    private static String waitForLine(DatasetLineModel model, int index) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            String line = onEDT(() -> model.getElementAt(index));
+            if (!line.isEmpty()) return line;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Line " + index + " was not loaded");
+    }
+
+    /** A source with the given number of lines ("line 0", "line 1" and so on) that counts the number of windows it has been asked for */
+    private static DatasetLineModel.LineSource source(long lines, AtomicInteger fetches) {
+        return new DatasetLineModel.LineSource() {
+            @Override
+            public long getLineCount() {
+                return lines;
+            }
+            @Override
+            public List<String> getLines(long fromLine, int count) {
+                fetches.incrementAndGet();
+                List<String> result = new ArrayList<>();
+                for (long line = fromLine; line < Math.min(fromLine + count, lines); line++) result.add("line " + line);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Test of getElementAt method, of class DatasetLineModel.
+     * Tests that lines are loaded in windows when they are asked for and that only the most recently used windows are kept
+     */
+    @Test
+    public void testGetElementAt() throws Exception {
+        System.out.println("DatasetLineModel: test that windows of lines are loaded on demand and that the cache is bounded");
+        AtomicInteger fetches = new AtomicInteger();
+        AtomicReference<Long> counted = new AtomicReference<>();
+        DatasetLineModel model = onEDT(() -> new DatasetLineModel(source(2100, fetches), executor, new DatasetLineModel.Listener() {
+            @Override
+            public void lineCountLoaded(long lines) {
+                counted.set(lines);
+            }
+            @Override
+            public void loadFailed(Exception error) {
+                fail(error.getMessage());
+            }
+        }, 2));
+        onEDT(() -> {model.start(); return null;});
+        assertEquals("line 0", waitForLine(model, 0)); // the first window is loaded right away
+        for (int i = 0; i < 500 && onEDT(counted::get) == null; i++) Thread.sleep(10);
+        assertEquals(2100, (int)onEDT(model::getSize));
+        assertEquals(Long.valueOf(2100), counted.get());
+        assertEquals("line 499", onEDT(() -> model.getElementAt(499)));
+        assertEquals(1, fetches.get());
+        assertEquals("line 2099", waitForLine(model, 2099));
+        assertEquals("line 1000", waitForLine(model, 1000));
+        assertEquals(3, fetches.get());
+        assertEquals(2, (int)onEDT(model::getCachedWindowCount));
+        assertEquals("line 0", waitForLine(model, 0)); // the first window has been dropped from the cache
+        assertEquals(4, fetches.get());
+    }
+
+    /**
+     * Test of getSize method, of class DatasetLineModel.
+     * Tests that the first lines are shown before the lines have been counted, and that the list grows as the user scrolls until the count is known
+     */
+    @Test
+    public void testProvisionalSize() throws Exception {
+        System.out.println("DatasetLineModel: test that lines are shown while the lines are being counted");
+        CountDownLatch counting = new CountDownLatch(1);
+        AtomicInteger fetches = new AtomicInteger();
+        DatasetLineModel.LineSource slow = new DatasetLineModel.LineSource() {
+            @Override
+            public long getLineCount() throws IOException {
+                try {
+                    counting.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return 1700;
+            }
+            @Override
+            public List<String> getLines(long fromLine, int count) throws IOException {
+                return source(1700, fetches).getLines(fromLine, count);
+            }
+        };
+        DatasetLineModel model = onEDT(() -> new DatasetLineModel(slow, executor, null, 2));
+        onEDT(() -> {model.start(); return null;});
+        assertEquals("line 0", waitForLine(model, 0));
+        assertEquals("The list should extend one window past the lines loaded so far", 2 * DatasetLineModel.WINDOW_SIZE, (int)onEDT(model::getSize));
+        assertEquals("line 999", waitForLine(model, 999));
+        assertEquals(3 * DatasetLineModel.WINDOW_SIZE, (int)onEDT(model::getSize));
+        assertEquals("line 1499", waitForLine(model, 1499));
+        assertEquals(4 * DatasetLineModel.WINDOW_SIZE, (int)onEDT(model::getSize));
+        assertEquals("line 1699", waitForLine(model, 1699));
+        assertEquals("The end of the dataset gives the exact size", 1700, (int)onEDT(model::getSize));
+        counting.countDown();
+        for (int i = 0; i < 50; i++) onEDT(() -> null); // let the line count be handled
+        assertEquals(1700, (int)onEDT(model::getSize));
+        assertEquals(4, fetches.get());
+        DatasetLineModel small = onEDT(() -> new DatasetLineModel(source(120, new AtomicInteger()), executor, null, 2));
+        onEDT(() -> {small.start(); return null;});
+        assertEquals("line 119", waitForLine(small, 119));
+        assertEquals(120, (int)onEDT(small::getSize));
+    }
+
+    /**
+     * Test of cancel method, of class DatasetLineModel.
+     * Tests that loads in progress are interrupted and that their results are discarded
+     */
+    @Test
+    public void testCancel() throws Exception {
+        System.out.println("DatasetLineModel: test that cancelling the model interrupts the loads in progress");
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch interrupted = new CountDownLatch(2);
+        DatasetLineModel.LineSource blocking = new DatasetLineModel.LineSource() {
+            @Override
+            public long getLineCount() throws IOException {
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new InterruptedIOException();
+                }
+                return 1;
+            }
+            @Override
+            public List<String> getLines(long fromLine, int count) throws IOException {
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new InterruptedIOException();
+                }
+                return new ArrayList<>();
+            }
+        };
+        AtomicInteger notifications = new AtomicInteger();
+        DatasetLineModel model = onEDT(() -> new DatasetLineModel(blocking, executor, new DatasetLineModel.Listener() {
+            @Override
+            public void lineCountLoaded(long lines) {
+                notifications.incrementAndGet();
+            }
+            @Override
+            public void loadFailed(Exception error) {
+                notifications.incrementAndGet();
+            }
+        }, 2));
+        onEDT(() -> {model.start(); return null;});
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        onEDT(() -> {model.cancel(); return null;});
+        assertTrue("The loads should be interrupted", interrupted.await(5, TimeUnit.SECONDS));
+        onEDT(() -> null); // let the event dispatch thread handle the result of the interrupted load
+        Thread.sleep(50);
+        onEDT(() -> null);
+        assertEquals("The listener should not be notified after the model is cancelled", 0, notifications.get());
+        assertEquals(0, (int)onEDT(model::getSize));
+        assertEquals("", onEDT(() -> model.getElementAt(0)));
+        assertTrue(model.isCancelled());
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class DownloadCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private volatile byte[] content;
+    private volatile String etag = "\"v1\"";
+    private final AtomicInteger failAfter = new AtomicInteger(-1); // if set, the next GET response is cut off after this many bytes
+    private final List<String> requests = new CopyOnWriteArrayList<>(); // "HEAD" or "GET <range>" for each request
+
+    public DownloadCacheTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /** Serves the content with an ETag and support for (single) range requests */
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] bytes = content;
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            requests.add("HEAD");
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(bytes.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        requests.add("GET " + range);
+        int start = 0, end = bytes.length;
+        int status = 200;
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            String[] limits = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(limits[0]);
+            if (!limits[1].isEmpty()) end = Integer.parseInt(limits[1]) + 1;
+            status = 206;
+        }
+        exchange.sendResponseHeaders(status, end - start);
+        int limit = failAfter.getAndSet(-1);
+        try (OutputStream output = exchange.getResponseBody()) {
+            if (limit >= 0) {
+                output.write(bytes, start, Math.min(limit, end - start));
+                output.flush();
+                throw new IOException("Simulated network failure"); // the connection is closed without sending the rest
+            }
+            output.write(bytes, start, end - start);
+        }
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/" + path);
+    }
+
+    private int count(String prefix) {
+        int count = 0;
+        for (String request : requests) if (request.startsWith(prefix)) count++;
+        return count;
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Test of getFile method, of class DownloadCache.
+     * Tests that files are only downloaded again when the server reports a new version
+     */
+    @Test
+    public void testGetFile() throws Exception {
+        System.out.println("DownloadCache: test that files are downloaded once and validated with the ETag");
+        content = random(5000);
+        DownloadCache cache = new DownloadCache(tempFolder.newFolder("downloads"));
+        File file = cache.getFile(url("history.tar.gz"));
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(1, count("GET"));
+        assertEquals(file, new DownloadCache(file.getParentFile()).getFile(url("history.tar.gz"))); // a new cache for the same directory uses the same copy
+        assertEquals(1, count("GET"));
+        assertEquals(2, count("HEAD"));
+        content = random(6000);
+        etag = "\"v2\"";
+        assertArrayEquals(content, Files.readAllBytes(cache.getFile(url("history.tar.gz")).toPath()));
+        assertEquals(2, count("GET"));
+        server.stop(0); // an existing copy is used if the server can not be reached
+        assertArrayEquals(content, Files.readAllBytes(cache.getFile(url("history.tar.gz")).toPath()));
+    }
+
+    /**
+     * Test of getFile method, of class DownloadCache.
+     * Tests that large files are downloaded with parallel range requests and that failed downloads are resumed
+     */
+    @Test
+    public void testParallelDownload() throws Exception {
+        System.out.println("DownloadCache: test that large files are downloaded in parallel parts and that failed downloads are resumed");
+        content = random(400000);
+        DownloadCache cache = new DownloadCache(tempFolder.newFolder("downloads"), 4, 100000);
+        failAfter.set(30000);
+        try {
+            cache.getFile(url("large.tar.gz"));
+            fail("Expected an IOException");
+        } catch (IOException e) {}
+        assertEquals(4, count("GET bytes="));
+        requests.clear();
+        File file = cache.getFile(url("large.tar.gz"));
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals("Only the failed part should be downloaded again", 1, count("GET"));
+        String resumed = requests.get(requests.size() - 1);
+        int offset = Integer.parseInt(resumed.substring("GET bytes=".length(), resumed.indexOf('-')));
+        assertTrue("The failed part should be resumed where it stopped: " + resumed, offset % 100000 > 0);
+    }
+
+    /**
+     * Test of getFile method, of class DownloadCache.
+     * Tests that the least recently used archives (and their sidecar files) are deleted when the cache grows beyond its maximum size
+     */
+    @Test
+    public void testEviction() throws Exception {
+        System.out.println("DownloadCache: test that the least recently used downloads are deleted when the cache is full");
+        content = random(5000);
+        DownloadCache cache = new DownloadCache(tempFolder.newFolder("downloads"), 12000);
+        File first = cache.getFile(url("first.tar.gz"));
+        Files.write(new File(first.getPath() + ArchiveIndex.SIDECAR_SUFFIX).toPath(), new byte[100]); // sidecar files belong to the archive
+        Thread.sleep(20);
+        File second = cache.getFile(url("second.tar.gz"));
+        Thread.sleep(20);
+        assertTrue(first.isFile() && second.isFile());
+        File third = cache.getFile(url("third.tar.gz"));
+        assertFalse("The least recently used archive should be deleted", first.exists());
+        assertFalse(new File(first.getPath() + ArchiveIndex.SIDECAR_SUFFIX).exists());
+        assertTrue(second.isFile() && third.isFile());
+        Thread.sleep(20);
+        assertEquals(second, cache.getFile(url("second.tar.gz"))); // this makes the third archive the least recently used
+        Thread.sleep(20);
+        File fourth = cache.getFile(url("fourth.tar.gz"));
+        assertFalse(third.exists());
+        assertTrue(second.isFile() && fourth.isFile());
+        assertEquals("The second archive should not be downloaded again", 4, count("GET"));
+        File[] remaining = first.getParentFile().listFiles();
+        long size = 0;
+        for (File file : remaining) size += file.length();
+        assertTrue("The cache should be within its budget: " + size, size <= cache.getMaximumSize());
+    }
+
+    /**
+     * Test of GalaxyHistoryArchive with an archive that is read from a URL
+     */
+    @Test
+    public void testRemoteArchive() throws Exception {
+        System.out.println("DownloadCache: test that archives read from URLs are downloaded once and then used as local files");
+        File archive = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        content = Files.readAllBytes(archive.toPath());
+        File directory = tempFolder.newFolder("downloads");
+        GalaxyHistoryArchive.setDownloadCache(new DownloadCache(directory));
+        try {
+            GalaxyHistoryArchive local = new GalaxyHistoryArchive(archive.getAbsolutePath());
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            local.outputHistoryAsJSON(expected, false);
+            GalaxyHistoryArchive remote = new GalaxyHistoryArchive(url("history.tar.gz").toString());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            remote.outputHistoryAsJSON(output, false);
+            assertEquals(expected.toString("UTF-8"), output.toString("UTF-8"));
+            output.reset();
+            remote.outputDataset(output, "d1", null, false);
+            assertEquals(HistoryArchiveFixture.DATASET_1, output.toString("UTF-8"));
+            output.reset();
+            new GalaxyHistoryArchive(url("history.tar.gz").toString()).outputDataset(output, "d3", "image.png", false);
+            assertEquals(HistoryArchiveFixture.DATASET_3_EXTRA, output.toString("UTF-8"));
+            assertEquals(1, count("GET"));
+            File[] indexes = directory.listFiles((dir, name) -> name.endsWith(".ghbindex"));
+            assertEquals("An index should be saved next to the downloaded copy", 1, indexes.length);
+        } finally {
+            GalaxyHistoryArchive.setDownloadCache(new DownloadCache(DownloadCache.getDefaultDirectory()));
+        }
+    }
+
+}
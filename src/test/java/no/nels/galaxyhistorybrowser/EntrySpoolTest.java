@@ -0,0 +1,172 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class EntrySpoolTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public EntrySpoolTest() {
+    }
+
+    /** A source that produces the given number of bytes, but waits for a gate to open after the first chunk */
+    private static class GatedInputStream extends InputStream {
+        private final int size;
+        private final CountDownLatch gate;
+        private final int failAt;
+        private int position = 0;
+        volatile boolean closed = false;
+
+        GatedInputStream(int size, CountDownLatch gate, int failAt) {
+            this.size = size;
+            this.gate = gate;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == 1000) {
+                try {
+                    if (!gate.await(10, TimeUnit.SECONDS)) throw new IOException("Timeout");
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (position == failAt) throw new IOException("Source failed");
+            if (closed) throw new IOException("Source closed");
+            return (position < size) ? (position++ % 251) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = 0;
+            while (count < Math.min(length, 500)) {
+                int value = read();
+                if (value < 0) break;
+                bytes[offset + count++] = (byte)value;
+            }
+            return (count == 0 && length > 0) ? -1 : count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static byte[] expected(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) bytes[i] = (byte)(i % 251);
+        return bytes;
+    }
+
+    /**
+     * Test of open method, of class EntrySpool.
+     * Tests that concurrent readers of the same key share a single read of the source
+     */
+    @Test
+    public void testOpen_sharedReaders() throws Exception {
+        System.out.println("EntrySpool: test that concurrent readers share the same source");
+        final int size = 200000;
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final Object key = Arrays.asList("archive", "entry", true);
+        final LazyValue.Loader<InputStream> source = () -> {
+            loads.incrementAndGet();
+            return new GatedInputStream(size, gate, -1);
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<InputStream> streams = new ArrayList<>();
+            for (int i = 0; i < 5; i++) streams.add(EntrySpool.open(key, source)); // the source is blocked after the first chunk, so all readers join the same spool
+            assertEquals(1, loads.get());
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (InputStream stream : streams) results.add(executor.submit(() -> HistoryArchiveFixture.readAll(stream)));
+            gate.countDown();
+            for (Future<byte[]> result : results) assertArrayEquals(expected(size), result.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, EntrySpool.getActiveSpoolCount());
+        assertArrayEquals(expected(size), HistoryArchiveFixture.readAll(EntrySpool.open(key, source))); // a new request after all readers are done reads the source again
+        assertEquals(2, loads.get());
+    }
+
+    /**
+     * Test of open method, of class EntrySpool.
+     * Tests that errors from the source are passed on to the readers and that the producer stops when all readers are gone
+     */
+    @Test
+    public void testOpen_errors() throws Exception {
+        System.out.println("EntrySpool: test that errors are passed on and that abandoned spools are stopped");
+        try {
+            EntrySpool.open("missing", () -> {throw new FileNotFoundException("No such entry");});
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException e) {}
+        CountDownLatch open = new CountDownLatch(0);
+        InputStream failing = EntrySpool.open("failing", () -> new GatedInputStream(10000, open, 5000));
+        try {
+            HistoryArchiveFixture.readAll(failing);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Source failed", e.getMessage());
+        }
+        CountDownLatch gate = new CountDownLatch(1);
+        GatedInputStream source = new GatedInputStream(100000, gate, -1);
+        InputStream abandoned = EntrySpool.open("abandoned", () -> source);
+        assertEquals(0, abandoned.read()); // the first byte
+        abandoned.close();
+        gate.countDown();
+        for (int i = 0; i < 100 && !source.closed; i++) Thread.sleep(20);
+        assertTrue("The source should be closed when all readers are gone", source.closed);
+        assertEquals(0, EntrySpool.getActiveSpoolCount());
+    }
+
+    /**
+     * Test of GalaxyHistoryArchive.getInputStreamForFile with shared reads enabled for all files
+     */
+    @Test
+    public void testGetInputStreamForFile() throws Exception {
+        System.out.println("EntrySpool: test that files in an archive can be read through spools");
+        File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+        instance.getHistorySize(); // scan the archive to build the index
+        GalaxyHistoryArchive.setSharedReadThreshold(0);
+        try {
+            InputStream first = instance.getInputStreamForFile("datasets/dataset_2.fastqsanger.gz", true);
+            InputStream second = new GalaxyHistoryArchive(file.getAbsolutePath()).getInputStreamForFile("datasets/dataset_2.fastqsanger.gz", true);
+            assertEquals(HistoryArchiveFixture.DATASET_2, new String(HistoryArchiveFixture.readAll(first), "UTF-8"));
+            assertEquals(HistoryArchiveFixture.DATASET_2, new String(HistoryArchiveFixture.readAll(second), "UTF-8"));
+            try {
+                instance.getInputStreamForFile("datasets/missing.dat", true);
+                fail("Expected a FileNotFoundException");
+            } catch (FileNotFoundException e) {}
+        } finally {
+            GalaxyHistoryArchive.setSharedReadThreshold(GalaxyHistoryArchive.DEFAULT_SHARED_READ_THRESHOLD);
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class ExtractedArchiveCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public ExtractedArchiveCacheTest() {
+    }
+
+    private static long totalSize(Map<String,byte[]> entries) {
+        long size = 0;
+        for (byte[] contents : entries.values()) size += contents.length;
+        return size;
+    }
+
+    /**
+     * Test of getFile method, of class ExtractedArchiveCache.
+     * Tests that an archive is only extracted once and that the extracted files can be reused by a new cache
+     */
+    @Test
+    public void testGetFile() throws Exception {
+        System.out.println("ExtractedArchiveCache: test that archives are extracted once and reused");
+        File archive = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        File directory = new File(tempFolder.getRoot(), "cache");
+        ArchiveFingerprint fingerprint = ArchiveFingerprint.of(archive);
+        AtomicInteger extractions = new AtomicInteger();
+        LazyValue.Loader<InputStream> source = () -> {
+            extractions.incrementAndGet();
+            return new FileInputStream(archive);
+        };
+        ExtractedArchiveCache cache = new ExtractedArchiveCache(directory, ExtractedArchiveCache.DEFAULT_MAXIMUM_SIZE);
+        Map<String,byte[]> entries = HistoryArchiveFixture.entries();
+        for (Map.Entry<String,byte[]> entry : entries.entrySet()) {
+            File file = cache.getFile(fingerprint, source, entry.getKey());
+            assertNotNull(entry.getKey(), file);
+            assertArrayEquals(entry.getValue(), Files.readAllBytes(file.toPath()));
+        }
+        assertEquals(1, extractions.get());
+        assertNull(cache.getFile(fingerprint, source, "datasets/missing.dat"));
+        assertNull(cache.getFile(fingerprint, source, "../history.tar.gz"));
+        assertEquals(totalSize(entries), cache.getSize());
+        assertEquals(1, directory.list().length); // no temporary directories are left behind
+        // a new cache for the same directory should reuse the extracted archive and remove leftovers from interrupted extractions
+        assertTrue(new File(directory, "interrupted.tmp").mkdir());
+        ExtractedArchiveCache reopened = new ExtractedArchiveCache(directory, ExtractedArchiveCache.DEFAULT_MAXIMUM_SIZE);
+        assertEquals(1, reopened.size());
+        assertNotNull(reopened.getFile(fingerprint, source, "export_attrs.txt"));
+        assertEquals(1, extractions.get());
+        assertFalse(new File(directory, "interrupted.tmp").exists());
+    }
+
+    /**
+     * Test of eviction in class ExtractedArchiveCache.
+     * Tests that the least recently used archives are deleted when the budget is exceeded
+     */
+    @Test
+    public void testEviction() throws Exception {
+        System.out.println("ExtractedArchiveCache: test that the least recently used archives are deleted when the budget is exceeded");
+        File a = HistoryArchiveFixture.write(tempFolder.newFile("a.tar.gz"));
+        File b = HistoryArchiveFixture.write(tempFolder.newFile("b.tar.gz"));
+        File c = HistoryArchiveFixture.write(tempFolder.newFile("c.tar.gz"));
+        long size = totalSize(HistoryArchiveFixture.entries());
+        ExtractedArchiveCache cache = new ExtractedArchiveCache(tempFolder.newFolder("cache"), size * 5 / 2); // room for two archives, but not three
+        File directoryA = cache.getDirectory(ArchiveFingerprint.of(a), () -> new FileInputStream(a));
+        File directoryB = cache.getDirectory(ArchiveFingerprint.of(b), () -> new FileInputStream(b));
+        assertEquals(directoryA, cache.getDirectory(ArchiveFingerprint.of(a), () -> new FileInputStream(a))); // A is now more recently used than B
+        File directoryC = cache.getDirectory(ArchiveFingerprint.of(c), () -> new FileInputStream(c));
+        assertEquals(2, cache.size());
+        assertTrue(cache.getSize() <= cache.getMaximumSize());
+        assertTrue(directoryA.isDirectory());
+        assertFalse(directoryB.exists());
+        assertTrue(directoryC.isDirectory());
+    }
+
+    /**
+     * Test of GalaxyHistoryArchive.outputDataset when an ExtractedArchiveCache is used
+     */
+    @Test
+    public void testOutputDataset() throws Exception {
+        System.out.println("ExtractedArchiveCache: test that datasets are output correctly from extracted archives");
+        File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        GalaxyHistoryArchive.setExtractedArchiveCache(new ExtractedArchiveCache(tempFolder.newFolder("cache"), ExtractedArchiveCache.DEFAULT_MAXIMUM_SIZE));
+        try {
+            GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            instance.outputDataset(output, "d1", null, false);
+            assertEquals(HistoryArchiveFixture.DATASET_1, output.toString("UTF-8"));
+            output.reset();
+            instance.outputDataset(output, "d1", 1, 5, false);
+            assertEquals(HistoryArchiveFixture.DATASET_1.substring(1, 6), output.toString("UTF-8"));
+            output.reset();
+            instance.outputDataset(output, "d2", null, false); // view mode decompresses the dataset
+            assertEquals(HistoryArchiveFixture.DATASET_2, output.toString("UTF-8"));
+            output.reset();
+            instance.outputDataset(output, "d2", null, true); // download mode outputs the dataset as it is stored in the archive
+            assertArrayEquals(HistoryArchiveFixture.entries().get("datasets/dataset_2.fastqsanger.gz"), output.toByteArray());
+            output.reset();
+            instance.outputDataset(output, "d3", "image.png", false);
+            assertEquals(HistoryArchiveFixture.DATASET_3_EXTRA, output.toString("UTF-8"));
+            try {
+                instance.outputDataset(new ByteArrayOutputStream(), "d3", "missing.png", false);
+                fail("Expected an IOException");
+            } catch (java.io.FileNotFoundException e) {}
+        } finally {
+            GalaxyHistoryArchive.setExtractedArchiveCache(null);
+        }
+    }
+
+}
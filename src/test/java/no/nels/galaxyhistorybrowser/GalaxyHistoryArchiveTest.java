@@ -11,7 +11,9 @@ import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
 /**
@@ -20,6 +22,9 @@ import static org.junit.Assert.*;
  */
 public class GalaxyHistoryArchiveTest {
     
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    
     public GalaxyHistoryArchiveTest() {
     }
     
@@ -228,6 +233,343 @@ public class GalaxyHistoryArchiveTest {
         assertEquals("text/plain", instance.getMIMEtypeFromExtension(".txt.zip", true)); // contrived example but chosen design                
     }
 
+    /**
+     * Test of getHistory method, of class GalaxyHistoryArchive.
+     * Tests that all the metadata files are read from the archive and combined into a processed history
+     */
+    @Test
+    public void testGetHistory_fixture() throws Exception {
+        System.out.println("getHistory: test that the history is processed correctly from a single scan of the archive");
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz")).getAbsolutePath());
+        Map<String,Object> history = instance.getHistory();
+        Map metadata = (Map)history.get("metadata");
+        assertEquals("Test history", metadata.get("name"));
+        assertEquals("", metadata.get("annotation"));
+        List<Map> contents = (List<Map>)history.get("contents");
+        assertEquals("Wrong number of top-level history items", 6, contents.size());
+        int[] hids = new int[contents.size()];
+        for (int i=0;i<hids.length;i++) hids[i]=(int)contents.get(i).get("hid");
+        assertArrayEquals("History items are not in anti-chronological order", new int[]{8,7,6,3,2,1}, hids);
+        assertEquals("list:paired", contents.get(0).get("class"));
+        assertEquals("list", contents.get(1).get("class"));
+        assertEquals("ok", contents.get(0).get("state"));
+        Map pair = (Map)((List)((Map)contents.get(0).get("collection")).get("elements")).get(0);
+        assertEquals("paired", pair.get("class"));
+        assertEquals("ok", pair.get("state")); // states should also be set for nested collections
+        assertEquals("error", instance.getDataset("encoded_id","d3").get("state"));
+        assertEquals("ok", instance.getDataset("encoded_id","d6").get("state")); // state is taken from job of the original dataset
+        assertEquals("j4", instance.getDataset("encoded_id","d6").get("job"));
+        assertEquals("2", instance.getExportVersion());
+        assertEquals("j3", instance.getJob("j3").get("encoded_id"));
+    }
+    
+    /**
+     * Test of getDataset method, of class GalaxyHistoryArchive.
+     * Tests lookups with both indexed and non-indexed attributes, as well as lookups of jobs and collections
+     */
+    @Test
+    public void testGetDataset() throws Exception {
+        System.out.println("getDataset: test lookups of datasets, jobs and collections");
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz")).getAbsolutePath());
+        assertEquals("d3", instance.getDataset("encoded_id","d3").get("encoded_id"));
+        assertEquals("d5", instance.getDataset("hid",5).get("encoded_id"));
+        assertEquals("d6", instance.getDataset("file_name","datasets/dataset_4.dat").get("encoded_id")); // d4 and d6 share the same file. The last one should be returned
+        assertEquals("d2", instance.getDataset("extension","fastqsanger.gz").get("encoded_id")); // not an indexed attribute
+        assertNull(instance.getDataset("encoded_id","unknown"));
+        assertNull(instance.getDataset("hid","5")); // HIDs are numbers
+        assertEquals("split", instance.getJob("j4").get("tool_id"));
+        assertNull(instance.getJob("unknown"));
+        assertEquals("my pairs", instance.getCollection("c2").get("display_name"));
+        assertNull(instance.getCollection("cc2")); // the ID of the nested collection object should not be used
+        assertTrue(instance.hasExtraFiles("d3"));
+        assertFalse(instance.hasExtraFiles("d1"));
+        assertEquals("text/html", instance.getMIMEtypeForDataset("d3", true));
+    }
+    
+    /**
+     * Test of outputHistoryAsJSON method, of class GalaxyHistoryArchive.
+     * Tests that the streamed JSON output is the same as the JSON for the full processed history, in both pretty and compact form
+     */
+    @Test
+    public void testOutputHistoryAsJSON_streaming() throws Exception {
+        System.out.println("outputHistoryAsJSON: test that streamed output is the same as the full processed history");
+        java.io.File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        GalaxyHistoryArchive streamed = new GalaxyHistoryArchive(file.getAbsolutePath());
+        java.io.ByteArrayOutputStream pretty = new java.io.ByteArrayOutputStream();
+        streamed.outputHistoryAsJSON(pretty, true);
+        java.io.ByteArrayOutputStream compact = new java.io.ByteArrayOutputStream();
+        streamed.outputHistoryAsJSON(compact, false);
+        assertFalse("Compact output should not contain newlines", compact.toString().contains("\n"));
+        String expResult = new GalaxyHistoryArchive(file.getAbsolutePath()).getHistoryAsJSON(true);
+        assertEquals(expResult, pretty.toString());
+        com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper();
+        assertEquals(mapper.readTree(expResult), mapper.readTree(compact.toByteArray()));
+    }
+    
+    /**
+     * Test of getHistorySize method, of class GalaxyHistoryArchive.
+     */
+    @Test
+    public void testGetHistorySize() throws Exception {
+        System.out.println("getHistorySize");
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz")).getAbsolutePath());
+        long expected = 0;
+        for (Map.Entry<String,byte[]> entry:HistoryArchiveFixture.entries().entrySet()) {
+            if (entry.getKey().startsWith("datasets/")) expected+=entry.getValue().length;
+        }
+        assertEquals(expected, instance.getHistorySize());
+    }    
+    
+    /**
+     * Test of getHistory method, of class GalaxyHistoryArchive.
+     * Tests that a file which is not gzipped is rejected as not being a Galaxy history
+     */
+    @Test
+    public void testGetHistory_notGzipped() throws Exception {
+        System.out.println("getHistory: test that files which are not gzipped are rejected");
+        java.io.File file = tempFolder.newFile("history.txt");
+        java.nio.file.Files.write(file.toPath(), "This is not a history".getBytes());
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+        assertEquals("0", instance.getExportVersion());
+        try {
+            instance.getHistory();
+            fail("Expected an IOException");
+        } catch (java.io.IOException e) {
+            assertEquals("This file is probably not a Galaxy history", e.getMessage());
+        }
+    }    
+
+    /**
+     * Test of getInputStreamForFile method, of class GalaxyHistoryArchive.
+     * Tests that files can be read both before and after an index has been created for the archive
+     */
+    @Test
+    public void testGetInputStreamForFile() throws Exception {
+        System.out.println("getInputStreamForFile: test that files are read correctly with and without an archive index");
+        java.io.File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+        assertEquals(HistoryArchiveFixture.DATASET_2, readAll(instance.getInputStreamForFile("datasets/dataset_2.fastqsanger.gz", true))); // no index yet
+        assertFalse(ArchiveIndex.getSidecarFile(file).exists());
+        instance.getHistory(); // this will create the index
+        assertTrue("Index sidecar file was not created", ArchiveIndex.getSidecarFile(file).exists());
+        GalaxyHistoryArchive other = new GalaxyHistoryArchive(file.getAbsolutePath()); // this should use the index from the sidecar file
+        assertEquals(HistoryArchiveFixture.DATASET_5, readAll(other.getInputStreamForFile("datasets/dataset_5.dat", true)));
+        assertEquals(HistoryArchiveFixture.DATASET_3_EXTRA, readAll(other.getInputStreamForFile("datasets/dataset_3_files/image.png", false)));
+        try {
+            other.getInputStreamForFile("datasets/missing.dat", false);
+            fail("Expected a FileNotFoundException");
+        } catch (java.io.FileNotFoundException e) {}
+    }
+    
+    /**
+     * Test of outputDataset method with long offsets, of class GalaxyHistoryArchive.
+     * Tests that sections of regular and compressed datasets are output correctly both with and without an index,
+     * including a large BGZF-compressed dataset where the GZIP members are used as checkpoints
+     */
+    @Test
+    public void testOutputDataset_range() throws Exception {
+        System.out.println("outputDataset: test that sections of datasets are output from the right positions");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 3000000; i++) builder.append("@read").append(i).append("\nACGTACGTAC\n+\nIIIIIIIIII\n");
+        byte[] reads = builder.toString().getBytes("UTF-8");
+        java.io.ByteArrayOutputStream blocked = new java.io.ByteArrayOutputStream();
+        try (BlockGzipOutputStream output = new BlockGzipOutputStream(blocked)) {
+            output.write(reads);
+        }
+        Map<String,byte[]> entries = HistoryArchiveFixture.entries();
+        entries.put("datasets/dataset_2.fastqsanger.gz", blocked.toByteArray());
+        java.io.File file = tempFolder.newFile("history.tar.gz");
+        try (OutputStream output = new org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream(new java.io.FileOutputStream(file))) {
+            output.write(HistoryArchiveFixture.tarball(entries));
+        }
+        String expected = new String(reads, "UTF-8");
+        long[][] sections = {{0, 9}, {2500000, 2500099}, {1, 2}, {1200000, 2900000}, {2999990, 3999999}, {5, 5}, {2500000, 2500000}}; // the end is inclusive, so the last two are single bytes
+        for (int pass = 0; pass < 2; pass++) { // the first pass is without an index, the second pass with the index created by the first pass
+            GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+            for (long[] section : sections) {
+                java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+                instance.outputDataset(output, "d2", section[0], section[1], true);
+                assertEquals("Section "+section[0]+"-"+section[1]+" in pass "+pass, expected.substring((int)section[0], (int)Math.min(section[1] + 1, expected.length())), output.toString("UTF-8"));
+            }
+            java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+            instance.outputDataset(output, "d1", 7L, 14L, false);
+            assertEquals(HistoryArchiveFixture.DATASET_1.substring(7, 15), output.toString("UTF-8"));
+            output.reset();
+            instance.outputDataset(output, "d1", 7L, 7L, false);
+            assertEquals(HistoryArchiveFixture.DATASET_1.substring(7, 8), output.toString("UTF-8"));
+            output.reset();
+            instance.outputDatasetExtraFile(output, "d3", "image.png", 4L, 1000L, false);
+            assertEquals(HistoryArchiveFixture.DATASET_3_EXTRA.substring(4), output.toString("UTF-8"));
+            output.reset();
+            int middle = blocked.size() / 2;
+            instance.outputDataset(output, "d2", (long)middle, middle + 3L, false); // the compressed data itself
+            assertArrayEquals(java.util.Arrays.copyOfRange(blocked.toByteArray(), middle, middle + 4), output.toByteArray());
+            instance.getHistory(); // this creates the index for the next pass
+        }
+    }
+    
+    /**
+     * Test of visitHistoryContents and setProgressListener methods, of class GalaxyHistoryArchive.
+     * Tests that the entries are visited in the same order as in the processed history, that the scan reports its progress
+     * in bytes of the archive file and that the scan can be cancelled by the progress listener
+     */
+    @Test
+    public void testVisitHistoryContents() throws Exception {
+        System.out.println("visitHistoryContents: test that entries are visited newest first and that the scan reports its progress");
+        java.io.File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        GalaxyHistoryArchive cancelled = new GalaxyHistoryArchive(file.getAbsolutePath());
+        cancelled.setProgressListener((bytesRead, totalBytes) -> {
+            throw new java.io.InterruptedIOException("Cancelled");
+        });
+        try {
+            cancelled.visitHistoryContents(entry -> {});
+            fail("Expected the scan to be cancelled");
+        } catch (java.io.IOException e) {
+            assertEquals("Cancelled", e.getMessage());
+        }
+        assertFalse("A cancelled scan should not leave a snapshot", HistorySnapshot.getSidecarFile(file).exists());
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+        List<Long> progress = new java.util.ArrayList<>();
+        instance.setProgressListener((bytesRead, totalBytes) -> {
+            assertEquals(file.length(), totalBytes);
+            progress.add(bytesRead);
+        });
+        List<Map> visited = new java.util.ArrayList<>();
+        instance.visitHistoryContents(visited::add);
+        assertEquals("Expected the whole archive to be read", Long.valueOf(file.length()), progress.get(progress.size() - 1));
+        List<Map> contents = (List<Map>)instance.getHistory().get("contents");
+        assertEquals(contents, visited);
+        assertEquals(8, ((Number)visited.get(0).get("hid")).intValue());
+        try {
+            instance.visitHistoryContents(entry -> {throw new java.io.InterruptedIOException("Stopped");});
+            fail("Expected the visitor to stop the processing");
+        } catch (java.io.IOException e) {
+            assertEquals("Stopped", e.getMessage());
+        }
+    }
+    
+    /**
+     * Test of getLines method, of class GalaxyHistoryArchive.
+     * Tests that lines are returned from the right positions in compressed and uncompressed datasets, and that the line index is saved and reused
+     */
+    @Test
+    public void testGetLines() throws Exception {
+        System.out.println("getLines: test that ranges of lines are returned from datasets");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) builder.append("line ").append(i).append((i % 3 == 0) ? "\r\n" : "\n");
+        builder.append("last line without line break");
+        byte[] text = builder.toString().getBytes("UTF-8");
+        java.io.ByteArrayOutputStream blocked = new java.io.ByteArrayOutputStream();
+        try (BlockGzipOutputStream output = new BlockGzipOutputStream(blocked)) {
+            output.write(text);
+        }
+        Map<String,byte[]> entries = HistoryArchiveFixture.entries();
+        entries.put("datasets/dataset_1.dat", text);
+        entries.put("datasets/dataset_2.fastqsanger.gz", blocked.toByteArray());
+        java.io.File file = tempFolder.newFile("history.tar.gz");
+        try (OutputStream output = new org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream(new java.io.FileOutputStream(file))) {
+            output.write(HistoryArchiveFixture.tarball(entries));
+        }
+        GalaxyHistoryArchive unindexed = new GalaxyHistoryArchive(file.getAbsolutePath());
+        for (String datasetID : new String[]{"d1", "d2"}) { // without waiting for the index, the lines are read from the start of the file
+            assertEquals(java.util.Arrays.asList("line 0", "line 1"), unindexed.getLines(datasetID, 0, 2, false));
+            assertEquals(java.util.Arrays.asList("line 2998", "line 2999"), unindexed.getLines(datasetID, 2998, 2, false));
+            assertEquals(java.util.Arrays.asList("line 4999", "last line without line break"), unindexed.getLines(datasetID, 4999, 10, false));
+        }
+        assertFalse("The line index should not be built without waiting for it", LineIndex.getSidecarDirectory(file).exists());
+        for (int pass = 0; pass < 2; pass++) { // the first pass builds the line indexes, the second pass loads them from the sidecar directory
+            GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+            for (String datasetID : new String[]{"d1", "d2"}) {
+                assertEquals(java.util.Arrays.asList("line 0", "line 1"), instance.getLines(datasetID, 0, 2));
+                List<String> lines = instance.getLines(datasetID, 2998, 5);
+                assertEquals(java.util.Arrays.asList("line 2998", "line 2999", "line 3000", "line 3001", "line 3002"), lines);
+                assertEquals(java.util.Arrays.asList("line 4999", "last line without line break"), instance.getLines(datasetID, 4999, 10));
+                assertTrue(instance.getLines(datasetID, 5001, 10).isEmpty());
+            }
+            assertEquals(java.util.Arrays.asList("ACGT", "+", "IIII"), instance.getLines("d4", 1, 100));
+            assertTrue(LineIndex.getSidecarFile(file, "datasets/dataset_2.fastqsanger.gz").isFile());
+            assertEquals(java.util.Arrays.asList("line 3000"), instance.getLines("d2", 3000, 1, false)); // the index is used when it has been loaded
+        }
+    }
+    
+    /**
+     * Test of getHistory method, of class GalaxyHistoryArchive.
+     * Tests that the processed history is saved as a snapshot and that reopening the history with the snapshot gives the same result
+     */
+    @Test
+    public void testGetHistory_snapshot() throws Exception {
+        System.out.println("getHistory: test that a history restored from a snapshot is the same as the original");
+        java.io.File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+        String expResult = instance.getHistoryAsJSON(false);
+        java.io.File snapshot = HistorySnapshot.getSidecarFile(file);
+        assertTrue("Snapshot sidecar file was not created", snapshot.exists());
+        GalaxyHistoryArchive restored = new GalaxyHistoryArchive(file.getAbsolutePath());
+        assertEquals(expResult, restored.getHistoryAsJSON(false));
+        assertEquals("datasets/dataset_3.dat", restored.getDataset("encoded_id", "d3").get("file_name"));
+        assertEquals("error", restored.getDataset("encoded_id", "d3").get("state"));
+        assertTrue("Datasets restored from snapshot should be records", restored.getDataset("encoded_id", "d3") instanceof DatasetRecord);
+        assertNotNull(HistorySnapshot.load(snapshot, ArchiveFingerprint.of(file), new HistoryRecordReader()));
+        HistoryArchiveFixture.writeMultiMember(file, 512); // same contents, but a different archive file
+        assertNull("Snapshot for a different archive file was loaded", HistorySnapshot.load(snapshot, ArchiveFingerprint.of(file), new HistoryRecordReader()));
+    }
+    
+    /**
+     * Test of concurrent use of GalaxyHistoryArchive.
+     * Tests that several threads can use the same archive at the same time and that the shared structures can not be modified
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        System.out.println("concurrency: test that an archive can be used by several threads at the same time");
+        java.io.File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        String expResult = new GalaxyHistoryArchive(file.getAbsolutePath()).getHistoryAsJSON(false);
+        HistorySnapshot.getSidecarFile(file).delete(); // make the threads read the archive itself
+        final GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath());
+        final int threads = 8;
+        final java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        try {
+            List<java.util.concurrent.Future<String>> results = new java.util.ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final int thread = i;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    if (thread % 2 == 0) assertEquals("error", instance.getDataset("encoded_id", "d3").get("state"));
+                    return (thread % 3 == 0) ? instance.getHistoryAsJSON(false) : readJSON(instance);
+                }));
+            }
+            start.countDown();
+            for (java.util.concurrent.Future<String> result : results) assertEquals(expResult, result.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertSame(instance.getHistory(), instance.getHistory());
+        assertSame(instance.getDatasets(), instance.getDatasets());
+        try {
+            instance.getDataset("encoded_id", "d1").put("state", "error");
+            fail("Datasets should not be modifiable");
+        } catch (UnsupportedOperationException e) {}
+        try {
+            instance.getDatasets().clear();
+            fail("The list of datasets should not be modifiable");
+        } catch (UnsupportedOperationException e) {}
+        try {
+            ((List<Map>)instance.getHistory().get("contents")).get(0).put("name", "renamed");
+            fail("The processed history should not be modifiable");
+        } catch (UnsupportedOperationException e) {}
+        assertEquals(expResult, instance.getHistoryAsJSON(false));
+    }
+    
+    private String readJSON(GalaxyHistoryArchive instance) throws java.io.IOException {
+        java.io.ByteArrayOutputStream buffer = new java.io.ByteArrayOutputStream();
+        instance.outputHistoryAsJSON(buffer, false);
+        return new String(buffer.toByteArray(), "UTF-8");
+    }
+    
+    private String readAll(InputStream stream) throws java.io.IOException {
+        return new String(HistoryArchiveFixture.readAll(stream), "UTF-8");
+    }    
+
 //    /**
 //     * Test of getInputStreamReaderForFile method, of class GalaxyHistoryArchive.
 //     */
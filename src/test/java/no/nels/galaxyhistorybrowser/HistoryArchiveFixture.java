@@ -0,0 +1,188 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+/**
+ * Creates a small synthetic Galaxy History Archive that can be used by the tests.
+ * The history contains five regular datasets (one of which is gzip-compressed and one which has extra files),
+ * a copied dataset, a "list" collection and a nested "list:paired" collection.
+ * @author kjetikl
+ */
+public class HistoryArchiveFixture {
+
+    public static final String EXPORT_ATTRS="{\"galaxy_export_version\": \"2\"}";
+
+    public static final String HISTORY_ATTRS="{\"name\": \"Test history\", \"annotation\": null, \"tags\": [\"tag1\",\"name:test\"], "
+            + "\"create_time\": \"2020-01-01T10:00:00.000000\", \"update_time\": \"2020-01-02T11:30:00.000000\", \"genome_build\": \"hg38\"}";
+
+    public static final String DATASETS_ATTRS="["
+            + dataset("d1",1,"reads.fastq","fastqsanger","datasets/dataset_1.dat",null,true,null)+","
+            + dataset("d2",2,"reads.fastq.gz","fastqsanger.gz","datasets/dataset_2.fastqsanger.gz",null,true,null)+","
+            + dataset("d3",3,"report.html","html","datasets/dataset_3.dat","datasets/dataset_3_files",true,null)+","
+            + dataset("d4",4,"forward","fastqsanger","datasets/dataset_4.dat",null,false,null)+","
+            + dataset("d5",5,"reverse","fastqsanger","datasets/dataset_5.dat",null,false,null)+","
+            + dataset("d6",6,"copy of forward","fastqsanger","datasets/dataset_4.dat",null,true,"[\"d4\"]")
+            + "]";
+
+    public static final String JOBS_ATTRS="["
+            + "{\"encoded_id\": \"j1\", \"state\": \"ok\", \"tool_id\": \"upload1\", \"output_dataset_mapping\": {\"output0\": [\"d1\"]}},"
+            + "{\"encoded_id\": \"j2\", \"state\": \"ok\", \"tool_id\": \"gzip\", \"output_dataset_mapping\": {\"output\": [\"d2\"]}},"
+            + "{\"encoded_id\": \"j3\", \"state\": \"error\", \"tool_id\": \"fastqc\", \"output_dataset_mapping\": {\"html_file\": [\"d3\"]}},"
+            + "{\"encoded_id\": \"j4\", \"state\": \"ok\", \"tool_id\": \"split\", \"output_dataset_mapping\": {\"forward\": [\"d4\"], \"reverse\": [\"d5\"]}}"
+            + "]";
+
+    public static final String COLLECTIONS_ATTRS="["
+            + "{\"hid\": 7, \"encoded_id\": \"c1\", \"display_name\": \"my list\", \"visible\": true, \"collection\": {\"encoded_id\": \"cc1\", \"type\": \"list\", \"elements\": ["
+            +     element(0,"sample1","e1","d4")+","+element(1,"sample2","e2","d5")
+            + "]}},"
+            + "{\"hid\": 8, \"encoded_id\": \"c2\", \"display_name\": \"my pairs\", \"visible\": true, \"collection\": {\"encoded_id\": \"cc2\", \"type\": \"list:paired\", \"elements\": ["
+            +     "{\"element_index\": 0, \"element_identifier\": \"pair1\", \"element_type\": \"dataset_collection\", \"encoded_id\": \"e3\", \"child_collection\": {\"encoded_id\": \"cc3\", \"type\": \"paired\", \"elements\": ["
+            +         element(0,"forward","e4","d4")+","+element(1,"reverse","e5","d5")
+            +     "]}}"
+            + "]}}"
+            + "]";
+
+    public static final String DATASET_1="@read1\nACGTACGT\n+\nIIIIIIII\n@read2\nTTTTGGGG\n+\nIIIIIIII\n";
+    public static final String DATASET_2="@read3\nCCCCAAAA\n+\nIIIIIIII\n";
+    public static final String DATASET_3="<html><body><img src=\"image.png\"></body></html>";
+    public static final String DATASET_3_EXTRA="not really a PNG image";
+    public static final String DATASET_4="@fwd\nACGT\n+\nIIII\n";
+    public static final String DATASET_5="@rev\nTGCA\n+\nIIII\n";
+
+    private static String dataset(String id, int hid, String name, String extension, String filename, String extraFilesPath, boolean visible, String copiedChain) {
+        return "{\"encoded_id\": \""+id+"\", \"hid\": "+hid+", \"name\": \""+name+"\", \"extension\": \""+extension+"\", "
+             + "\"file_name\": \""+filename+"\", "+((extraFilesPath!=null)?("\"extra_files_path\": \""+extraFilesPath+"\", "):"")
+             + "\"metadata\": {\"dbkey\": \"hg38\", \"data_lines\": 2}, \"blurb\": \"2 sequences\", \"peek\": \"@read\", \"info\": \"\", "
+             + "\"visible\": "+visible+", \"create_time\": \"2020-01-01T10:0"+hid+":00.000000\", \"designation\": null"
+             + ((copiedChain!=null)?(", \"copied_from_history_dataset_association_id_chain\": "+copiedChain):"")+"}";
+    }
+
+    private static String element(int index, String identifier, String id, String datasetID) {
+        return "{\"element_index\": "+index+", \"element_identifier\": \""+identifier+"\", \"element_type\": \"hda\", \"encoded_id\": \""+id+"\", "
+             + "\"hda\": {\"encoded_id\": \""+datasetID+"\", \"name\": \"hda "+datasetID+"\"}}";
+    }
+
+    /** Returns the entries of the archive tarball in the order they will be written (file path => contents) */
+    public static Map<String,byte[]> entries() throws IOException {
+        Map<String,byte[]> entries=new LinkedHashMap<>();
+        entries.put("datasets/dataset_1.dat", DATASET_1.getBytes(StandardCharsets.UTF_8));
+        entries.put("datasets/dataset_2.fastqsanger.gz", gzip(DATASET_2.getBytes(StandardCharsets.UTF_8)));
+        entries.put("datasets/dataset_3.dat", DATASET_3.getBytes(StandardCharsets.UTF_8));
+        entries.put("datasets/dataset_3_files/image.png", DATASET_3_EXTRA.getBytes(StandardCharsets.UTF_8));
+        entries.put("datasets/dataset_4.dat", DATASET_4.getBytes(StandardCharsets.UTF_8));
+        entries.put("datasets/dataset_5.dat", DATASET_5.getBytes(StandardCharsets.UTF_8));
+        entries.put("export_attrs.txt", EXPORT_ATTRS.getBytes(StandardCharsets.UTF_8));
+        entries.put("history_attrs.txt", HISTORY_ATTRS.getBytes(StandardCharsets.UTF_8));
+        entries.put("datasets_attrs.txt", DATASETS_ATTRS.getBytes(StandardCharsets.UTF_8));
+        entries.put("collections_attrs.txt", COLLECTIONS_ATTRS.getBytes(StandardCharsets.UTF_8));
+        entries.put("jobs_attrs.txt", JOBS_ATTRS.getBytes(StandardCharsets.UTF_8));
+        return entries;
+    }
+
+    /** Returns the uncompressed tarball containing all the entries */
+    public static byte[] tarball() throws IOException {
+        return tarball(entries());
+    }
+
+    /** Returns an uncompressed tarball containing the given entries (e.g. the fixture entries with some of them replaced) */
+    public static byte[] tarball(Map<String,byte[]> entries) throws IOException {
+        ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+        TarArchiveOutputStream tarOutput=new TarArchiveOutputStream(buffer);
+        for (Map.Entry<String,byte[]> entry:entries.entrySet()) {
+            TarArchiveEntry tarEntry=new TarArchiveEntry(entry.getKey());
+            tarEntry.setSize(entry.getValue().length);
+            tarEntry.setModTime(0); // the entries would otherwise get the current time, and tarballs built in different seconds would differ
+            tarOutput.putArchiveEntry(tarEntry);
+            tarOutput.write(entry.getValue());
+            tarOutput.closeArchiveEntry();
+        }
+        tarOutput.close();
+        return buffer.toByteArray();
+    }
+
+    /** Writes the history archive as a gzipped tarball to the given file */
+    public static File write(File file) throws IOException {
+        try (OutputStream output=new GzipCompressorOutputStream(new FileOutputStream(file))) {
+            output.write(tarball());
+        }
+        return file;
+    }
+
+    /** Writes the history archive as a gzipped tarball made up of several concatenated GZIP members, each containing (at most) the given number of uncompressed bytes */
+    public static File writeMultiMember(File file, int memberSize) throws IOException {
+        byte[] tarball=tarball();
+        try (OutputStream output=new FileOutputStream(file)) {
+            for (int start=0;start<tarball.length;start+=memberSize) {
+                output.write(gzip(Arrays.copyOfRange(tarball, start, Math.min(start+memberSize, tarball.length))));
+            }
+        }
+        return file;
+    }
+
+    /** Writes the history archive in the BGZF layout (as produced by "bgzip"), with blocks containing (at most) the given number of uncompressed bytes followed by an empty end-of-file block */
+    public static File writeBlocked(File file, int blockSize) throws IOException {
+        byte[] tarball=tarball();
+        try (OutputStream output=new FileOutputStream(file)) {
+            for (int start=0;start<tarball.length;start+=blockSize) {
+                output.write(bgzfBlock(Arrays.copyOfRange(tarball, start, Math.min(start+blockSize, tarball.length))));
+            }
+            output.write(bgzfBlock(new byte[0]));
+        }
+        return file;
+    }
+
+    /** Returns a single BGZF block (a GZIP member with the compressed block size in a "BC" subfield) containing the data */
+    public static byte[] bgzfBlock(byte[] data) {
+        Deflater deflater=new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] compressed=new byte[data.length+1024];
+        int length=0;
+        while (!deflater.finished()) length+=deflater.deflate(compressed, length, compressed.length-length);
+        deflater.end();
+        CRC32 crc=new CRC32();
+        crc.update(data);
+        ByteBuffer block=ByteBuffer.allocate(18+length+8).order(ByteOrder.LITTLE_ENDIAN);
+        block.put(new byte[]{0x1f,(byte)0x8b,8,4,0,0,0,0,0,(byte)0xff}).putShort((short)6).put(new byte[]{'B','C'}).putShort((short)2).putShort((short)(18+length+8-1));
+        block.put(compressed, 0, length).putInt((int)crc.getValue()).putInt(data.length);
+        return block.array();
+    }
+
+    /** Reads a stream to the end, closes it and returns everything that was read. An odd buffer size is used, so the reads rarely line up with the buffers of the stream being read */
+    public static byte[] readAll(InputStream input) throws IOException {
+        try (InputStream stream=input) {
+            ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+            byte[] bytes=new byte[777];
+            int length;
+            while ((length=stream.read(bytes))>=0) buffer.write(bytes, 0, length);
+            return buffer.toByteArray();
+        }
+    }
+
+    public static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream buffer=new ByteArrayOutputStream();
+        try (OutputStream output=new GzipCompressorOutputStream(buffer)) {
+            output.write(data);
+        }
+        return buffer.toByteArray();
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class HistoryRecordReaderTest {
+
+    public HistoryRecordReaderTest() {
+    }
+
+    /**
+     * Test of readDatasets method, of class HistoryRecordReader.
+     * Tests that datasets are read into records that are equal to the maps created by the SimpleJSONparser
+     */
+    @Test
+    public void testReadDatasets() throws Exception {
+        System.out.println("readDatasets: test that dataset records contain the same information as the regular parser returns");
+        List<Map> expected = (List<Map>)new SimpleJSONparser().parseJSON(new java.io.InputStreamReader(new java.io.ByteArrayInputStream(HistoryArchiveFixture.DATASETS_ATTRS.getBytes())), null);
+        HistoryRecordReader reader = new HistoryRecordReader();
+        List<Map> datasets = reader.readDatasets(HistoryRecordReader.createParser(new StringReader(HistoryArchiveFixture.DATASETS_ATTRS)));
+        assertEquals(expected, datasets);
+        DatasetRecord first = (DatasetRecord)datasets.get(0);
+        DatasetRecord second = (DatasetRecord)datasets.get(1);
+        assertEquals(1, first.getHid());
+        assertEquals("d1", first.getEncodedID());
+        assertTrue(first.isVisible());
+        assertTrue("The dbkey of the datasets should be shared", ((Map)first.get("metadata")).get("dbkey")==((Map)second.get("metadata")).get("dbkey"));
+        assertTrue("Fields with NULL values should be included", first.containsKey("designation"));
+        assertNull(first.get("designation"));
+        assertFalse(first.containsKey("state"));
+        assertEquals(expected.get(5).get("copied_from_history_dataset_association_id_chain"), datasets.get(5).get("copied_from_history_dataset_association_id_chain"));
+    }
+
+    /**
+     * Test of readCollections method, of class HistoryRecordReader.
+     * Tests that collections and their (nested) elements are read into records
+     */
+    @Test
+    public void testReadCollections() throws Exception {
+        System.out.println("readCollections: test that collections and nested elements are read into records");
+        HistoryRecordReader reader = new HistoryRecordReader();
+        List<Map> collections = reader.readCollections(HistoryRecordReader.createParser(new StringReader(HistoryArchiveFixture.COLLECTIONS_ATTRS)));
+        CollectionRecord collection = (CollectionRecord)collections.get(1);
+        assertEquals(8, collection.getHid());
+        assertEquals("list:paired", collection.getType());
+        Map element = (Map)((List)((Map)collection.get("collection")).get("elements")).get(0);
+        assertTrue(element instanceof CollectionElementRecord);
+        assertEquals(0, element.get("element_index"));
+        Map nested = (Map)((List)((Map)element.get("child_collection")).get("elements")).get(1);
+        assertTrue(nested instanceof CollectionElementRecord);
+        assertEquals("reverse", nested.get("element_identifier"));
+        assertEquals("hda", ((CollectionElementRecord)nested).getElementType());
+    }
+
+    /**
+     * Test of HistoryRecord.
+     * Tests that records behave as regular maps, including fields that are not known in advance and values with unexpected types
+     */
+    @Test
+    public void testRecordAsMap() throws Exception {
+        System.out.println("HistoryRecord: test that records behave as regular maps");
+        Map<String,Object> expected = new HashMap<>();
+        DatasetRecord record = new DatasetRecord();
+        assertTrue(record.isEmpty());
+        assertEquals(-1, record.getHid());
+        for (Map<String,Object> map : new Map[]{expected, record}) {
+            map.put("hid", 12);
+            map.put("file_size", 5000000000L);
+            map.put("custom_field", "value");
+            map.put("name", null);
+            map.put("state", "ok");
+            map.remove("state");
+        }
+        assertEquals(expected, record);
+        assertEquals(expected.hashCode(), record.hashCode());
+        assertEquals(4, record.size());
+        assertEquals(12, record.getHid());
+        assertEquals(5000000000L, record.get("file_size"));
+        assertEquals("value", record.getUnknownFields().get("custom_field"));
+        record.put("hid", "not a number"); // values with unexpected types are kept as they are
+        assertEquals("not a number", record.get("hid"));
+        assertEquals(-1, record.getHid());
+        record.put("hid", null);
+        assertTrue(record.containsKey("hid"));
+        assertNull(record.get("hid"));
+        for (Map.Entry<String,Object> entry:record.entrySet()) {
+            if (entry.getKey().equals("hid")) entry.setValue(3);
+        }
+        assertEquals(3, record.getHid());
+    }
+
+    /**
+     * Test of readMetadata method, of class HistoryRecordReader.
+     * Tests that strings in low-cardinality fields are shared between records read by the same reader
+     */
+    @Test
+    public void testStringDeduplication() throws Exception {
+        System.out.println("HistoryRecordReader: test that repeated strings are deduplicated");
+        HistoryRecordReader reader = new HistoryRecordReader();
+        Map<String,Object> metadata = reader.readMetadata(HistoryRecordReader.createParser(new StringReader(
+                "{\"jobs\": "+HistoryArchiveFixture.JOBS_ATTRS+", \"datasets\": "+HistoryArchiveFixture.DATASETS_ATTRS+", \"version\": \"2\"}")));
+        List<Map> jobs = (List<Map>)metadata.get("jobs");
+        List<Map> datasets = (List<Map>)metadata.get("datasets");
+        assertTrue(jobs.get(0) instanceof JobRecord);
+        assertTrue(datasets.get(0) instanceof DatasetRecord);
+        assertEquals("2", metadata.get("version"));
+        assertTrue("Job states should be shared", jobs.get(0).get("state")==jobs.get(1).get("state"));
+        assertTrue("Dataset extensions should be shared", datasets.get(3).get("extension")==datasets.get(4).get("extension"));
+        assertFalse("Other strings should not be deduplicated", datasets.get(0).get("peek")==datasets.get(1).get("peek"));
+        assertTrue(reader.getDictionarySize()>0);
+    }
+
+}
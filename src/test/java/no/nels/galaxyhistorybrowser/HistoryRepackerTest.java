@@ -0,0 +1,101 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.CloseShieldFilterInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class HistoryRepackerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public HistoryRepackerTest() {
+    }
+
+    /**
+     * Test of repack method, of class HistoryRepacker.
+     * Tests that the repacked archive decompresses to exactly the same tarball with a regular GZIP decompressor, and that the embedded index can be loaded
+     */
+    @Test
+    public void testRepack() throws Exception {
+        System.out.println("repack: test that the repacked archive contains the same tarball and an embedded index");
+        File original = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        File repacked = new File(tempFolder.getRoot(), "repacked.tar.gz");
+        ArchiveIndex written = HistoryRepacker.repack(new FileInputStream(original), repacked);
+        assertArrayEquals(HistoryArchiveFixture.tarball(), HistoryArchiveFixture.readAll(new GzipCompressorInputStream(new FileInputStream(repacked), true)));
+        InputStream blocks = ParallelGzipInputStream.open(new FileInputStream(repacked));
+        assertTrue("The repacked archive should be in the BGZF layout", blocks instanceof ParallelGzipInputStream);
+        assertArrayEquals(HistoryArchiveFixture.tarball(), HistoryArchiveFixture.readAll(blocks));
+        ArchiveIndex index = ArchiveIndex.loadEmbedded(repacked, ArchiveFingerprint.of(repacked));
+        assertNotNull("Expected an embedded index", index);
+        assertTrue(index.isEmbedded());
+        assertEquals(written.getEntryNames(), index.getEntryNames());
+        for (Map.Entry<String,byte[]> entry : HistoryArchiveFixture.entries().entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), HistoryArchiveFixture.readAll(index.openEntry(repacked, entry.getKey())));
+        }
+        assertNull("Regular archives do not have an embedded index", ArchiveIndex.loadEmbedded(original, ArchiveFingerprint.of(original)));
+    }
+
+    /**
+     * Test of GalaxyHistoryArchive with a repacked archive.
+     * Tests that the history and its datasets are read without scanning the archive (so no sidecar index is created)
+     */
+    @Test
+    public void testRepackedArchive() throws Exception {
+        System.out.println("repack: test that repacked histories are read through the embedded index");
+        File original = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        File repacked = new File(tempFolder.getRoot(), "repacked.tar.gz");
+        new GalaxyHistoryArchive(original.getAbsolutePath()).repack(repacked);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new GalaxyHistoryArchive(original.getAbsolutePath()).outputHistoryAsJSON(expected, false);
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(repacked.getAbsolutePath());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        instance.outputHistoryAsJSON(output, false);
+        assertEquals(expected.toString("UTF-8"), output.toString("UTF-8"));
+        assertFalse("The repacked archive should not be scanned", ArchiveIndex.getSidecarFile(repacked).exists());
+        output.reset();
+        instance.outputDataset(output, "d5", null, false);
+        assertEquals(HistoryArchiveFixture.DATASET_5, output.toString("UTF-8"));
+        output.reset();
+        instance.outputDatasetWithExtraFiles(output, "d3");
+        ByteArrayOutputStream expectedZip = new ByteArrayOutputStream();
+        new GalaxyHistoryArchive(original.getAbsolutePath()).outputDatasetWithExtraFiles(expectedZip, "d3");
+        assertEquals(zipContents(expectedZip.toByteArray()), zipContents(output.toByteArray()));
+        try {
+            instance.repack(repacked);
+            fail("Expected an IOException when repacking into the same file");
+        } catch (IOException e) {
+            assertTrue(repacked.length() > 0);
+        }
+    }
+
+    /** Returns the names and sizes of the files in a ZIP archive */
+    private static String zipContents(byte[] zip) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            for (ZipEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
+                contents.append(entry.getName()).append(':').append(HistoryArchiveFixture.readAll(new CloseShieldFilterInputStream(input)).length).append('\n');
+            }
+        }
+        return contents.toString();
+    }
+
+}
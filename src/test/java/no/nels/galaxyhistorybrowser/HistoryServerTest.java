@@ -0,0 +1,105 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class HistoryServerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public HistoryServerTest() {
+    }
+
+    private static HttpURLConnection connect(HistoryServer server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:"+server.getPort()+path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        return connection;
+    }
+
+    private static byte[] fetch(HistoryServer server, String path) throws IOException {
+        HttpURLConnection connection = connect(server, path);
+        assertEquals("Status for "+path, 200, connection.getResponseCode());
+        return HistoryArchiveFixture.readAll(connection.getInputStream());
+    }
+
+    private static String fetchString(HistoryServer server, String path) throws IOException {
+        return new String(fetch(server, path), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test of the URLs served by the HistoryServer
+     */
+    @Test
+    public void testServer() throws Exception {
+        System.out.println("HistoryServer: test that histories, datasets and extra files can be retrieved over HTTP");
+        File archiveFile = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        HistoryServer server = new HistoryServer(tempFolder.getRoot(), 0);
+        server.start();
+        try {
+            GalaxyHistoryArchive archive = new GalaxyHistoryArchive(archiveFile.getAbsolutePath());
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            archive.outputHistoryAsJSON(expected, false);
+            assertEquals(expected.toString("UTF-8"), fetchString(server, "/history.tar.gz/history.json"));
+            assertEquals("2", fetchString(server, "/history.tar.gz/format"));
+            assertTrue(fetchString(server, "/history.tar.gz/").contains("history.json"));
+            assertEquals(HistoryArchiveFixture.DATASET_1, fetchString(server, "/history.tar.gz/d1/"));
+            assertEquals(HistoryArchiveFixture.DATASET_2, fetchString(server, "/history.tar.gz/d2/")); // view mode decompresses the dataset
+            byte[] downloaded = fetch(server, "/history.tar.gz/d2/?download=true");
+            assertEquals(HistoryArchiveFixture.DATASET_2, new String(HistoryArchiveFixture.readAll(new GZIPInputStream(new java.io.ByteArrayInputStream(downloaded))), StandardCharsets.UTF_8));
+            assertEquals(HistoryArchiveFixture.DATASET_3_EXTRA, fetchString(server, "/history.tar.gz/d3/image.png"));
+            assertEquals("text/html", fetchString(server, "/history.tar.gz/d3/?mime=true"));
+            assertEquals("text/html", connect(server, "/history.tar.gz/d3/").getContentType());
+            // errors
+            assertEquals(404, connect(server, "/history.tar.gz/unknown/").getResponseCode());
+            assertEquals(404, connect(server, "/history.tar.gz/d3/missing.png").getResponseCode());
+            assertEquals(404, connect(server, "/unknown.tar.gz/").getResponseCode());
+            assertEquals(404, connect(server, "/..%2F"+tempFolder.getRoot().getName()+"%2Fhistory.tar.gz/").getResponseCode());
+            assertEquals(403, connect(server, "/history.tar.gz/d3/%2E%2E/image.png").getResponseCode());
+            HttpURLConnection redirect = connect(server, "/history.tar.gz");
+            assertEquals(301, redirect.getResponseCode());
+            assertEquals("/history.tar.gz/", redirect.getHeaderField("Location"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Test that '+' in the path is not mistaken for an encoded space (which is only the case in query strings)
+     */
+    @Test
+    public void testPlusInPath() throws Exception {
+        System.out.println("HistoryServer: test that archive names and extra files containing '+' can be retrieved");
+        Map<String,byte[]> entries = HistoryArchiveFixture.entries();
+        entries.put("datasets/dataset_3_files/a+b c.png", HistoryArchiveFixture.DATASET_3_EXTRA.getBytes(StandardCharsets.UTF_8));
+        Files.write(tempFolder.getRoot().toPath().resolve("a+b c.tar.gz"), HistoryArchiveFixture.gzip(HistoryArchiveFixture.tarball(entries)));
+        HistoryServer server = new HistoryServer(tempFolder.getRoot(), 0);
+        server.start();
+        try {
+            assertEquals("2", fetchString(server, "/a+b%20c.tar.gz/format"));
+            assertEquals(HistoryArchiveFixture.DATASET_3_EXTRA, fetchString(server, "/a+b%20c.tar.gz/d3/a+b%20c.png"));
+            assertEquals(HistoryArchiveFixture.DATASET_3_EXTRA, fetchString(server, "/a%2Bb%20c.tar.gz/d3/a%2Bb%20c.png"));
+            assertEquals(404, connect(server, "/a%20b%20c.tar.gz/format").getResponseCode());
+        } finally {
+            server.stop();
+        }
+    }
+
+}
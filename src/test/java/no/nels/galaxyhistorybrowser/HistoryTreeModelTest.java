@@ -0,0 +1,116 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class HistoryTreeModelTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public HistoryTreeModelTest() {
+    }
+
+    /** Returns the child of the node with the given label */
+    private static HistoryTreeModel.Node findChild(HistoryTreeModel model, Object parent, String label) {
+        for (int i = 0; i < model.getChildCount(parent); i++) {
+            HistoryTreeModel.Node child = (HistoryTreeModel.Node)model.getChild(parent, i);
+            if (child.getLabel().equals(label)) return child;
+        }
+        throw new AssertionError("Child not found: " + label);
+    }
+
+    /**
+     * Test of the tree structure, of class HistoryTreeModel.
+     * Tests that the top-level entries, collections and nested collections are presented with the right children and labels
+     */
+    @Test
+    public void testTree() throws Exception {
+        System.out.println("HistoryTreeModel: test that the history contents are presented as a tree");
+        File archive = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        List<Map> contents = (List<Map>)new GalaxyHistoryArchive(archive.getAbsolutePath()).getHistory().get("contents");
+        HistoryTreeModel model = new HistoryTreeModel(contents);
+        Object root = model.getRoot();
+        assertEquals(contents.size(), model.getChildCount(root));
+        for (int i = 0; i < contents.size(); i++) {
+            HistoryTreeModel.Node child = (HistoryTreeModel.Node)model.getChild(root, i);
+            assertSame("The nodes should refer to the history entries without copying them", contents.get(i), child.getEntry());
+            assertSame("The nodes should be created once", child, model.getChild(root, i));
+            assertEquals(i, model.getIndexOfChild(root, child));
+        }
+        HistoryTreeModel.Node dataset = findChild(model, root, "[ 1 ]:  reads.fastq");
+        assertTrue(model.isLeaf(dataset));
+        assertTrue(dataset.isDataset());
+        assertFalse(dataset.isCollectionElement());
+        assertEquals("ok", dataset.getState());
+        HistoryTreeModel.Node list = findChild(model, root, "[ 7 ]:  my list");
+        assertFalse(model.isLeaf(list));
+        assertEquals(2, model.getChildCount(list));
+        HistoryTreeModel.Node element = (HistoryTreeModel.Node)model.getChild(list, 1);
+        assertEquals("[ 5 ]:  sample2 \u21d2 reverse", element.getLabel());
+        assertTrue(element.isCollectionElement());
+        assertEquals("d5", element.getEntry().get("encoded_id"));
+        assertFalse("The datasets should not be modified", element.getEntry().containsKey("displayLabel"));
+        assertEquals(1, model.getIndexOfChild(list, element));
+        assertEquals(-1, model.getIndexOfChild(root, element));
+        HistoryTreeModel.Node pairs = findChild(model, root, "[ 8 ]:  my pairs");
+        HistoryTreeModel.Node pair = (HistoryTreeModel.Node)model.getChild(pairs, 0);
+        assertEquals("pair1", pair.getLabel());
+        assertFalse(model.isLeaf(pair));
+        assertEquals(2, model.getChildCount(pair));
+        assertEquals("[ 4 ]:  forward \u21d2 forward", ((HistoryTreeModel.Node)model.getChild(pair, 0)).getLabel());
+        assertTrue(model.isLeaf(model.getChild(pair, 1)));
+    }
+
+    /**
+     * Test of add method, of class HistoryTreeModel.
+     * Tests that entries added while the history is loaded are appended to the root and reported to the listeners
+     */
+    @Test
+    public void testAdd() throws Exception {
+        System.out.println("HistoryTreeModel: test that top-level entries can be added incrementally");
+        File archive = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        List<Map> contents = (List<Map>)new GalaxyHistoryArchive(archive.getAbsolutePath()).getHistory().get("contents");
+        HistoryTreeModel model = new HistoryTreeModel();
+        List<int[]> inserted = new java.util.ArrayList<>();
+        model.addTreeModelListener(new javax.swing.event.TreeModelListener() {
+            @Override
+            public void treeNodesInserted(javax.swing.event.TreeModelEvent e) {
+                assertSame(model.getRoot(), e.getTreePath().getLastPathComponent());
+                inserted.add(e.getChildIndices());
+            }
+            @Override
+            public void treeNodesChanged(javax.swing.event.TreeModelEvent e) {fail("Unexpected event");}
+            @Override
+            public void treeNodesRemoved(javax.swing.event.TreeModelEvent e) {fail("Unexpected event");}
+            @Override
+            public void treeStructureChanged(javax.swing.event.TreeModelEvent e) {fail("Unexpected event");}
+        });
+        assertEquals(0, model.getChildCount(model.getRoot()));
+        assertFalse("The root should not be a leaf even when it is empty", model.isLeaf(model.getRoot()));
+        model.add(contents.subList(0, 2));
+        HistoryTreeModel.Node first = (HistoryTreeModel.Node)model.getChild(model.getRoot(), 1);
+        model.add(contents.subList(2, contents.size()));
+        model.add(contents.subList(0, 0));
+        assertEquals(2, inserted.size());
+        assertArrayEquals(new int[]{0, 1}, inserted.get(0));
+        assertEquals(2, inserted.get(1)[0]);
+        assertEquals(contents.size(), model.getChildCount(model.getRoot()));
+        assertSame(first, model.getChild(model.getRoot(), 1));
+        for (int i = 0; i < contents.size(); i++) {
+            assertSame(contents.get(i), ((HistoryTreeModel.Node)model.getChild(model.getRoot(), i)).getEntry());
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class LazyValueTest {
+
+    public LazyValueTest() {
+    }
+
+    /**
+     * Test of get method, of class LazyValue.
+     * Tests that the value is only loaded once even if many threads ask for it at the same time
+     */
+    @Test
+    public void testGet() throws Exception {
+        System.out.println("LazyValue: test that the value is only loaded once by concurrent threads");
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final LazyValue<String> value = new LazyValue<>(() -> {
+            loads.incrementAndGet();
+            try {
+                loading.await(); // keep the other threads waiting for this load
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "loaded";
+        });
+        assertNull(value.peek());
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) results.add(executor.submit(value::get));
+            Thread.sleep(50);
+            assertFalse(value.isLoaded());
+            loading.countDown();
+            for (Future<String> result : results) assertEquals("loaded", result.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, loads.get());
+        assertEquals("loaded", value.peek());
+        assertTrue(value.isLoaded());
+    }
+
+    /**
+     * Test of get method, of class LazyValue.
+     * Tests that a failed load is reported to the caller and retried by the next call
+     */
+    @Test
+    public void testGet_failure() throws Exception {
+        System.out.println("LazyValue: test that failed loads are retried");
+        final AtomicInteger loads = new AtomicInteger();
+        LazyValue<Integer> value = new LazyValue<>(() -> {
+            if (loads.incrementAndGet() == 1) throw new IOException("first attempt fails");
+            return loads.get();
+        });
+        try {
+            value.get();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("first attempt fails", e.getMessage());
+        }
+        assertNull(value.peek());
+        assertEquals(Integer.valueOf(2), value.get());
+        assertEquals(Integer.valueOf(2), value.get());
+        assertEquals(2, loads.get());
+        final LazyValue<String>[] recursive = new LazyValue[1];
+        recursive[0] = new LazyValue<>(() -> recursive[0].get());
+        try {
+            recursive[0].get();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {}
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class LineIndexTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public LineIndexTest() {
+    }
+
+    /**
+     * Test of build method, of class LineIndex.
+     * Tests that the positions of the indexed lines and the number of lines are correct, also for files with and without a final line break
+     */
+    @Test
+    public void testBuild() throws Exception {
+        System.out.println("LineIndex: test that the indexed line positions are correct");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 25; i++) builder.append("line ").append(i).append('\n');
+        String text = builder.toString();
+        LineIndex index = LineIndex.build(new ByteArrayInputStream(text.getBytes("UTF-8")), 10);
+        assertEquals(25, index.getLineCount());
+        assertEquals(text.length(), index.getSize());
+        assertEquals(0, index.getOffset(7));
+        assertEquals(10, index.getIndexedLine(19));
+        assertEquals(text.indexOf("line 10\n"), index.getOffset(19));
+        assertEquals(text.indexOf("line 20\n"), index.getOffset(24));
+        assertEquals(20, index.getIndexedLine(1000));
+        LineIndex exact = LineIndex.build(new ByteArrayInputStream(text.substring(0, text.indexOf("line 20\n")).getBytes("UTF-8")), 10);
+        assertEquals(20, exact.getLineCount());
+        assertEquals(10, exact.getIndexedLine(25)); // there is no line 20 to index
+        assertEquals(26, LineIndex.build(new ByteArrayInputStream((text + "no line break").getBytes("UTF-8")), 10).getLineCount());
+        assertEquals(0, LineIndex.build(new ByteArrayInputStream(new byte[0]), 10).getLineCount());
+    }
+
+    /**
+     * Test of save and load methods, of class LineIndex.
+     * Tests that a saved index is loaded again, but only for the same archive file and the same file inside it
+     */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        System.out.println("LineIndex: test that saved line indexes are only loaded for the same archive and file");
+        File archive = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        File other = HistoryArchiveFixture.writeMultiMember(tempFolder.newFile("other.tar.gz"), 1000);
+        ArchiveFingerprint fingerprint = ArchiveFingerprint.of(archive);
+        LineIndex index = LineIndex.build(new ByteArrayInputStream(HistoryArchiveFixture.DATASET_1.getBytes("UTF-8")), 3);
+        File sidecar = LineIndex.getSidecarFile(archive, "datasets/dataset_1.dat");
+        assertEquals(LineIndex.getSidecarDirectory(archive), sidecar.getParentFile());
+        assertNotEquals(sidecar, LineIndex.getSidecarFile(archive, "datasets/dataset_4.dat"));
+        index.save(sidecar, fingerprint, "datasets/dataset_1.dat");
+        LineIndex loaded = LineIndex.load(sidecar, fingerprint, "datasets/dataset_1.dat");
+        assertNotNull(loaded);
+        assertEquals(index.getLineCount(), loaded.getLineCount());
+        assertEquals(index.getSize(), loaded.getSize());
+        assertEquals(index.getOffset(7), loaded.getOffset(7));
+        assertNull(LineIndex.load(sidecar, fingerprint, "datasets/dataset_4.dat"));
+        assertNull(LineIndex.load(sidecar, ArchiveFingerprint.of(other), "datasets/dataset_1.dat"));
+        assertNull(LineIndex.load(new File(tempFolder.getRoot(), "missing"), fingerprint, "datasets/dataset_1.dat"));
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class OverlayMapTest {
+
+    public OverlayMapTest() {
+    }
+
+    private Map<String,Object> createBase() {
+        Map<String,Object> base = new HashMap<>();
+        base.put("name", "reads.fastq");
+        base.put("hid", 1);
+        base.put("blurb", "2 sequences");
+        return base;
+    }
+
+    /**
+     * Test of put, get and remove methods, of class OverlayMap.
+     * Tests that modifications are visible through the view but are not made to the base map
+     */
+    @Test
+    public void testModifications() {
+        System.out.println("OverlayMap: test that modifications to the view do not change the base map");
+        Map<String,Object> base = createBase();
+        OverlayMap view = new OverlayMap(base);
+        assertEquals(base, view);
+        assertEquals("reads.fastq", view.put("name", "renamed"));
+        view.put("size", view.remove("blurb"));
+        assertEquals("renamed", view.get("name"));
+        assertEquals("2 sequences", view.get("size"));
+        assertNull(view.get("blurb"));
+        assertFalse(view.containsKey("blurb"));
+        assertEquals(3, view.size());
+        Map<String,Object> expected = new HashMap<>();
+        expected.put("name", "renamed");
+        expected.put("hid", 1);
+        expected.put("size", "2 sequences");
+        assertEquals(expected, view);
+        assertEquals(expected, new HashMap<>(view));
+        assertEquals(createBase(), base); // the base map should be unchanged
+        view.put("blurb", "restored");
+        assertEquals("restored", view.get("blurb"));
+        assertEquals(4, view.size());
+    }
+
+    /**
+     * Test of OverlayMap.
+     * Tests that several views can share the same base map while keeping their own modifications
+     */
+    @Test
+    public void testSharedBase() {
+        System.out.println("OverlayMap: test that views of the same base map are independent of each other");
+        Map<String,Object> base = createBase();
+        OverlayMap first = new OverlayMap(base);
+        OverlayMap second = new OverlayMap(first);
+        first.put("element_encoded_id", "e1");
+        second.put("element_encoded_id", "e2");
+        second.remove("hid");
+        assertEquals("e1", first.get("element_encoded_id"));
+        assertEquals("e2", second.get("element_encoded_id"));
+        assertEquals(1, first.get("hid"));
+        assertNull(second.get("hid"));
+        assertEquals(4, first.size());
+        assertEquals(3, second.size());
+        base.put("state", "ok"); // changes to the base map are visible in the views
+        assertEquals("ok", second.get("state"));
+        try {
+            first.entrySet().iterator().next().setValue("x"); // the first entry comes from the overlay, so it can be changed
+            for (Map.Entry<String,Object> entry:second.entrySet()) {
+                if (entry.getKey().equals("name")) entry.setValue("changed");
+            }
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {}
+        assertEquals("reads.fastq", base.get("name"));
+    }
+
+}
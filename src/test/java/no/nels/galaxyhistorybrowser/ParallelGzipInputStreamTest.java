@@ -0,0 +1,121 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class ParallelGzipInputStreamTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public ParallelGzipInputStreamTest() {
+    }
+
+    /**
+     * Test of open method, of class ParallelGzipInputStream.
+     * Tests that BGZF data is decompressed in parallel to exactly the same bytes and member offsets as the serial decompression
+     */
+    @Test
+    public void testOpen_blocked() throws Exception {
+        System.out.println("ParallelGzipInputStream: test that BGZF archives are decompressed the same way as serially");
+        File archive = HistoryArchiveFixture.writeBlocked(tempFolder.newFile("history.tar.gz"), 500);
+        List<Long> serialMembers = new ArrayList<>();
+        List<Long> parallelMembers = new ArrayList<>();
+        byte[] serial = HistoryArchiveFixture.readAll(new GzipMemberInputStream(new FileInputStream(archive), 0, 0, (compressed, uncompressed) -> {serialMembers.add(compressed); serialMembers.add(uncompressed);}));
+        InputStream stream = ParallelGzipInputStream.open(new FileInputStream(archive), 0, 0, (compressed, uncompressed) -> {parallelMembers.add(compressed); parallelMembers.add(uncompressed);});
+        assertTrue("Expected a parallel stream for a BGZF archive", stream instanceof ParallelGzipInputStream);
+        byte[] parallel = HistoryArchiveFixture.readAll(stream);
+        assertArrayEquals(HistoryArchiveFixture.tarball(), serial);
+        assertArrayEquals(serial, parallel);
+        assertEquals(serialMembers, parallelMembers);
+        assertFalse("Regular archives should be decompressed serially", ParallelGzipInputStream.open(new FileInputStream(HistoryArchiveFixture.write(tempFolder.newFile("regular.tar.gz")))) instanceof ParallelGzipInputStream);
+    }
+
+    /**
+     * Test of open method, of class ParallelGzipInputStream.
+     * Tests that regular members after the BGZF blocks are decompressed serially, that trailing garbage is ignored and that corrupt blocks are reported
+     */
+    @Test
+    public void testOpen_mixed() throws Exception {
+        System.out.println("ParallelGzipInputStream: test mixed members, trailing data and corrupt blocks");
+        byte[] first = "The first block. ".getBytes("UTF-8");
+        byte[] second = "The second block, which is a regular GZIP member. ".getBytes("UTF-8");
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(HistoryArchiveFixture.bgzfBlock(first));
+        file.write(HistoryArchiveFixture.gzip(second));
+        file.write(HistoryArchiveFixture.bgzfBlock(first));
+        file.write(new byte[]{1, 2, 3});
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        expected.write(first);
+        assertArrayEquals(expected.toByteArray(), HistoryArchiveFixture.readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(file.toByteArray()))));
+        byte[] trailing = Arrays.copyOf(HistoryArchiveFixture.bgzfBlock(first), HistoryArchiveFixture.bgzfBlock(first).length + 1);
+        assertArrayEquals(first, HistoryArchiveFixture.readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(trailing))));
+        byte[] corrupt = HistoryArchiveFixture.bgzfBlock(first);
+        corrupt[corrupt.length - 8] ^= 1; // the CRC
+        try {
+            HistoryArchiveFixture.readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(corrupt)));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Corrupt GZIP trailer: CRC mismatch", e.getMessage());
+        }
+        try {
+            ParallelGzipInputStream.open(new ByteArrayInputStream("not compressed".getBytes("UTF-8")));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Input is not in the .gz format", e.getMessage());
+        }
+    }
+
+    /**
+     * Test of GalaxyHistoryArchive with a BGZF archive.
+     * Tests that the history and every file can be read, and that the blocks are used as checkpoints for reading entries directly
+     */
+    @Test
+    public void testArchive_blocked() throws Exception {
+        System.out.println("ParallelGzipInputStream: test that BGZF histories are read the same way as regular histories");
+        File regular = HistoryArchiveFixture.write(tempFolder.newFile("regular.tar.gz"));
+        File blocked = HistoryArchiveFixture.writeBlocked(tempFolder.newFile("blocked.tar.gz"), 1000);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new GalaxyHistoryArchive(regular.getAbsolutePath()).outputHistoryAsJSON(expected, false);
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(blocked.getAbsolutePath());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        instance.outputHistoryAsJSON(output, false);
+        assertEquals(expected.toString("UTF-8"), output.toString("UTF-8"));
+        ArchiveIndex index = new ArchiveIndex(ArchiveFingerprint.of(blocked), 1000);
+        try (TarArchiveInputStream tarInput = new TarArchiveInputStream(ParallelGzipInputStream.open(new FileInputStream(blocked), 0, 0, index::addCheckpoint))) {
+            for (TarArchiveEntry entry = tarInput.getNextTarEntry(); entry != null; entry = tarInput.getNextTarEntry()) {
+                index.addEntry(entry.getName(), tarInput.getBytesRead(), entry.getSize());
+            }
+        }
+        assertTrue("Expected a checkpoint for every block", index.getCheckpointCount() > HistoryArchiveFixture.tarball().length / 1000);
+        for (Map.Entry<String,byte[]> entry : HistoryArchiveFixture.entries().entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), HistoryArchiveFixture.readAll(index.openEntry(blocked, entry.getKey())));
+        }
+        ByteArrayOutputStream dataset = new ByteArrayOutputStream();
+        instance.outputDataset(dataset, "d5", null, false);
+        assertEquals(HistoryArchiveFixture.DATASET_5, dataset.toString("UTF-8"));
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+/**
+ * Compares the wall-clock time of full-archive operations with and without pipelined decompression (see ArchiveSource.pipeline).
+ * This is not a unit test and is not run by the build. Run it from the command line with the test classpath:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt; no.nels.galaxyhistorybrowser.PipelineBenchmark [megabytes] [runs]
+ * </pre>
+ * The benchmark creates a synthetic history where dataset 'd3' has extra files with the given total amount of FASTQ-like data,
+ * and then measures a full scan of the archive (getHistorySize) and outputDatasetWithExtraFiles for dataset 'd3'.
+ * @author kjetikl
+ */
+public class PipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int megabytes=(args.length>0)?Integer.parseInt(args[0]):256;
+        int runs=(args.length>1)?Integer.parseInt(args[1]):5;
+        File file=File.createTempFile("ghb-benchmark", ".tar.gz");
+        file.deleteOnExit();
+        System.out.println("Writing "+megabytes+" MB history to "+file+" ...");
+        write(file, megabytes*1024L*1024L);
+        System.out.println("Compressed size: "+(file.length()/(1024*1024))+" MB, runs: "+runs+", processors: "+Runtime.getRuntime().availableProcessors());
+        for (ArchiveSource.Mode mode:new ArchiveSource.Mode[]{ArchiveSource.Mode.DIRECT, ArchiveSource.Mode.READ_AHEAD}) {
+            for (boolean pipelined:new boolean[]{false,true}) {
+                ArchiveSource.setMode(mode);
+                ArchiveSource.setPipelined(pipelined);
+                long[] scan=new long[runs];
+                long[] zip=new long[runs];
+                for (int run=0;run<runs;run++) {
+                    deleteSidecars(file);
+                    long start=System.nanoTime();
+                    new GalaxyHistoryArchive(file.getPath()).getHistorySize(); // a full scan, since the sidecar files have been deleted
+                    scan[run]=System.nanoTime()-start;
+                    GalaxyHistoryArchive archive=new GalaxyHistoryArchive(file.getPath());
+                    archive.getHistorySize(); // the metadata is loaded from the snapshot before the timing starts
+                    start=System.nanoTime();
+                    archive.outputDatasetWithExtraFiles(new NullOutputStream(), "d3");
+                    zip[run]=System.nanoTime()-start;
+                }
+                System.out.println(String.format("%-10s pipelined=%-5s  full scan: %6d ms   ZIP with extra files: %6d ms", mode, pipelined, median(scan)/1000000, median(zip)/1000000));
+            }
+        }
+        deleteSidecars(file);
+    }
+
+    /** Writes the fixture history, but with large extra files for dataset 'd3' */
+    private static void write(File file, long extraBytes) throws IOException {
+        Map<String,byte[]> entries=HistoryArchiveFixture.entries();
+        Random random=new Random(1);
+        try (TarArchiveOutputStream tarOutput=new TarArchiveOutputStream(new GzipCompressorOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024*1024)))) {
+            tarOutput.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            for (Map.Entry<String,byte[]> entry:entries.entrySet()) {
+                add(tarOutput, entry.getKey(), entry.getValue());
+                if (entry.getKey().equals("datasets/dataset_3_files/image.png")) {
+                    int parts=(int)Math.max(1, extraBytes/(64*1024*1024));
+                    for (int i=0;i<parts;i++) add(tarOutput, "datasets/dataset_3_files/reads_"+i+".fastq", fastq(random, (int)(extraBytes/parts)));
+                }
+            }
+        }
+    }
+
+    private static void add(TarArchiveOutputStream tarOutput, String name, byte[] contents) throws IOException {
+        TarArchiveEntry entry=new TarArchiveEntry(name);
+        entry.setSize(contents.length);
+        tarOutput.putArchiveEntry(entry);
+        tarOutput.write(contents);
+        tarOutput.closeArchiveEntry();
+    }
+
+    /** Returns FASTQ-like text, which compresses about as well as real sequencing data */
+    private static byte[] fastq(Random random, int size) {
+        StringBuilder builder=new StringBuilder(size+200);
+        char[] bases={'A','C','G','T'};
+        char[] sequence=new char[100];
+        char[] quality=new char[100];
+        for (int read=0;builder.length()<size;read++) {
+            for (int i=0;i<100;i++) {
+                sequence[i]=bases[random.nextInt(4)];
+                quality[i]=(char)('5'+random.nextInt(10));
+            }
+            builder.append("@read").append(read).append('\n').append(sequence).append("\n+\n").append(quality).append('\n');
+        }
+        return Arrays.copyOf(builder.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+
+    private static void deleteSidecars(File file) {
+        new File(file.getPath()+".ghbindex").delete();
+        new File(file.getPath()+".ghbsnapshot").delete();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted=values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length/2];
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {}
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class ProgressInputStreamTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public ProgressInputStreamTest() {
+    }
+
+    /**
+     * Test of read and skip methods, of class ProgressInputStream.
+     * Tests that the progress is reported for every megabyte and once at the end of the stream
+     */
+    @Test
+    public void testProgress() throws Exception {
+        System.out.println("ProgressInputStream: test that the progress is reported while the stream is read");
+        int size = (int)(2.5 * ProgressInputStream.REPORT_INTERVAL);
+        List<Long> reports = new ArrayList<>();
+        ProgressInputStream stream = new ProgressInputStream(new ByteArrayInputStream(new byte[size]), size, (bytesRead, totalBytes) -> {
+            assertEquals(size, totalBytes);
+            reports.add(bytesRead);
+        });
+        byte[] buffer = new byte[100000];
+        assertEquals(1, stream.skip(1));
+        assertEquals(0, stream.read());
+        while (stream.read(buffer) >= 0) {}
+        assertEquals(-1, stream.read());
+        assertEquals(size, stream.getCount());
+        assertEquals(3, reports.size());
+        assertTrue(reports.get(0) >= ProgressInputStream.REPORT_INTERVAL && reports.get(0) < ProgressInputStream.REPORT_INTERVAL + buffer.length);
+        assertEquals(Long.valueOf(size), reports.get(2));
+    }
+
+    /**
+     * Test of the listener, of class ProgressInputStream.
+     * Tests that an exception thrown by the listener stops the reading
+     */
+    @Test
+    public void testCancel() throws Exception {
+        System.out.println("ProgressInputStream: test that the listener can stop the reading");
+        byte[] data = new byte[(int)(3 * ProgressInputStream.REPORT_INTERVAL)];
+        ProgressInputStream stream = new ProgressInputStream(new ByteArrayInputStream(data), -1, (bytesRead, totalBytes) -> {
+            throw new InterruptedIOException("Cancelled");
+        });
+        byte[] buffer = new byte[65536];
+        try {
+            while (stream.read(buffer) >= 0) {}
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Cancelled", e.getMessage());
+        }
+        assertTrue(stream.getCount() < data.length);
+        assertFalse(stream.markSupported());
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ */
+package no.nels.galaxyhistorybrowser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author kjetikl
+ */
+public class SharedScanTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    public SharedScanTest() {
+    }
+
+    /**
+     * Test of openEntry method, of class SharedScan.
+     * Tests that concurrent requests for different files are served by a single pass through the archive
+     */
+    @Test
+    public void testOpenEntry_batched() throws Exception {
+        System.out.println("SharedScan: test that requests for different files share a single pass");
+        File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        Map<String,byte[]> entries = HistoryArchiveFixture.entries();
+        CountDownLatch submitted = new CountDownLatch(entries.size());
+        AtomicInteger passes = new AtomicInteger();
+        LazyValue.Loader<InputStream> source = () -> {
+            passes.incrementAndGet();
+            try {
+                submitted.await(10, TimeUnit.SECONDS); // make sure that all the requests have been made before the pass starts
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new FileInputStream(file);
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(entries.size());
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (String filepath : entries.keySet()) {
+                results.add(executor.submit(() -> {
+                    submitted.countDown();
+                    return HistoryArchiveFixture.readAll(SharedScan.openEntry("batched", source, filepath));
+                }));
+            }
+            int i = 0;
+            for (byte[] expected : entries.values()) assertArrayEquals(expected, results.get(i++).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, passes.get());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (SharedScan.isScanning("batched") && System.currentTimeMillis() < deadline) Thread.sleep(10); // the scanner thread stops shortly after the last request has been answered
+        assertFalse(SharedScan.isScanning("batched"));
+        assertNull(SharedScan.openEntry("batched", source, "datasets/missing.dat")); // the first pass is over, so this needs a new pass
+        assertEquals(2, passes.get());
+    }
+
+    /**
+     * Test of openEntry method, of class SharedScan.
+     * Tests that requests arriving during a pass join it if their file has not been passed yet, and otherwise get a new pass
+     */
+    @Test
+    public void testOpenEntry_joinDuringPass() throws Exception {
+        System.out.println("SharedScan: test that requests can join a pass that is in progress");
+        File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        Map<String,byte[]> entries = HistoryArchiveFixture.entries();
+        AtomicInteger passes = new AtomicInteger();
+        LazyValue.Loader<InputStream> source = () -> {
+            passes.incrementAndGet();
+            return new FileInputStream(file);
+        };
+        InputStream middle = SharedScan.openEntry("joined", source, "datasets/dataset_3.dat"); // the pass is held here until the stream is closed
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<byte[]> earlier = executor.submit(() -> HistoryArchiveFixture.readAll(SharedScan.openEntry("joined", source, "datasets/dataset_1.dat")));
+            Future<byte[]> later = executor.submit(() -> HistoryArchiveFixture.readAll(SharedScan.openEntry("joined", source, "jobs_attrs.txt")));
+            Thread.sleep(200);
+            assertArrayEquals(entries.get("datasets/dataset_3.dat"), HistoryArchiveFixture.readAll(middle));
+            assertArrayEquals(entries.get("jobs_attrs.txt"), later.get(10, TimeUnit.SECONDS));
+            assertArrayEquals(entries.get("datasets/dataset_1.dat"), earlier.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, passes.get()); // the file that had already been passed required a second pass
+    }
+
+    /**
+     * Test of openEntry method, of class SharedScan.
+     * Tests that errors when reading the archive are passed on to the requests
+     */
+    @Test
+    public void testOpenEntry_errors() throws Exception {
+        System.out.println("SharedScan: test that errors are passed on to the requests");
+        try {
+            SharedScan.openEntry("broken", () -> new ByteArrayInputStream("This is not an archive".getBytes("UTF-8")), "export_attrs.txt");
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Input is not in the .gz format", e.getMessage());
+        }
+        try {
+            SharedScan.openEntry("missing", () -> {throw new FileNotFoundException("No such archive");}, "export_attrs.txt");
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException e) {}
+    }
+
+    /**
+     * Test of GalaxyHistoryArchive.getInputStreamForFile for archives without an index
+     */
+    @Test
+    public void testGetInputStreamForFile() throws Exception {
+        System.out.println("SharedScan: test that files in archives without an index are read through shared passes");
+        File file = HistoryArchiveFixture.write(tempFolder.newFile("history.tar.gz"));
+        GalaxyHistoryArchive instance = new GalaxyHistoryArchive(file.getAbsolutePath()); // the archive has not been scanned, so there is no index
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<byte[]> first = executor.submit(() -> HistoryArchiveFixture.readAll(instance.getInputStreamForFile("datasets/dataset_2.fastqsanger.gz", true)));
+            Future<byte[]> second = executor.submit(() -> HistoryArchiveFixture.readAll(instance.getInputStreamForFile("datasets/dataset_4.dat", true)));
+            Future<byte[]> third = executor.submit(() -> HistoryArchiveFixture.readAll(instance.getInputStreamForFile("datasets/dataset_2.fastqsanger.gz", false)));
+            assertEquals(HistoryArchiveFixture.DATASET_2, new String(first.get(10, TimeUnit.SECONDS), "UTF-8"));
+            assertEquals(HistoryArchiveFixture.DATASET_4, new String(second.get(10, TimeUnit.SECONDS), "UTF-8"));
+            assertArrayEquals(HistoryArchiveFixture.entries().get("datasets/dataset_2.fastqsanger.gz"), third.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            instance.getInputStreamForFile("datasets/missing.dat", true);
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException e) {}
+        assertEquals("2", instance.getExportVersion());
+        assertEquals(0, EntrySpool.getActiveSpoolCount());
+    }
+
+}